@@ -24,7 +24,11 @@ import java.util.logging.Logger;
 import org.lisapark.koctopus.repo.graph.GraphUtils;
 import org.lisapark.koctopus.core.processor.AbstractProcessor;
 import org.lisapark.koctopus.core.sink.external.AbstractExternalSink;
+import org.lisapark.koctopus.repo.processor.channel.DonchianChannel;
 import org.lisapark.koctopus.repo.processor.crossing.Crossing;
+import org.lisapark.koctopus.repo.processor.expression.ExpressionProcessor;
+import org.lisapark.koctopus.repo.processor.sampling.SamplingProcessor;
+import org.lisapark.koctopus.repo.processor.forecast.BulkForecastSRM;
 import org.lisapark.koctopus.repo.processor.forecast.ForecastSRM;
 import org.lisapark.koctopus.repo.processor.regression.LinearRegressionProcessor;
 import org.lisapark.koctopus.repo.processor.correlation.PearsonsCorrelationProcessor;
@@ -34,10 +38,15 @@ import org.lisapark.koctopus.core.sink.external.ExternalSink;
 import org.lisapark.koctopus.repo.sink.lucene.LuceneBaseIndex;
 import org.lisapark.koctopus.repo.sink.DatabaseSink;
 import org.lisapark.koctopus.repo.sink.ConsoleFromRedis;
+import org.lisapark.koctopus.repo.sink.StreamCaptureSink;
+import org.lisapark.koctopus.repo.source.ControlCommandSource;
 import org.lisapark.koctopus.repo.source.DocDirSource;
 import org.lisapark.koctopus.core.source.external.AbstractExternalSource;
 import org.lisapark.koctopus.repo.source.GdeltZipSource;
+import org.lisapark.koctopus.repo.source.KickStarterSource;
+import org.lisapark.koctopus.repo.source.RedisGroupSource;
 import org.lisapark.koctopus.repo.source.SqlQuerySource;
+import org.lisapark.koctopus.repo.source.StreamReplaySource;
 import org.lisapark.koctopus.repo.source.TestRandomBinarySource;
 import org.lisapark.koctopus.repo.source.TestSourceRedis;
 
@@ -49,19 +58,24 @@ public abstract class AbstractOctopusRepository implements OctopusRepository {
     public List<ExternalSink> getAllExternalSinkTemplates() {
         return Lists.newArrayList(new ExternalSink[]{
             ConsoleFromRedis.newTemplate(),
-            LuceneBaseIndex.newTemplate(), //            DatabaseSink.newTemplate()
+            DatabaseSink.newTemplate(),
+            StreamCaptureSink.newTemplate(),
+            LuceneBaseIndex.newTemplate(),
         });
     }
 
     @Override
     public List<AbstractExternalSource> getAllExternalSourceTemplates() {
         return Lists.newArrayList(new AbstractExternalSource[]{
+            ControlCommandSource.newTemplate(),
             DocDirSource.newTemplate(),
-            //            KickStarterSource.newTemplate(),
+            KickStarterSource.newTemplate(),
             //            GdeltZipSource.newTemplate(),
             //            RedisQuittokenSource.newTemplate(),
+            RedisGroupSource.newTemplate(),
             //            RTCSource.newTemplate(),
             //            SqlQuerySource.newTemplate(),
+            StreamReplaySource.newTemplate(),
             //            TestSource.newTemplate(),
             TestSourceRedis.newTemplate(), //            TestRandomBinarySource.newTemplate()
         });
@@ -79,6 +93,10 @@ public abstract class AbstractOctopusRepository implements OctopusRepository {
             //            PipeStringDouble.newTemplate(),
             //            RTCcontroller.newTemplate(),
             //            SmaOld.newTemplate(),
+            ExpressionProcessor.newTemplate(),
+            SamplingProcessor.newTemplate(),
+            DonchianChannel.newTemplate(),
+            BulkForecastSRM.newTemplate(),
             SmaRedis.newTemplate()
         });
     }
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.graph;
+
+import io.lettuce.core.StreamMessage;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.Graph;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.transport.Transport;
+
+/**
+ * Runs a compiled graph, see {@link GraphUtils#compileGraph}.
+ *
+ * The graph is split into operator chains, see
+ * {@link GraphUtils#findOperatorChains(Graph, Set)}, and single nodes. They
+ * run in topological order, each to completion, exchanging events through
+ * the transport. The nodes of a chain run at the same time and hand events
+ * over in memory, see {@link OperatorChain}.
+ *
+ * @author alexmy
+ */
+public class GraphRunner {
+
+    static final Logger LOG = Logger.getLogger(GraphRunner.class.getName());
+
+    private final Graph graph;
+    private final Function<String, Transport> transports;
+
+    /**
+     * @param graph compiled graph
+     * @param transports new transport for a transport url, called once for
+     * every node
+     */
+    public GraphRunner(Graph graph, Function<String, Transport> transports) {
+        this.graph = graph;
+        this.transports = transports;
+    }
+
+    /**
+     * Runs the graph with operator chaining.
+     *
+     * @return GraphVocabulary.COMPLETE or GraphVocabulary.CANCEL
+     */
+    public Integer run() {
+        return run(Collections.emptySet());
+    }
+
+    /**
+     * @param materialize ids of the nodes that always write their output to
+     * the transport; all node ids turn chaining off
+     * @return GraphVocabulary.COMPLETE or GraphVocabulary.CANCEL
+     */
+    public Integer run(Set<String> materialize) {
+        List<OperatorChain> order;
+        try {
+            order = schedule(materialize);
+        } catch (IllegalStateException ex) {
+            LOG.log(Level.SEVERE, ex.getMessage());
+            return GraphVocabulary.CANCEL;
+        }
+        for (OperatorChain unit : order) {
+            LOG.log(Level.INFO, "Running {0}", unit);
+            Integer status = unit.run(transports);
+            if (!GraphVocabulary.COMPLETE.equals(status)) {
+                LOG.log(Level.SEVERE, "{0} canceled, graph {1} stopped.", new Object[]{unit, graph.getId()});
+                return GraphVocabulary.CANCEL;
+            }
+        }
+        return GraphVocabulary.COMPLETE;
+    }
+
+    /**
+     * Operator chains and single nodes, as one-node chains, in topological
+     * order.
+     *
+     * @param materialize
+     * @return
+     * @throws IllegalStateException if the graph has a cycle
+     */
+    List<OperatorChain> schedule(Set<String> materialize) {
+        Map<String, OperatorChain> units = new LinkedHashMap<>();
+        GraphUtils.findOperatorChains(graph, materialize).forEach(chain -> {
+            chain.getNodes().forEach(node -> units.put(OperatorChain.streamKey(node), chain));
+        });
+        graph.getNodes().forEach(node -> {
+            units.computeIfAbsent(OperatorChain.streamKey(node), k -> new OperatorChain(Collections.singletonList(node)));
+        });
+
+        Map<OperatorChain, Set<OperatorChain>> downstream = new LinkedHashMap<>();
+        Map<OperatorChain, Integer> upstream = new LinkedHashMap<>();
+        units.values().forEach(unit -> {
+            downstream.putIfAbsent(unit, new HashSet<>());
+            upstream.putIfAbsent(unit, 0);
+        });
+        graph.getEdges().forEach(edge -> {
+            OperatorChain from = units.get(edge.getSource());
+            OperatorChain to = units.get(edge.getTarget());
+            if (from != null && to != null && from != to && downstream.get(from).add(to)) {
+                upstream.merge(to, 1, Integer::sum);
+            }
+        });
+
+        List<OperatorChain> order = new ArrayList<>();
+        Deque<OperatorChain> ready = new ArrayDeque<>();
+        upstream.forEach((unit, count) -> {
+            if (count == 0) {
+                ready.add(unit);
+            }
+        });
+        while (!ready.isEmpty()) {
+            OperatorChain unit = ready.poll();
+            order.add(unit);
+            downstream.get(unit).forEach(next -> {
+                if (upstream.merge(next, -1, Integer::sum) == 0) {
+                    ready.add(next);
+                }
+            });
+        }
+        if (order.size() < downstream.size()) {
+            throw new IllegalStateException("Graph " + graph.getId() + " has a cycle.");
+        }
+        return order;
+    }
+}
@@ -20,8 +20,11 @@ import com.fasterxml.uuid.Generators;
 import java.awt.Point;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.logging.Level;
@@ -566,6 +569,65 @@ public class GraphUtils {
         return model;
     }
 
+    /**
+     *
+     * @param graph
+     * @return
+     */
+    public static List<OperatorChain> findOperatorChains(Graph graph) {
+        return findOperatorChains(graph, new HashSet<>());
+    }
+
+    /**
+     * Finds linear chains of nodes in the compiled graph that can run fused in
+     * one process, see {@link GraphRunner}. Two adjacent nodes are fused when
+     * the upstream node has a single consumer, the downstream node has a single
+     * input, both share the same transport and the upstream node is not listed
+     * in materialize. Fan-out points and the listed nodes end a chain, their output is written to the
+     * transport as usual. Only chains of two or more nodes are returned.
+     *
+     * @param graph compiled graph, see compileGraph
+     * @param materialize ids of the nodes that always write their output to
+     * the transport
+     * @return
+     */
+    public static List<OperatorChain> findOperatorChains(Graph graph, Set<String> materialize) {
+        Map<String, Gnode> lookup = new LinkedHashMap<>();
+        graph.getNodes().forEach(node -> {
+            lookup.put(OperatorChain.streamKey(node), node);
+        });
+        Map<String, List<String>> consumers = new HashMap<>();
+        Map<String, Integer> inputs = new HashMap<>();
+        graph.getEdges().forEach(edge -> {
+            consumers.computeIfAbsent(edge.getSource(), k -> new ArrayList<>()).add(edge.getTarget());
+            inputs.merge(edge.getTarget(), 1, Integer::sum);
+        });
+        // Fusable link for each node, if any
+        Map<String, String> next = new HashMap<>();
+        lookup.forEach((key, node) -> {
+            List<String> targets = consumers.get(key);
+            if (targets == null || targets.size() != 1 || materialize.contains(node.getId())) {
+                return;
+            }
+            Gnode target = lookup.get(targets.get(0));
+            if (target != null && inputs.get(targets.get(0)) == 1
+                    && Objects.equals(node.getTransportUrl(), target.getTransportUrl())) {
+                next.put(key, targets.get(0));
+            }
+        });
+        Set<String> fused = new HashSet<>(next.values());
+        List<OperatorChain> chains = new ArrayList<>();
+        lookup.keySet().stream().filter(key -> next.containsKey(key) && !fused.contains(key)).forEach(head -> {
+            List<Gnode> chain = new ArrayList<>();
+            Set<String> visited = new HashSet<>();
+            for (String key = head; key != null && visited.add(key); key = next.get(key)) {
+                chain.add(lookup.get(key));
+            }
+            chains.add(new OperatorChain(chain));
+        });
+        return chains;
+    }
+
     /**
      *
      * @param graphJson
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.graph;
+
+import io.lettuce.core.StreamMessage;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.core.ProcessingException;
+import org.lisapark.koctopus.core.ValidationException;
+import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.graph.api.Vocabulary;
+import org.lisapark.koctopus.core.processor.AbstractProcessor;
+import org.lisapark.koctopus.core.processor.CompiledProcessor;
+import org.lisapark.koctopus.core.sink.external.CompiledExternalSink;
+import org.lisapark.koctopus.core.sink.external.ExternalSink;
+import org.lisapark.koctopus.core.source.external.AbstractExternalSource;
+import org.lisapark.koctopus.core.source.external.CompiledExternalSource;
+import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.repo.RedisRepository;
+
+/**
+ * Linear, single-consumer chain of graph nodes that runs fused in one
+ * process. Chains are found by
+ * {@link GraphUtils#findOperatorChains(org.lisapark.koctopus.core.graph.Graph, java.util.Set)}
+ * and run by {@link GraphRunner}.
+ *
+ * All nodes of the chain run at the same time, each in its own thread.
+ * Streams between two nodes of the chain are bounded in-memory queues: the
+ * upstream node blocks when the queue is full, the downstream node blocks
+ * on an empty queue until the upstream node writes or completes. Only the
+ * output of the last node (the fan-out point or the node configured to
+ * materialize) is written to the real transport.
+ *
+ * @author alexmy
+ */
+public class OperatorChain {
+
+    static final Logger LOG = Logger.getLogger(OperatorChain.class.getName());
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private final List<Gnode> nodes;
+
+    OperatorChain(List<Gnode> nodes) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+    }
+
+    public List<Gnode> getNodes() {
+        return nodes;
+    }
+
+    public Gnode getHead() {
+        return nodes.get(0);
+    }
+
+    public Gnode getTail() {
+        return nodes.get(nodes.size() - 1);
+    }
+
+    /**
+     * Returns true if the node belongs to this chain.
+     *
+     * @param nodeId
+     * @return
+     */
+    public boolean contains(String nodeId) {
+        return nodes.stream().anyMatch(node -> node.getId().equals(nodeId));
+    }
+
+    /**
+     * Stream key of the node output, the same key the transport uses:
+     * "class name:node id".
+     *
+     * @param node
+     * @return
+     */
+    static String streamKey(Gnode node) {
+        return streamKey(node.getType(), node.getId());
+    }
+
+    static String streamKey(String className, Object id) {
+        return className + ":" + id;
+    }
+
+    /**
+     * Runs all nodes of the chain concurrently, each with its own transport.
+     * If a node fails or cancels, the nodes upstream of it are stopped at
+     * their next write and the nodes downstream see the end of their input.
+     *
+     * @param transports transport for a transport url; used for the chain
+     * head input, the chain tail output and everything else the nodes read
+     * or write, such as control streams
+     * @return GraphVocabulary.COMPLETE or GraphVocabulary.CANCEL
+     */
+    public Integer run(Function<String, Transport> transports) {
+        return run(transports, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param transports
+     * @param capacity events held between two nodes of the chain
+     * @return GraphVocabulary.COMPLETE or GraphVocabulary.CANCEL
+     */
+    public Integer run(Function<String, Transport> transports, int capacity) {
+        Map<String, Handoff> handoffs = new HashMap<>();
+        // every node but the tail hands its output to the next node in memory
+        for (int i = 0; i < nodes.size() - 1; i++) {
+            String key = streamKey(nodes.get(i));
+            handoffs.put(key, new Handoff(key, capacity));
+        }
+        List<Stage> stages = new ArrayList<>();
+        RedisRepository repo = new RedisRepository();
+        try {
+            for (int i = 0; i < nodes.size(); i++) {
+                Gnode node = nodes.get(i);
+                stages.add(compile(repo, node,
+                        i == 0 ? null : handoffs.get(streamKey(nodes.get(i - 1))),
+                        handoffs.get(streamKey(node))));
+            }
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException | ValidationException ex) {
+            LOG.log(Level.SEVERE, ex.getMessage());
+            return GraphVocabulary.CANCEL;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(stages.size());
+        List<Future<Object>> results = new ArrayList<>();
+        stages.forEach(stage -> {
+            Transport transport = new ChainedTransport(transports.apply(stage.node.getTransportUrl()), handoffs);
+            results.add(executor.submit(() -> stage.run(transport, stages)));
+        });
+        executor.shutdown();
+
+        Integer status = GraphVocabulary.COMPLETE;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                if (GraphVocabulary.CANCEL.equals(results.get(i).get())) {
+                    status = GraphVocabulary.CANCEL;
+                }
+            } catch (ExecutionException ex) {
+                LOG.log(Level.SEVERE, "Node {0} failed: {1}", new Object[]{streamKey(nodes.get(i)), ex.getCause()});
+                status = GraphVocabulary.CANCEL;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                stages.forEach(Stage::stop);
+                executor.shutdownNow();
+                return GraphVocabulary.CANCEL;
+            }
+        }
+        return status;
+    }
+
+    private Stage compile(RedisRepository repo, Gnode node, Handoff input, Handoff output)
+            throws ClassNotFoundException, InstantiationException, IllegalAccessException, ValidationException {
+        String type = node.getType();
+        switch (node.getLabel()) {
+            case Vocabulary.SOURCE:
+                AbstractExternalSource source = (AbstractExternalSource) repo.getAbstractExternalSourceByName(type).newInstance(node);
+                CompiledExternalSource compiledSource = source.compile();
+                return new Stage(node, input, output) {
+                    @Override
+                    Object process(Transport transport) throws ProcessingException {
+                        return compiledSource.startProcessingEvents(transport);
+                    }
+
+                    @Override
+                    void stop() {
+                        super.stop();
+                        compiledSource.stopProcessingEvents();
+                    }
+                };
+            case Vocabulary.PROCESSOR:
+                AbstractProcessor processor = (AbstractProcessor) repo.getAbstractProcessorByName(type).newInstance(node);
+                CompiledProcessor compiledProcessor = processor.compile();
+                return new Stage(node, input, output) {
+                    @Override
+                    Object process(Transport transport) {
+                        return compiledProcessor.processEvent(transport);
+                    }
+                };
+            case Vocabulary.SINK:
+                ExternalSink sink = (ExternalSink) repo.getAbstractExternalSinkByName(type).newInstance(node);
+                CompiledExternalSink compiledSink = sink.compile();
+                return new Stage(node, input, output) {
+                    @Override
+                    Object process(Transport transport) {
+                        return compiledSink.processEvent(transport);
+                    }
+                };
+            default:
+                throw new ValidationException("Unknown node label " + node.getLabel() + " of " + streamKey(node));
+        }
+    }
+
+    /**
+     * One compiled node of the chain with the hand-offs it reads and writes.
+     */
+    abstract static class Stage {
+
+        final Gnode node;
+        private final Handoff input;
+        private final Handoff output;
+
+        Stage(Gnode node, Handoff input, Handoff output) {
+            this.node = node;
+            this.input = input;
+            this.output = output;
+        }
+
+        abstract Object process(Transport transport) throws ProcessingException;
+
+        Object run(Transport transport, List<Stage> chain) throws ProcessingException {
+            Object result;
+            try {
+                result = process(transport);
+            } catch (CancellationException ex) {
+                LOG.log(Level.INFO, "Node {0} stopped: {1}", new Object[]{streamKey(node), ex.getMessage()});
+                result = GraphVocabulary.CANCEL;
+            } catch (RuntimeException | ProcessingException ex) {
+                chain.forEach(Stage::stop);
+                throw ex;
+            } finally {
+                if (output != null) {
+                    output.close();
+                }
+            }
+            if (GraphVocabulary.CANCEL.equals(result)) {
+                chain.forEach(Stage::stop);
+            } else if (input != null) {
+                // nothing reads the upstream output any more
+                input.abandon();
+            }
+            return result;
+        }
+
+        void stop() {
+            if (input != null) {
+                input.abandon();
+            }
+            if (output != null) {
+                output.abandon();
+            }
+        }
+    }
+
+    /**
+     * Bounded queue between two nodes of the chain. Ids follow the Redis
+     * "sequence-0" form, so offsets kept by the nodes look the same as with
+     * the real transport; the queue itself is read once, in order.
+     */
+    static class Handoff {
+
+        private static final long POLL = 100;
+
+        private final String stream;
+        private final BlockingQueue<StreamMessage<String, String>> queue;
+        private long sequence;
+        // the producer has completed
+        private volatile boolean closed;
+        // the consumer has completed or the chain is stopping
+        private volatile boolean abandoned;
+
+        Handoff(String stream, int capacity) {
+            this.stream = stream;
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        }
+
+        void write(String className, Map<?, ?> data) {
+            Map<String, String> body = new HashMap<>();
+            data.forEach((k, v) -> {
+                if (v != null) {
+                    body.put(String.valueOf(k), String.valueOf(v));
+                }
+            });
+            StreamMessage<String, String> msg = new StreamMessage<>(className, (++sequence) + "-0", body);
+            try {
+                while (!queue.offer(msg, POLL, TimeUnit.MILLISECONDS)) {
+                    if (abandoned) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                abandoned = true;
+            }
+            if (abandoned) {
+                throw new CancellationException("No consumer for " + stream);
+            }
+        }
+
+        /**
+         * Blocks until there is at least one event. An empty page - the end
+         * of stream for the nodes - is returned only once the producer has
+         * completed and every event was read.
+         */
+        List<StreamMessage<String, String>> read(int count) {
+            List<StreamMessage<String, String>> page = new ArrayList<>();
+            try {
+                while (!abandoned) {
+                    StreamMessage<String, String> msg = queue.poll(POLL, TimeUnit.MILLISECONDS);
+                    if (msg != null) {
+                        page.add(msg);
+                        queue.drainTo(page, Math.max(0, count - 1));
+                        break;
+                    }
+                    if (closed && queue.isEmpty()) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return page;
+        }
+
+        void close() {
+            closed = true;
+        }
+
+        void abandon() {
+            abandoned = true;
+            queue.clear();
+        }
+    }
+
+    /**
+     * Transport of one node of the chain. Reads and writes of the chain
+     * internal streams go to the hand-offs, everything else to the node's
+     * own transport.
+     */
+    static class ChainedTransport implements Transport {
+
+        private final Transport delegate;
+        private final Map<String, Handoff> handoffs;
+
+        ChainedTransport(Transport delegate, Map<String, Handoff> handoffs) {
+            this.delegate = delegate;
+            this.handoffs = handoffs;
+        }
+
+        @Override
+        public void start() {
+            delegate.start();
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<StreamMessage<String, String>> readEvents(String className, UUID id, String offset) {
+            Handoff handoff = handoffs.get(streamKey(className, id));
+            if (handoff == null) {
+                return delegate.readEvents(className, id, offset);
+            }
+            return handoff.read(Integer.MAX_VALUE);
+        }
+
+        @Override
+        public List<StreamMessage<String, String>> readEvents(String className, UUID id, String offset, int pageSize) {
+            Handoff handoff = handoffs.get(streamKey(className, id));
+            if (handoff == null) {
+                return delegate.readEvents(className, id, offset, pageSize);
+            }
+            return handoff.read(pageSize);
+        }
+
+        @Override
+        public void writeEvents(Map data, String className, UUID id) {
+            Handoff handoff = handoffs.get(streamKey(className, id));
+            if (handoff == null) {
+                delegate.writeEvents(data, className, id);
+            } else {
+                handoff.write(className, data);
+            }
+        }
+
+        @Override
+        public PrintStream getStandardOut() {
+            return delegate.getStandardOut();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        nodes.forEach(node -> {
+            if (out.length() > 0) {
+                out.append(" -> ");
+            }
+            out.append(streamKey(node));
+        });
+        return out.toString();
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.pipe;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Models of an RTC controller and the models each one waits for.
+ *
+ * The model list is comma separated, a model may name its prerequisites
+ * after a colon joined by '+': "A, B, C:A+B" runs A and B, then C when both
+ * are done. A plain list has no prerequisites, so all models start at once.
+ *
+ * @author alexmy
+ */
+class ModelGraph {
+
+    private final List<String> models;
+    private final Map<String, List<String>> prerequisites;
+    private final Map<String, List<String>> dependents;
+
+    private ModelGraph(List<String> models, Map<String, List<String>> prerequisites) {
+        this.models = models;
+        this.prerequisites = prerequisites;
+        this.dependents = new HashMap<>();
+        for (String model : models) {
+            dependents.put(model, new ArrayList<>());
+        }
+        for (String model : models) {
+            for (String prerequisite : prerequisites.get(model)) {
+                dependents.get(prerequisite).add(model);
+            }
+        }
+    }
+
+    /**
+     * @param modelList
+     * @return
+     * @throws IllegalArgumentException for duplicated or unknown models and
+     * cycles
+     */
+    static ModelGraph parse(String modelList) {
+        List<String> models = new ArrayList<>();
+        Map<String, List<String>> prerequisites = new LinkedHashMap<>();
+        for (String entry : modelList.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            int colon = entry.indexOf(':');
+            String model = (colon < 0 ? entry : entry.substring(0, colon)).trim();
+            List<String> before = new ArrayList<>();
+            if (colon >= 0) {
+                for (String prerequisite : entry.substring(colon + 1).split("\\+")) {
+                    if (!prerequisite.trim().isEmpty()) {
+                        before.add(prerequisite.trim());
+                    }
+                }
+            }
+            if (prerequisites.put(model, before) != null) {
+                throw new IllegalArgumentException("Model listed twice: " + model);
+            }
+            models.add(model);
+        }
+        for (Map.Entry<String, List<String>> entry : prerequisites.entrySet()) {
+            for (String prerequisite : entry.getValue()) {
+                if (!prerequisites.containsKey(prerequisite)) {
+                    throw new IllegalArgumentException("Model " + entry.getKey() + " waits for unknown model " + prerequisite);
+                }
+            }
+        }
+        ModelGraph graph = new ModelGraph(models, prerequisites);
+        graph.checkAcyclic();
+        return graph;
+    }
+
+    private void checkAcyclic() {
+        Map<String, Integer> waiting = new HashMap<>();
+        Deque<String> ready = new ArrayDeque<>();
+        for (String model : models) {
+            waiting.put(model, prerequisites.get(model).size());
+            if (prerequisites.get(model).isEmpty()) {
+                ready.add(model);
+            }
+        }
+        int ordered = 0;
+        while (!ready.isEmpty()) {
+            ordered++;
+            for (String dependent : dependents.get(ready.poll())) {
+                if (waiting.merge(dependent, -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        if (ordered < models.size()) {
+            throw new IllegalArgumentException("Model prerequisites form a cycle");
+        }
+    }
+
+    List<String> getModels() {
+        return Collections.unmodifiableList(models);
+    }
+
+    Run start() {
+        return new Run();
+    }
+
+    /**
+     * Result of {@link Run#complete(String, boolean)}.
+     */
+    static final class Completion {
+
+        private final List<String> skipped;
+        private final boolean finished;
+
+        Completion(List<String> skipped, boolean finished) {
+            this.skipped = skipped;
+            this.finished = finished;
+        }
+
+        /**
+         * Models skipped because of a failure.
+         */
+        List<String> getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * True for the one completion that ended the run.
+         */
+        boolean isFinished() {
+            return finished;
+        }
+    }
+
+    /**
+     * Progress of one execution of the graph. Safe to share between the
+     * dispatching thread and completion callbacks.
+     */
+    class Run {
+
+        private final long started = System.nanoTime();
+        private final Map<String, Integer> waiting = new HashMap<>();
+        private final Map<String, Long> starts = new HashMap<>();
+        private final Map<String, Long> finishes = new HashMap<>();
+        private final List<String> skipped = new ArrayList<>();
+        private final List<String> ready = new ArrayList<>();
+        private boolean finished;
+
+        Run() {
+            for (String model : models) {
+                int count = prerequisites.get(model).size();
+                waiting.put(model, count);
+                if (count == 0) {
+                    ready.add(model);
+                }
+            }
+        }
+
+        /**
+         * Models whose prerequisites are all done, each returned once. The
+         * caller starts them.
+         */
+        synchronized List<String> take() {
+            List<String> taken = new ArrayList<>(ready);
+            ready.clear();
+            long now = System.nanoTime();
+            for (String model : taken) {
+                // replaced by started() once the model really starts
+                starts.put(model, now);
+            }
+            return taken;
+        }
+
+        /**
+         * Records the real start of a taken model, after any wait in a
+         * queue, so the critical path holds the time the models ran.
+         */
+        synchronized void started(String model) {
+            starts.put(model, System.nanoTime());
+        }
+
+        /**
+         * Records the end of a model. Dependents of a failed model are not
+         * run.
+         *
+         * @return models skipped because of this failure, and whether this
+         * call finished the run
+         */
+        synchronized Completion complete(String model, boolean success) {
+            finishes.put(model, System.nanoTime());
+            List<String> skippedNow = new ArrayList<>();
+            if (success) {
+                for (String dependent : dependents.get(model)) {
+                    if (waiting.merge(dependent, -1, Integer::sum) == 0 && !skipped.contains(dependent)) {
+                        ready.add(dependent);
+                    }
+                }
+            } else {
+                Deque<String> stack = new ArrayDeque<>(dependents.get(model));
+                while (!stack.isEmpty()) {
+                    String dependent = stack.pop();
+                    if (!skipped.contains(dependent) && !starts.containsKey(dependent)) {
+                        skipped.add(dependent);
+                        skippedNow.add(dependent);
+                        stack.addAll(dependents.get(dependent));
+                    }
+                }
+            }
+            boolean finishedNow = !finished && isDone();
+            finished |= finishedNow;
+            return new Completion(skippedNow, finishedNow);
+        }
+
+        synchronized boolean isDone() {
+            return finishes.size() + skipped.size() == models.size();
+        }
+
+        /**
+         * Milliseconds from the start of the run to the end of its last
+         * model.
+         */
+        synchronized long getMakespan() {
+            long last = started;
+            for (long finish : finishes.values()) {
+                last = Math.max(last, finish);
+            }
+            return (last - started) / 1_000_000L;
+        }
+
+        /**
+         * The chain of models that determined the end of the run: the model
+         * that finished last, the prerequisite that finished last before it,
+         * and so on, each with its own duration, e.g. "A 120 ms -> C 300 ms".
+         */
+        synchronized String getCriticalPath() {
+            String last = latest(finishes.keySet());
+            List<String> chain = new ArrayList<>();
+            while (last != null) {
+                String model = last;
+                chain.add(0, model + " " + (finishes.get(model) - starts.get(model)) / 1_000_000L + " ms");
+                List<String> finished = new ArrayList<>();
+                for (String prerequisite : prerequisites.get(model)) {
+                    if (finishes.containsKey(prerequisite)) {
+                        finished.add(prerequisite);
+                    }
+                }
+                last = latest(finished);
+            }
+            return String.join(" -> ", chain);
+        }
+
+        private String latest(Iterable<String> candidates) {
+            String latest = null;
+            for (String model : candidates) {
+                if (starts.containsKey(model) && (latest == null || finishes.get(model) > finishes.get(latest))) {
+                    latest = model;
+                }
+            }
+            return latest;
+        }
+    }
+}
@@ -17,26 +17,38 @@
 package org.lisapark.koctopus.repo.pipe;
 
 import com.fasterxml.uuid.Generators;
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonObject;
+import io.lettuce.core.StreamMessage;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.apache.http.protocol.HTTP;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.lisapark.koctopus.ModelRunner;
 import org.lisapark.koctopus.ProgrammerException;
 import org.lisapark.koctopus.core.ValidationException;
 import org.lisapark.koctopus.core.event.Event;
 import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.NodeAttribute;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.parameter.Constraints;
 import org.lisapark.koctopus.core.parameter.Parameter;
 import org.lisapark.koctopus.core.processor.CompiledProcessor;
 import org.lisapark.koctopus.core.processor.AbstractProcessor;
@@ -45,6 +57,9 @@ import org.lisapark.koctopus.core.processor.ProcessorOutput;
 import org.lisapark.koctopus.core.runtime.ProcessorContext;
 import org.lisapark.koctopus.core.transport.TransportReference;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
+import org.lisapark.koctopus.repo.util.Booleans;
+import org.lisapark.koctopus.repo.util.HttpClientPool;
 
 /**
  *
@@ -57,21 +72,48 @@ public class RTCAcontroller extends AbstractProcessor<Void> {
     private static final String DEFAULT_NAME = "RTC Async Controller";
     private static final String DEFAULT_DESCRIPTION = "Run Time Asynch Container Controller"
             + " - runs provided list of models triggered by incoming signal asynchronously"
-            + " and sends signal to the connected processor when all models are done.";
+            + " and sends a completion signal for every model run.";
 
     private static final int OCTOPUS_SERVER_URL_PARAMETER_ID = 1;
     private static final int MODEL_NAME_LIST_PARAMETER_ID = 2;
     private static final int MODEL_NAME_FIELD_PARAMETER_ID = 3;
+    private static final int TIMEOUT_PARAMETER_ID = 4;
+    private static final int THREADS_PARAMETER_ID = 5;
+    private static final int MAX_OUTSTANDING_PARAMETER_ID = 6;
 
     private static final String DEFAULT_INPUT_DESCRIPTION = "Incoming Start signal.";
     private static final String DEFAULT_OUTPUT_DESCRIPTION = "Outgoing signal name";
 
+    /**
+     * Attributes of the completion events.
+     */
+    static final String LAUNCH_ATTRIBUTE = "launch";
+    static final String TRIGGER_ATTRIBUTE = "trigger";
+    static final String STATUS_ATTRIBUTE = "status";
+    static final String LATENCY_ATTRIBUTE = "latency";
+    static final String OUTCOME_ATTRIBUTE = "outcome";
+
+    static final String OUTCOME_COMPLETED = "completed";
+    static final String OUTCOME_FAILED = "failed";
+    static final String OUTCOME_TIMEOUT = "timeout";
+    static final String OUTCOME_SKIPPED = "skipped";
+    static final String OUTCOME_RUN = "run";
+
+    static final String MAKESPAN_ATTRIBUTE = "makespan";
+    static final String CRITICAL_PATH_ATTRIBUTE = "critical_path";
+
     /**
      * Pipe takes a single input
      */
     private static final int INPUT_ID = 1;
     private static final int OUTPUT_ID = 1;
 
+    protected Map<String, TransportReference> procrefs = new HashMap<>();
+
+    public RTCAcontroller() {
+        super(Generators.timeBasedGenerator().generate(), DEFAULT_NAME, DEFAULT_DESCRIPTION);
+    }
+
     protected RTCAcontroller(UUID id, String name, String description) {
         super(id, name, description);
     }
@@ -96,7 +138,11 @@ public class RTCAcontroller extends AbstractProcessor<Void> {
 
     @Override
     public RTCAcontroller newInstance(Gnode gnode) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        RTCAcontroller rtc = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildProcessor(rtc, gnode);
+
+        return rtc;
     }
 
     @Override
@@ -116,6 +162,26 @@ public class RTCAcontroller extends AbstractProcessor<Void> {
         return getParameter(MODEL_NAME_FIELD_PARAMETER_ID).getValueAsString();
     }
 
+    public Integer getTimeout() {
+        return getParameter(TIMEOUT_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getThreads() {
+        return getParameter(THREADS_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getMaxOutstanding() {
+        return getParameter(MAX_OUTSTANDING_PARAMETER_ID).getValueAsInteger();
+    }
+
+    ModelGraph getModelGraph() throws ValidationException {
+        try {
+            return ModelGraph.parse(getModelNameList());
+        } catch (IllegalArgumentException ex) {
+            throw new ValidationException(ex.getMessage());
+        }
+    }
+
     /**
      * Validates and compile this Pipe. Doing so takes a "snapshot" of the
      * {@link #getInputs()} and {@link #output} and returns a
@@ -142,6 +208,10 @@ public class RTCAcontroller extends AbstractProcessor<Void> {
      */
     public static RTCAcontroller newTemplate() {
         UUID processorId = Generators.timeBasedGenerator().generate();
+        return newTemplate(processorId);
+    }
+
+    public static RTCAcontroller newTemplate(UUID processorId) {
         RTCAcontroller rtc = new RTCAcontroller(processorId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
 
         // only a single boolean input
@@ -155,7 +225,8 @@ public class RTCAcontroller extends AbstractProcessor<Void> {
                 .required(true));
 
         rtc.addParameter(Parameter.stringParameterWithIdAndName(MODEL_NAME_LIST_PARAMETER_ID, "Model Name List")
-                .description("Comma separated Model names as they are in db4o database.")
+                .description("Comma separated Model names as they are in db4o database."
+                        + " A model may wait for others: \"A, B, C:A+B\" runs C when A and B are done.")
                 .defaultValue("")
                 .required(true));
 
@@ -164,6 +235,21 @@ public class RTCAcontroller extends AbstractProcessor<Void> {
                 .defaultValue("attribute_for_model_list")
                 .required(true));
 
+        rtc.addParameter(Parameter.integerParameterWithIdAndName(TIMEOUT_PARAMETER_ID, "Timeout")
+                .description("Milliseconds after which a model run is reported as timed out.")
+                .defaultValue(60000)
+                .constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Timeout should be greater than 0.")));
+
+        rtc.addParameter(Parameter.integerParameterWithIdAndName(THREADS_PARAMETER_ID, "Threads")
+                .description("Threads launching models for this controller.")
+                .defaultValue(8)
+                .constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Threads should be greater than 0.")));
+
+        rtc.addParameter(Parameter.integerParameterWithIdAndName(MAX_OUTSTANDING_PARAMETER_ID, "Max outstanding")
+                .description("Model runs dispatched and not yet completed; start signals wait while the limit is reached.")
+                .defaultValue(32)
+                .constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Max outstanding should be greater than 0.")));
+
         // double output
         try {
             rtc.setOutput(
@@ -181,32 +267,75 @@ public class RTCAcontroller extends AbstractProcessor<Void> {
 
     @Override
     public <T extends AbstractProcessor> CompiledProcessor<Void> compile(T processor) throws ValidationException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return new CompiledRTCcontroller((RTCAcontroller) processor);
     }
 
     @Override
     public Map<String, TransportReference> getReferences() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return procrefs;
     }
 
     @Override
-    public void setReferences(Map<String, TransportReference> sourceref) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public void setReferences(Map<String, TransportReference> procrefs) {
+        this.procrefs = procrefs;
+    }
+
+    /**
+     * A model run of a start signal.
+     */
+    static class Launch {
+
+        final String id;
+        final String model;
+        final String trigger;
+        final ModelGraph.Run run;
+        volatile long started;
+
+        Launch(String id, String model, String trigger, ModelGraph.Run run) {
+            this.id = id;
+            this.model = model;
+            this.trigger = trigger;
+            this.run = run;
+        }
     }
 
     /**
-     * This {@link CompiledProcessor} is the actual logic that implements the
-     * Simple Moving Average.
+     * Dispatches the models of a start signal and returns without waiting
+     * for them. Runs in progress are tracked by launch id until they
+     * complete, fail or time out; each one then queues a completion event.
+     * Models with prerequisites are dispatched from the completion of their
+     * last prerequisite. At most max outstanding runs are dispatched and not
+     * completed: a start signal beyond that waits for a free slot, ready
+     * dependents wait in the pending queue and take slots as they free up.
      */
     static class CompiledRTCcontroller extends CompiledProcessor<Void> {
 
         RTCAcontroller rtc;
 
-        protected CompiledRTCcontroller(RTCAcontroller rtc) {
+        private final ModelGraph graph;
+        private final ExecutorService executor;
+        private final int maxOutstanding;
+        private final Semaphore outstanding;
+        private final Map<String, Launch> inFlight = new ConcurrentHashMap<>();
+        private final Queue<Launch> pending = new ConcurrentLinkedQueue<>();
+        private final BlockingQueue<Map<String, Object>> completions = new LinkedBlockingQueue<>();
+        private final AtomicLong launches = new AtomicLong();
+
+        protected CompiledRTCcontroller(RTCAcontroller rtc) throws ValidationException {
             super(rtc);
             this.rtc = rtc;
+            this.graph = rtc.getModelGraph();
+            int threads = rtc.getThreads() == null ? 8 : rtc.getThreads();
+            this.executor = Executors.newFixedThreadPool(threads,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("rtca-" + rtc.getId() + "-%d").build());
+            this.maxOutstanding = rtc.getMaxOutstanding() == null ? 32 : rtc.getMaxOutstanding();
+            this.outstanding = new Semaphore(maxOutstanding);
         }
 
+        /**
+         * Returns true as soon as all models are dispatched; completions
+         * are only logged on this path.
+         */
         @Override
         public Object processEvent(ProcessorContext<Void> ctx, Map<Integer, Event> eventsByInputId) {
 
@@ -219,92 +348,201 @@ public class RTCAcontroller extends AbstractProcessor<Void> {
             }
 
             Boolean done = null;
-
-            // Create an HttpClient with the ThreadSafeClientConnManager.
-            // This connection manager must be used if more than one thread will
-            // be using the HttpClient.
-            PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
-            cm.setMaxTotal(100);
-
-            CloseableHttpClient httpclient = HttpClients.custom().setConnectionManager(cm).build();
-
             String modelNameList = rtc.getModelNameList();
-            String[] modelList = modelNameList.split(",");
-            String modelField = rtc.getModelNameField();
 
             try {
-                // create a thread for each URI
-                GetThread[] threads = new GetThread[modelList.length];
-
-                for (int i = 0; i < threads.length; i++) {
-
-                    JSONObject jsonObject = new JSONObject();
-                    jsonObject.put(ModelRunner.MODEL_NAME, modelList[i].trim());
-                    jsonObject.put(ModelRunner.MODEL_JSON, "");
+                dispatch(null, null);
+                startEvent.getData().put(rtc.getModelNameField(), modelNameList);
 
-                    HttpPost httpPost = new HttpPost(rtc.getServerUrl());
-
-                    httpPost.setHeader("id", rtc.getName());
-                    httpPost.setHeader("name", rtc.getName());
+                done = true;
 
-                    httpPost.setHeader("Content-Type", "application/json");
+            } catch (IllegalStateException | InterruptedException ex) {
+                LOG.log(Level.SEVERE, ex.getMessage());
+            }
+            return done;
+        }
 
-                    StringEntity entity = new StringEntity(jsonObject.toString(), HTTP.UTF_8);
-                    httpPost.setEntity(entity);
-                    threads[i] = new GetThread(httpclient, httpPost, i + 1);
-                }
+        /**
+         * Dispatches the models of every start signal and writes the
+         * completion events from this thread as they arrive. After the last
+         * start signal the remaining runs are awaited; every run ends by its
+         * timeout at the latest. A summary event with the makespan and the
+         * critical path follows the last model of every start signal.
+         */
+        @Override
+        public Object processEvent(Transport runtime) {
+            String inputName = rtc.getInput().getName();
+            String sourceClassName = rtc.getReferences().get(inputName).getReferenceClass();
+            String sourceId = rtc.getReferences().get(inputName).getReferenceId();
+            String outClassName = rtc.getClass().getCanonicalName();
+
+            Map<String, NodeAttribute> attributes = rtc.getReferences().get(inputName).getAttributes();
+            if (attributes == null || attributes.size() != 1) {
+                return GraphVocabulary.CANCEL;
+            }
+            String inputAttName = attributes.keySet().iterator().next();
 
-                for (GetThread thread : threads) {
-                    thread.start();
+            runtime.start();
+            Integer status = GraphVocabulary.COMPLETE;
+            String offset = "0";
+            try {
+                while (true) {
+                    List<StreamMessage<String, String>> list = runtime.readEvents(sourceClassName, UUID.fromString(sourceId), offset);
+                    if (list.isEmpty()) {
+                        break;
+                    }
+                    for (StreamMessage<String, String> msg : list) {
+                        if (msg != null && Booleans.parseBoolean(msg.getBody().get(inputAttName))) {
+                            dispatch(msg.getId(), completion -> runtime.writeEvents(completion, outClassName, rtc.getId()));
+                        }
+                        drain(runtime, outClassName);
+                    }
+                    offset = list.get(list.size() - 1).getId();
                 }
-                for (GetThread thread : threads) {
-                    thread.join();
+                // a launch holds its slot from before it leaves pending until
+                // its completion is queued, so all slots back and nothing
+                // pending means nothing more will complete
+                while (outstanding.availablePermits() < maxOutstanding || !pending.isEmpty() || !completions.isEmpty()) {
+                    Map<String, Object> completion = completions.poll(100, TimeUnit.MILLISECONDS);
+                    if (completion != null) {
+                        runtime.writeEvents(completion, outClassName, rtc.getId());
+                    }
                 }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                status = GraphVocabulary.CANCEL;
+            } finally {
+                executor.shutdownNow();
+                runtime.shutdown();
+            }
+            return status;
+        }
 
-                startEvent.getData().put(modelField, modelNameList);
-
-                done = true;
+        private void drain(Transport runtime, String outClassName) {
+            Map<String, Object> completion;
+            while ((completion = completions.poll()) != null) {
+                runtime.writeEvents(completion, outClassName, rtc.getId());
+            }
+        }
 
-            } catch (IllegalStateException | JSONException | InterruptedException | UnsupportedEncodingException ex) {
-                LOG.log(Level.SEVERE, ex.getMessage());
-            } finally {
-                if (httpclient != null) {
-                    try {
-                        httpclient.close();
-                    } catch (IOException ex) {
-                        LOG.log(Level.SEVERE, ex.getMessage());
+        /**
+         * Dispatches the models of the graph that have no prerequisites.
+         * While waiting for a free slot the completions are handed to the
+         * writer, if there is one, so the slots of finished runs keep being
+         * reported.
+         */
+        private void dispatch(String trigger, Consumer<Map<String, Object>> writer) throws InterruptedException {
+            ModelGraph.Run run = graph.start();
+            for (String model : run.take()) {
+                Launch launch = new Launch(rtc.getId() + "-" + launches.incrementAndGet(), model, trigger, run);
+                while (!outstanding.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                    Map<String, Object> completion;
+                    while (writer != null && (completion = completions.poll()) != null) {
+                        writer.accept(completion);
                     }
                 }
+                launch(launch);
             }
-            return done;
         }
 
-        @Override
-        public Object processEvent(Transport runtime) {
-            throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        /**
+         * Starts a launch that holds a slot.
+         */
+        private void launch(Launch launch) {
+            int timeout = rtc.getTimeout() == null ? 60000 : rtc.getTimeout();
+            inFlight.put(launch.id, launch);
+            launch.started = System.nanoTime();
+            try {
+                // latency is measured from the start of the deadline, not
+                // from the wait for an executor thread
+                HttpClientPool.executeAsync(request(launch.model), response -> response.getStatusLine().getStatusCode(), timeout, executor,
+                        () -> {
+                            launch.started = System.nanoTime();
+                            launch.run.started(launch.model);
+                        })
+                        .whenComplete((code, ex) -> complete(launch, code, ex));
+            } catch (RuntimeException ex) {
+                complete(launch, null, ex);
+            }
         }
-    }
 
-    static class GetThread extends Thread {
+        /**
+         * Starts pending dependents while slots are free.
+         */
+        private synchronized void pump() {
+            while (!pending.isEmpty() && outstanding.tryAcquire()) {
+                launch(pending.poll());
+            }
+        }
 
-        private final CloseableHttpClient httpClient;
-        private final HttpPost httpPost;
-        private final int id;
+        private void complete(Launch launch, Integer code, Throwable ex) {
+            long latency = (System.nanoTime() - launch.started) / 1_000_000L;
+            boolean success = code != null && code >= 200 && code < 300;
+            String outcome;
+            if (ex == null) {
+                outcome = OUTCOME_COMPLETED;
+            } else {
+                outcome = HttpClientPool.isTimeout(ex) ? OUTCOME_TIMEOUT : OUTCOME_FAILED;
+                LOG.log(Level.WARNING, "Model {0} {1} after {2} ms: {3}",
+                        new Object[]{launch.model, outcome, latency, ex.getMessage()});
+            }
+            report(launch, launch.model, code == null ? -1 : code, latency, outcome, success);
 
-        public GetThread(CloseableHttpClient httpClient, HttpPost httpPost, int id) {
-            this.httpClient = httpClient;
-            this.httpPost = httpPost;
-            this.id = id;
+            ModelGraph.Completion completion = launch.run.complete(launch.model, success);
+            for (String skipped : completion.getSkipped()) {
+                report(launch, skipped, -1, 0, OUTCOME_SKIPPED, false);
+            }
+            for (String model : launch.run.take()) {
+                pending.add(new Launch(rtc.getId() + "-" + launches.incrementAndGet(), model, launch.trigger, launch.run));
+            }
+            // only the completion that ended the run reports it
+            if (completion.isFinished()) {
+                Map<String, Object> summary = Maps.newHashMap();
+                summary.put(OUTCOME_ATTRIBUTE, OUTCOME_RUN);
+                summary.put(rtc.getModelNameField(), rtc.getModelNameList());
+                summary.put(MAKESPAN_ATTRIBUTE, launch.run.getMakespan());
+                summary.put(CRITICAL_PATH_ATTRIBUTE, launch.run.getCriticalPath());
+                if (launch.trigger != null) {
+                    summary.put(TRIGGER_ATTRIBUTE, launch.trigger);
+                    completions.add(summary);
+                } else {
+                    LOG.log(Level.INFO, "Models done in {0} ms, critical path {1}",
+                            new Object[]{summary.get(MAKESPAN_ATTRIBUTE), summary.get(CRITICAL_PATH_ATTRIBUTE)});
+                }
+            }
+            // dependents are pending before the run is removed and its slot
+            // freed, so the final wait sees them
+            inFlight.remove(launch.id);
+            outstanding.release();
+            pump();
         }
-        
-        @Override
-        public void run() {           
-            try {                
-                CloseableHttpResponse httpResponse = httpClient.execute(httpPost);
-                httpResponse.close();                
-            } catch (IOException ex) {
-                LOG.log(Level.SEVERE, ex.getMessage());
+
+        private void report(Launch launch, String model, int code, long latency, String outcome, boolean success) {
+            Map<String, Object> completion = Maps.newHashMap();
+            completion.put(rtc.getModelNameField(), model);
+            completion.put(LAUNCH_ATTRIBUTE, launch.id);
+            completion.put(STATUS_ATTRIBUTE, code);
+            completion.put(LATENCY_ATTRIBUTE, latency);
+            completion.put(OUTCOME_ATTRIBUTE, outcome);
+            completion.put(rtc.getOutputAttributeName(), success);
+            if (launch.trigger != null) {
+                completion.put(TRIGGER_ATTRIBUTE, launch.trigger);
+                completions.add(completion);
+            } else {
+                LOG.log(Level.INFO, "Model {0} {1}: status {2} in {3} ms", new Object[]{model, outcome, code, latency});
             }
         }
+
+        private HttpPost request(String modelName) {
+            JsonObject jsonObject = new JsonObject();
+            jsonObject.addProperty(ModelRunner.MODEL_NAME, modelName);
+            jsonObject.addProperty(ModelRunner.MODEL_JSON, "");
+
+            HttpPost httpPost = new HttpPost(rtc.getServerUrl());
+            httpPost.setHeader("id", rtc.getName());
+            httpPost.setHeader("name", rtc.getName());
+            httpPost.setEntity(new StringEntity(jsonObject.toString(), ContentType.APPLICATION_JSON));
+            return httpPost;
+        }
     }
 }
@@ -17,19 +17,25 @@
 package org.lisapark.koctopus.repo.pipe;
 
 import com.fasterxml.uuid.Generators;
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.lettuce.core.StreamMessage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.apache.http.protocol.HTTP;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.lisapark.koctopus.ModelRunner;
@@ -37,6 +43,9 @@ import org.lisapark.koctopus.ProgrammerException;
 import org.lisapark.koctopus.core.ValidationException;
 import org.lisapark.koctopus.core.event.Event;
 import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.NodeAttribute;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.parameter.Constraints;
 import org.lisapark.koctopus.core.parameter.Parameter;
 import org.lisapark.koctopus.core.processor.CompiledProcessor;
 import org.lisapark.koctopus.core.processor.AbstractProcessor;
@@ -45,6 +54,9 @@ import org.lisapark.koctopus.core.processor.ProcessorOutput;
 import org.lisapark.koctopus.core.runtime.ProcessorContext;
 import org.lisapark.koctopus.core.transport.TransportReference;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
+import org.lisapark.koctopus.repo.util.Booleans;
+import org.lisapark.koctopus.repo.util.HttpClientPool;
 
 /**
  *
@@ -62,16 +74,35 @@ public class RTCcontroller extends AbstractProcessor<Void> {
     private static final int OCTOPUS_SERVER_URL_PARAMETER_ID = 1;
     private static final int MODEL_NAME_LIST_PARAMETER_ID = 2;
     private static final int MODEL_NAME_FIELD_PARAMETER_ID = 3;
+    private static final int TIMEOUT_PARAMETER_ID = 4;
+    private static final int THREADS_PARAMETER_ID = 5;
+    private static final int MAX_IN_FLIGHT_PARAMETER_ID = 6;
 
     private static final String DEFAULT_INPUT_DESCRIPTION = "Incoming Start signal.";
     private static final String DEFAULT_OUTPUT_DESCRIPTION = "Outgoing signal name";
 
+    /**
+     * Attributes of the per model launch events.
+     */
+    static final String STATUS_ATTRIBUTE = "status";
+    static final String LATENCY_ATTRIBUTE = "latency";
+    static final String SUCCESS_ATTRIBUTE = "success";
+    static final String SKIPPED_ATTRIBUTE = "skipped";
+    static final String MAKESPAN_ATTRIBUTE = "makespan";
+    static final String CRITICAL_PATH_ATTRIBUTE = "critical_path";
+
     /**
      * Pipe takes a single input
      */
     private static final int INPUT_ID = 1;
     private static final int OUTPUT_ID = 1;
 
+    protected Map<String, TransportReference> procrefs = new HashMap<>();
+
+    public RTCcontroller() {
+        super(Generators.timeBasedGenerator().generate(), DEFAULT_NAME, DEFAULT_DESCRIPTION);
+    }
+
     protected RTCcontroller(UUID id, String name, String description) {
         super(id, name, description);
     }
@@ -96,7 +127,11 @@ public class RTCcontroller extends AbstractProcessor<Void> {
 
     @Override
     public RTCcontroller newInstance(Gnode gnode) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        RTCcontroller rtc = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildProcessor(rtc, gnode);
+
+        return rtc;
     }
 
     @Override
@@ -116,6 +151,26 @@ public class RTCcontroller extends AbstractProcessor<Void> {
         return getParameter(MODEL_NAME_FIELD_PARAMETER_ID).getValueAsString();
     }
 
+    public Integer getTimeout() {
+        return getParameter(TIMEOUT_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getThreads() {
+        return getParameter(THREADS_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getMaxInFlight() {
+        return getParameter(MAX_IN_FLIGHT_PARAMETER_ID).getValueAsInteger();
+    }
+
+    ModelGraph getModelGraph() throws ValidationException {
+        try {
+            return ModelGraph.parse(getModelNameList());
+        } catch (IllegalArgumentException ex) {
+            throw new ValidationException(ex.getMessage());
+        }
+    }
+
     /**
      * Validates and compile this Pipe. Doing so takes a "snapshot" of the
      * {@link #getInputs()} and {@link #output} and returns a
@@ -142,6 +197,10 @@ public class RTCcontroller extends AbstractProcessor<Void> {
      */
     public static RTCcontroller newTemplate() {
         UUID processorId = Generators.timeBasedGenerator().generate();
+        return newTemplate(processorId);
+    }
+
+    public static RTCcontroller newTemplate(UUID processorId) {
         RTCcontroller rtc = new RTCcontroller(processorId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
 
         // only a single boolean input
@@ -155,7 +214,8 @@ public class RTCcontroller extends AbstractProcessor<Void> {
                 .required(true));
 
         rtc.addParameter(Parameter.stringParameterWithIdAndName(MODEL_NAME_LIST_PARAMETER_ID, "Model Name List")
-                .description("Comma separated Model names as they are in db4o database.")
+                .description("Comma separated Model names as they are in db4o database."
+                        + " A model may wait for others: \"A, B, C:A+B\" runs C when A and B are done.")
                 .defaultValue("")
                 .required(true));
 
@@ -164,6 +224,21 @@ public class RTCcontroller extends AbstractProcessor<Void> {
                 .defaultValue("attribute_for_model_list")
                 .required(true));
 
+        rtc.addParameter(Parameter.integerParameterWithIdAndName(TIMEOUT_PARAMETER_ID, "Timeout")
+                .description("Milliseconds a model launch may take.")
+                .defaultValue(30000)
+                .constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Timeout should be greater than 0.")));
+
+        rtc.addParameter(Parameter.integerParameterWithIdAndName(THREADS_PARAMETER_ID, "Threads")
+                .description("Threads launching models for this controller.")
+                .defaultValue(4)
+                .constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Threads should be greater than 0.")));
+
+        rtc.addParameter(Parameter.integerParameterWithIdAndName(MAX_IN_FLIGHT_PARAMETER_ID, "Max in flight")
+                .description("Launches queued or running at the same time, a new trigger waits for free slots.")
+                .defaultValue(16)
+                .constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Max in flight should be greater than 0.")));
+
         // double output
         try {
             rtc.setOutput(
@@ -181,30 +256,42 @@ public class RTCcontroller extends AbstractProcessor<Void> {
 
     @Override
     public <T extends AbstractProcessor> CompiledProcessor<Void> compile(T processor) throws ValidationException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return new CompiledRTCcontroller((RTCcontroller) processor);
     }
 
     @Override
     public Map<String, TransportReference> getReferences() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return procrefs;
     }
 
     @Override
-    public void setReferences(Map<String, TransportReference> sourceref) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public void setReferences(Map<String, TransportReference> procrefs) {
+        this.procrefs = procrefs;
     }
 
     /**
-     * This {@link CompiledProcessor} is the actual logic that implements the
-     * Simple Moving Average.
+     * Launches the models of every start signal, each as soon as its
+     * prerequisites are done. The HTTP client is the pooled one shared by
+     * the JVM, so connections to the server are kept alive between
+     * triggers; launches run on a fixed executor of this controller, and a
+     * semaphore bounds the launches queued or running.
      */
     static class CompiledRTCcontroller extends CompiledProcessor<Void> {
 
         RTCcontroller rtc;
 
-        protected CompiledRTCcontroller(RTCcontroller rtc) {
+        private final ModelGraph graph;
+        private final ExecutorService executor;
+        private final Semaphore inFlight;
+
+        protected CompiledRTCcontroller(RTCcontroller rtc) throws ValidationException {
             super(rtc);
             this.rtc = rtc;
+            this.graph = rtc.getModelGraph();
+            int threads = rtc.getThreads() == null ? 4 : rtc.getThreads();
+            this.executor = Executors.newFixedThreadPool(threads,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("rtc-" + rtc.getId() + "-%d").build());
+            this.inFlight = new Semaphore(rtc.getMaxInFlight() == null ? 16 : rtc.getMaxInFlight());
         }
 
         @Override
@@ -219,92 +306,160 @@ public class RTCcontroller extends AbstractProcessor<Void> {
             }
 
             Boolean done = null;
-
-            // Create an HttpClient with the ThreadSafeClientConnManager.
-            // This connection manager must be used if more than one thread will
-            // be using the HttpClient.
-            PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
-            cm.setMaxTotal(100);
-
-            CloseableHttpClient httpclient = HttpClients.custom().setConnectionManager(cm).build();
-
             String modelNameList = rtc.getModelNameList();
-            String[] modelList = modelNameList.split(",");
-            String modelField = rtc.getModelNameField();
 
             try {
-                // create a thread for each URI
-                GetThread[] threads = new GetThread[modelList.length];
-
-                for (int i = 0; i < threads.length; i++) {
-
-                    JSONObject jsonObject = new JSONObject();
-                    jsonObject.put(ModelRunner.MODEL_NAME, modelList[i].trim());
-                    jsonObject.put(ModelRunner.MODEL_JSON, "");
-
-                    HttpPost httpPost = new HttpPost(rtc.getServerUrl());
-
-                    httpPost.setHeader("id", rtc.getName());
-                    httpPost.setHeader("name", rtc.getName());
-
-                    httpPost.setHeader("Content-Type", "application/json");
-
-                    StringEntity entity = new StringEntity(jsonObject.toString(), HTTP.UTF_8);
-                    httpPost.setEntity(entity);
-                    threads[i] = new GetThread(httpclient, httpPost, i + 1);
-                }
-
-                for (GetThread thread : threads) {
-                    thread.start();
+                List<Map<String, Object>> outcomes = new ArrayList<>();
+                ModelGraph.Run run = runModels(outcomes);
+                for (Map<String, Object> outcome : outcomes) {
+                    LOG.log(Level.INFO, "Model {0}: status {1} in {2} ms", new Object[]{
+                        outcome.get(rtc.getModelNameField()), outcome.get(STATUS_ATTRIBUTE), outcome.get(LATENCY_ATTRIBUTE)});
                 }
-                for (GetThread thread : threads) {
-                    thread.join();
-                }
-
-                startEvent.getData().put(modelField, modelNameList);
+                LOG.log(Level.INFO, "Models done in {0} ms, critical path {1}", new Object[]{run.getMakespan(), run.getCriticalPath()});
+                startEvent.getData().put(rtc.getModelNameField(), modelNameList);
 
                 done = true;
 
-            } catch (IllegalStateException | JSONException | InterruptedException | UnsupportedEncodingException ex) {
+            } catch (IllegalStateException | JSONException | InterruptedException ex) {
                 LOG.log(Level.SEVERE, ex.getMessage());
-            } finally {
-                if (httpclient != null) {
-                    try {
-                        httpclient.close();
-                    } catch (IOException ex) {
-                        LOG.log(Level.SEVERE, ex.getMessage());
-                    }
-                }
             }
             return done;
         }
 
+        /**
+         * Emits one event per model with the model name, HTTP status (-1 if
+         * the launch failed), latency, success and whether it was skipped
+         * after a failed prerequisite, then the output signal with the
+         * makespan and critical path once all models of the trigger are
+         * done.
+         */
         @Override
         public Object processEvent(Transport runtime) {
-            throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
-        }
-    }
+            String inputName = rtc.getInput().getName();
+            String outAttName = rtc.getOutputAttributeName();
+            String sourceClassName = rtc.getReferences().get(inputName).getReferenceClass();
+            String sourceId = rtc.getReferences().get(inputName).getReferenceId();
+            String outClassName = rtc.getClass().getCanonicalName();
+
+            Map<String, NodeAttribute> attributes = rtc.getReferences().get(inputName).getAttributes();
+            if (attributes == null || attributes.size() != 1) {
+                return GraphVocabulary.CANCEL;
+            }
+            String inputAttName = attributes.keySet().iterator().next();
 
-    static class GetThread extends Thread {
+            runtime.start();
+            Integer status = GraphVocabulary.COMPLETE;
+            String offset = "0";
+            try {
+                while (true) {
+                    List<StreamMessage<String, String>> list = runtime.readEvents(sourceClassName, UUID.fromString(sourceId), offset);
+                    if (list.isEmpty()) {
+                        break;
+                    }
+                    for (StreamMessage<String, String> msg : list) {
+                        if (msg == null || !Booleans.parseBoolean(msg.getBody().get(inputAttName))) {
+                            continue;
+                        }
+                        boolean success = true;
+                        List<Map<String, Object>> outcomes = new ArrayList<>();
+                        ModelGraph.Run run = runModels(outcomes);
+                        for (Map<String, Object> outcome : outcomes) {
+                            success &= Boolean.TRUE.equals(outcome.get(SUCCESS_ATTRIBUTE));
+                            runtime.writeEvents(outcome, outClassName, rtc.getId());
+                        }
+                        Map<String, Object> signal = Maps.newHashMap();
+                        signal.put(outAttName, success);
+                        signal.put(rtc.getModelNameField(), rtc.getModelNameList());
+                        signal.put(MAKESPAN_ATTRIBUTE, run.getMakespan());
+                        signal.put(CRITICAL_PATH_ATTRIBUTE, run.getCriticalPath());
+                        runtime.writeEvents(signal, outClassName, rtc.getId());
+                    }
+                    offset = list.get(list.size() - 1).getId();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                status = GraphVocabulary.CANCEL;
+            } catch (JSONException ex) {
+                LOG.log(Level.SEVERE, ex.getMessage());
+                status = GraphVocabulary.CANCEL;
+            } finally {
+                executor.shutdown();
+                runtime.shutdown();
+            }
+            return status;
+        }
 
-        private final CloseableHttpClient httpClient;
-        private final HttpPost httpPost;
-        private final int id;
+        /**
+         * Runs the model graph: launches the models without prerequisites,
+         * then every model whose prerequisites have completed, until all
+         * models are done or skipped. Launching happens on this thread only,
+         * the launches report back through a queue.
+         *
+         * @param outcomes receives the outcome per model, in completion
+         * order
+         * @return the finished run
+         */
+        ModelGraph.Run runModels(List<Map<String, Object>> outcomes) throws InterruptedException, JSONException {
+            int timeout = rtc.getTimeout() == null ? 30000 : rtc.getTimeout();
+            ModelGraph.Run run = graph.start();
+            BlockingQueue<Map<String, Object>> completed = new LinkedBlockingQueue<>();
+            while (!run.isDone()) {
+                for (String modelName : run.take()) {
+                    HttpPost httpPost = request(modelName);
+                    inFlight.acquire();
+                    AtomicLong started = new AtomicLong(System.nanoTime());
+                    // latency is measured from the start of the deadline, not
+                    // from the wait for an executor thread
+                    HttpClientPool.executeAsync(httpPost, response -> response.getStatusLine().getStatusCode(), timeout, executor,
+                            () -> {
+                                started.set(System.nanoTime());
+                                run.started(modelName);
+                            })
+                            .whenComplete((code, ex) -> {
+                                inFlight.release();
+                                long latency = (System.nanoTime() - started.get()) / 1_000_000L;
+                                if (ex != null) {
+                                    LOG.log(Level.WARNING, "Model {0} failed after {1} ms: {2}",
+                                            new Object[]{modelName, latency, ex.getMessage()});
+                                }
+                                completed.add(outcome(modelName, ex == null ? code : -1, latency));
+                            });
+                }
+                if (run.isDone()) {
+                    break;
+                }
+                Map<String, Object> outcome = completed.take();
+                outcomes.add(outcome);
+                String modelName = (String) outcome.get(rtc.getModelNameField());
+                for (String skipped : run.complete(modelName, Boolean.TRUE.equals(outcome.get(SUCCESS_ATTRIBUTE))).getSkipped()) {
+                    Map<String, Object> skip = outcome(skipped, -1, 0);
+                    skip.put(SKIPPED_ATTRIBUTE, true);
+                    outcomes.add(skip);
+                }
+            }
+            return run;
+        }
 
-        public GetThread(CloseableHttpClient httpClient, HttpPost httpPost, int id) {
-            this.httpClient = httpClient;
-            this.httpPost = httpPost;
-            this.id = id;
+        private Map<String, Object> outcome(String modelName, int code, long latency) {
+            Map<String, Object> outcome = Maps.newHashMap();
+            outcome.put(rtc.getModelNameField(), modelName);
+            outcome.put(STATUS_ATTRIBUTE, code);
+            outcome.put(LATENCY_ATTRIBUTE, latency);
+            outcome.put(SUCCESS_ATTRIBUTE, code >= 200 && code < 300);
+            outcome.put(SKIPPED_ATTRIBUTE, false);
+            return outcome;
         }
-        
-        @Override
-        public void run() {           
-            try {                
-                CloseableHttpResponse httpResponse = httpClient.execute(httpPost);
-                httpResponse.close();                
-            } catch (IOException ex) {
-                LOG.log(Level.SEVERE, ex.getMessage());
-            }
+
+        private HttpPost request(String modelName) throws JSONException {
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put(ModelRunner.MODEL_NAME, modelName);
+            jsonObject.put(ModelRunner.MODEL_JSON, "");
+
+            HttpPost httpPost = new HttpPost(rtc.getServerUrl());
+            httpPost.setHeader("id", rtc.getName());
+            httpPost.setHeader("name", rtc.getName());
+            httpPost.setEntity(new StringEntity(jsonObject.toString(), ContentType.APPLICATION_JSON));
+            return httpPost;
         }
     }
 }
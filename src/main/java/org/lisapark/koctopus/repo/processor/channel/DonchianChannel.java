@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.processor.channel;
+
+import com.fasterxml.uuid.Generators;
+import io.lettuce.core.StreamMessage;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.ProgrammerException;
+import org.lisapark.koctopus.core.Persistable;
+import org.lisapark.koctopus.core.ValidationException;
+import org.lisapark.koctopus.core.event.Event;
+import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.NodeAttribute;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.parameter.Constraints;
+import org.lisapark.koctopus.core.parameter.Parameter;
+import org.lisapark.koctopus.core.processor.AbstractProcessor;
+import org.lisapark.koctopus.core.processor.CompiledProcessor;
+import org.lisapark.koctopus.core.processor.ProcessorInput;
+import org.lisapark.koctopus.core.processor.ProcessorOutput;
+import org.lisapark.koctopus.core.runtime.ProcessorContext;
+import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.core.transport.TransportReference;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
+import org.lisapark.koctopus.repo.util.ProcessorOutputs;
+
+/**
+ * This {@link AbstractProcessor} computes the rolling minimum and maximum
+ * (Donchian channel) of a single input over a sliding window. The window is
+ * either the last N events or the events of the last T milliseconds.
+ *
+ * Both extremes are kept in monotonic deques backed by primitive arrays, so
+ * every event costs amortized O(1) regardless of the window length. For every
+ * input event the processor emits the lower, upper and middle band.
+ *
+ * @author alexmy
+ */
+@Persistable
+public class DonchianChannel extends AbstractProcessor<Double> {
+
+    static final Logger LOG = Logger.getLogger(DonchianChannel.class.getName());
+
+    public static final String WINDOW_COUNT = "count";
+    public static final String WINDOW_TIME = "time";
+
+    public static final String LOWER = "lower";
+    public static final String MIDDLE = "middle";
+
+    private static final String DEFAULT_NAME = "Donchian Channel";
+    private static final String DEFAULT_DESCRIPTION = "Rolling minimum and maximum over a count or time window.";
+    private static final String DEFAULT_INPUT_DESCRIPTION = "This is the attribute from the connected source that the"
+            + " channel is computed for.";
+    private static final String DEFAULT_OUTPUT_DESCRIPTION = "Upper, lower and middle bands.";
+
+    private static final int WINDOW_TYPE_PARAMETER_ID = 2;
+    private static final int WINDOW_LENGTH_PARAMETER_ID = 3;
+    private static final int TIME_WINDOW_PARAMETER_ID = 4;
+    private static final int TIME_ATTRIBUTE_PARAMETER_ID = 5;
+    private static final int PAGE_SIZE_PARAMETER_ID = 6;
+
+    private static final int INPUT_ID = 1;
+    private static final int OUTPUT_ID = 1;
+
+    protected Map<String, TransportReference> procrefs = new HashMap<>();
+
+    public DonchianChannel() {
+        super(Generators.timeBasedGenerator().generate(), DEFAULT_NAME, DEFAULT_DESCRIPTION);
+    }
+
+    protected DonchianChannel(UUID id, String name, String description) {
+        super(id, name, description);
+    }
+
+    protected DonchianChannel(UUID id, DonchianChannel copyFrom) {
+        super(id, copyFrom);
+    }
+
+    protected DonchianChannel(DonchianChannel copyFrom) {
+        super(copyFrom);
+    }
+
+    public String getWindowType() {
+        return getParameter(WINDOW_TYPE_PARAMETER_ID).getValueAsString();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void setWindowType(String windowType) throws ValidationException {
+        getParameter(WINDOW_TYPE_PARAMETER_ID).setValue(windowType);
+    }
+
+    public int getWindowLength() {
+        return getParameter(WINDOW_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void setWindowLength(int windowLength) throws ValidationException {
+        getParameter(WINDOW_LENGTH_PARAMETER_ID).setValue(windowLength);
+    }
+
+    public int getTimeWindow() {
+        return getParameter(TIME_WINDOW_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getTimeAttribute() {
+        return getParameter(TIME_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getPageSize() {
+        return getParameter(PAGE_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public ProcessorInput getInput() {
+        return getInputs().get(0);
+    }
+
+    @Override
+    public DonchianChannel copyOf() {
+        return new DonchianChannel(this);
+    }
+
+    @Override
+    public DonchianChannel newInstance() {
+        return new DonchianChannel(Generators.timeBasedGenerator().generate(), this);
+    }
+
+    @Override
+    public DonchianChannel newInstance(Gnode gnode) {
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        DonchianChannel channel = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildProcessor(channel, gnode);
+        try {
+            channel.declareOutput();
+        } catch (ValidationException ex) {
+            LOG.log(Level.SEVERE, ex.getMessage());
+        }
+
+        return channel;
+    }
+
+    public static DonchianChannel newTemplate() {
+        UUID uuid = Generators.timeBasedGenerator().generate();
+        return newTemplate(uuid);
+    }
+
+    public static DonchianChannel newTemplate(UUID uuid) {
+        DonchianChannel channel = new DonchianChannel(uuid, DEFAULT_NAME, DEFAULT_DESCRIPTION);
+
+        channel.addParameter(
+                Parameter.stringParameterWithIdAndName(WINDOW_TYPE_PARAMETER_ID, "Window type").
+                        description("count - the last N events, time - the events of the last T milliseconds.").
+                        defaultValue(WINDOW_COUNT).required(true)
+        );
+        channel.addParameter(
+                Parameter.integerParameterWithIdAndName(WINDOW_LENGTH_PARAMETER_ID, "Window length").
+                        description("Number of events in the count window.").
+                        defaultValue(20).required(true).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Window length should be greater than 0."))
+        );
+        channel.addParameter(
+                Parameter.integerParameterWithIdAndName(TIME_WINDOW_PARAMETER_ID, "Time window").
+                        description("Length of the time window in milliseconds.").
+                        defaultValue(60000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Time window should be greater than 0."))
+        );
+        channel.addParameter(
+                Parameter.stringParameterWithIdAndName(TIME_ATTRIBUTE_PARAMETER_ID, "Time attribute").
+                        description("Attribute with the event time in milliseconds for the time window."
+                                + " Empty - use the time of the stream entry id.").
+                        defaultValue("")
+        );
+        channel.addParameter(
+                Parameter.integerParameterWithIdAndName(PAGE_SIZE_PARAMETER_ID, "Page size").
+                        description("Number of events read from the input stream at once.").
+                        defaultValue(100).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Page size should be greater than 0."))
+        );
+
+        channel.addInput(
+                ProcessorInput.doubleInputWithId(INPUT_ID).name("Input").description(DEFAULT_INPUT_DESCRIPTION)
+        );
+        try {
+            channel.setOutput(
+                    ProcessorOutput.doubleOutputWithId(OUTPUT_ID).name("Channel").description(DEFAULT_OUTPUT_DESCRIPTION).attributeName("upper")
+            );
+            channel.declareOutput();
+        } catch (ValidationException ex) {
+            // this should NOT happen. It means we created the processor with an invalid attriubte name
+            throw new ProgrammerException(ex);
+        }
+        return channel;
+    }
+
+    /**
+     * Declares the lower and middle bands next to the upper band, and the
+     * time attribute if one is set.
+     *
+     * @throws ValidationException
+     */
+    void declareOutput() throws ValidationException {
+        Map<String, String> types = new LinkedHashMap<>();
+        types.put(LOWER, Double.class.getName());
+        types.put(MIDDLE, Double.class.getName());
+        String time = getTimeAttribute();
+        if (time != null && !time.trim().isEmpty()) {
+            types.put(time.trim(), Long.class.getName());
+        }
+        ProcessorOutputs.addMissing(this, types);
+    }
+
+    /**
+     * Validates and compile this processor.
+     *
+     * @return CompiledProcessor
+     * @throws org.lisapark.koctopus.core.ValidationException
+     */
+    @Override
+    public CompiledProcessor<Double> compile() throws ValidationException {
+        validate();
+        // we copy all the inputs and output taking a "snapshot" of this processor so we are isolated of changes
+        return compile(copyOf());
+    }
+
+    @Override
+    public <T extends AbstractProcessor> CompiledProcessor<Double> compile(T processor) throws ValidationException {
+        DonchianChannel copy = (DonchianChannel) processor;
+        if (!WINDOW_COUNT.equals(copy.getWindowType()) && !WINDOW_TIME.equals(copy.getWindowType())) {
+            throw new ValidationException("Window type should be either count or time: " + copy.getWindowType());
+        }
+        copy.declareOutput();
+        return new CompiledDonchianChannel(copy);
+    }
+
+    @Override
+    public Map<String, TransportReference> getReferences() {
+        return procrefs;
+    }
+
+    @Override
+    public void setReferences(Map<String, TransportReference> procrefs) {
+        this.procrefs = procrefs;
+    }
+
+    /**
+     * Monotonic deque of (stamp, value) pairs on primitive ring arrays. For a
+     * max deque the values are strictly decreasing from head to tail, so the
+     * head is always the maximum of the window; a min deque is the mirror
+     * image. Every value is added and removed at most once.
+     */
+    static class MonotonicDeque {
+
+        private final boolean max;
+        private double[] values;
+        private long[] stamps;
+        private int head;
+        private int size;
+
+        MonotonicDeque(boolean max, int capacity) {
+            this.max = max;
+            this.values = new double[Math.max(capacity, 16)];
+            this.stamps = new long[values.length];
+        }
+
+        void add(long stamp, double value) {
+            // drop the values that can never be an extreme again
+            while (size > 0) {
+                double last = values[index(size - 1)];
+                if (max ? last <= value : last >= value) {
+                    size--;
+                } else {
+                    break;
+                }
+            }
+            if (size == values.length) {
+                grow();
+            }
+            int i = index(size);
+            values[i] = value;
+            stamps[i] = stamp;
+            size++;
+        }
+
+        /**
+         * Removes the entries older than the stamp.
+         */
+        void evictBefore(long stamp) {
+            while (size > 0 && stamps[head] < stamp) {
+                head = (head + 1) % values.length;
+                size--;
+            }
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        double first() {
+            return values[head];
+        }
+
+        private int index(int offset) {
+            return (head + offset) % values.length;
+        }
+
+        private void grow() {
+            double[] newValues = new double[values.length * 2];
+            long[] newStamps = new long[newValues.length];
+            for (int i = 0; i < size; i++) {
+                newValues[i] = values[index(i)];
+                newStamps[i] = stamps[index(i)];
+            }
+            values = newValues;
+            stamps = newStamps;
+            head = 0;
+        }
+    }
+
+    /**
+     * This {@link CompiledProcessor} is the actual logic that implements the
+     * channel.
+     */
+    static class CompiledDonchianChannel extends CompiledProcessor<Double> {
+
+        private final DonchianChannel channel;
+        private final boolean timeWindow;
+        private final long windowLength;
+        private final String timeAttribute;
+
+        private final MonotonicDeque maxDeque;
+        private final MonotonicDeque minDeque;
+        private long sequence;
+
+        protected CompiledDonchianChannel(DonchianChannel channel) {
+            super(channel);
+            this.channel = channel;
+            this.timeWindow = WINDOW_TIME.equals(channel.getWindowType());
+            this.windowLength = timeWindow ? channel.getTimeWindow() : channel.getWindowLength();
+            String timeAtt = channel.getTimeAttribute();
+            this.timeAttribute = timeAtt == null || timeAtt.trim().isEmpty() ? null : timeAtt.trim();
+            // a count window never holds more than windowLength entries
+            int capacity = timeWindow ? 64 : channel.getWindowLength();
+            this.maxDeque = new MonotonicDeque(true, capacity);
+            this.minDeque = new MonotonicDeque(false, capacity);
+        }
+
+        @Override
+        public Integer processEvent(Transport runtime) {
+            String inputName = channel.getInput().getName();
+            TransportReference reference = channel.getReferences().get(inputName);
+            if (reference == null) {
+                LOG.log(Level.SEVERE, "Input {0} is not connected.", inputName);
+                return GraphVocabulary.CANCEL;
+            }
+            String sourceClassName = reference.getReferenceClass();
+            String sourceId = reference.getReferenceId();
+            String outClassName = channel.getClass().getCanonicalName();
+            String outAttName = channel.getOutputAttributeName();
+            int pageSize = channel.getPageSize();
+
+            String inputAttName = inputAttributeName(reference.getAttributes());
+            if (inputAttName == null) {
+                LOG.log(Level.SEVERE, "Cannot determine the input attribute of {0}", inputName);
+                return GraphVocabulary.CANCEL;
+            }
+
+            runtime.start();
+            String offset = "0";
+            Integer status = GraphVocabulary.BACK_LOG;
+            while (true) {
+                List<StreamMessage<String, String>> list;
+                list = runtime.readEvents(sourceClassName, UUID.fromString(sourceId), offset, pageSize);
+                if (list.size() > 0) {
+                    for (StreamMessage<String, String> msg : list) {
+                        if (msg == null) {
+                            continue;
+                        }
+                        double value = toDouble(msg.getBody().get(inputAttName));
+                        if (Double.isNaN(value)) {
+                            continue;
+                        }
+                        long stamp = stamp(msg);
+                        maxDeque.add(stamp, value);
+                        minDeque.add(stamp, value);
+                        // oldest stamp that is still inside the window
+                        long from = stamp - windowLength + 1;
+                        maxDeque.evictBefore(from);
+                        minDeque.evictBefore(from);
+
+                        double upper = maxDeque.first();
+                        double lower = minDeque.first();
+                        Map<String, String> e = new HashMap<>();
+                        e.put(outAttName, String.valueOf(upper));
+                        e.put(LOWER, String.valueOf(lower));
+                        e.put(MIDDLE, String.valueOf((upper + lower) / 2));
+                        if (timeAttribute != null) {
+                            e.put(timeAttribute, String.valueOf(stamp));
+                        }
+                        runtime.writeEvents(e, outClassName, channel.getId());
+                    }
+                    offset = list.get(list.size() - 1).getId();
+                } else {
+                    status = GraphVocabulary.COMPLETE;
+                    runtime.shutdown();
+                    break;
+                }
+            }
+            return status;
+        }
+
+        /**
+         * Count windows are stamped with the event sequence number, time
+         * windows with the event time.
+         */
+        private long stamp(StreamMessage<String, String> msg) {
+            if (!timeWindow) {
+                return sequence++;
+            }
+            String time = timeAttribute == null ? msg.getId() : msg.getBody().get(timeAttribute);
+            if (time == null) {
+                return sequence;
+            }
+            int dash = time.indexOf('-');
+            try {
+                // stream entry ids are "milliseconds-sequence"
+                sequence = Long.parseLong(dash > 0 && timeAttribute == null ? time.substring(0, dash) : time.trim());
+            } catch (NumberFormatException ex) {
+                LOG.log(Level.WARNING, "Bad event time {0}", time);
+            }
+            return sequence;
+        }
+
+        private String inputAttributeName(Map<String, NodeAttribute> attributes) {
+            String name = channel.getInput().getSourceAttributeName();
+            if (name != null) {
+                return name;
+            }
+            if (attributes != null && attributes.size() == 1) {
+                return attributes.keySet().iterator().next();
+            }
+            return null;
+        }
+
+        private static double toDouble(String value) {
+            if (value == null) {
+                return Double.NaN;
+            }
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException ex) {
+                return Double.NaN;
+            }
+        }
+
+        @Override
+        public Object processEvent(ProcessorContext<Double> ctx, Map<Integer, Event> eventsByInputId) {
+            throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        }
+    }
+}
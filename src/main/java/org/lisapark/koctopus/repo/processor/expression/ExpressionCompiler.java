@@ -0,0 +1,564 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.processor.expression;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles expressions over event attribute names into a tree of small
+ * lambdas. Parsing happens once, when the processor is compiled; evaluation
+ * only walks the lambda tree, which the JIT inlines like hand written code.
+ *
+ * Expressions work directly on the raw stream fields, so an attribute is read
+ * and parsed only when the expression actually touches it. Supported syntax:
+ * numbers, 'string' literals, true/false, attribute names, + - * / %,
+ * comparisons (&lt; &lt;= &gt; &gt;= == !=), ! &amp;&amp; ||, parentheses and
+ * the functions abs, sqrt, log, exp, pow, min and max.
+ *
+ * @author alexmy
+ */
+public class ExpressionCompiler {
+
+    /**
+     * Compiled numeric expression.
+     */
+    public interface NumericExpression {
+
+        double evaluate(Map<String, ?> fields);
+    }
+
+    /**
+     * Compiled boolean expression (predicate).
+     */
+    public interface BooleanExpression {
+
+        boolean evaluate(Map<String, ?> fields);
+    }
+
+    private enum Kind {
+        NUMBER, BOOLEAN, STRING, FIELD
+    }
+
+    /**
+     * Intermediate result of the parser. Field references stay untyped until
+     * the surrounding operator decides whether they are compared as strings
+     * or used as numbers.
+     */
+    private static class Operand {
+
+        final Kind kind;
+        NumericExpression numeric;
+        BooleanExpression bool;
+        Double constant;
+        String text;
+
+        Operand(Kind kind) {
+            this.kind = kind;
+        }
+    }
+
+    private final String source;
+    private final Set<String> attributeNames = new LinkedHashSet<>();
+    private int pos;
+
+    private ExpressionCompiler(String source) {
+        this.source = source;
+    }
+
+    /**
+     * Parses an expression once and keeps everything the processor needs
+     * from it: the compiled tree, numeric or predicate, and the attribute
+     * names it references.
+     */
+    public static final class Compiled {
+
+        private final NumericExpression numeric;
+        private final BooleanExpression predicate;
+        private final Set<String> attributeNames;
+
+        private Compiled(NumericExpression numeric, BooleanExpression predicate, Set<String> attributeNames) {
+            this.numeric = numeric;
+            this.predicate = predicate;
+            this.attributeNames = Collections.unmodifiableSet(attributeNames);
+        }
+
+        public boolean isPredicate() {
+            return predicate != null;
+        }
+
+        public NumericExpression getNumeric() {
+            return numeric;
+        }
+
+        public BooleanExpression getPredicate() {
+            return predicate;
+        }
+
+        public Set<String> getAttributeNames() {
+            return attributeNames;
+        }
+    }
+
+    /**
+     * Compiles a predicate or a numeric expression, whichever the expression
+     * yields.
+     *
+     * @param expression
+     * @return
+     * @throws IllegalArgumentException if expression is not valid
+     */
+    public static Compiled parse(String expression) {
+        ExpressionCompiler compiler = new ExpressionCompiler(expression);
+        Operand result = compiler.parseAll();
+        return result.kind == Kind.BOOLEAN
+                ? new Compiled(null, compiler.toBoolean(result), compiler.attributeNames)
+                : new Compiled(compiler.toNumeric(result), null, compiler.attributeNames);
+    }
+
+    /**
+     * Compiles a predicate, e.g. "price &gt; 10 &amp;&amp; side == 'BUY'".
+     *
+     * @param expression
+     * @return
+     * @throws IllegalArgumentException if expression is not a valid predicate
+     */
+    public static Compiled parsePredicate(String expression) {
+        ExpressionCompiler compiler = new ExpressionCompiler(expression);
+        return new Compiled(null, compiler.toBoolean(compiler.parseAll()), compiler.attributeNames);
+    }
+
+    //==========================================================================
+    // Parser
+    //==========================================================================
+    private Operand parseAll() {
+        if (source == null || source.trim().isEmpty()) {
+            throw error("Empty expression");
+        }
+        Operand result = parseOr();
+        skipSpaces();
+        if (pos < source.length()) {
+            throw error("Unexpected '" + source.charAt(pos) + "'");
+        }
+        return result;
+    }
+
+    private Operand parseOr() {
+        Operand left = parseAnd();
+        while (accept("||")) {
+            BooleanExpression l = toBoolean(left);
+            BooleanExpression r = toBoolean(parseAnd());
+            left = bool(f -> l.evaluate(f) || r.evaluate(f));
+        }
+        return left;
+    }
+
+    private Operand parseAnd() {
+        Operand left = parseNot();
+        while (accept("&&")) {
+            BooleanExpression l = toBoolean(left);
+            BooleanExpression r = toBoolean(parseNot());
+            left = bool(f -> l.evaluate(f) && r.evaluate(f));
+        }
+        return left;
+    }
+
+    private Operand parseNot() {
+        skipSpaces();
+        if (peek('!') && !peek("!=")) {
+            pos++;
+            BooleanExpression e = toBoolean(parseNot());
+            return bool(f -> !e.evaluate(f));
+        }
+        return parseComparison();
+    }
+
+    private Operand parseComparison() {
+        Operand left = parseAdditive();
+        String op = acceptAny("<=", ">=", "==", "!=", "<", ">");
+        if (op == null) {
+            return left;
+        }
+        Operand right = parseAdditive();
+
+        if (left.kind == Kind.STRING || right.kind == Kind.STRING) {
+            return stringComparison(op, left, right);
+        }
+        NumericExpression l = toNumeric(left);
+        NumericExpression r = toNumeric(right);
+        switch (op) {
+            case "<":
+                return bool(f -> l.evaluate(f) < r.evaluate(f));
+            case "<=":
+                return bool(f -> l.evaluate(f) <= r.evaluate(f));
+            case ">":
+                return bool(f -> l.evaluate(f) > r.evaluate(f));
+            case ">=":
+                return bool(f -> l.evaluate(f) >= r.evaluate(f));
+            case "==":
+                return bool(f -> l.evaluate(f) == r.evaluate(f));
+            default:
+                return bool(f -> l.evaluate(f) != r.evaluate(f));
+        }
+    }
+
+    private Operand stringComparison(String op, Operand left, Operand right) {
+        if (!"==".equals(op) && !"!=".equals(op)) {
+            throw error("Strings can only be compared with == or !=");
+        }
+        Operand field = left.kind == Kind.STRING ? right : left;
+        Operand literal = left.kind == Kind.STRING ? left : right;
+        BooleanExpression equals;
+        if (field.kind == Kind.STRING) {
+            boolean same = field.text.equals(literal.text);
+            equals = f -> same;
+        } else if (field.kind == Kind.FIELD) {
+            String name = field.text;
+            String value = literal.text;
+            equals = f -> {
+                Object raw = f.get(name);
+                return raw != null && value.equals(raw.toString());
+            };
+        } else {
+            throw error("String literal compared with non string operand");
+        }
+        return "==".equals(op) ? bool(equals) : bool(f -> !equals.evaluate(f));
+    }
+
+    private Operand parseAdditive() {
+        Operand left = parseTerm();
+        while (true) {
+            String op = acceptAny("+", "-");
+            if (op == null) {
+                return left;
+            }
+            Operand right = parseTerm();
+            left = "+".equals(op)
+                    ? arithmetic(left, right, '+')
+                    : arithmetic(left, right, '-');
+        }
+    }
+
+    private Operand parseTerm() {
+        Operand left = parseUnary();
+        while (true) {
+            String op = acceptAny("*", "/", "%");
+            if (op == null) {
+                return left;
+            }
+            left = arithmetic(left, parseUnary(), op.charAt(0));
+        }
+    }
+
+    private Operand parseUnary() {
+        if (accept("-")) {
+            Operand operand = parseUnary();
+            if (operand.constant != null) {
+                return constant(-operand.constant);
+            }
+            NumericExpression e = toNumeric(operand);
+            return numeric(f -> -e.evaluate(f));
+        }
+        return parsePrimary();
+    }
+
+    private Operand parsePrimary() {
+        skipSpaces();
+        if (pos >= source.length()) {
+            throw error("Unexpected end of expression");
+        }
+        char c = source.charAt(pos);
+        if (c == '(') {
+            pos++;
+            Operand inner = parseOr();
+            expect(")");
+            return inner;
+        }
+        if (c == '\'' || c == '"') {
+            return parseString(c);
+        }
+        if (Character.isDigit(c) || c == '.') {
+            return parseNumber();
+        }
+        if (Character.isLetter(c) || c == '_') {
+            String name = parseIdentifier();
+            if ("true".equals(name) || "false".equals(name)) {
+                boolean value = Boolean.parseBoolean(name);
+                return bool(f -> value);
+            }
+            skipSpaces();
+            if (peek('(')) {
+                return parseFunction(name);
+            }
+            attributeNames.add(name);
+            Operand field = new Operand(Kind.FIELD);
+            field.text = name;
+            return field;
+        }
+        throw error("Unexpected '" + c + "'");
+    }
+
+    private Operand parseFunction(String name) {
+        expect("(");
+        List<NumericExpression> args = new ArrayList<>();
+        if (!accept(")")) {
+            do {
+                args.add(toNumeric(parseOr()));
+            } while (accept(","));
+            expect(")");
+        }
+        switch (name) {
+            case "abs":
+                return unary(name, args, Math::abs);
+            case "sqrt":
+                return unary(name, args, Math::sqrt);
+            case "log":
+                return unary(name, args, Math::log);
+            case "exp":
+                return unary(name, args, Math::exp);
+            case "pow":
+                checkArity(name, args, 2);
+                NumericExpression base = args.get(0);
+                NumericExpression exponent = args.get(1);
+                return numeric(f -> Math.pow(base.evaluate(f), exponent.evaluate(f)));
+            case "min":
+                checkArity(name, args, 2);
+                NumericExpression a = args.get(0);
+                NumericExpression b = args.get(1);
+                return numeric(f -> Math.min(a.evaluate(f), b.evaluate(f)));
+            case "max":
+                checkArity(name, args, 2);
+                NumericExpression x = args.get(0);
+                NumericExpression y = args.get(1);
+                return numeric(f -> Math.max(x.evaluate(f), y.evaluate(f)));
+            default:
+                throw error("Unknown function " + name);
+        }
+    }
+
+    private Operand unary(String name, List<NumericExpression> args, java.util.function.DoubleUnaryOperator op) {
+        checkArity(name, args, 1);
+        NumericExpression arg = args.get(0);
+        return numeric(f -> op.applyAsDouble(arg.evaluate(f)));
+    }
+
+    private void checkArity(String name, List<NumericExpression> args, int arity) {
+        if (args.size() != arity) {
+            throw error(name + " takes " + arity + " argument(s)");
+        }
+    }
+
+    private Operand parseString(char quote) {
+        int start = ++pos;
+        while (pos < source.length() && source.charAt(pos) != quote) {
+            pos++;
+        }
+        if (pos >= source.length()) {
+            throw error("Unterminated string");
+        }
+        Operand literal = new Operand(Kind.STRING);
+        literal.text = source.substring(start, pos++);
+        return literal;
+    }
+
+    private Operand parseNumber() {
+        int start = pos;
+        while (pos < source.length()) {
+            char c = source.charAt(pos);
+            if (Character.isDigit(c) || c == '.') {
+                pos++;
+            } else if ((c == 'e' || c == 'E') && pos + 1 < source.length()) {
+                pos++;
+                if (source.charAt(pos) == '+' || source.charAt(pos) == '-') {
+                    pos++;
+                }
+            } else {
+                break;
+            }
+        }
+        try {
+            return constant(Double.parseDouble(source.substring(start, pos)));
+        } catch (NumberFormatException ex) {
+            throw error("Invalid number " + source.substring(start, pos));
+        }
+    }
+
+    private String parseIdentifier() {
+        int start = pos;
+        while (pos < source.length()) {
+            char c = source.charAt(pos);
+            if (Character.isLetterOrDigit(c) || c == '_' || c == '.') {
+                pos++;
+            } else {
+                break;
+            }
+        }
+        return source.substring(start, pos);
+    }
+
+    //==========================================================================
+    // Code generation helpers
+    //==========================================================================
+    private Operand arithmetic(Operand left, Operand right, char op) {
+        if (left.constant != null && right.constant != null) {
+            return constant(apply(op, left.constant, right.constant));
+        }
+        NumericExpression l = toNumeric(left);
+        NumericExpression r = toNumeric(right);
+        switch (op) {
+            case '+':
+                return numeric(f -> l.evaluate(f) + r.evaluate(f));
+            case '-':
+                return numeric(f -> l.evaluate(f) - r.evaluate(f));
+            case '*':
+                return numeric(f -> l.evaluate(f) * r.evaluate(f));
+            case '/':
+                return numeric(f -> l.evaluate(f) / r.evaluate(f));
+            default:
+                return numeric(f -> l.evaluate(f) % r.evaluate(f));
+        }
+    }
+
+    private static double apply(char op, double l, double r) {
+        switch (op) {
+            case '+':
+                return l + r;
+            case '-':
+                return l - r;
+            case '*':
+                return l * r;
+            case '/':
+                return l / r;
+            default:
+                return l % r;
+        }
+    }
+
+    private NumericExpression toNumeric(Operand operand) {
+        switch (operand.kind) {
+            case NUMBER:
+                return operand.numeric;
+            case FIELD:
+                String name = operand.text;
+                return f -> toDouble(f.get(name));
+            default:
+                throw error("Numeric operand expected");
+        }
+    }
+
+    private BooleanExpression toBoolean(Operand operand) {
+        switch (operand.kind) {
+            case BOOLEAN:
+                return operand.bool;
+            case FIELD:
+                String name = operand.text;
+                return f -> {
+                    Object raw = f.get(name);
+                    return raw != null && Boolean.parseBoolean(raw.toString());
+                };
+            default:
+                throw error("Boolean operand expected");
+        }
+    }
+
+    /**
+     * Missing or malformed values become NaN, so every comparison with them
+     * is false and the event is rejected by a filter.
+     */
+    static double toDouble(Object raw) {
+        if (raw == null) {
+            return Double.NaN;
+        }
+        if (raw instanceof Number) {
+            return ((Number) raw).doubleValue();
+        }
+        try {
+            return Double.parseDouble(raw.toString());
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+
+    private static Operand numeric(NumericExpression e) {
+        Operand operand = new Operand(Kind.NUMBER);
+        operand.numeric = e;
+        return operand;
+    }
+
+    private static Operand constant(double value) {
+        Operand operand = numeric(f -> value);
+        operand.constant = value;
+        return operand;
+    }
+
+    private static Operand bool(BooleanExpression e) {
+        Operand operand = new Operand(Kind.BOOLEAN);
+        operand.bool = e;
+        return operand;
+    }
+
+    //==========================================================================
+    // Tokenizer
+    //==========================================================================
+    private void skipSpaces() {
+        while (pos < source.length() && Character.isWhitespace(source.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private boolean peek(char c) {
+        return pos < source.length() && source.charAt(pos) == c;
+    }
+
+    private boolean peek(String token) {
+        return source.startsWith(token, pos);
+    }
+
+    private boolean accept(String token) {
+        skipSpaces();
+        if (source.startsWith(token, pos)) {
+            pos += token.length();
+            return true;
+        }
+        return false;
+    }
+
+    private String acceptAny(String... tokens) {
+        skipSpaces();
+        for (String token : tokens) {
+            if (source.startsWith(token, pos)) {
+                pos += token.length();
+                return token;
+            }
+        }
+        return null;
+    }
+
+    private void expect(String token) {
+        if (!accept(token)) {
+            throw error("Expected '" + token + "'");
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos + " in expression: " + source);
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.processor.expression;
+
+import com.fasterxml.uuid.Generators;
+import io.lettuce.core.StreamMessage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.ProgrammerException;
+import org.lisapark.koctopus.core.Persistable;
+import org.lisapark.koctopus.core.ValidationException;
+import org.lisapark.koctopus.core.event.Event;
+import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.NodeAttribute;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.parameter.Constraints;
+import org.lisapark.koctopus.core.parameter.Parameter;
+import org.lisapark.koctopus.core.processor.AbstractProcessor;
+import org.lisapark.koctopus.core.processor.CompiledProcessor;
+import org.lisapark.koctopus.core.processor.ProcessorInput;
+import org.lisapark.koctopus.core.processor.ProcessorOutput;
+import org.lisapark.koctopus.core.runtime.ProcessorContext;
+import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.core.transport.TransportReference;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
+import org.lisapark.koctopus.repo.processor.expression.ExpressionCompiler.BooleanExpression;
+import org.lisapark.koctopus.repo.processor.expression.ExpressionCompiler.Compiled;
+import org.lisapark.koctopus.repo.util.ProcessorOutputs;
+
+/**
+ * Generic filter/map {@link AbstractProcessor}. Drops events that do not match
+ * the filter expression and adds derived attributes computed from expressions
+ * over the input attribute names, e.g. filter "qty &gt; 0" and derived
+ * attributes "notional = price * qty; big = notional &gt; 1000000".
+ *
+ * Expressions are compiled once, in {@link #compile()}, and the filter is
+ * evaluated on the raw stream fields, so rejected events are never copied.
+ *
+ * @author alexmy
+ */
+@Persistable
+public class ExpressionProcessor extends AbstractProcessor<Void> {
+
+    static final Logger LOG = Logger.getLogger(ExpressionProcessor.class.getName());
+
+    private static final String DEFAULT_NAME = "Filter/Map";
+    private static final String DEFAULT_DESCRIPTION = "Filters events and computes derived attributes"
+            + " using expressions over input attribute names.";
+    private static final String DEFAULT_INPUT_DESCRIPTION = "Events to filter and enrich.";
+    private static final String DEFAULT_OUTPUT_DESCRIPTION = "Accepted events with derived attributes.";
+
+    private static final int FILTER_PARAMETER_ID = 2;
+    private static final int DERIVED_PARAMETER_ID = 3;
+    private static final int PAGE_SIZE_PARAMETER_ID = 4;
+
+    private static final int INPUT_ID = 1;
+    private static final int OUTPUT_ID = 1;
+
+    protected Map<String, TransportReference> procrefs = new HashMap<>();
+
+    public ExpressionProcessor() {
+        super(Generators.timeBasedGenerator().generate(), DEFAULT_NAME, DEFAULT_DESCRIPTION);
+    }
+
+    protected ExpressionProcessor(UUID id, String name, String description) {
+        super(id, name, description);
+    }
+
+    protected ExpressionProcessor(UUID id, ExpressionProcessor copyFrom) {
+        super(id, copyFrom);
+    }
+
+    protected ExpressionProcessor(ExpressionProcessor copyFrom) {
+        super(copyFrom);
+    }
+
+    public String getFilter() {
+        return getParameter(FILTER_PARAMETER_ID).getValueAsString();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void setFilter(String filter) throws ValidationException {
+        getParameter(FILTER_PARAMETER_ID).setValue(filter);
+    }
+
+    public String getDerivedAttributes() {
+        return getParameter(DERIVED_PARAMETER_ID).getValueAsString();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void setDerivedAttributes(String derived) throws ValidationException {
+        getParameter(DERIVED_PARAMETER_ID).setValue(derived);
+    }
+
+    public Integer getPageSize() {
+        return getParameter(PAGE_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public ProcessorInput getInput() {
+        return getInputs().get(0);
+    }
+
+    @Override
+    public ExpressionProcessor copyOf() {
+        return new ExpressionProcessor(this);
+    }
+
+    @Override
+    public ExpressionProcessor newInstance() {
+        return new ExpressionProcessor(Generators.timeBasedGenerator().generate(), this);
+    }
+
+    @Override
+    public ExpressionProcessor newInstance(Gnode gnode) {
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        ExpressionProcessor processor = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildProcessor(processor, gnode);
+        try {
+            processor.declareOutput(derived(processor.getDerivedAttributes()));
+        } catch (IllegalArgumentException | ValidationException ex) {
+            LOG.log(Level.SEVERE, ex.getMessage());
+        }
+
+        return processor;
+    }
+
+    public static ExpressionProcessor newTemplate() {
+        UUID uuid = Generators.timeBasedGenerator().generate();
+        return newTemplate(uuid);
+    }
+
+    public static ExpressionProcessor newTemplate(UUID uuid) {
+        ExpressionProcessor processor = new ExpressionProcessor(uuid, DEFAULT_NAME, DEFAULT_DESCRIPTION);
+
+        processor.addParameter(
+                Parameter.stringParameterWithIdAndName(FILTER_PARAMETER_ID, "Filter").
+                        description("Boolean expression, e.g. price > 10 && side == 'BUY'. Empty - accept all events.").
+                        defaultValue("")
+        );
+        processor.addParameter(
+                Parameter.stringParameterWithIdAndName(DERIVED_PARAMETER_ID, "Derived attributes").
+                        description("Semicolon separated list of name = expression, e.g. total = price * qty.").
+                        defaultValue("")
+        );
+        processor.addParameter(
+                Parameter.integerParameterWithIdAndName(PAGE_SIZE_PARAMETER_ID, "Page size").
+                        description("Number of events read from the input stream at once.").
+                        defaultValue(100).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Page size should be greater than 0."))
+        );
+
+        processor.addInput(
+                ProcessorInput.objectInputWithId(INPUT_ID).name("Input").description(DEFAULT_INPUT_DESCRIPTION)
+        );
+        try {
+            // placeholder until the input and the derived attributes are known, see declareOutput
+            processor.setOutput(
+                    ProcessorOutput.stringOutputWithId(OUTPUT_ID).name("Output").description(DEFAULT_OUTPUT_DESCRIPTION).attributeName("value")
+            );
+        } catch (ValidationException ex) {
+            // this should NOT happen. It means we created the processor with an invalid attriubte name
+            throw new ProgrammerException(ex);
+        }
+        return processor;
+    }
+
+    /**
+     * Declares the attributes this processor writes: the input attributes,
+     * passed through unchanged, then the derived attributes, Double for
+     * numeric expressions and Boolean for predicates. A derived attribute
+     * named like an input attribute replaces it. Nothing is declared while
+     * neither the input attributes nor derived attributes are known.
+     *
+     * @param derived
+     * @throws ValidationException
+     */
+    void declareOutput(List<Derived> derived) throws ValidationException {
+        Map<String, String> types = ProcessorOutputs.inputAttributes(this, getInput().getName());
+        for (Derived d : derived) {
+            types.put(d.name, d.compiled.isPredicate() ? Boolean.class.getName() : Double.class.getName());
+        }
+        ProcessorOutputs.declare(this, OUTPUT_ID, DEFAULT_OUTPUT_DESCRIPTION, types);
+    }
+
+    /**
+     * Validates and compiles this processor. Expressions are parsed here, so
+     * syntax errors are reported as {@link ValidationException}s before the
+     * model starts.
+     *
+     * @return CompiledProcessor
+     * @throws org.lisapark.koctopus.core.ValidationException
+     */
+    @Override
+    public CompiledProcessor<Void> compile() throws ValidationException {
+        validate();
+        // we copy all the inputs and output taking a "snapshot" of this processor so we are isolated of changes
+        return compile(copyOf());
+    }
+
+    @Override
+    public <T extends AbstractProcessor> CompiledProcessor<Void> compile(T processor) throws ValidationException {
+        ExpressionProcessor copy = (ExpressionProcessor) processor;
+        try {
+            String filterText = copy.getFilter();
+            Compiled filter = filterText == null || filterText.trim().isEmpty()
+                    ? null
+                    : ExpressionCompiler.parsePredicate(filterText);
+            List<Derived> derived = derived(copy.getDerivedAttributes());
+            copy.declareOutput(derived);
+            return new CompiledExpressionProcessor(copy, filter, derived);
+        } catch (IllegalArgumentException ex) {
+            throw new ValidationException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public Map<String, TransportReference> getReferences() {
+        return procrefs;
+    }
+
+    @Override
+    public void setReferences(Map<String, TransportReference> procrefs) {
+        this.procrefs = procrefs;
+    }
+
+    /**
+     * Single "name = expression" entry from the derived attributes parameter.
+     */
+    static class Derived {
+
+        final String name;
+        final Compiled compiled;
+
+        Derived(String definition) {
+            int eq = definition.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Derived attribute should look like name = expression: " + definition);
+            }
+            this.name = definition.substring(0, eq).trim();
+            this.compiled = ExpressionCompiler.parse(definition.substring(eq + 1).trim());
+        }
+
+        String evaluate(Map<String, ?> fields) {
+            return compiled.isPredicate()
+                    ? String.valueOf(compiled.getPredicate().evaluate(fields))
+                    : String.valueOf(compiled.getNumeric().evaluate(fields));
+        }
+    }
+
+    static List<Derived> derived(String derivedText) {
+        List<Derived> derived = new ArrayList<>();
+        if (derivedText != null) {
+            for (String definition : derivedText.split(";")) {
+                if (!definition.trim().isEmpty()) {
+                    derived.add(new Derived(definition));
+                }
+            }
+        }
+        return derived;
+    }
+
+    static class CompiledExpressionProcessor extends CompiledProcessor<Void> {
+
+        private final ExpressionProcessor processor;
+        private final Compiled filterExpression;
+        private final BooleanExpression filter;
+        private final List<Derived> derived;
+
+        protected CompiledExpressionProcessor(ExpressionProcessor processor, Compiled filter, List<Derived> derived) {
+            super(processor);
+            this.processor = processor;
+            this.filterExpression = filter;
+            this.filter = filter == null ? null : filter.getPredicate();
+            this.derived = derived;
+        }
+
+        @Override
+        public Integer processEvent(Transport runtime) {
+            String inputName = processor.getInput().getName();
+            TransportReference reference = processor.getReferences().get(inputName);
+            if (reference == null) {
+                LOG.log(Level.SEVERE, "Input {0} is not connected.", inputName);
+                return GraphVocabulary.CANCEL;
+            }
+            String sourceClassName = reference.getReferenceClass();
+            String sourceId = reference.getReferenceId();
+            String outClassName = processor.getClass().getCanonicalName();
+            int pageSize = processor.getPageSize();
+
+            Map<String, NodeAttribute> attributes = reference.getAttributes();
+            if (attributes != null && !checkAttributes(attributes)) {
+                return GraphVocabulary.CANCEL;
+            }
+
+            runtime.start();
+            String offset = "0";
+            Integer status = GraphVocabulary.BACK_LOG;
+            while (true) {
+                List<StreamMessage<String, String>> list;
+                list = runtime.readEvents(sourceClassName, UUID.fromString(sourceId), offset, pageSize);
+                if (list.size() > 0) {
+                    for (StreamMessage<String, String> msg : list) {
+                        if (msg == null) {
+                            continue;
+                        }
+                        Map<String, String> body = msg.getBody();
+                        // filter runs on the raw fields, only accepted events are copied
+                        if (filter != null && !filter.evaluate(body)) {
+                            continue;
+                        }
+                        Map<String, String> e = new HashMap<>(body);
+                        for (Derived d : derived) {
+                            e.put(d.name, d.evaluate(e));
+                        }
+                        runtime.writeEvents(e, outClassName, processor.getId());
+                    }
+                    offset = list.get(list.size() - 1).getId();
+                } else {
+                    status = GraphVocabulary.COMPLETE;
+                    runtime.shutdown();
+                    break;
+                }
+            }
+            return status;
+        }
+
+        /**
+         * Every name used in the expressions has to be either an input
+         * attribute or a derived attribute defined earlier in the list.
+         */
+        private boolean checkAttributes(Map<String, NodeAttribute> attributes) {
+            Set<String> known = new HashSet<>(attributes.keySet());
+            if (filterExpression != null) {
+                for (String name : filterExpression.getAttributeNames()) {
+                    if (!known.contains(name)) {
+                        LOG.log(Level.SEVERE, "Filter references unknown attribute {0}", name);
+                        return false;
+                    }
+                }
+            }
+            for (Derived d : derived) {
+                for (String name : d.compiled.getAttributeNames()) {
+                    if (!known.contains(name)) {
+                        LOG.log(Level.SEVERE, "Derived attribute references unknown attribute {0}", name);
+                        return false;
+                    }
+                }
+                known.add(d.name);
+            }
+            return true;
+        }
+
+        @Override
+        public Object processEvent(ProcessorContext<Void> ctx, Map<Integer, Event> eventsByInputId) {
+            throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        }
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.processor.forecast;
+
+import com.fasterxml.uuid.Generators;
+import io.lettuce.core.StreamMessage;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.math3.stat.regression.SimpleRegression;
+import org.lisapark.koctopus.ProgrammerException;
+import org.lisapark.koctopus.core.Persistable;
+import org.lisapark.koctopus.core.ValidationException;
+import org.lisapark.koctopus.core.event.Event;
+import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.parameter.Constraints;
+import org.lisapark.koctopus.core.parameter.Parameter;
+import org.lisapark.koctopus.core.processor.AbstractProcessor;
+import org.lisapark.koctopus.core.processor.CompiledProcessor;
+import org.lisapark.koctopus.core.processor.ProcessorInput;
+import org.lisapark.koctopus.core.processor.ProcessorOutput;
+import org.lisapark.koctopus.core.runtime.ProcessorContext;
+import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.core.transport.TransportReference;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
+import org.lisapark.koctopus.repo.util.ProcessorOutputs;
+
+/**
+ * Batch version of {@link ForecastSRM} for many series at once. Input events
+ * are grouped by the key attribute into per-key primitive column buffers. At
+ * the end of the interval (the end of the input stream) a simple regression
+ * y = a + b*x is fitted for every key in parallel on a fork-join pool, and
+ * one forecast event per key is emitted.
+ *
+ * @author alexmy
+ */
+@Persistable
+public class BulkForecastSRM extends AbstractProcessor<Void> {
+
+    static final Logger LOG = Logger.getLogger(BulkForecastSRM.class.getName());
+
+    public static final String FORMULA = "formula";
+    public static final String INTERCEPT = "intercept";
+    public static final String SLOPE = "slope";
+    public static final String PPM = "PPM";
+    public static final String MSE = "MSE";
+    public static final String SIZE = "size";
+
+    private static final String DEFAULT_NAME = "Bulk Forecast SRM";
+    private static final String DEFAULT_DESCRIPTION = "Fits Simple linear Regression Forecast Models (SRM) for every key"
+            + " of the input and emits one forecast per key.";
+    private static final String DEFAULT_INPUT_DESCRIPTION = "Events with the key, value and optional index attributes.";
+    private static final String DEFAULT_OUTPUT_DESCRIPTION = "Forecast per key with the regression parameters.";
+
+    private static final int KEY_ATTRIBUTE_PARAMETER_ID = 2;
+    private static final int VALUE_ATTRIBUTE_PARAMETER_ID = 3;
+    private static final int INDEX_ATTRIBUTE_PARAMETER_ID = 4;
+    private static final int WINDOW_LENGTH_PARAMETER_ID = 5;
+    private static final int HORIZON_PARAMETER_ID = 6;
+    private static final int PARALLELISM_PARAMETER_ID = 7;
+    private static final int PAGE_SIZE_PARAMETER_ID = 8;
+
+    private static final int INPUT_ID = 1;
+    private static final int OUTPUT_ID = 1;
+
+    /**
+     * Number of series fitted by one fork-join task before it stops splitting.
+     */
+    private static final int FIT_THRESHOLD = 256;
+
+    protected Map<String, TransportReference> procrefs = new HashMap<>();
+
+    public BulkForecastSRM() {
+        super(Generators.timeBasedGenerator().generate(), DEFAULT_NAME, DEFAULT_DESCRIPTION);
+    }
+
+    protected BulkForecastSRM(UUID id, String name, String description) {
+        super(id, name, description);
+    }
+
+    protected BulkForecastSRM(UUID id, BulkForecastSRM copyFrom) {
+        super(id, copyFrom);
+    }
+
+    protected BulkForecastSRM(BulkForecastSRM copyFrom) {
+        super(copyFrom);
+    }
+
+    public String getKeyAttribute() {
+        return getParameter(KEY_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getValueAttribute() {
+        return getParameter(VALUE_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getIndexAttribute() {
+        return getParameter(INDEX_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public int getWindowLength() {
+        return getParameter(WINDOW_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getHorizon() {
+        return getParameter(HORIZON_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getParallelism() {
+        return getParameter(PARALLELISM_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getPageSize() {
+        return getParameter(PAGE_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public ProcessorInput getInput() {
+        return getInputs().get(0);
+    }
+
+    @Override
+    public BulkForecastSRM copyOf() {
+        return new BulkForecastSRM(this);
+    }
+
+    @Override
+    public BulkForecastSRM newInstance() {
+        return new BulkForecastSRM(Generators.timeBasedGenerator().generate(), this);
+    }
+
+    @Override
+    public BulkForecastSRM newInstance(Gnode gnode) {
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        BulkForecastSRM forecast = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildProcessor(forecast, gnode);
+        try {
+            forecast.declareOutput();
+        } catch (ValidationException ex) {
+            LOG.log(Level.SEVERE, ex.getMessage());
+        }
+
+        return forecast;
+    }
+
+    public static BulkForecastSRM newTemplate() {
+        UUID uuid = Generators.timeBasedGenerator().generate();
+        return newTemplate(uuid);
+    }
+
+    public static BulkForecastSRM newTemplate(UUID uuid) {
+        BulkForecastSRM forecast = new BulkForecastSRM(uuid, DEFAULT_NAME, DEFAULT_DESCRIPTION);
+
+        forecast.addParameter(
+                Parameter.stringParameterWithIdAndName(KEY_ATTRIBUTE_PARAMETER_ID, "Key attribute").
+                        description("Attribute that identifies the series.").
+                        defaultValue("key").required(true)
+        );
+        forecast.addParameter(
+                Parameter.stringParameterWithIdAndName(VALUE_ATTRIBUTE_PARAMETER_ID, "Value attribute").
+                        description("Attribute with the series value (y in the model: y = a + b*x).").
+                        defaultValue("value").required(true)
+        );
+        forecast.addParameter(
+                Parameter.stringParameterWithIdAndName(INDEX_ATTRIBUTE_PARAMETER_ID, "Index attribute").
+                        description("Attribute with the time or index (x in the model)."
+                                + " Empty - the index is the position of the event in its series {0, 1, 2, ..., N}.").
+                        defaultValue("")
+        );
+        forecast.addParameter(
+                Parameter.integerParameterWithIdAndName(WINDOW_LENGTH_PARAMETER_ID, "Window length").
+                        description("Number of the latest data points per key used for the fit. 0 - all points.").
+                        defaultValue(0)
+        );
+        forecast.addParameter(
+                Parameter.integerParameterWithIdAndName(HORIZON_PARAMETER_ID, "Horizon").
+                        description("Forecast is evaluated at the last index plus horizon.").
+                        defaultValue(1).required(true)
+        );
+        forecast.addParameter(
+                Parameter.integerParameterWithIdAndName(PARALLELISM_PARAMETER_ID, "Parallelism").
+                        description("Number of threads fitting the models. 0 - all cores.").
+                        defaultValue(0)
+        );
+        forecast.addParameter(
+                Parameter.integerParameterWithIdAndName(PAGE_SIZE_PARAMETER_ID, "Page size").
+                        description("Number of events read from the input stream at once.").
+                        defaultValue(1000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Page size should be greater than 0."))
+        );
+
+        forecast.addInput(
+                ProcessorInput.objectInputWithId(INPUT_ID).name("Input").description(DEFAULT_INPUT_DESCRIPTION)
+        );
+        try {
+            forecast.setOutput(
+                    ProcessorOutput.doubleOutputWithId(OUTPUT_ID).name("Forecast").description(DEFAULT_OUTPUT_DESCRIPTION).attributeName("forecast")
+            );
+            forecast.declareOutput();
+        } catch (ValidationException ex) {
+            // this should NOT happen. It means we created the processor with an invalid attriubte name
+            throw new ProgrammerException(ex);
+        }
+        return forecast;
+    }
+
+    /**
+     * Declares the key and the model attributes next to the forecast.
+     *
+     * @throws ValidationException
+     */
+    void declareOutput() throws ValidationException {
+        Map<String, String> types = new LinkedHashMap<>();
+        types.put(getKeyAttribute(), String.class.getName());
+        types.put(FORMULA, String.class.getName());
+        types.put(INTERCEPT, Double.class.getName());
+        types.put(SLOPE, Double.class.getName());
+        types.put(PPM, Double.class.getName());
+        types.put(MSE, Double.class.getName());
+        types.put(SIZE, Integer.class.getName());
+        ProcessorOutputs.addMissing(this, types);
+    }
+
+    @Override
+    public CompiledProcessor<Void> compile() throws ValidationException {
+        validate();
+        // we copy all the inputs and output taking a "snapshot" of this processor so we are isolated of changes
+        return compile(copyOf());
+    }
+
+    @Override
+    public <T extends AbstractProcessor> CompiledProcessor<Void> compile(T processor) throws ValidationException {
+        BulkForecastSRM copy = (BulkForecastSRM) processor;
+        copy.declareOutput();
+        return new CompiledBulkForecast(copy);
+    }
+
+    @Override
+    public Map<String, TransportReference> getReferences() {
+        return procrefs;
+    }
+
+    @Override
+    public void setReferences(Map<String, TransportReference> procrefs) {
+        this.procrefs = procrefs;
+    }
+
+    /**
+     * Column buffers of one series and the fitted model. With a window the
+     * buffers are rings of the window length, otherwise they grow. The
+     * regression does not depend on the order of points, so rings are never
+     * unrolled.
+     */
+    static class Series {
+
+        final String key;
+        private final int window;
+        private double[] x;
+        private double[] y;
+        private int size;
+        private int next;
+        private double lastX = Double.NEGATIVE_INFINITY;
+        private long count;
+
+        double intercept = Double.NaN;
+        double slope = Double.NaN;
+        double r = Double.NaN;
+        double mse = Double.NaN;
+        double forecast = Double.NaN;
+
+        Series(String key, int window) {
+            this.key = key;
+            this.window = window;
+            int capacity = window > 0 ? Math.min(window, 16) : 16;
+            this.x = new double[capacity];
+            this.y = new double[capacity];
+        }
+
+        void add(double xValue, double yValue) {
+            if (window > 0 && size == window) {
+                // ring is full, overwrite the oldest point
+                x[next] = xValue;
+                y[next] = yValue;
+                next = (next + 1) % window;
+            } else {
+                if (size == x.length) {
+                    int capacity = window > 0 ? Math.min(window, x.length * 2) : x.length * 2;
+                    double[] newX = new double[capacity];
+                    double[] newY = new double[capacity];
+                    System.arraycopy(x, 0, newX, 0, size);
+                    System.arraycopy(y, 0, newY, 0, size);
+                    x = newX;
+                    y = newY;
+                }
+                x[size] = xValue;
+                y[size] = yValue;
+                size++;
+                if (window > 0) {
+                    next = size % window;
+                }
+            }
+            lastX = Math.max(lastX, xValue);
+            count++;
+        }
+
+        long nextIndex() {
+            return count;
+        }
+
+        void fit(int horizon) {
+            if (size < 2) {
+                return;
+            }
+            SimpleRegression regression = new SimpleRegression();
+            for (int i = 0; i < size; i++) {
+                regression.addData(x[i], y[i]);
+            }
+            intercept = regression.getIntercept();
+            slope = regression.getSlope();
+            r = regression.getR();
+            mse = regression.getMeanSquareError();
+            forecast = intercept + slope * (lastX + horizon);
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Fits the series [from, to), splitting the range until it is small
+     * enough.
+     */
+    static class FitTask extends RecursiveAction {
+
+        private final Series[] series;
+        private final int from;
+        private final int to;
+        private final int horizon;
+
+        FitTask(Series[] series, int from, int to, int horizon) {
+            this.series = series;
+            this.from = from;
+            this.to = to;
+            this.horizon = horizon;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= FIT_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    series[i].fit(horizon);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new FitTask(series, from, mid, horizon), new FitTask(series, mid, to, horizon));
+            }
+        }
+    }
+
+    static class CompiledBulkForecast extends CompiledProcessor<Void> {
+
+        private final BulkForecastSRM forecast;
+        private final String keyAttribute;
+        private final String valueAttribute;
+        private final String indexAttribute;
+        private final int window;
+        private final Map<String, Series> series = new HashMap<>();
+
+        protected CompiledBulkForecast(BulkForecastSRM forecast) {
+            super(forecast);
+            this.forecast = forecast;
+            this.keyAttribute = forecast.getKeyAttribute();
+            this.valueAttribute = forecast.getValueAttribute();
+            String index = forecast.getIndexAttribute();
+            this.indexAttribute = index == null || index.trim().isEmpty() ? null : index.trim();
+            this.window = Math.max(0, forecast.getWindowLength());
+        }
+
+        @Override
+        public Integer processEvent(Transport runtime) {
+            String inputName = forecast.getInput().getName();
+            TransportReference reference = forecast.getReferences().get(inputName);
+            if (reference == null) {
+                LOG.log(Level.SEVERE, "Input {0} is not connected.", inputName);
+                return GraphVocabulary.CANCEL;
+            }
+            String sourceClassName = reference.getReferenceClass();
+            String sourceId = reference.getReferenceId();
+            int pageSize = forecast.getPageSize();
+
+            runtime.start();
+            String offset = "0";
+            while (true) {
+                List<StreamMessage<String, String>> list;
+                list = runtime.readEvents(sourceClassName, UUID.fromString(sourceId), offset, pageSize);
+                if (list.size() > 0) {
+                    for (StreamMessage<String, String> msg : list) {
+                        if (msg != null) {
+                            collect(msg.getBody());
+                        }
+                    }
+                    offset = list.get(list.size() - 1).getId();
+                } else {
+                    break;
+                }
+            }
+
+            fitAll();
+            emitAll(runtime);
+
+            runtime.shutdown();
+            return GraphVocabulary.COMPLETE;
+        }
+
+        private void collect(Map<String, String> body) {
+            String key = body.get(keyAttribute);
+            String value = body.get(valueAttribute);
+            if (key == null || value == null) {
+                return;
+            }
+            String index = indexAttribute == null ? null : body.get(indexAttribute);
+            if (indexAttribute != null && index == null) {
+                return;
+            }
+            Series s = series.get(key);
+            if (s == null) {
+                s = new Series(key, window);
+                series.put(key, s);
+            }
+            try {
+                double y = Double.parseDouble(value);
+                double x = index == null ? s.nextIndex() : Double.parseDouble(index);
+                s.add(x, y);
+            } catch (NumberFormatException ex) {
+                LOG.log(Level.FINE, "Skipped event of {0}: {1}", new Object[]{key, ex.getMessage()});
+            }
+        }
+
+        private void fitAll() {
+            Series[] all = series.values().toArray(new Series[series.size()]);
+            int parallelism = forecast.getParallelism();
+            ForkJoinPool pool = parallelism > 0 ? new ForkJoinPool(parallelism) : ForkJoinPool.commonPool();
+            try {
+                pool.invoke(new FitTask(all, 0, all.length, forecast.getHorizon()));
+            } finally {
+                if (pool != ForkJoinPool.commonPool()) {
+                    pool.shutdown();
+                }
+            }
+            LOG.log(Level.INFO, "Fitted {0} series.", all.length);
+        }
+
+        /**
+         * Writes run on the calling thread, the transport is not shared with
+         * the fork-join workers.
+         */
+        private void emitAll(Transport runtime) {
+            String outClassName = forecast.getClass().getCanonicalName();
+            String outAttName = forecast.getOutputAttributeName();
+            String indexName = indexAttribute == null ? "index" : indexAttribute;
+            series.values().forEach(s -> {
+                if (s.size() < 2) {
+                    return;
+                }
+                Map<String, String> e = new HashMap<>();
+                e.put(keyAttribute, s.key);
+                e.put(outAttName, String.valueOf(s.forecast));
+                e.put(FORMULA, s.intercept + "+(" + s.slope + "*" + indexName + ")");
+                e.put(INTERCEPT, String.valueOf(s.intercept));
+                e.put(SLOPE, String.valueOf(s.slope));
+                e.put(PPM, String.valueOf(s.r));
+                e.put(MSE, String.valueOf(s.mse));
+                e.put(SIZE, String.valueOf(s.size()));
+                runtime.writeEvents(e, outClassName, forecast.getId());
+            });
+        }
+
+        @Override
+        public Object processEvent(ProcessorContext<Void> ctx, Map<Integer, Event> eventsByInputId) {
+            throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        }
+    }
+}
@@ -0,0 +1,533 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.processor.sampling;
+
+import com.fasterxml.uuid.Generators;
+import io.lettuce.core.StreamMessage;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.ProgrammerException;
+import org.lisapark.koctopus.core.Persistable;
+import org.lisapark.koctopus.core.ValidationException;
+import org.lisapark.koctopus.core.event.Event;
+import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.parameter.Constraints;
+import org.lisapark.koctopus.core.parameter.Parameter;
+import org.lisapark.koctopus.core.processor.AbstractProcessor;
+import org.lisapark.koctopus.core.processor.CompiledProcessor;
+import org.lisapark.koctopus.core.processor.ProcessorInput;
+import org.lisapark.koctopus.core.processor.ProcessorOutput;
+import org.lisapark.koctopus.core.runtime.ProcessorContext;
+import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.core.transport.TransportReference;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
+import org.lisapark.koctopus.repo.util.ProcessorOutputs;
+
+/**
+ * Load shedding {@link AbstractProcessor}. Passes through a sample of the
+ * input events using one of the modes:
+ * <ul>
+ * <li>reservoir - uniform sample of "Sample size" events from every window
+ * of "Window size" events;</li>
+ * <li>rate - every event is kept with probability "Rate";</li>
+ * <li>stratified - a reservoir per value of the "Stratum attribute" in
+ * every window, holding the quota of the stratum from "Stratum quotas" or
+ * "Sample size" events.</li>
+ * </ul>
+ * Every emitted event carries the sampling rate it was selected with, so
+ * downstream aggregates can be re-weighted by 1 / rate.
+ *
+ * @author alexmy
+ */
+@Persistable
+public class SamplingProcessor extends AbstractProcessor<Void> {
+
+    static final Logger LOG = Logger.getLogger(SamplingProcessor.class.getName());
+
+    public static final String MODE_RESERVOIR = "reservoir";
+    public static final String MODE_RATE = "rate";
+    public static final String MODE_STRATIFIED = "stratified";
+
+    private static final String DEFAULT_NAME = "Sampling";
+    private static final String DEFAULT_DESCRIPTION = "Reservoir, fixed-rate or stratified sampling of input events.";
+    private static final String DEFAULT_INPUT_DESCRIPTION = "Events to sample.";
+    private static final String DEFAULT_OUTPUT_DESCRIPTION = "Sampled events with the sampling rate attribute.";
+
+    private static final int MODE_PARAMETER_ID = 2;
+    private static final int RATE_PARAMETER_ID = 3;
+    private static final int WINDOW_SIZE_PARAMETER_ID = 4;
+    private static final int SAMPLE_SIZE_PARAMETER_ID = 5;
+    private static final int STRATUM_PARAMETER_ID = 6;
+    private static final int RATE_ATTRIBUTE_PARAMETER_ID = 7;
+    private static final int SEED_PARAMETER_ID = 8;
+    private static final int PAGE_SIZE_PARAMETER_ID = 9;
+    private static final int STRATUM_QUOTAS_PARAMETER_ID = 10;
+
+    private static final int INPUT_ID = 1;
+    private static final int OUTPUT_ID = 1;
+
+    protected Map<String, TransportReference> procrefs = new HashMap<>();
+
+    public SamplingProcessor() {
+        super(Generators.timeBasedGenerator().generate(), DEFAULT_NAME, DEFAULT_DESCRIPTION);
+    }
+
+    protected SamplingProcessor(UUID id, String name, String description) {
+        super(id, name, description);
+    }
+
+    protected SamplingProcessor(UUID id, SamplingProcessor copyFrom) {
+        super(id, copyFrom);
+    }
+
+    protected SamplingProcessor(SamplingProcessor copyFrom) {
+        super(copyFrom);
+    }
+
+    public String getMode() {
+        return getParameter(MODE_PARAMETER_ID).getValueAsString();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void setMode(String mode) throws ValidationException {
+        getParameter(MODE_PARAMETER_ID).setValue(mode);
+    }
+
+    public Double getRate() {
+        return (Double) getParameter(RATE_PARAMETER_ID).getValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void setRate(Double rate) throws ValidationException {
+        getParameter(RATE_PARAMETER_ID).setValue(rate);
+    }
+
+    public Integer getWindowSize() {
+        return getParameter(WINDOW_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getSampleSize() {
+        return getParameter(SAMPLE_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getStratumAttribute() {
+        return getParameter(STRATUM_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getRateAttribute() {
+        return getParameter(RATE_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getSeed() {
+        return getParameter(SEED_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getPageSize() {
+        return getParameter(PAGE_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getStratumQuotas() {
+        return getParameter(STRATUM_QUOTAS_PARAMETER_ID).getValueAsString();
+    }
+
+    public ProcessorInput getInput() {
+        return getInputs().get(0);
+    }
+
+    @Override
+    public SamplingProcessor copyOf() {
+        return new SamplingProcessor(this);
+    }
+
+    @Override
+    public SamplingProcessor newInstance() {
+        return new SamplingProcessor(Generators.timeBasedGenerator().generate(), this);
+    }
+
+    @Override
+    public SamplingProcessor newInstance(Gnode gnode) {
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        SamplingProcessor processor = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildProcessor(processor, gnode);
+        try {
+            processor.declareOutput();
+        } catch (ValidationException ex) {
+            LOG.log(Level.SEVERE, ex.getMessage());
+        }
+
+        return processor;
+    }
+
+    public static SamplingProcessor newTemplate() {
+        UUID uuid = Generators.timeBasedGenerator().generate();
+        return newTemplate(uuid);
+    }
+
+    public static SamplingProcessor newTemplate(UUID uuid) {
+        SamplingProcessor processor = new SamplingProcessor(uuid, DEFAULT_NAME, DEFAULT_DESCRIPTION);
+
+        processor.addParameter(
+                Parameter.stringParameterWithIdAndName(MODE_PARAMETER_ID, "Mode").
+                        description("Sampling mode: reservoir, rate or stratified.").
+                        defaultValue(MODE_RESERVOIR).
+                        required(true)
+        );
+        processor.addParameter(
+                Parameter.doubleParameterWithIdAndName(RATE_PARAMETER_ID, "Rate").
+                        description("Probability in the interval (0, 1] to keep an event. Used by the rate mode.").
+                        defaultValue(.1).
+                        required(true)
+        );
+        processor.addParameter(
+                Parameter.integerParameterWithIdAndName(WINDOW_SIZE_PARAMETER_ID, "Window size").
+                        description("Number of input events per sampling window. Used by the reservoir and stratified modes.").
+                        defaultValue(1000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Window size should be greater than 0."))
+        );
+        processor.addParameter(
+                Parameter.integerParameterWithIdAndName(SAMPLE_SIZE_PARAMETER_ID, "Sample size").
+                        description("Events kept per window, or per stratum per window in the stratified mode.").
+                        defaultValue(100).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Sample size should be greater than 0."))
+        );
+        processor.addParameter(
+                Parameter.stringParameterWithIdAndName(STRATUM_PARAMETER_ID, "Stratum attribute").
+                        description("Attribute that defines strata. Used by the stratified mode.").
+                        defaultValue("")
+        );
+        processor.addParameter(
+                Parameter.stringParameterWithIdAndName(RATE_ATTRIBUTE_PARAMETER_ID, "Rate attribute").
+                        description("Name of the output attribute holding the sampling rate.").
+                        defaultValue("sampling_rate").
+                        required(true)
+        );
+        processor.addParameter(
+                Parameter.integerParameterWithIdAndName(SEED_PARAMETER_ID, "Seed").
+                        description("Random seed. 0 - seed from the clock.").
+                        defaultValue(0)
+        );
+        processor.addParameter(
+                Parameter.integerParameterWithIdAndName(PAGE_SIZE_PARAMETER_ID, "Page size").
+                        description("Number of events read from the input stream at once.").
+                        defaultValue(100).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Page size should be greater than 0."))
+        );
+        processor.addParameter(
+                Parameter.stringParameterWithIdAndName(STRATUM_QUOTAS_PARAMETER_ID, "Stratum quotas").
+                        description("Semicolon separated list of stratum = sample size, e.g. US = 50; EU = 20. "
+                                + "Strata not listed keep Sample size events. Used by the stratified mode.").
+                        defaultValue("")
+        );
+
+        processor.addInput(
+                ProcessorInput.objectInputWithId(INPUT_ID).name("Input").description(DEFAULT_INPUT_DESCRIPTION)
+        );
+        try {
+            // placeholder until the input attributes are known, see declareOutput
+            processor.setOutput(
+                    ProcessorOutput.doubleOutputWithId(OUTPUT_ID).name("Output").description(DEFAULT_OUTPUT_DESCRIPTION).attributeName("sampling_rate")
+            );
+        } catch (ValidationException ex) {
+            // this should NOT happen. It means we created the processor with an invalid attriubte name
+            throw new ProgrammerException(ex);
+        }
+        return processor;
+    }
+
+    /**
+     * Declares the attributes this processor writes: the input attributes,
+     * passed through unchanged, and the rate attribute.
+     *
+     * @throws ValidationException
+     */
+    void declareOutput() throws ValidationException {
+        Map<String, String> types = ProcessorOutputs.inputAttributes(this, getInput().getName());
+        types.put(getRateAttribute(), Double.class.getName());
+        ProcessorOutputs.declare(this, OUTPUT_ID, DEFAULT_OUTPUT_DESCRIPTION, types);
+    }
+
+    /**
+     * Parses the stratum quotas, "stratum = size; ...".
+     *
+     * @param quotas
+     * @return sample size by stratum
+     * @throws ValidationException
+     */
+    static Map<String, Integer> quotas(String quotas) throws ValidationException {
+        Map<String, Integer> sizes = new HashMap<>();
+        if (quotas == null) {
+            return sizes;
+        }
+        for (String quota : quotas.split(";")) {
+            if (quota.trim().isEmpty()) {
+                continue;
+            }
+            int eq = quota.lastIndexOf('=');
+            if (eq <= 0) {
+                throw new ValidationException("Stratum quota should be stratum = size: " + quota.trim());
+            }
+            try {
+                int size = Integer.parseInt(quota.substring(eq + 1).trim());
+                if (size < 1) {
+                    throw new ValidationException("Stratum quota should be greater than 0: " + quota.trim());
+                }
+                sizes.put(quota.substring(0, eq).trim(), size);
+            } catch (NumberFormatException ex) {
+                throw new ValidationException("Stratum quota should be stratum = size: " + quota.trim());
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Validates and compiles this processor.
+     *
+     * @return CompiledProcessor
+     * @throws org.lisapark.koctopus.core.ValidationException
+     */
+    @Override
+    public CompiledProcessor<Void> compile() throws ValidationException {
+        validate();
+        // we copy all the inputs and output taking a "snapshot" of this processor so we are isolated of changes
+        return compile(copyOf());
+    }
+
+    @Override
+    public <T extends AbstractProcessor> CompiledProcessor<Void> compile(T processor) throws ValidationException {
+        SamplingProcessor copy = (SamplingProcessor) processor;
+        String mode = copy.getMode();
+        if (!MODE_RESERVOIR.equals(mode) && !MODE_RATE.equals(mode) && !MODE_STRATIFIED.equals(mode)) {
+            throw new ValidationException("Unknown sampling mode: " + mode);
+        }
+        Double rate = copy.getRate();
+        if (MODE_RATE.equals(mode) && (rate == null || rate <= 0 || rate > 1)) {
+            throw new ValidationException("Rate should be in the interval (0, 1].");
+        }
+        String stratum = copy.getStratumAttribute();
+        if (MODE_STRATIFIED.equals(mode) && (stratum == null || stratum.trim().isEmpty())) {
+            throw new ValidationException("Stratified sampling needs the stratum attribute.");
+        }
+        copy.declareOutput();
+        return new CompiledSamplingProcessor(copy, quotas(copy.getStratumQuotas()));
+    }
+
+    @Override
+    public Map<String, TransportReference> getReferences() {
+        return procrefs;
+    }
+
+    @Override
+    public void setReferences(Map<String, TransportReference> procrefs) {
+        this.procrefs = procrefs;
+    }
+
+    /**
+     * Fixed capacity uniform reservoir (algorithm R). Holds references to
+     * the raw stream bodies, nothing is copied until the window is emitted.
+     * The slot array is allocated once and reused for every window.
+     */
+    static class Reservoir {
+
+        private final Object[] slots;
+        private long seen;
+
+        Reservoir(int capacity) {
+            this.slots = new Object[capacity];
+        }
+
+        void offer(Map<String, String> body, SplittableRandom random) {
+            if (seen < slots.length) {
+                slots[(int) seen] = body;
+            } else {
+                long j = random.nextLong(seen + 1);
+                if (j < slots.length) {
+                    slots[(int) j] = body;
+                }
+            }
+            seen++;
+        }
+
+        int size() {
+            return (int) Math.min(seen, slots.length);
+        }
+
+        double rate() {
+            return seen == 0 ? 0 : (double) size() / seen;
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String, String> get(int i) {
+            return (Map<String, String>) slots[i];
+        }
+
+        void reset() {
+            for (int i = 0; i < size(); i++) {
+                slots[i] = null;
+            }
+            seen = 0;
+        }
+    }
+
+    static class CompiledSamplingProcessor extends CompiledProcessor<Void> {
+
+        private final SamplingProcessor processor;
+        private final String mode;
+        private final double rate;
+        private final int windowSize;
+        private final int sampleSize;
+        private final String stratum;
+        private final String rateAttribute;
+        private final SplittableRandom random;
+
+        private final Reservoir reservoir;
+        private final Map<String, Integer> quotas;
+        private final Map<String, Reservoir> strata = new HashMap<>();
+        private long windowCount;
+        // events left to skip before the next kept one, rate mode
+        private long skip;
+
+        protected CompiledSamplingProcessor(SamplingProcessor processor, Map<String, Integer> quotas) {
+            super(processor);
+            this.processor = processor;
+            this.quotas = quotas;
+            this.mode = processor.getMode();
+            this.rate = processor.getRate() == null ? 1 : processor.getRate();
+            this.windowSize = processor.getWindowSize();
+            this.sampleSize = processor.getSampleSize();
+            this.stratum = processor.getStratumAttribute();
+            this.rateAttribute = processor.getRateAttribute();
+            int seed = processor.getSeed() == null ? 0 : processor.getSeed();
+            this.random = seed == 0 ? new SplittableRandom() : new SplittableRandom(seed);
+            this.reservoir = MODE_RESERVOIR.equals(mode) ? new Reservoir(sampleSize) : null;
+            this.skip = MODE_RATE.equals(mode) ? nextSkip() : 0;
+        }
+
+        @Override
+        public Integer processEvent(Transport runtime) {
+            String inputName = processor.getInput().getName();
+            TransportReference reference = processor.getReferences().get(inputName);
+            if (reference == null) {
+                LOG.log(Level.SEVERE, "Input {0} is not connected.", inputName);
+                return GraphVocabulary.CANCEL;
+            }
+            String sourceClassName = reference.getReferenceClass();
+            String sourceId = reference.getReferenceId();
+            String outClassName = processor.getClass().getCanonicalName();
+            int pageSize = processor.getPageSize();
+
+            runtime.start();
+            String offset = "0";
+            Integer status = GraphVocabulary.BACK_LOG;
+            while (true) {
+                List<StreamMessage<String, String>> list;
+                list = runtime.readEvents(sourceClassName, UUID.fromString(sourceId), offset, pageSize);
+                if (list.size() > 0) {
+                    for (StreamMessage<String, String> msg : list) {
+                        if (msg != null) {
+                            offer(msg.getBody(), runtime, outClassName);
+                        }
+                    }
+                    offset = list.get(list.size() - 1).getId();
+                } else {
+                    // the last, partial window
+                    flush(runtime, outClassName);
+                    status = GraphVocabulary.COMPLETE;
+                    runtime.shutdown();
+                    break;
+                }
+            }
+            return status;
+        }
+
+        private void offer(Map<String, String> body, Transport runtime, String outClassName) {
+            switch (mode) {
+                case MODE_RATE:
+                    if (skip == 0) {
+                        emit(body, rate, runtime, outClassName);
+                        skip = nextSkip();
+                    } else {
+                        skip--;
+                    }
+                    return;
+                case MODE_STRATIFIED:
+                    String key = String.valueOf(body.get(stratum));
+                    Reservoir r = strata.get(key);
+                    if (r == null) {
+                        r = new Reservoir(quotas.getOrDefault(key, sampleSize));
+                        strata.put(key, r);
+                    }
+                    r.offer(body, random);
+                    break;
+                default:
+                    reservoir.offer(body, random);
+                    break;
+            }
+            if (++windowCount == windowSize) {
+                flush(runtime, outClassName);
+            }
+        }
+
+        private void flush(Transport runtime, String outClassName) {
+            if (MODE_RESERVOIR.equals(mode)) {
+                emit(reservoir, runtime, outClassName);
+            } else if (MODE_STRATIFIED.equals(mode)) {
+                // reservoirs are reused for the strata seen again in the next window
+                strata.values().removeIf(r -> r.size() == 0);
+                strata.values().forEach(r -> emit(r, runtime, outClassName));
+            }
+            windowCount = 0;
+        }
+
+        private void emit(Reservoir r, Transport runtime, String outClassName) {
+            double windowRate = r.rate();
+            for (int i = 0; i < r.size(); i++) {
+                emit(r.get(i), windowRate, runtime, outClassName);
+            }
+            r.reset();
+        }
+
+        private void emit(Map<String, String> body, double eventRate, Transport runtime, String outClassName) {
+            Map<String, String> e = new HashMap<>(body);
+            e.put(rateAttribute, String.valueOf(eventRate));
+            runtime.writeEvents(e, outClassName, processor.getId());
+        }
+
+        /**
+         * Number of events to drop before the next kept one. Geometric skips
+         * give the same distribution as a coin flip per event with one random
+         * draw per kept event.
+         */
+        private long nextSkip() {
+            if (rate >= 1) {
+                return 0;
+            }
+            double u = 1 - random.nextDouble();
+            return (long) Math.floor(Math.log(u) / Math.log(1 - rate));
+        }
+
+        @Override
+        public Object processEvent(ProcessorContext<Void> ctx, Map<Integer, Event> eventsByInputId) {
+            throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        }
+    }
+}
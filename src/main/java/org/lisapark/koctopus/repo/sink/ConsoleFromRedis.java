@@ -42,6 +42,7 @@ import org.lisapark.koctopus.core.sink.external.CompiledExternalSink;
 import org.lisapark.koctopus.core.sink.external.ExternalSink;
 import org.lisapark.koctopus.core.sink.external.AbstractExternalSink;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.repo.util.ControlStream;
 
 /**
  * @author alexmy
@@ -55,6 +56,7 @@ public class ConsoleFromRedis extends AbstractExternalSink {
 
     private static final int ATTRIBUTE_LIST_PARAMETER_ID = 1;
     private static final int PAGE_SIZE_PARAMETER_ID = 2;
+    private static final int CONTROL_PARAMETER_ID = 3;
     private static final String ATTRIBUTE_LIST = "Show Attributes";
     private static final String ATTRIBUTE_LIST_DESCRIPTION
             = "List comma separated attribute names that you would like to show on Console. Empty - will show all attributes.";
@@ -63,6 +65,10 @@ public class ConsoleFromRedis extends AbstractExternalSink {
     private static final String PAGE_SIZE_DESCRIPTION
             = "Page size description goes here.";
     
+    private static final String CONTROL = "Control";
+    private static final String CONTROL_DESCRIPTION
+            = "Control stream to watch for stop, drain and pause, empty - none. A controlled console resumes after the last event it showed.";
+    
     private static final int INPUT_ID = 0;
     
     private final Input<Event> input;
@@ -110,6 +116,10 @@ public class ConsoleFromRedis extends AbstractExternalSink {
     public Integer getPageSize() {
         return getParameter(PAGE_SIZE_PARAMETER_ID).getValueAsInteger();
     }
+
+    public String getControl() {
+        return getParameter(CONTROL_PARAMETER_ID).getValueAsString();
+    }
  
     @Override
     public List<? extends Input> getInputs() {
@@ -167,6 +177,10 @@ public class ConsoleFromRedis extends AbstractExternalSink {
                 Parameter.integerParameterWithIdAndName(PAGE_SIZE_PARAMETER_ID, PAGE_SIZE)
                         .description(PAGE_SIZE_DESCRIPTION).defaultValue(100)
         );
+        consoleSink.addParameter(
+                Parameter.stringParameterWithIdAndName(CONTROL_PARAMETER_ID, CONTROL)
+                        .description(CONTROL_DESCRIPTION).defaultValue("")
+        );
      
         return consoleSink;
     }
@@ -217,9 +231,20 @@ public class ConsoleFromRedis extends AbstractExternalSink {
             String sourceId = sink.getReferences().get(inputName).getReferenceId();
             int pageSize = sink.getPageSize();
             
-            String offset = "0";
+            ControlStream control = ControlStream.open(runtime, sink.getControl(), sink.getId());
+            String offset = control.committed(inputName);
             Integer status = GraphVocabulary.CANCEL;
             while (true) {
+                try {
+                    if (control.await() == ControlStream.State.STOPPING) {
+                        status = GraphVocabulary.CANCEL;
+                        break;
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    status = GraphVocabulary.CANCEL;
+                    break;
+                }
                 List<StreamMessage<String, String>> list;               
                 list = runtime.readEvents(sourceClassName, UUID.fromString(sourceId), offset, pageSize);
                 if (list.size() > 0) { // a message was read                    
@@ -237,6 +262,7 @@ public class ConsoleFromRedis extends AbstractExternalSink {
                     break;
                 }
             }  
+            control.commit(inputName, offset);
             runtime.shutdown();
             
             return status;          
@@ -19,35 +19,51 @@ package org.lisapark.koctopus.repo.sink;
 import com.fasterxml.uuid.Generators;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
+import io.lettuce.core.StreamMessage;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.lisapark.koctopus.core.AbstractNode;
 import org.lisapark.koctopus.core.Input;
+import org.lisapark.koctopus.core.Persistable;
 import org.lisapark.koctopus.core.ProcessingException;
 import org.lisapark.koctopus.core.ValidationException;
 import org.lisapark.koctopus.core.event.Event;
+import org.lisapark.koctopus.core.parameter.Constraints;
 import org.lisapark.koctopus.core.parameter.Parameter;
 import org.lisapark.koctopus.core.runtime.SinkContext;
 import org.lisapark.koctopus.core.sink.external.CompiledExternalSink;
 import org.lisapark.koctopus.core.sink.external.ExternalSink;
 import org.lisapark.koctopus.core.source.Source;
 import org.lisapark.koctopus.repo.util.Connections;
-import org.lisapark.koctopus.repo.util.DaoUtils;
 import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
 import org.lisapark.koctopus.core.transport.TransportReference;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
+import org.lisapark.koctopus.repo.util.ControlStream;
+import org.lisapark.koctopus.repo.util.JdbcBatchWriter;
 
 /**
+ * Inserts events into a table in JDBC batches, one transaction per batch.
  *
  * @author Alex Mylnikov (alexmy@lisa-park.com)
  */
+@Persistable
 public class DatabaseSink extends AbstractNode implements ExternalSink {
     
     static final Logger LOG = Logger.getLogger(DatabaseSink.class.getName());
@@ -62,6 +78,13 @@ public class DatabaseSink extends AbstractNode implements ExternalSink {
     private static final int TABLE_PARAMETER_ID = 5;
     private static final int ATTRIBUTE_LIST_PARAMETER_ID = 6;
     private static final int UUID_FIELD_NAME_PARAMETER_ID = 7;
+    private static final int BATCH_SIZE_PARAMETER_ID = 8;
+    private static final int FLUSH_INTERVAL_PARAMETER_ID = 9;
+    private static final int PAGE_SIZE_PARAMETER_ID = 10;
+    private static final int CONTROL_PARAMETER_ID = 11;
+    private static final int WRITERS_PARAMETER_ID = 12;
+    private static final int PARTITION_KEY_PARAMETER_ID = 13;
+    private static final int QUEUE_SIZE_PARAMETER_ID = 14;
 
     private static final String ATTRIBUTE_LIST = "Attribute list";
     private static final String ATTRIBUTE_LIST_DESCRIPTION
@@ -81,6 +104,13 @@ public class DatabaseSink extends AbstractNode implements ExternalSink {
     
     private CompiledDatabaseSink compiledExternalSink;
 
+    public DatabaseSink() {
+        super(Generators.timeBasedGenerator().generate(), DEFAULT_NAME, DEFAULT_DESCRIPTION);
+        input = Input.eventInputWithId(1);
+        input.setName(DEFAULT_INPUT);
+        input.setDescription(DEFAULT_INPUT);
+    }
+
     private DatabaseSink(UUID id, String name, String description) {
         super(id, name, description);
         input = Input.eventInputWithId(1);
@@ -121,6 +151,34 @@ public class DatabaseSink extends AbstractNode implements ExternalSink {
         return getParameter(ATTRIBUTE_LIST_PARAMETER_ID).getValueAsString();
     }
 
+    public Integer getBatchSize() {
+        return getParameter(BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getFlushInterval() {
+        return getParameter(FLUSH_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getPageSize() {
+        return getParameter(PAGE_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getControl() {
+        return getParameter(CONTROL_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getWriters() {
+        return getParameter(WRITERS_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getPartitionKey() {
+        return getParameter(PARTITION_KEY_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getQueueSize() {
+        return getParameter(QUEUE_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
     private DatabaseSink(DatabaseSink copyFromNode) {
         super(copyFromNode);
         this.input = copyFromNode.input.copyOf();
@@ -157,9 +215,20 @@ public class DatabaseSink extends AbstractNode implements ExternalSink {
         return new DatabaseSink(this);
     }
 
+    @Override
+    public DatabaseSink newInstance(Gnode gnode) {
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        DatabaseSink sink = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildSink(sink, gnode);
+        return sink;
+    }
+
     public static DatabaseSink newTemplate() {
         UUID sinkId = Generators.timeBasedGenerator().generate();
+        return newTemplate(sinkId);
+    }
 
+    public static DatabaseSink newTemplate(UUID sinkId) {
         DatabaseSink databaseSink = new DatabaseSink(sinkId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
 
         databaseSink.addParameter(Parameter.stringParameterWithIdAndName(URL_PARAMETER_ID, URL)
@@ -193,6 +262,41 @@ public class DatabaseSink extends AbstractNode implements ExternalSink {
                         .defaultValue("RECORD_UUID,DATE,SHOP,SHIFT,MACHINE,PRODUCT,PRODUCT_TYPE,MATERIAL_TYPE,"
                                 + "RAW_MATERIAL,TOTAL_MATERIALS,TOTAL_PRODUCTS")
         );
+        databaseSink.addParameter(
+                Parameter.integerParameterWithIdAndName(BATCH_SIZE_PARAMETER_ID, "Batch size")
+                        .description("Rows inserted and committed as one transaction.")
+                        .defaultValue(1000)
+                        .constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Batch size should be greater than 0.")));
+        databaseSink.addParameter(
+                Parameter.integerParameterWithIdAndName(FLUSH_INTERVAL_PARAMETER_ID, "Flush interval")
+                        .description("Milliseconds a row waits for its batch to fill before the batch is committed, 0 - no limit.")
+                        .defaultValue(1000)
+                        .constraint(Constraints.integerConstraintWithMinimumAndMessage(0, "Flush interval cannot be negative.")));
+        databaseSink.addParameter(
+                Parameter.integerParameterWithIdAndName(PAGE_SIZE_PARAMETER_ID, "Page size")
+                        .description("Entries read from the input stream at once.")
+                        .defaultValue(1000)
+                        .constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Page size should be greater than 0.")));
+        databaseSink.addParameter(
+                Parameter.stringParameterWithIdAndName(CONTROL_PARAMETER_ID, "Control")
+                        .description("Control stream to watch for stop, drain and pause, empty - none. "
+                                + "A controlled sink continues after the last committed batch.")
+                        .defaultValue(""));
+        databaseSink.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITERS_PARAMETER_ID, "Writers")
+                        .description("Writer threads, each with its own connection.")
+                        .defaultValue(1)
+                        .constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Writers should be greater than 0.")));
+        databaseSink.addParameter(
+                Parameter.stringParameterWithIdAndName(PARTITION_KEY_PARAMETER_ID, "Partition key")
+                        .description("Attribute whose hash picks the writer of an event, so events with the same key "
+                                + "are inserted in order. Empty - round robin, no order.")
+                        .defaultValue(""));
+        databaseSink.addParameter(
+                Parameter.integerParameterWithIdAndName(QUEUE_SIZE_PARAMETER_ID, "Queue size")
+                        .description("Pages of events queued per writer before reading waits.")
+                        .defaultValue(4)
+                        .constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Queue size should be greater than 0.")));
 
         return databaseSink;
     }
@@ -205,15 +309,10 @@ public class DatabaseSink extends AbstractNode implements ExternalSink {
 
     @Override
     public <T extends ExternalSink> CompiledExternalSink compile(T sink) throws ValidationException {
-        compiledExternalSink = new CompiledDatabaseSink(copyOf());
+        compiledExternalSink = new CompiledDatabaseSink((DatabaseSink) sink);
         return compiledExternalSink;
     }
 
-    @Override
-    public DatabaseSink newInstance(Gnode gnode) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
-    }
-
     @Override
     public Map<String, TransportReference> getReferences() {
         return sourceref;
@@ -226,12 +325,23 @@ public class DatabaseSink extends AbstractNode implements ExternalSink {
 
     static class CompiledDatabaseSink extends CompiledExternalSink {
 
+        private static final long STATS_INTERVAL = 10000;
+
         private final DatabaseSink databaseSink;
+        private final List<String> columns = new ArrayList<>();
         private Connection connection = null;
+        private JdbcBatchWriter writer = null;
+        private volatile List<Partition> partitions = Collections.emptyList();
 
         protected CompiledDatabaseSink(DatabaseSink databaseSink) {
             super(databaseSink);
             this.databaseSink = databaseSink;
+            String attributeList = databaseSink.getAttributeList() == null ? "" : databaseSink.getAttributeList();
+            for (String attr : attributeList.split(",")) {
+                if (!attr.trim().isEmpty()) {
+                    columns.add(attr.trim());
+                }
+            }
         }
 
         @Override
@@ -240,19 +350,13 @@ public class DatabaseSink extends AbstractNode implements ExternalSink {
             Event event = eventsByInputId.get(1);
 
             if (event != null) {
-                String attributeList = databaseSink.getAttributeList();
-                Map<String, Object> data = extractDataFromEvent(event, attributeList);
-
                 try {
-                    connection = getConnection(databaseSink.getDriver(), databaseSink.getUrl(),
-                            databaseSink.getUserName(), databaseSink.getPassword());
-
-                    String query = DaoUtils.insertQueryString(data, databaseSink.getTable(), null);
-
-                    LOG.log(Level.INFO, "Query: ====> {0}", query);
-
-                    int key = DaoUtils.insert(query, null, connection);
-
+                    if (writer == null) {
+                        connection = getConnection(databaseSink.getDriver(), databaseSink.getUrl(),
+                                databaseSink.getUserName(), databaseSink.getPassword());
+                        writer = newWriter(connection);
+                    }
+                    writer.add(row(event.getData()));
                 } catch (SQLException | ProcessingException ex) {
                     LOG.log(Level.SEVERE, ex.getMessage());
                 }
@@ -261,7 +365,20 @@ public class DatabaseSink extends AbstractNode implements ExternalSink {
             }
         }
 
+        private JdbcBatchWriter newWriter(Connection connection) throws SQLException {
+            int batchSize = databaseSink.getBatchSize() == null ? 1000 : databaseSink.getBatchSize();
+            long flushInterval = databaseSink.getFlushInterval() == null ? 1000 : databaseSink.getFlushInterval();
+            return new JdbcBatchWriter(connection, databaseSink.getTable(), columns, batchSize, flushInterval);
+        }
+
         private Connection getConnection(String className, String url, String userName, String password) throws ProcessingException {
+            if (connection == null) {
+                connection = openConnection(className, url, userName, password);
+            }
+            return connection;
+        }
+
+        private static Connection openConnection(String className, String url, String userName, String password) throws ProcessingException {
 
             try {
                 Class.forName(className);
@@ -271,40 +388,368 @@ public class DatabaseSink extends AbstractNode implements ExternalSink {
             }
 
             try {
-                if (connection == null) {
-                    if (userName == null && password == null) {
-                        connection = DriverManager.getConnection(url);
-                    } else {
-                        connection = DriverManager.getConnection(url, userName, password);
-                    }
+                if (userName == null && password == null) {
+                    return DriverManager.getConnection(url);
+                } else {
+                    return DriverManager.getConnection(url, userName, password);
                 }
             } catch (SQLException e) {
                 throw new ProcessingException("Could not connect to database. Please check your settings.", e);
             }
-            return connection;
         }
 
-        private Map<String, Object> extractDataFromEvent(Event event, String attributeList) {
-            Map<String, Object> retMap = Maps.newHashMap();
-            Map<String, Object> eventMap = event.getData();
-
-            String[] attList = attributeList.split(",");
-
-            for (String attr : attList) {
+        private Map<String, Object> row(Map<String, ?> data) {
+            Map<String, Object> retMap = Maps.newHashMapWithExpectedSize(columns.size());
+            for (String attr : columns) {
                 if (attr.equalsIgnoreCase(databaseSink.getUuidFieldName())) {
-                    retMap.put(attr, Generators.timeBasedGenerator().generate());
+                    retMap.put(attr, Generators.timeBasedGenerator().generate().toString());
                 } else {
-                    retMap.put(attr, eventMap.get(attr));
+                    retMap.put(attr, data.get(attr));
                 }
             }
-
             return retMap;
         }
 
+        /**
+         * Reads the input page by page into the batch writer. Entries of a
+         * batch become visible together when the batch commits; a failed
+         * batch is rolled back and stops the sink. A controlled sink commits
+         * the offset of the last entry of the last committed batch, so a
+         * restart retries a failed batch and skips the committed ones.
+         */
         @Override
-        public Object processEvent(Transport runtime) {
-            throw new UnsupportedOperationException("Not supported yet.");
-            //To change body of generated methods, choose Tools | Templates.
+        public synchronized Integer processEvent(Transport runtime) {
+
+            runtime.start();
+
+            String inputName = databaseSink.getInput().getName();
+            String sourceClassName = databaseSink.getReferences().get(inputName).getReferenceClass();
+            String sourceId = databaseSink.getReferences().get(inputName).getReferenceId();
+            int pageSize = databaseSink.getPageSize() == null ? 1000 : databaseSink.getPageSize();
+
+            ControlStream control = ControlStream.open(runtime, databaseSink.getControl(), databaseSink.getId());
+            if (databaseSink.getWriters() != null && databaseSink.getWriters() > 1) {
+                Integer status = writePartitioned(runtime, control, inputName, sourceClassName, sourceId, pageSize);
+                runtime.shutdown();
+                return status;
+            }
+            String offset = control.committed(inputName);
+            String committed = offset;
+            Integer status = GraphVocabulary.COMPLETE;
+            long written = 0;
+            try {
+                connection = getConnection(databaseSink.getDriver(), databaseSink.getUrl(),
+                        databaseSink.getUserName(), databaseSink.getPassword());
+                try (JdbcBatchWriter batches = newWriter(connection)) {
+                    while (true) {
+                        if (control.check() == ControlStream.State.PAUSED && batches.flush() > 0) {
+                            // rows do not wait in an open transaction while paused
+                            committed = offset;
+                        }
+                        if (control.await() == ControlStream.State.STOPPING) {
+                            // the batch in hand is written and its offset
+                            // committed before exiting, close() would drop it
+                            batches.flush();
+                            committed = offset;
+                            status = GraphVocabulary.CANCEL;
+                            break;
+                        }
+                        List<StreamMessage<String, String>> list = runtime.readEvents(sourceClassName, UUID.fromString(sourceId), offset, pageSize);
+                        if (list.isEmpty()) {
+                            break;
+                        }
+                        for (StreamMessage<String, String> msg : list) {
+                            if (msg != null && batches.add(row(msg.getBody()))) {
+                                committed = msg.getId();
+                            }
+                        }
+                        offset = list.get(list.size() - 1).getId();
+                        if (batches.getPending() == 0) {
+                            committed = offset;
+                        }
+                    }
+                    batches.flush();
+                    committed = offset;
+                    written = batches.getWritten();
+                }
+            } catch (SQLException | ProcessingException ex) {
+                LOG.log(Level.SEVERE, "Insert failed: {0}", ex.getMessage());
+                status = GraphVocabulary.CANCEL;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                status = GraphVocabulary.CANCEL;
+            } finally {
+                Connections.closeQuietly(connection);
+                connection = null;
+            }
+            control.commit(inputName, committed);
+            LOG.log(Level.INFO, "Inserted {0} rows into {1}", new Object[]{written, databaseSink.getTable()});
+            runtime.shutdown();
+
+            return status;
+        }
+
+        /**
+         * Routes every page to the writers: by the hash of the partition key,
+         * so the events of a key go to one writer in their order, or round
+         * robin. Each writer has its own connection and batch writer, and a
+         * bounded queue, so reading waits for the slowest writer instead of
+         * buffering the input.
+         *
+         * Writers commit independently. Every writer gets a chunk of every
+         * page, possibly empty, so each knows the last page it has fully
+         * committed; the sink has committed the pages up to the lowest of
+         * those, and a controlled sink commits the offset of that page.
+         */
+        private Integer writePartitioned(Transport runtime, ControlStream control, String inputName,
+                String sourceClassName, String sourceId, int pageSize) {
+            int count = databaseSink.getWriters();
+            int queueSize = databaseSink.getQueueSize() == null ? 4 : databaseSink.getQueueSize();
+            String key = databaseSink.getPartitionKey();
+            boolean byKey = key != null && !key.trim().isEmpty();
+
+            String offset = control.committed(inputName);
+            TreeMap<Long, String> offsets = new TreeMap<>();
+            offsets.put(0L, offset);
+            long page = 0;
+            long next = 0;
+
+            List<Partition> writers = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                writers.add(new Partition(i, queueSize));
+            }
+            partitions = writers;
+            ExecutorService pool = Executors.newFixedThreadPool(count);
+            writers.forEach(pool::submit);
+
+            Integer status = GraphVocabulary.COMPLETE;
+            long nextStats = System.currentTimeMillis() + STATS_INTERVAL;
+            try {
+                while (true) {
+                    if (control.await() == ControlStream.State.STOPPING) {
+                        status = GraphVocabulary.CANCEL;
+                        break;
+                    }
+                    List<StreamMessage<String, String>> list = runtime.readEvents(sourceClassName, UUID.fromString(sourceId), offset, pageSize);
+                    if (list.isEmpty()) {
+                        break;
+                    }
+                    page++;
+                    List<List<Map<String, String>>> chunks = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        chunks.add(new ArrayList<>());
+                    }
+                    for (StreamMessage<String, String> msg : list) {
+                        if (msg != null) {
+                            int i = byKey ? partitionOf(msg.getBody().get(key.trim()), count) : (int) (next++ % count);
+                            chunks.get(i).add(msg.getBody());
+                        }
+                    }
+                    if (!dispatch(writers, chunks, page)) {
+                        status = GraphVocabulary.CANCEL;
+                        break;
+                    }
+                    offset = list.get(list.size() - 1).getId();
+                    offsets.put(page, offset);
+                    offsets.headMap(committedPage(writers)).clear();
+                    if (System.currentTimeMillis() >= nextStats) {
+                        logStats(writers);
+                        nextStats = System.currentTimeMillis() + STATS_INTERVAL;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                status = GraphVocabulary.CANCEL;
+            } finally {
+                writers.forEach(Partition::close);
+                pool.shutdown();
+                try {
+                    // writers finish their queues, then flush
+                    while (!pool.awaitTermination(STATS_INTERVAL, TimeUnit.MILLISECONDS)) {
+                        logStats(writers);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    pool.shutdownNow();
+                    status = GraphVocabulary.CANCEL;
+                }
+            }
+            long written = 0;
+            for (Partition writer : writers) {
+                written += writer.getWritten();
+                if (writer.failure != null) {
+                    status = GraphVocabulary.CANCEL;
+                }
+            }
+            logStats(writers);
+            control.commit(inputName, offsets.floorEntry(committedPage(writers)).getValue());
+            LOG.log(Level.INFO, "Inserted {0} rows into {1} with {2} writers",
+                    new Object[]{written, databaseSink.getTable(), count});
+
+            return status;
+        }
+
+        /**
+         * @return false if a writer has stopped
+         */
+        private boolean dispatch(List<Partition> writers, List<List<Map<String, String>>> chunks, long page)
+                throws InterruptedException {
+            for (int i = 0; i < writers.size(); i++) {
+                if (!writers.get(i).put(new Chunk(page, chunks.get(i)))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Last page with every row committed by every writer.
+         */
+        private static long committedPage(List<Partition> writers) {
+            long committed = Long.MAX_VALUE;
+            for (Partition writer : writers) {
+                committed = Math.min(committed, writer.done);
+            }
+            return committed;
+        }
+
+        static int partitionOf(String value, int count) {
+            int h = value == null ? 0 : value.hashCode();
+            h ^= h >>> 16;
+            return (h & Integer.MAX_VALUE) % count;
+        }
+
+        private static void logStats(List<Partition> writers) {
+            for (Partition writer : writers) {
+                LOG.log(Level.INFO, "Writer {0}: queue {1}, {2} rows, {3} rows/s", new Object[]{writer.getIndex(),
+                    writer.getQueueDepth(), writer.getWritten(), Math.round(writer.getRowsPerSecond())});
+            }
+        }
+
+        /**
+         * Writers of the last partitioned run, for monitoring.
+         *
+         * @return
+         */
+        public List<Partition> getPartitions() {
+            return partitions;
+        }
+
+        static class Chunk {
+
+            final long page;
+            final List<Map<String, String>> rows;
+
+            Chunk(long page, List<Map<String, String>> rows) {
+                this.page = page;
+                this.rows = rows;
+            }
+        }
+
+        /**
+         * One writer thread with its connection, batch writer and queue.
+         */
+        public class Partition implements Runnable {
+
+            private final int index;
+            private final BlockingQueue<Chunk> queue;
+            private final long started = System.nanoTime();
+
+            // pages up to done are committed
+            private volatile long done;
+            private volatile long written;
+            private volatile boolean closing;
+            private volatile boolean stopped;
+            private volatile Exception failure;
+
+            Partition(int index, int queueSize) {
+                this.index = index;
+                this.queue = new ArrayBlockingQueue<>(queueSize);
+            }
+
+            boolean put(Chunk chunk) throws InterruptedException {
+                while (!stopped) {
+                    if (queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            /**
+             * No more chunks, the writer exits when its queue is empty.
+             */
+            void close() {
+                closing = true;
+            }
+
+            @Override
+            public void run() {
+                long added = 0;
+                try (Connection own = openConnection(databaseSink.getDriver(), databaseSink.getUrl(),
+                        databaseSink.getUserName(), databaseSink.getPassword());
+                        JdbcBatchWriter batches = newWriter(own)) {
+                    while (true) {
+                        Chunk chunk = queue.poll(100, TimeUnit.MILLISECONDS);
+                        if (chunk == null) {
+                            boolean last = closing && queue.isEmpty();
+                            if (last || batches.isDue()) {
+                                batches.flush();
+                                done = added;
+                                written = batches.getWritten();
+                            }
+                            if (last) {
+                                break;
+                            }
+                            continue;
+                        }
+                        for (Map<String, String> body : chunk.rows) {
+                            if (batches.add(row(body))) {
+                                // the chunks before this one are committed
+                                done = added;
+                            }
+                        }
+                        added = chunk.page;
+                        if (batches.isDue()) {
+                            batches.flush();
+                        }
+                        if (batches.getPending() == 0) {
+                            done = added;
+                        }
+                        written = batches.getWritten();
+                    }
+                } catch (SQLException | ProcessingException ex) {
+                    failure = ex;
+                    LOG.log(Level.SEVERE, "Writer {0} failed: {1}", new Object[]{index, ex.getMessage()});
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    stopped = true;
+                }
+            }
+
+            public int getIndex() {
+                return index;
+            }
+
+            public int getQueueDepth() {
+                return queue.size();
+            }
+
+            /**
+             * @return rows committed by this writer
+             */
+            public long getWritten() {
+                return written;
+            }
+
+            public double getRowsPerSecond() {
+                return written / Math.max(1e-9, (System.nanoTime() - started) / 1e9);
+            }
+
+            public boolean isStopped() {
+                return stopped;
+            }
         }
     }
 
@@ -313,6 +758,15 @@ public class DatabaseSink extends AbstractNode implements ExternalSink {
      */
     @Override
     public void complete() {
+        if (compiledExternalSink.writer != null) {
+            try {
+                compiledExternalSink.writer.flush();
+                compiledExternalSink.writer.close();
+            } catch (SQLException ex) {
+                LOG.log(Level.SEVERE, ex.getMessage());
+            }
+            compiledExternalSink.writer = null;
+        }
         Connections.closeQuietly(compiledExternalSink.connection);
         LOG.log(Level.INFO, "Connection: ====> {0}", "Closed!!!");
     }
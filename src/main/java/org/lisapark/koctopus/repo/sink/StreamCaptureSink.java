@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.sink;
+
+import com.fasterxml.uuid.Generators;
+import com.google.common.collect.ImmutableList;
+import io.lettuce.core.StreamMessage;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import org.lisapark.koctopus.core.Input;
+import org.lisapark.koctopus.core.Persistable;
+import org.lisapark.koctopus.core.ValidationException;
+import org.lisapark.koctopus.core.event.Event;
+import org.lisapark.koctopus.core.runtime.SinkContext;
+import org.lisapark.koctopus.core.source.Source;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.parameter.Constraints;
+import org.lisapark.koctopus.core.parameter.Parameter;
+import org.lisapark.koctopus.core.transport.TransportReference;
+import org.lisapark.koctopus.core.sink.external.CompiledExternalSink;
+import org.lisapark.koctopus.core.sink.external.ExternalSink;
+import org.lisapark.koctopus.core.sink.external.AbstractExternalSink;
+import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.repo.util.ControlStream;
+import org.lisapark.koctopus.repo.util.StreamSegments;
+
+/**
+ * Records the input stream, entry ids included, into local segment files
+ * that {@link org.lisapark.koctopus.repo.source.StreamReplaySource} plays
+ * back.
+ *
+ * @author alexmy
+ */
+@Persistable
+public class StreamCaptureSink extends AbstractExternalSink {
+
+    static final Logger LOG = Logger.getLogger(StreamCaptureSink.class.getName());
+
+    private static final String DEFAULT_NAME = "Stream capture";
+    private static final String DEFAULT_DESCRIPTION = "Record the input stream to local segment files for replay.";
+    private static final String DEFAULT_INPUT = "Input";
+
+    private static final int DIRECTORY_PARAMETER_ID = 1;
+    private static final int PREFIX_PARAMETER_ID = 2;
+    private static final int SEGMENT_SIZE_PARAMETER_ID = 3;
+    private static final int COMPRESS_PARAMETER_ID = 4;
+    private static final int PAGE_SIZE_PARAMETER_ID = 5;
+    private static final int CONTROL_PARAMETER_ID = 6;
+
+    private static final int INPUT_ID = 0;
+
+    private final Input<Event> input;
+
+    protected Map<String, TransportReference> sourcerefs = new HashMap<>();
+
+    public StreamCaptureSink() {
+        super(Generators.timeBasedGenerator().generate(), DEFAULT_NAME, DEFAULT_DESCRIPTION);
+        input = Input.eventInputWithId(INPUT_ID);
+        input.setName(DEFAULT_INPUT);
+        input.setDescription(DEFAULT_INPUT);
+    }
+
+    private StreamCaptureSink(UUID id, String name, String description) {
+        super(id, name, description);
+        input = Input.eventInputWithId(1);
+        input.setName(DEFAULT_INPUT);
+        input.setDescription(DEFAULT_INPUT);
+    }
+
+    private StreamCaptureSink(UUID id, StreamCaptureSink copyFromNode) {
+        super(id, copyFromNode.getName(), copyFromNode.getDescription());
+        input = copyFromNode.getInput().copyOf();
+    }
+
+    private StreamCaptureSink(StreamCaptureSink copyFromNode) {
+        super(copyFromNode.getId(), copyFromNode.getName(), copyFromNode.getDescription());
+        this.input = copyFromNode.input.copyOf();
+    }
+
+    public String getDirectory() {
+        return getParameter(DIRECTORY_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getPrefix() {
+        return getParameter(PREFIX_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getSegmentSize() {
+        return getParameter(SEGMENT_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Boolean getCompress() {
+        return (Boolean) getParameter(COMPRESS_PARAMETER_ID).getValue();
+    }
+
+    public Integer getPageSize() {
+        return getParameter(PAGE_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getControl() {
+        return getParameter(CONTROL_PARAMETER_ID).getValueAsString();
+    }
+
+    @Override
+    public List<? extends Input> getInputs() {
+        return ImmutableList.of(input);
+    }
+
+    public Input getInput() {
+        return input;
+    }
+
+    @Override
+    public boolean isConnectedTo(Source source) {
+        return input.isConnectedTo(source);
+    }
+
+    @Override
+    public void disconnect(Source source) {
+        if (input.isConnectedTo(source)) {
+            input.clearSource();
+        }
+    }
+
+    @Override
+    public StreamCaptureSink newInstance() {
+        return new StreamCaptureSink(Generators.timeBasedGenerator().generate(), this);
+    }
+
+    @Override
+    public StreamCaptureSink newInstance(Gnode gnode) {
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        StreamCaptureSink sink = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildSink(sink, gnode);
+        return sink;
+    }
+
+    @Override
+    public StreamCaptureSink copyOf() {
+        return new StreamCaptureSink(this);
+    }
+
+    public static StreamCaptureSink newTemplate() {
+        UUID sinkId = Generators.timeBasedGenerator().generate();
+        return newTemplate(sinkId);
+    }
+
+    public static StreamCaptureSink newTemplate(UUID sinkId) {
+        StreamCaptureSink captureSink = new StreamCaptureSink(sinkId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
+
+        captureSink.addParameter(
+                Parameter.stringParameterWithIdAndName(DIRECTORY_PARAMETER_ID, "Directory")
+                        .description("Directory of the segment files.")
+                        .required(true));
+        captureSink.addParameter(
+                Parameter.stringParameterWithIdAndName(PREFIX_PARAMETER_ID, "File prefix")
+                        .description("Segment files are named <prefix>-000001.seg, a new capture continues the numbering.")
+                        .defaultValue("capture"));
+        captureSink.addParameter(
+                Parameter.integerParameterWithIdAndName(SEGMENT_SIZE_PARAMETER_ID, "Segment size")
+                        .description("Bytes of entries written to a segment before the next one is started.")
+                        .defaultValue(64 * 1024 * 1024)
+                        .constraint(Constraints.integerConstraintWithMinimumAndMessage(1024, "Segment size should be at least 1024.")));
+        captureSink.addParameter(
+                Parameter.booleanParameterWithIdAndName(COMPRESS_PARAMETER_ID, "Compress")
+                        .description("Gzip the segments."));
+        captureSink.addParameter(
+                Parameter.integerParameterWithIdAndName(PAGE_SIZE_PARAMETER_ID, "Page size")
+                        .description("Entries read from the input stream at once.")
+                        .defaultValue(1000));
+        captureSink.addParameter(
+                Parameter.stringParameterWithIdAndName(CONTROL_PARAMETER_ID, "Control")
+                        .description("Control stream to watch for stop, drain and pause, empty - none. "
+                                + "A controlled capture continues after the last entry it wrote, in new segments.")
+                        .defaultValue(""));
+
+        return captureSink;
+    }
+
+    @Override
+    public CompiledExternalSink compile() throws ValidationException {
+        return new CompiledCapture(copyOf());
+    }
+
+    @Override
+    public <T extends ExternalSink> CompiledExternalSink compile(T sink) throws ValidationException {
+        return new CompiledCapture((StreamCaptureSink) sink);
+    }
+
+    @Override
+    public Map<String, TransportReference> getReferences() {
+        return sourcerefs;
+    }
+
+    @Override
+    public void setReferences(Map<String, TransportReference> sourceref) {
+        this.sourcerefs = sourceref;
+    }
+
+    static class CompiledCapture extends CompiledExternalSink {
+
+        private final StreamCaptureSink sink;
+
+        protected CompiledCapture(StreamCaptureSink sink) {
+            super(sink);
+            this.sink = sink;
+        }
+
+        /**
+         * Reads the input stream page by page and appends every entry with
+         * its id to the segment files.
+         */
+        @Override
+        public synchronized Integer processEvent(Transport runtime) {
+
+            runtime.start();
+
+            String inputName = sink.getInput().getName();
+            String sourceClassName = sink.getReferences().get(inputName).getReferenceClass();
+            String sourceId = sink.getReferences().get(inputName).getReferenceId();
+            int pageSize = sink.getPageSize() == null ? 1000 : sink.getPageSize();
+            long segmentSize = sink.getSegmentSize() == null ? 64 * 1024 * 1024 : sink.getSegmentSize();
+
+            ControlStream control = ControlStream.open(runtime, sink.getControl(), sink.getId());
+            String offset = control.committed(inputName);
+            Integer status = GraphVocabulary.COMPLETE;
+            long count = 0;
+            try (StreamSegments.Writer writer = new StreamSegments.Writer(Paths.get(sink.getDirectory()),
+                    sink.getPrefix(), segmentSize, Boolean.TRUE.equals(sink.getCompress()))) {
+                while (true) {
+                    if (control.await() == ControlStream.State.STOPPING) {
+                        status = GraphVocabulary.CANCEL;
+                        break;
+                    }
+                    List<StreamMessage<String, String>> list = runtime.readEvents(sourceClassName, UUID.fromString(sourceId), offset, pageSize);
+                    if (list.isEmpty()) {
+                        break;
+                    }
+                    for (StreamMessage<String, String> msg : list) {
+                        if (msg != null) {
+                            writer.append(msg.getId(), msg.getBody());
+                            count++;
+                        }
+                    }
+                    offset = list.get(list.size() - 1).getId();
+                }
+                LOG.log(Level.INFO, "Captured {0} entries", count);
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, "Capture failed after {0} entries: {1}", new Object[]{count, ex.getMessage()});
+                runtime.shutdown();
+                return GraphVocabulary.CANCEL;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                status = GraphVocabulary.CANCEL;
+            }
+            // the segments are closed, everything up to the offset is on disk
+            control.commit(inputName, offset);
+            runtime.shutdown();
+
+            return status;
+        }
+
+        @Override
+        public void processEvent(SinkContext ctx, Map<Integer, Event> eventsByInputId) {}
+    }
+}
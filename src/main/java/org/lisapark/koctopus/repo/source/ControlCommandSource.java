@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.source;
+
+import com.fasterxml.uuid.Generators;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.core.Output;
+import org.lisapark.koctopus.core.Persistable;
+import org.lisapark.koctopus.core.ProcessingException;
+import org.lisapark.koctopus.core.ValidationException;
+import org.lisapark.koctopus.core.event.Attribute;
+import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.parameter.Parameter;
+import org.lisapark.koctopus.core.runtime.ProcessingRuntime;
+import org.lisapark.koctopus.core.source.external.AbstractExternalSource;
+import org.lisapark.koctopus.core.source.external.CompiledExternalSource;
+import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
+import org.lisapark.koctopus.repo.util.ControlStream;
+
+/**
+ * Sends one command - stop, drain, pause or resume - to the nodes watching
+ * a control stream, see {@link ControlStream}.
+ *
+ * @author alexmy
+ */
+@Persistable
+public class ControlCommandSource extends AbstractExternalSource {
+
+    static final Logger LOG = Logger.getLogger(ControlCommandSource.class.getName());
+
+    private static final String DEFAULT_NAME = "Control Command";
+    private static final String DEFAULT_DESCRIPTION = "Sends stop, drain, pause or resume to the nodes watching a control stream.";
+
+    private static final int CONTROL_PARAMETER_ID = 1;
+    private static final int COMMAND_PARAMETER_ID = 2;
+    private static final int NODE_PARAMETER_ID = 3;
+
+    public ControlCommandSource() {
+        super(Generators.timeBasedGenerator().generate());
+    }
+
+    public ControlCommandSource(UUID id, String name, String description) {
+        super(id, name, description);
+    }
+
+    private ControlCommandSource(UUID id, ControlCommandSource copyFromSource) {
+        super(id, copyFromSource);
+    }
+
+    public ControlCommandSource(ControlCommandSource copyFromSource) {
+        super(copyFromSource);
+    }
+
+    public String getControl() {
+        return getParameter(CONTROL_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getCommand() {
+        return getParameter(COMMAND_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getNode() {
+        return getParameter(NODE_PARAMETER_ID).getValueAsString();
+    }
+
+    @Override
+    public ControlCommandSource copyOf() {
+        return new ControlCommandSource(this);
+    }
+
+    @Override
+    public ControlCommandSource newInstance() {
+        UUID sourceId = Generators.timeBasedGenerator().generate();
+        return new ControlCommandSource(sourceId, this);
+    }
+
+    @Override
+    public ControlCommandSource newInstance(Gnode gnode) {
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        ControlCommandSource source = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildSource(source, gnode);
+
+        return source;
+    }
+
+    public static ControlCommandSource newTemplate() {
+        UUID sourceId = Generators.timeBasedGenerator().generate();
+        return newTemplate(sourceId);
+    }
+
+    public static ControlCommandSource newTemplate(UUID sourceId) {
+        ControlCommandSource source = new ControlCommandSource(sourceId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
+        source.setOutput(Output.outputWithId(1).setName("Output"));
+        source.addParameter(
+                Parameter.stringParameterWithIdAndName(CONTROL_PARAMETER_ID, "Control").
+                        description("Name of the control stream, the Control parameter of the nodes to command.").
+                        required(true));
+        source.addParameter(
+                Parameter.stringParameterWithIdAndName(COMMAND_PARAMETER_ID, "Command").
+                        description("stop - finish the current batch and exit; drain - finish all work already "
+                                + "taken and exit; pause; resume.").
+                        defaultValue("stop").
+                        required(true));
+        source.addParameter(
+                Parameter.stringParameterWithIdAndName(NODE_PARAMETER_ID, "Node").
+                        description("Id of the node to command, empty - all nodes watching the control stream.").
+                        defaultValue(""));
+        try {
+            source.getOutput().addAttribute(Attribute.newAttribute(String.class, ControlStream.COMMAND));
+        } catch (ValidationException ex) {
+            LOG.log(Level.SEVERE, ex.getMessage());
+        }
+
+        return source;
+    }
+
+    @Override
+    public CompiledExternalSource compile() throws ValidationException {
+        return new CompiledControlCommand(copyOf());
+    }
+
+    @Override
+    public <T extends AbstractExternalSource> CompiledExternalSource compile(T source) throws ValidationException {
+        return new CompiledControlCommand((ControlCommandSource) source);
+    }
+
+    static class CompiledControlCommand implements CompiledExternalSource {
+
+        private final ControlCommandSource source;
+
+        public CompiledControlCommand(ControlCommandSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public Integer startProcessingEvents(Transport runtime) {
+            ControlStream.Command command;
+            try {
+                command = ControlStream.Command.valueOf(source.getCommand().trim().toUpperCase());
+            } catch (IllegalArgumentException | NullPointerException ex) {
+                LOG.log(Level.SEVERE, "Unknown control command: {0}", source.getCommand());
+                return GraphVocabulary.CANCEL;
+            }
+            runtime.start();
+            ControlStream.send(runtime, source.getControl(), command, source.getNode());
+            LOG.log(Level.INFO, "Sent {0} to {1}", new Object[]{command, source.getControl()});
+
+            return GraphVocabulary.COMPLETE;
+        }
+
+        @Override
+        public void stopProcessingEvents() {
+        }
+
+        @Override
+        public void startProcessingEvents(ProcessingRuntime runtime) throws ProcessingException {
+            // control streams live on the transport, the in-process runtime has none
+            LOG.log(Level.WARNING, "Control commands are sent on a Transport only, {0} not sent.", source.getCommand());
+        }
+    }
+}
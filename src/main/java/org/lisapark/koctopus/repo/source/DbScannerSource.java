@@ -17,28 +17,39 @@
 package org.lisapark.koctopus.repo.source;
 
 import com.fasterxml.uuid.Generators;
-import com.google.common.collect.Maps;
 import org.lisapark.koctopus.core.Output;
 import org.lisapark.koctopus.core.ProcessingException;
 import org.lisapark.koctopus.core.ValidationException;
-import org.lisapark.koctopus.core.event.Attribute;
 import org.lisapark.koctopus.core.event.Event;
 import org.lisapark.koctopus.core.event.EventType;
 import org.lisapark.koctopus.core.parameter.Constraints;
 import org.lisapark.koctopus.core.parameter.Parameter;
 import org.lisapark.koctopus.core.runtime.ProcessingRuntime;
-import org.lisapark.koctopus.repo.util.Booleans;
 import org.lisapark.koctopus.repo.util.Connections;
 import org.lisapark.koctopus.repo.util.ResultSets;
+import org.lisapark.koctopus.repo.util.RowMapper;
 import org.lisapark.koctopus.repo.util.Statements;
 
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 import org.lisapark.koctopus.core.source.external.CompiledExternalSource;
 import org.lisapark.koctopus.core.source.external.AbstractExternalSource;
@@ -46,6 +57,8 @@ import static com.google.common.base.Preconditions.checkState;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
 import org.lisapark.koctopus.core.transport.Transport;
 
 /**
@@ -65,6 +78,12 @@ public class DbScannerSource  extends AbstractExternalSource {
     private static final int DRIVER_PARAMETER_ID = 4;
     private static final int QUERY_PARAMETER_ID = 5;
     private static final int UPDATE_PARAMETER_ID = 6;
+    private static final int WATERMARK_COLUMN_PARAMETER_ID = 7;
+    private static final int WATERMARK_FILE_PARAMETER_ID = 8;
+    private static final int INITIAL_WATERMARK_PARAMETER_ID = 9;
+    private static final int PAGE_SIZE_PARAMETER_ID = 10;
+    private static final int MIN_POLL_INTERVAL_PARAMETER_ID = 11;
+    private static final int MAX_POLL_INTERVAL_PARAMETER_ID = 12;
 
     private DbScannerSource(UUID sourceId, String name, String description) {
         super(sourceId, name, description);
@@ -133,6 +152,30 @@ public class DbScannerSource  extends AbstractExternalSource {
         return getParameter(UPDATE_PARAMETER_ID).getValueAsString();
     }
 
+    public String getWatermarkColumn() {
+        return getParameter(WATERMARK_COLUMN_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getWatermarkFile() {
+        return getParameter(WATERMARK_FILE_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getInitialWatermark() {
+        return getParameter(INITIAL_WATERMARK_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getPageSize() {
+        return getParameter(PAGE_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getMinPollInterval() {
+        return getParameter(MIN_POLL_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getMaxPollInterval() {
+        return getParameter(MAX_POLL_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+
     public EventType getEventType() {
         return getOutput().getEventType();
     }
@@ -145,7 +188,11 @@ public class DbScannerSource  extends AbstractExternalSource {
 
     @Override
     public DbScannerSource newInstance(Gnode gnode) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        DbScannerSource jdbc = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildSource(jdbc, gnode);
+
+        return jdbc;
     }
 
     @Override
@@ -155,6 +202,10 @@ public class DbScannerSource  extends AbstractExternalSource {
 
     public static DbScannerSource newTemplate() {
         UUID sourceId = Generators.timeBasedGenerator().generate();
+        return newTemplate(sourceId);
+    }
+
+    public static DbScannerSource newTemplate(UUID sourceId) {
         DbScannerSource jdbc = new DbScannerSource(sourceId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
         jdbc.addParameter(Parameter.stringParameterWithIdAndName(URL_PARAMETER_ID, "URL").required(true));
         jdbc.addParameter(Parameter.stringParameterWithIdAndName(USER_NAME_PARAMETER_ID, "User name"));
@@ -162,7 +213,31 @@ public class DbScannerSource  extends AbstractExternalSource {
         jdbc.addParameter(Parameter.stringParameterWithIdAndName(DRIVER_PARAMETER_ID, "Driver Class").required(true).
                 constraint(Constraints.classConstraintWithMessage("%s is not a valid Driver Class")));
         jdbc.addParameter(Parameter.stringParameterWithIdAndName(QUERY_PARAMETER_ID, "Query").required(true));
-        jdbc.addParameter(Parameter.stringParameterWithIdAndName(UPDATE_PARAMETER_ID, "Update").required(true));
+        jdbc.addParameter(Parameter.stringParameterWithIdAndName(UPDATE_PARAMETER_ID, "Update").
+                description("Update marking the queried rows as scanned. Not used with a watermark column."));
+        jdbc.addParameter(Parameter.stringParameterWithIdAndName(WATERMARK_COLUMN_PARAMETER_ID, "Watermark column").
+                description("Monotonic key or timestamp column of the query result. Rows are read in pages after the "
+                        + "last emitted value, no update is needed. Empty - query and update mode.").
+                defaultValue(""));
+        jdbc.addParameter(Parameter.stringParameterWithIdAndName(WATERMARK_FILE_PARAMETER_ID, "Watermark file").
+                description("File keeping the last emitted watermark between runs. Empty - kept in memory.").
+                defaultValue(""));
+        jdbc.addParameter(Parameter.stringParameterWithIdAndName(INITIAL_WATERMARK_PARAMETER_ID, "Initial watermark").
+                description("Number or timestamp (yyyy-mm-dd hh:mm:ss) to start after when there is no saved "
+                        + "watermark. Empty - from the first row.").
+                defaultValue(""));
+        jdbc.addParameter(Parameter.integerParameterWithIdAndName(PAGE_SIZE_PARAMETER_ID, "Page size").
+                description("Maximum number of rows read by one poll.").
+                defaultValue(1000).
+                constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Page size should be greater than 0.")));
+        jdbc.addParameter(Parameter.integerParameterWithIdAndName(MIN_POLL_INTERVAL_PARAMETER_ID, "Min poll interval").
+                description("Milliseconds between polls while rows arrive.").
+                defaultValue(100).
+                constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Min poll interval should be greater than 0.")));
+        jdbc.addParameter(Parameter.integerParameterWithIdAndName(MAX_POLL_INTERVAL_PARAMETER_ID, "Max poll interval").
+                description("Milliseconds between polls of an idle table; the interval doubles up to it on every empty poll.").
+                defaultValue(30000).
+                constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Max poll interval should be greater than 0.")));
         jdbc.setOutput(Output.outputWithId(1).setName("Output"));
         return jdbc;
     }
@@ -198,15 +273,22 @@ public class DbScannerSource  extends AbstractExternalSource {
                     running = true;
                 }                
                 connection = getConnection(source.getDriverClass(), source.getUrl(), source.getUsername(), source.getPassword());
-                processResultSet(connection, runtime);                
+                Consumer<Map<String, Object>> emit = values -> runtime.sendEventFromSource(new Event(values), source);
+                if (isIncremental()) {
+                    pollIncremental(emit);
+                } else {
+                    processResultSet(connection, emit);
+                }
             } catch (SQLException ex) {
                 LOG.log(Level.SEVERE, ex.getMessage());
-            }            
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
         }
 
-        void processResultSet(Connection conn, ProcessingRuntime runtime) throws SQLException, ProcessingException {
+        void processResultSet(Connection conn, Consumer<Map<String, Object>> emit) throws SQLException, ProcessingException {
             Thread thread = Thread.currentThread();
-            EventType eventType = source.getEventType();
+            RowMapper mapper = null;
             while (!thread.isInterrupted() && running) {
                 Statement statement = null;
                 ResultSet rs = null;
@@ -215,9 +297,11 @@ public class DbScannerSource  extends AbstractExternalSource {
                     rs = statement.executeQuery(source.getQuery());
                     int retValue = statement.executeUpdate(source.getUpdate());                    
                     if (retValue > 0) {
+                        if (mapper == null) {
+                            mapper = RowMapper.compile(source.getEventType().getAttributes(), rs.getMetaData());
+                        }
                         while (rs.next()) {
-                            Event newEvent = createEventFromResultSet(rs, eventType);
-                            runtime.sendEventFromSource(newEvent, source);
+                            emit.accept(mapper.map(rs));
                         }
                     } else {
                         throw new ProcessingException("Problem updating database to mark retrieved records as scanned. Please check your settings.");
@@ -258,40 +342,6 @@ public class DbScannerSource  extends AbstractExternalSource {
             return connection;
         }
 
-        Event createEventFromResultSet(ResultSet rs, EventType eventType) throws SQLException {
-            Map<String, Object> attributeValues = Maps.newHashMap();
-            for (Attribute attribute : eventType.getAttributes()) {
-                Class type = attribute.getType();
-                String attributeName = attribute.getName();
-                if (type == String.class) {
-                    String value = rs.getString(attributeName);
-                    attributeValues.put(attributeName, value);
-                } else if (type == Integer.class) {
-                    int value = rs.getInt(attributeName);
-                    attributeValues.put(attributeName, value);
-                } else if (type == Short.class) {
-                    short value = rs.getShort(attributeName);
-                    attributeValues.put(attributeName, value);
-                } else if (type == Long.class) {
-                    long value = rs.getLong(attributeName);
-                    attributeValues.put(attributeName, value);
-                } else if (type == Double.class) {
-                    double value = rs.getDouble(attributeName);
-                    attributeValues.put(attributeName, value);
-                } else if (type == Float.class) {
-                    float value = rs.getFloat(attributeName);
-                    attributeValues.put(attributeName, value);
-                } else if (type == Boolean.class) {
-                    String value = rs.getString(attributeName);
-                    attributeValues.put(attributeName, Booleans.parseBoolean(value));
-                } else {
-                    throw new IllegalArgumentException(String.format("Unknown attribute type %s", type));
-                }
-            }
-            return new Event(attributeValues);
-        }
-        
-        
         @Override
         protected void finalize() throws Throwable{
             Connections.closeQuietly(connection);            
@@ -299,9 +349,280 @@ public class DbScannerSource  extends AbstractExternalSource {
             super.finalize();            
         }
 
+        private boolean isIncremental() {
+            String column = source.getWatermarkColumn();
+            return column != null && !column.trim().isEmpty();
+        }
+
+        /**
+         * Keyset pagination on the watermark column: every poll reads at
+         * most a page of rows after the last emitted value, ordered by the
+         * column, so the database only touches new rows. A full page is
+         * followed by the next poll at once; a short one waits the min
+         * interval and every empty poll doubles the wait up to the max
+         * interval.
+         *
+         * When a full page ends inside a run of equal watermarks, those rows
+         * are left for the next page, so rows sharing a timestamp are never
+         * split between polls. A full page with a single watermark is read
+         * again without the page limit for that value before moving past it.
+         */
+        void pollIncremental(Consumer<Map<String, Object>> emit) throws ProcessingException, InterruptedException {
+            String column = source.getWatermarkColumn().trim();
+            String first = "SELECT * FROM (" + source.getQuery() + ") q ORDER BY " + column;
+            String next = "SELECT * FROM (" + source.getQuery() + ") q WHERE " + column + " > ? ORDER BY " + column;
+            int pageSize = source.getPageSize() == null ? 1000 : source.getPageSize();
+            long minInterval = source.getMinPollInterval() == null ? 100 : source.getMinPollInterval();
+            long maxInterval = Math.max(minInterval, source.getMaxPollInterval() == null ? 30000 : source.getMaxPollInterval());
+
+            Object watermark = loadWatermark();
+            Object saved = watermark;
+            long savedAt = System.currentTimeMillis();
+            long interval = minInterval;
+            RowMapper mapper = null;
+            int keyColumn = 0;
+            List<Map<String, Object>> rows = new ArrayList<>(pageSize);
+            List<Object> keys = new ArrayList<>(pageSize);
+            try {
+                while (running && !Thread.currentThread().isInterrupted()) {
+                    rows.clear();
+                    keys.clear();
+                    PreparedStatement statement = null;
+                    ResultSet rs = null;
+                    try {
+                        statement = connection.prepareStatement(watermark == null ? first : next,
+                                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                        statement.setMaxRows(pageSize);
+                        statement.setFetchSize(pageSize);
+                        if (watermark != null) {
+                            bind(statement, watermark);
+                        }
+                        rs = statement.executeQuery();
+                        if (mapper == null) {
+                            mapper = RowMapper.compile(source.getEventType().getAttributes(), rs.getMetaData());
+                            keyColumn = rs.findColumn(column);
+                        }
+                        while (rs.next()) {
+                            rows.add(mapper.map(rs));
+                            keys.add(rs.getObject(keyColumn));
+                        }
+                    } catch (SQLException e) {
+                        throw new ProcessingException("Problem processing result set from database. Please check your settings.", e);
+                    } finally {
+                        ResultSets.closeQuietly(rs);
+                        Statements.closeQuietly(statement);
+                    }
+
+                    int read = rows.size();
+                    int ready = read;
+                    if (read == pageSize) {
+                        Object last = keys.get(read - 1);
+                        int i = read - 1;
+                        while (i > 0 && Objects.equals(last, keys.get(i - 1))) {
+                            i--;
+                        }
+                        if (i > 0) {
+                            ready = i;
+                        } else if (last == null) {
+                            throw new ProcessingException("A whole page has no watermark in column " + column + ".");
+                        } else {
+                            // the page may hold only part of the rows with this
+                            // watermark, read them all before moving past it
+                            LOG.log(Level.WARNING, "A whole page has watermark {0}, increase the page size", last);
+                            ready = 0;
+                            readTies(column, last, mapper, pageSize, emit);
+                            watermark = last;
+                        }
+                    }
+                    for (int i = 0; i < ready; i++) {
+                        emit.accept(rows.get(i));
+                        if (keys.get(i) != null) {
+                            watermark = keys.get(i);
+                        }
+                    }
+
+                    if (watermark != saved && System.currentTimeMillis() - savedAt > 1000L) {
+                        saveWatermark(watermark);
+                        saved = watermark;
+                        savedAt = System.currentTimeMillis();
+                    }
+                    if (read == pageSize) {
+                        interval = minInterval;
+                        continue;
+                    }
+                    interval = read > 0 ? minInterval : Math.min(maxInterval, interval * 2);
+                    pause(read > 0 ? minInterval : interval);
+                }
+            } finally {
+                if (watermark != saved) {
+                    saveWatermark(watermark);
+                }
+            }
+        }
+
+        /**
+         * Emits every row whose watermark equals the value, with no page
+         * limit.
+         */
+        private void readTies(String column, Object value, RowMapper mapper, int fetchSize,
+                Consumer<Map<String, Object>> emit) throws ProcessingException {
+            String equal = "SELECT * FROM (" + source.getQuery() + ") q WHERE " + column + " = ?";
+            PreparedStatement statement = null;
+            ResultSet rs = null;
+            try {
+                statement = connection.prepareStatement(equal, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                statement.setFetchSize(fetchSize);
+                bind(statement, value);
+                rs = statement.executeQuery();
+                while (rs.next()) {
+                    emit.accept(mapper.map(rs));
+                }
+            } catch (SQLException e) {
+                throw new ProcessingException("Problem processing result set from database. Please check your settings.", e);
+            } finally {
+                ResultSets.closeQuietly(rs);
+                Statements.closeQuietly(statement);
+            }
+        }
+
+        /**
+         * Sleeps in short slices, so a stop request is not delayed by a long
+         * idle interval.
+         */
+        private void pause(long millis) throws InterruptedException {
+            long until = System.currentTimeMillis() + millis;
+            long left;
+            while (running && (left = until - System.currentTimeMillis()) > 0) {
+                Thread.sleep(Math.min(left, 100L));
+            }
+        }
+
+        private static void bind(PreparedStatement statement, Object watermark) throws SQLException {
+            if (watermark instanceof Timestamp) {
+                statement.setTimestamp(1, (Timestamp) watermark);
+            } else if (watermark instanceof java.sql.Date) {
+                statement.setDate(1, (java.sql.Date) watermark);
+            } else if (watermark instanceof BigDecimal) {
+                statement.setBigDecimal(1, (BigDecimal) watermark);
+            } else if (watermark instanceof Long || watermark instanceof Integer || watermark instanceof Short) {
+                statement.setLong(1, ((Number) watermark).longValue());
+            } else if (watermark instanceof Number) {
+                statement.setBigDecimal(1, new BigDecimal(watermark.toString()));
+            } else {
+                statement.setObject(1, watermark);
+            }
+        }
+
+        private Path getWatermarkPath() {
+            String file = source.getWatermarkFile();
+            return file == null || file.trim().isEmpty() ? null : Paths.get(file.trim());
+        }
+
+        /**
+         * Saved watermark, else the initial one, else null. The file holds
+         * "type TAB value".
+         */
+        private Object loadWatermark() throws ProcessingException {
+            Path path = getWatermarkPath();
+            if (path != null && Files.exists(path)) {
+                try {
+                    String line = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim();
+                    String[] fields = line.split("\t", 2);
+                    if (fields.length == 2) {
+                        return parseWatermark(fields[0], fields[1]);
+                    }
+                    LOG.log(Level.WARNING, "Bad watermark file {0}", path);
+                } catch (IOException | IllegalArgumentException ex) {
+                    throw new ProcessingException("Could not read watermark file " + path, ex);
+                }
+            }
+            String initial = source.getInitialWatermark();
+            if (initial == null || initial.trim().isEmpty()) {
+                return null;
+            }
+            initial = initial.trim();
+            try {
+                return Long.valueOf(initial);
+            } catch (NumberFormatException ex) {
+                // not an integer
+            }
+            try {
+                return Timestamp.valueOf(initial);
+            } catch (IllegalArgumentException ex) {
+                return initial;
+            }
+        }
+
+        private static Object parseWatermark(String type, String value) {
+            switch (type) {
+                case "long":
+                    return Long.valueOf(value);
+                case "number":
+                    return new BigDecimal(value);
+                case "timestamp":
+                    return Timestamp.valueOf(value);
+                case "date":
+                    return java.sql.Date.valueOf(value);
+                default:
+                    return value;
+            }
+        }
+
+        private void saveWatermark(Object watermark) {
+            Path path = getWatermarkPath();
+            if (path == null || watermark == null) {
+                return;
+            }
+            String type;
+            if (watermark instanceof Long || watermark instanceof Integer || watermark instanceof Short) {
+                type = "long";
+            } else if (watermark instanceof Number) {
+                type = "number";
+            } else if (watermark instanceof Timestamp) {
+                type = "timestamp";
+            } else if (watermark instanceof java.sql.Date) {
+                type = "date";
+            } else {
+                type = "string";
+            }
+            try {
+                Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+                Files.write(tmp, (type + "\t" + watermark + "\n").getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, "Could not save watermark: {0}", ex.getMessage());
+            }
+        }
+
         @Override
-        public Object startProcessingEvents(Transport runtime) throws ProcessingException {
-            return null;
+        public Integer startProcessingEvents(Transport runtime) throws ProcessingException {
+            synchronized (this) {
+                checkState(!running, "Source is already processing events. Cannot call processEvents again");
+                running = true;
+            }
+            runtime.start();
+            Integer status = GraphVocabulary.COMPLETE;
+            String outClassName = source.getClass().getCanonicalName();
+            try {
+                connection = getConnection(source.getDriverClass(), source.getUrl(), source.getUsername(), source.getPassword());
+                Consumer<Map<String, Object>> emit = values -> runtime.writeEvents(values, outClassName, source.getId());
+                if (isIncremental()) {
+                    pollIncremental(emit);
+                } else {
+                    processResultSet(connection, emit);
+                }
+            } catch (SQLException ex) {
+                LOG.log(Level.SEVERE, ex.getMessage());
+                status = GraphVocabulary.CANCEL;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                status = GraphVocabulary.CANCEL;
+            } finally {
+                running = false;
+                Connections.closeQuietly(connection);
+                connection = null;
+            }
+            return status;
         }
     }
 }
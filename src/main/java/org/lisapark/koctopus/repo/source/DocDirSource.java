@@ -18,24 +18,51 @@ package org.lisapark.koctopus.repo.source;
 
 import com.fasterxml.uuid.Generators;
 import com.google.common.collect.Maps;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.FileVisitResult;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import org.lisapark.koctopus.core.Output;
 import org.lisapark.koctopus.core.Persistable;
 import org.lisapark.koctopus.core.ValidationException;
 import org.lisapark.koctopus.core.event.Attribute;
 import org.lisapark.koctopus.core.event.Event;
 import org.lisapark.koctopus.core.event.EventType;
+import org.lisapark.koctopus.core.parameter.Constraints;
 import org.lisapark.koctopus.core.parameter.Parameter;
 import org.lisapark.koctopus.core.runtime.ProcessingRuntime;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Stream;
+import java.util.regex.Pattern;
 import org.lisapark.koctopus.core.ProcessingException;
 import org.lisapark.koctopus.core.graph.Gnode;
 import org.lisapark.koctopus.repo.graph.GraphUtils;
@@ -60,6 +87,36 @@ public class DocDirSource extends AbstractExternalSource {
     private static final int FILE_NAME_FILTER = 2;
     private static final int FILE_EXTENTION_FILTER = 3;
     private static final int TRANSPORT_PARAMETER_ID = 4;
+    private static final int THREADS_PARAMETER_ID = 5;
+    private static final int BATCH_SIZE_PARAMETER_ID = 6;
+    private static final int MODE_PARAMETER_ID = 7;
+    private static final int MANIFEST_PARAMETER_ID = 8;
+    private static final int RECONCILE_INTERVAL_PARAMETER_ID = 9;
+    private static final int CONTENT_HASH_PARAMETER_ID = 10;
+    private static final int EMIT_PARAMETER_ID = 11;
+    private static final int CHUNK_SIZE_PARAMETER_ID = 12;
+    private static final int CHUNKING_PARAMETER_ID = 13;
+
+    public static final String MODE_SCAN = "scan";
+    public static final String MODE_WATCH = "watch";
+
+    /**
+     * Watch mode change events carry the change type in this attribute.
+     */
+    public static final String CHANGE_ATTRIBUTE = "change";
+    public static final String CREATED = "CREATED";
+    public static final String MODIFIED = "MODIFIED";
+    public static final String DELETED = "DELETED";
+
+    public static final String EMIT_PATH = "path";
+    public static final String EMIT_CONTENT = "content";
+    public static final String CHUNKING_FIXED = "fixed";
+    public static final String CHUNKING_PARAGRAPH = "paragraph";
+
+    /**
+     * Content mode chunk events carry the text in this attribute.
+     */
+    public static final String CONTENT_ATTRIBUTE = "content";
 
     private static void initAttributeList(DocDirSource fileDirSource) throws ValidationException {
         fileDirSource.getOutput().addAttribute(Attribute.newAttribute(String.class, "Att"));
@@ -97,6 +154,42 @@ public class DocDirSource extends AbstractExternalSource {
         return getParameterValueAsString(TRANSPORT_PARAMETER_ID);
     }
 
+    public Integer getThreads() {
+        return getParameter(THREADS_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getBatchSize() {
+        return getParameter(BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getMode() {
+        return getParameter(MODE_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getManifestFile() {
+        return getParameter(MANIFEST_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getReconcileInterval() {
+        return getParameter(RECONCILE_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Boolean getContentHash() {
+        return (Boolean) getParameter(CONTENT_HASH_PARAMETER_ID).getValue();
+    }
+
+    public String getEmit() {
+        return getParameter(EMIT_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getChunkSize() {
+        return getParameter(CHUNK_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getChunking() {
+        return getParameter(CHUNKING_PARAMETER_ID).getValueAsString();
+    }
+
     @Override
     public DocDirSource copyOf() {
         return new DocDirSource(this);
@@ -138,6 +231,45 @@ public class DocDirSource extends AbstractExternalSource {
             dirSource.addParameter(Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
                     description("Redis URL.").
                     defaultValue("redis://localhost"));
+
+            dirSource.addParameter(Parameter.integerParameterWithIdAndName(THREADS_PARAMETER_ID, "Threads").
+                    description("Number of threads walking the directory tree. 0 - all cores.").
+                    defaultValue(0));
+
+            dirSource.addParameter(Parameter.integerParameterWithIdAndName(BATCH_SIZE_PARAMETER_ID, "Batch size").
+                    description("Number of discovered files written to the output at once.").
+                    defaultValue(1000).
+                    constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Batch size should be greater than 0.")));
+
+            dirSource.addParameter(Parameter.stringParameterWithIdAndName(MODE_PARAMETER_ID, "Mode").
+                    description("scan - emit every file once, watch - emit created, modified and deleted files until stopped.").
+                    defaultValue(MODE_SCAN));
+
+            dirSource.addParameter(Parameter.stringParameterWithIdAndName(MANIFEST_PARAMETER_ID, "Manifest file").
+                    description("File that keeps the state of the watched files between runs."
+                            + " Empty - <Dir Path>.manifest next to the directory.").
+                    defaultValue(""));
+
+            dirSource.addParameter(Parameter.integerParameterWithIdAndName(RECONCILE_INTERVAL_PARAMETER_ID, "Reconcile interval").
+                    description("Seconds between full rescans against the manifest in watch mode.").
+                    defaultValue(300).
+                    constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Reconcile interval should be greater than 0.")));
+
+            dirSource.addParameter(Parameter.booleanParameterWithIdAndName(CONTENT_HASH_PARAMETER_ID, "Content hash").
+                    description("Compare content hashes, so files touched without changes are not re-emitted."));
+
+            dirSource.addParameter(Parameter.stringParameterWithIdAndName(EMIT_PARAMETER_ID, "Emit").
+                    description("path - emit file paths, content - emit the file text in chunks with offsets.").
+                    defaultValue(EMIT_PATH));
+
+            dirSource.addParameter(Parameter.integerParameterWithIdAndName(CHUNK_SIZE_PARAMETER_ID, "Chunk size").
+                    description("Maximum chunk size in bytes in content mode.").
+                    defaultValue(1024 * 1024).
+                    constraint(Constraints.integerConstraintWithMinimumAndMessage(1024, "Chunk size should be at least 1024 bytes.")));
+
+            dirSource.addParameter(Parameter.stringParameterWithIdAndName(CHUNKING_PARAMETER_ID, "Chunking").
+                    description("fixed - cut chunks at the chunk size, paragraph - cut at the last blank line before it.").
+                    defaultValue(CHUNKING_FIXED));
             initAttributeList(dirSource);
 
         } catch (ValidationException ex) {
@@ -156,9 +288,76 @@ public class DocDirSource extends AbstractExternalSource {
         return new CompiledDocDirSource((DocDirSource) source);
     }
 
+    /**
+     * File name and extension filters compiled once from the glob parameters.
+     * The extension is the part after the last dot, so multi-dot names like
+     * "report.2019.pdf" are matched as "report.2019" and "pdf".
+     */
+    static class FileNameFilter {
+
+        private final Pattern namePattern;
+        private final Pattern extPattern;
+
+        FileNameFilter(String nameGlob, String extGlob) {
+            this.namePattern = Pattern.compile(createRegexFromGlob(nameGlob == null ? "*" : nameGlob));
+            this.extPattern = Pattern.compile(createRegexFromGlob(extGlob == null ? "*" : extGlob));
+        }
+
+        boolean accept(Path file) {
+            String fileName = file.getFileName().toString();
+            int dot = fileName.lastIndexOf('.');
+            if (dot <= 0) {
+                // no extension, or a hidden file like ".profile"
+                return namePattern.matcher(fileName).matches();
+            }
+            return namePattern.matcher(fileName).region(0, dot).matches()
+                    && extPattern.matcher(fileName).region(dot + 1, fileName.length()).matches();
+        }
+
+        static String createRegexFromGlob(String glob) {
+            StringBuilder out = new StringBuilder("^");
+            for (int i = 0; i < glob.length(); ++i) {
+                final char c = glob.charAt(i);
+                switch (c) {
+                    case '*':
+                        out.append(".*");
+                        break;
+                    case '?':
+                        out.append('.');
+                        break;
+                    case '.':
+                        out.append("\\.");
+                        break;
+                    case '\\':
+                        out.append("\\\\");
+                        break;
+                    default:
+                        out.append(c);
+                }
+            }
+            out.append('$');
+            return out.toString();
+        }
+    }
+
     static class CompiledDocDirSource implements CompiledExternalSource {
 
+        /**
+         * Minimum time between two manifest saves in watch mode, ms.
+         */
+        private static final long MANIFEST_SAVE_INTERVAL = 10000;
+
+        /**
+         * Chunks up to this size are read into a reused direct buffer,
+         * larger ones are memory-mapped.
+         */
+        private static final int DIRECT_READ_LIMIT = 64 * 1024;
+
         private final DocDirSource source;
+        private final boolean contentMode;
+        private final boolean paragraphs;
+        private final int chunkSize;
+        private ByteBuffer directBuffer;
 
         /**
          * Running is declared volatile because it may be access my different
@@ -168,6 +367,9 @@ public class DocDirSource extends AbstractExternalSource {
 
         public CompiledDocDirSource(DocDirSource source) {
             this.source = source;
+            this.contentMode = EMIT_CONTENT.equalsIgnoreCase(source.getEmit());
+            this.paragraphs = CHUNKING_PARAGRAPH.equalsIgnoreCase(source.getChunking());
+            this.chunkSize = source.getChunkSize() == null ? 1024 * 1024 : source.getChunkSize();
         }
 
         @Override
@@ -180,30 +382,394 @@ public class DocDirSource extends AbstractExternalSource {
             EventType eventType = source.getOutput().getEventType();
             List<Attribute> attributes = eventType.getAttributes();
 
-            String filepattern = createRegexFromGlob(source.getFileFilter());
-            String extpattern = createRegexFromGlob(source.getExtFilter());
-
-            try (Stream<Path> paths = Files.walk(Paths.get(source.getDirPath()))) {
-                paths.filter(Files::isRegularFile)
-                        .forEach((file) -> {
-                            String fileName = file.getFileName().toString();
-                            String[] split = fileName.split("\\.");
-                            if (split.length == 2 && split[0].matches(filepattern) && split[1].matches(extpattern)
-                                    || split.length < 2 && fileName.matches(filepattern)) {
-                                String _fileName = file.toAbsolutePath().toString();
-                                write(attributes, _fileName, runtime);
-                            }
-                        });
+            FileNameFilter filter = new FileNameFilter(source.getFileFilter(), source.getExtFilter());
+
+            if (MODE_WATCH.equalsIgnoreCase(source.getMode())) {
+                return watch(runtime, attributes, filter);
+            }
+            try {
+                boolean done = walk(Paths.get(source.getDirPath()), filter,
+                        batch -> batch.forEach(file -> write(attributes, file.toAbsolutePath().toString(), runtime)));
+                if (!done) {
+                    status = GraphVocabulary.CANCEL;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                status = GraphVocabulary.CANCEL;
             } catch (Exception e) {
+                LOG.log(Level.SEVERE, e.getMessage());
                 status = GraphVocabulary.CANCEL;
+            }
+            return status;
+        }
+
+        /**
+         * Walks the tree on a fork-join pool and hands the accepted files to
+         * the consumer in batches on the calling thread.
+         *
+         * @return false if the walk failed or the source was stopped
+         */
+        private boolean walk(Path root, FileNameFilter filter, Consumer<List<Path>> consumer) throws InterruptedException {
+            int threads = source.getThreads() == null || source.getThreads() <= 0
+                    ? Runtime.getRuntime().availableProcessors() : source.getThreads();
+            int batchSize = source.getBatchSize() == null ? 1000 : source.getBatchSize();
+
+            // Workers only discover files, all writes happen on this thread;
+            // the queue is bounded, so a fast walk waits for the writes
+            BlockingQueue<Path> found = new ArrayBlockingQueue<>(Math.max(1, batchSize) * 4);
+            AtomicBoolean abandoned = new AtomicBoolean();
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                ForkJoinTask<Void> walk = pool.submit(new DirWalker(root, filter, found, abandoned));
+                List<Path> batch = new ArrayList<>(batchSize);
+                while (running) {
+                    Path first = found.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        if (walk.isDone() && found.isEmpty()) {
+                            break;
+                        }
+                        continue;
+                    }
+                    batch.add(first);
+                    found.drainTo(batch, batchSize - 1);
+                    consumer.accept(batch);
+                    batch.clear();
+                }
+                if (walk.isCompletedAbnormally()) {
+                    LOG.log(Level.SEVERE, "Directory walk failed: {0}", walk.getException().getMessage());
+                    return false;
+                }
+                return running;
+            } finally {
+                abandoned.set(true);
+                pool.shutdownNow();
+            }
+        }
 
+        /**
+         * Watch mode. The manifest is reconciled with the directory on start
+         * and every reconcile interval, in between the WatchService reports
+         * the changes. Only created, modified and deleted files are emitted.
+         * Runs until the source is stopped.
+         */
+        private Integer watch(Transport runtime, List<Attribute> attributes, FileNameFilter filter) {
+            Path root = Paths.get(source.getDirPath()).toAbsolutePath();
+            DocManifest manifest = new DocManifest(manifestPath(root));
+            boolean hash = Boolean.TRUE.equals(source.getContentHash());
+            long interval = TimeUnit.SECONDS.toMillis(source.getReconcileInterval() == null ? 300 : source.getReconcileInterval());
+            Integer status = GraphVocabulary.COMPLETE;
+
+            try (WatchService watcher = root.getFileSystem().newWatchService()) {
+                manifest.load();
+                Map<WatchKey, Path> keys = new HashMap<>();
+                // register first, so nothing changed during the reconcile is lost
+                register(watcher, root, keys);
+                reconcile(root, filter, manifest, hash, attributes, runtime);
+                manifest.save();
+
+                long nextReconcile = System.currentTimeMillis() + interval;
+                long lastSave = System.currentTimeMillis();
+                while (running) {
+                    WatchKey key = watcher.poll(1, TimeUnit.SECONDS);
+                    if (key != null) {
+                        Path dir = keys.get(key);
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                // events were lost, only a full reconcile can tell what changed
+                                nextReconcile = 0;
+                            } else if (dir != null) {
+                                Path path = dir.resolve((Path) event.context());
+                                onChange(event.kind(), path, watcher, keys, filter, manifest, hash, attributes, runtime);
+                            }
+                        }
+                        if (!key.reset()) {
+                            keys.remove(key);
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now >= nextReconcile) {
+                        reconcile(root, filter, manifest, hash, attributes, runtime);
+                        nextReconcile = now + interval;
+                    }
+                    if (manifest.isDirty() && now - lastSave >= MANIFEST_SAVE_INTERVAL) {
+                        manifest.save();
+                        lastSave = now;
+                    }
+                }
+                manifest.save();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                status = GraphVocabulary.CANCEL;
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, e.getMessage());
+                status = GraphVocabulary.CANCEL;
             }
             return status;
         }
 
+        private void onChange(WatchEvent.Kind<?> kind, Path path, WatchService watcher, Map<WatchKey, Path> keys,
+                FileNameFilter filter, DocManifest manifest, boolean hash, List<Attribute> attributes, Transport runtime)
+                throws IOException, InterruptedException {
+            if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                String deleted = path.toString();
+                DocManifest.Entry entry = manifest.remove(deleted);
+                if (entry != null) {
+                    writeChange(attributes, deleted, DELETED, entry, runtime);
+                    return;
+                }
+                String prefix = deleted + path.getFileSystem().getSeparator();
+                for (String known : manifest.paths()) {
+                    // a deleted directory takes all its files with it
+                    if (known.equals(deleted) || known.startsWith(prefix)) {
+                        writeChange(attributes, known, DELETED, manifest.remove(known), runtime);
+                    }
+                }
+            } else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                    register(watcher, path, keys);
+                    walk(path, filter, batch -> batch.forEach(file -> detect(file, manifest, hash, attributes, runtime)));
+                }
+            } else if (Files.isRegularFile(path) && filter.accept(path)) {
+                detect(path, manifest, hash, attributes, runtime);
+            }
+        }
+
+        /**
+         * Full rescan: emits the files that differ from the manifest and the
+         * manifest entries that are no longer on disk.
+         */
+        private void reconcile(Path root, FileNameFilter filter, DocManifest manifest, boolean hash,
+                List<Attribute> attributes, Transport runtime) throws InterruptedException {
+            Set<String> seen = new HashSet<>();
+            boolean done = walk(root, filter, batch -> batch.forEach(file -> {
+                seen.add(file.toAbsolutePath().toString());
+                detect(file, manifest, hash, attributes, runtime);
+            }));
+            if (!done) {
+                // an incomplete walk cannot prove that a file is gone
+                return;
+            }
+            for (String known : manifest.paths()) {
+                if (!seen.contains(known)) {
+                    writeChange(attributes, known, DELETED, manifest.remove(known), runtime);
+                }
+            }
+        }
+
+        /**
+         * Compares the file with its manifest entry, updates the entry and
+         * emits a change event if the file is new or has changed.
+         */
+        private void detect(Path file, DocManifest manifest, boolean hash, List<Attribute> attributes, Transport runtime) {
+            Path absolute = file.toAbsolutePath();
+            String key = absolute.toString();
+            if (key.startsWith(manifest.getFile().toAbsolutePath().toString())) {
+                // the manifest itself and its temporary file
+                return;
+            }
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(absolute, BasicFileAttributes.class);
+                long size = attrs.size();
+                long mtime = attrs.lastModifiedTime().toMillis();
+                DocManifest.Entry old = manifest.get(key);
+                if (old != null && old.size == size && old.mtime == mtime) {
+                    return;
+                }
+                String digest = hash ? DocManifest.hash(absolute) : null;
+                DocManifest.Entry entry = new DocManifest.Entry(size, mtime, digest);
+                manifest.put(key, entry);
+                if (old == null) {
+                    writeChange(attributes, key, CREATED, entry, runtime);
+                } else if (!hash || !digest.equals(old.hash)) {
+                    writeChange(attributes, key, MODIFIED, entry, runtime);
+                }
+            } catch (IOException ex) {
+                // the file was removed in the meantime, the delete event or the reconcile will report it
+                LOG.log(Level.FINE, "Cannot read {0}: {1}", new Object[]{key, ex.getMessage()});
+            }
+        }
+
+        private void register(WatchService watcher, Path dir, Map<WatchKey, Path> keys) throws IOException {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) throws IOException {
+                    WatchKey key = subdir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    keys.put(key, subdir.toAbsolutePath());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    LOG.log(Level.WARNING, "Cannot watch {0}: {1}", new Object[]{file, ex.getMessage()});
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        private Path manifestPath(Path root) {
+            String manifest = source.getManifestFile();
+            if (manifest != null && !manifest.trim().isEmpty()) {
+                return Paths.get(manifest.trim()).toAbsolutePath();
+            }
+            return root.getParent() == null
+                    ? root.resolve(".docdir.manifest")
+                    : root.resolveSibling(root.getFileName() + ".manifest");
+        }
+
+        private void writeChange(List<Attribute> attributes, String fileName, String change, DocManifest.Entry entry,
+                Transport runtime) {
+            Map<String, Object> attributeData = Maps.newHashMap();
+            attributes.forEach((attribute) -> {
+                attributeData.put(attribute.getName(), fileName);
+            });
+            attributeData.put(CHANGE_ATTRIBUTE, change);
+            if (entry != null) {
+                attributeData.put("size", entry.size);
+                attributeData.put("mtime", entry.mtime);
+            }
+            if (contentMode && !DELETED.equals(change)) {
+                writeChunks(Paths.get(fileName), attributeData, runtime);
+            } else {
+                runtime.writeEvents(attributeData, source.getClass().getCanonicalName(), source.getId());
+            }
+        }
+
+        /**
+         * Content mode. Emits the file as chunks of at most chunk size bytes
+         * with "offset", "length", "chunk" and "last" attributes. Only one
+         * chunk is on the heap at a time: small chunks go through a reused
+         * direct buffer, large ones are read from a memory-mapped region.
+         */
+        private void writeChunks(Path file, Map<String, Object> attributeData, Transport runtime) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                long offset = 0;
+                int index = 0;
+                do {
+                    int length = (int) Math.min(chunkSize, size - offset);
+                    ByteBuffer buffer = read(channel, offset, length);
+                    int end = offset + length < size ? boundary(buffer, length) : length;
+                    buffer.position(0);
+                    buffer.limit(end);
+
+                    Map<String, Object> e = new HashMap<>(attributeData);
+                    e.put("offset", offset);
+                    e.put("length", end);
+                    e.put("chunk", index);
+                    e.put("last", offset + end >= size);
+                    e.put(CONTENT_ATTRIBUTE, StandardCharsets.UTF_8.decode(buffer).toString());
+                    runtime.writeEvents(e, source.getClass().getCanonicalName(), source.getId());
+
+                    offset += end;
+                    index++;
+                } while (offset < size && running);
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Cannot read {0}: {1}", new Object[]{file, ex.getMessage()});
+            }
+        }
+
+        private ByteBuffer read(FileChannel channel, long offset, int length) throws IOException {
+            if (length > DIRECT_READ_LIMIT) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+            if (directBuffer == null) {
+                directBuffer = ByteBuffer.allocateDirect(DIRECT_READ_LIMIT);
+            }
+            directBuffer.clear();
+            directBuffer.limit(length);
+            while (directBuffer.hasRemaining()) {
+                if (channel.read(directBuffer, offset + directBuffer.position()) < 0) {
+                    break;
+                }
+            }
+            directBuffer.flip();
+            return directBuffer;
+        }
+
+        /**
+         * End of a chunk that is not the last one: after the last blank line
+         * in the second half of the chunk in paragraph mode, otherwise at the
+         * chunk size moved back so a UTF-8 sequence is never cut in two.
+         */
+        private int boundary(ByteBuffer buffer, int length) {
+            int limit = buffer.limit();
+            if (paragraphs) {
+                for (int i = limit - 1; i > limit / 2; i--) {
+                    if (buffer.get(i) == '\n'
+                            && (buffer.get(i - 1) == '\n' || buffer.get(i - 1) == '\r' && buffer.get(i - 2) == '\n')) {
+                        return i + 1;
+                    }
+                }
+            }
+            // start of the last character in the chunk
+            int lead = limit - 1;
+            while (lead > 0 && (buffer.get(lead) & 0xC0) == 0x80) {
+                lead--;
+            }
+            int b = buffer.get(lead) & 0xFF;
+            int charLength = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+            return lead + charLength > limit && lead > 0 ? lead : Math.min(length, limit);
+        }
+
+        /**
+         * Lists one directory, forks a task per sub directory and queues the
+         * files accepted by the filter.
+         */
+        class DirWalker extends RecursiveAction {
+
+            private final Path dir;
+            private final FileNameFilter filter;
+            private final BlockingQueue<Path> found;
+            // the calling thread no longer takes files
+            private final AtomicBoolean abandoned;
+
+            DirWalker(Path dir, FileNameFilter filter, BlockingQueue<Path> found, AtomicBoolean abandoned) {
+                this.dir = dir;
+                this.filter = filter;
+                this.found = found;
+                this.abandoned = abandoned;
+            }
+
+            private boolean isStopped() {
+                return !running || abandoned.get();
+            }
+
+            @Override
+            protected void compute() {
+                if (isStopped()) {
+                    return;
+                }
+                List<DirWalker> subdirs = new ArrayList<>();
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                    for (Path entry : entries) {
+                        if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                            subdirs.add(new DirWalker(entry, filter, found, abandoned));
+                        } else if (Files.isRegularFile(entry) && filter.accept(entry)) {
+                            while (!found.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+                                if (isStopped()) {
+                                    return;
+                                }
+                            }
+                        }
+                    }
+                } catch (IOException ex) {
+                    LOG.log(Level.WARNING, "Cannot read directory {0}: {1}", new Object[]{dir, ex.getMessage()});
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                invokeAll(subdirs);
+            }
+        }
+
         private void write(List<Attribute> attributes, String fileName, Transport runtime) {
             Event e = createEvent(attributes, fileName);
-            runtime.writeEvents(e.getData(), source.getClass().getCanonicalName(), source.getId());
+            if (contentMode) {
+                writeChunks(Paths.get(fileName), e.getData(), runtime);
+            } else {
+                runtime.writeEvents(e.getData(), source.getClass().getCanonicalName(), source.getId());
+            }
         }
 
         private Event createEvent(List<Attribute> attributes, String fileName) {
@@ -216,31 +782,6 @@ public class DocDirSource extends AbstractExternalSource {
             return new Event(attributeData);
         }
 
-        private String createRegexFromGlob(String glob) {
-            StringBuilder out = new StringBuilder("^");
-            for (int i = 0; i < glob.length(); ++i) {
-                final char c = glob.charAt(i);
-                switch (c) {
-                    case '*':
-                        out.append(".*");
-                        break;
-                    case '?':
-                        out.append('.');
-                        break;
-                    case '.':
-                        out.append("\\.");
-                        break;
-                    case '\\':
-                        out.append("\\\\");
-                        break;
-                    default:
-                        out.append(c);
-                }
-            }
-            out.append('$');
-            return out.toString();
-        }
-
         @Override
         public void stopProcessingEvents() {
             running = false;
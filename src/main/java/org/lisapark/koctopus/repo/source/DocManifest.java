@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.source;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persisted state of the files seen by {@link DocDirSource} in watch mode:
+ * path, size, modification time and, optionally, content hash.
+ *
+ * The manifest is a text file with one "size TAB mtime TAB hash TAB path"
+ * line per file. Backslashes and line breaks in paths are escaped as \\,
+ * \n and \r; the header line marks the escaped format, manifests without
+ * it hold the paths as they are. It is rewritten through a temporary file
+ * and an atomic move, so a crash never leaves a truncated manifest behind.
+ *
+ * @author alexmy
+ */
+class DocManifest {
+
+    static final Logger LOG = Logger.getLogger(DocManifest.class.getName());
+
+    private static final String HEADER = "# manifest 2";
+
+    static class Entry {
+
+        final long size;
+        final long mtime;
+        final String hash;
+
+        Entry(long size, long mtime, String hash) {
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+        }
+    }
+
+    private final Path file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean dirty;
+
+    DocManifest(Path file) {
+        this.file = file;
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    void load() throws IOException {
+        entries.clear();
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            boolean escaped = HEADER.equals(line);
+            if (escaped) {
+                line = reader.readLine();
+            }
+            for (; line != null; line = reader.readLine()) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length < 4) {
+                    continue;
+                }
+                try {
+                    String hash = fields[2].isEmpty() ? null : fields[2];
+                    entries.put(escaped ? unescape(fields[3]) : fields[3], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), hash));
+                } catch (NumberFormatException ex) {
+                    LOG.log(Level.WARNING, "Bad manifest line: {0}", line);
+                }
+            }
+        }
+        dirty = false;
+    }
+
+    void save() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                writer.write(Long.toString(entry.size));
+                writer.write('\t');
+                writer.write(Long.toString(entry.mtime));
+                writer.write('\t');
+                writer.write(entry.hash == null ? "" : entry.hash);
+                writer.write('\t');
+                writer.write(escape(e.getKey()));
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    static String escape(String path) {
+        StringBuilder out = new StringBuilder(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            switch (c) {
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    static String unescape(String path) {
+        StringBuilder out = new StringBuilder(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '\\' && i + 1 < path.length()) {
+                char next = path.charAt(++i);
+                out.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    Entry get(String path) {
+        return entries.get(path);
+    }
+
+    void put(String path, Entry entry) {
+        entries.put(path, entry);
+        dirty = true;
+    }
+
+    Entry remove(String path) {
+        Entry entry = entries.remove(path);
+        if (entry != null) {
+            dirty = true;
+        }
+        return entry;
+    }
+
+    Set<String> paths() {
+        return new HashSet<>(entries.keySet());
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * SHA-1 of the file content as a hex string.
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    static String hash(Path path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(path)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        StringBuilder out = new StringBuilder();
+        for (byte b : digest.digest()) {
+            out.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return out.toString();
+    }
+}
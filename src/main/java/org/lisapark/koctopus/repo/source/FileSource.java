@@ -1,4 +1,4 @@
-/* 
+/*
  * Copyright (C) 2013 Lisa Park, Inc. (www.lisa-park.net)
  *
  * This program is free software: you can redistribute it and/or modify
@@ -22,17 +22,34 @@ import org.lisapark.koctopus.core.Output;
 import org.lisapark.koctopus.core.Persistable;
 import org.lisapark.koctopus.core.ValidationException;
 import org.lisapark.koctopus.core.event.Attribute;
-import org.lisapark.koctopus.core.event.Event;
-import org.lisapark.koctopus.core.event.EventType;
 import org.lisapark.koctopus.core.parameter.Constraints;
 import org.lisapark.koctopus.core.parameter.Parameter;
 import org.lisapark.koctopus.core.runtime.ProcessingRuntime;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 import org.lisapark.koctopus.core.ProcessingException;
 import org.lisapark.koctopus.core.graph.Gnode;
 import org.lisapark.koctopus.repo.graph.GraphUtils;
@@ -40,108 +57,180 @@ import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
 import org.lisapark.koctopus.core.source.external.CompiledExternalSource;
 import org.lisapark.koctopus.core.source.external.AbstractExternalSource;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.repo.util.FieldParsers;
+import org.lisapark.koctopus.repo.util.FieldParsers.FieldParser;
 
 /**
+ * Reads a delimited text file (CSV, TSV) into events of the output event
+ * type. The file is memory-mapped in newline aligned chunks that are parsed
+ * in parallel; events are written in file order.
+ *
  * @author dave sinclair(david.sinclair@lisa-park.com)
  */
 @Persistable
 public class FileSource extends AbstractExternalSource {
-    
+
     static final Logger LOG = Logger.getLogger(FileSource.class.getName());
-    
-    private static final String DEFAULT_NAME = "Test data source for Redis";
-    private static final String DEFAULT_DESCRIPTION = "Generate source data according to the provided attribute list.";
-    
+
+    private static final String DEFAULT_NAME = "File source";
+    private static final String DEFAULT_DESCRIPTION = "Read a delimited text file (CSV, TSV) into events with the provided attribute list.";
+
     private static final int NUMBER_OF_EVENTS_PARAMETER_ID = 1;
     private static final int TRANSPORT_PARAMETER_ID = 2;
-    
+    private static final int FILE_PATH_PARAMETER_ID = 3;
+    private static final int DELIMITER_PARAMETER_ID = 4;
+    private static final int QUOTE_PARAMETER_ID = 5;
+    private static final int HEADER_PARAMETER_ID = 6;
+    private static final int COLUMNS_PARAMETER_ID = 7;
+    private static final int THREADS_PARAMETER_ID = 8;
+    private static final int CHUNK_SIZE_PARAMETER_ID = 9;
+
     private static void initAttributeList(FileSource testSource) throws ValidationException {
         testSource.getOutput().addAttribute(Attribute.newAttribute(Integer.class, "Att"));
     }
-    
+
     public FileSource() {
         super(Generators.timeBasedGenerator().generate());
     }
-    
+
     public FileSource(UUID id, String name, String description) {
         super(id, name, description);
     }
-    
+
     private FileSource(UUID id, FileSource copyFromSource) {
         super(id, copyFromSource);
     }
-    
+
     public FileSource(FileSource copyFromSource) {
         super(copyFromSource);
     }
-    
+
     public Integer getNumberOfEvents() {
         return getParameter(NUMBER_OF_EVENTS_PARAMETER_ID).getValueAsInteger();
     }
-    
+
     public String getRedisUrl() {
         return getParameterValueAsString(TRANSPORT_PARAMETER_ID);
     }
-    
+
+    public String getFilePath() {
+        return getParameter(FILE_PATH_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getDelimiter() {
+        return getParameter(DELIMITER_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getQuote() {
+        return getParameter(QUOTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public Boolean getHeader() {
+        return (Boolean) getParameter(HEADER_PARAMETER_ID).getValue();
+    }
+
+    public String getColumns() {
+        return getParameter(COLUMNS_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getThreads() {
+        return getParameter(THREADS_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getChunkSize() {
+        return getParameter(CHUNK_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
     @Override
     public FileSource copyOf() {
         return new FileSource(this);
     }
-    
+
     @Override
     public FileSource newInstance() {
         UUID sourceId = Generators.timeBasedGenerator().generate();
         return new FileSource(sourceId, this);
     }
-    
+
     @Override
     public FileSource newInstance(Gnode gnode) {
         String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
         FileSource testSource = newTemplate(UUID.fromString(uuid));
         GraphUtils.buildSource(testSource, gnode);
-        
+
         return testSource;
     }
-   
+
     public static FileSource newTemplate() {
         UUID sourceId = Generators.timeBasedGenerator().generate();
         return newTemplate(sourceId);
     }
-    
+
     public static FileSource newTemplate(UUID sourceId) {
         FileSource testSource = new FileSource(sourceId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
         testSource.setOutput(Output.outputWithId(1).setName("Output"));
         testSource.addParameter(
                 Parameter.integerParameterWithIdAndName(NUMBER_OF_EVENTS_PARAMETER_ID, "Number of Events").
-                        description("Number of test events to generate.").
-                        defaultValue(100).
-                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
-                                "Number of events has to be greater than zero.")));
+                        description("Maximum number of events to read, 0 - the whole file.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Number of events cannot be negative.")));
         testSource.addParameter(
                 Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
                         description("Redis URL.").
                         defaultValue("redis://localhost"));
+        testSource.addParameter(
+                Parameter.stringParameterWithIdAndName(FILE_PATH_PARAMETER_ID, "File path").
+                        description("Path of the delimited file on the server.").
+                        required(true));
+        testSource.addParameter(
+                Parameter.stringParameterWithIdAndName(DELIMITER_PARAMETER_ID, "Delimiter").
+                        description("Field delimiter, a single char or \\t for tab.").
+                        defaultValue(","));
+        testSource.addParameter(
+                Parameter.stringParameterWithIdAndName(QUOTE_PARAMETER_ID, "Quote").
+                        description("Quote char of quoted fields, doubled inside a field. Empty - no quoting. "
+                                + "Quoted fields cannot span lines.").
+                        defaultValue("\""));
+        testSource.addParameter(
+                Parameter.booleanParameterWithIdAndName(HEADER_PARAMETER_ID, "Header").
+                        description("The first line holds column names, attributes are matched to columns by name."));
+        testSource.addParameter(
+                Parameter.stringParameterWithIdAndName(COLUMNS_PARAMETER_ID, "Columns").
+                        description("Comma separated column names or 0-based indexes, one per output attribute. "
+                                + "Empty - by header name or by position. Other columns are skipped unparsed.").
+                        defaultValue(""));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(THREADS_PARAMETER_ID, "Threads").
+                        description("Number of chunks parsed in parallel. 0 - all cores.").
+                        defaultValue(0));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(CHUNK_SIZE_PARAMETER_ID, "Chunk size").
+                        description("Bytes mapped and parsed by one task, rounded to whole lines.").
+                        defaultValue(8 * 1024 * 1024).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(4096,
+                                "Chunk size should be at least 4096.")));
         try {
             initAttributeList(testSource);
         } catch (ValidationException ex) {
             LOG.log(Level.SEVERE, ex.getMessage());
         }
-        
+
         return testSource;
     }
-    
+
     @Override
     public CompiledExternalSource compile() throws ValidationException {
-        return new CompiledTestSource(copyOf());
+        return new CompiledFileSource(copyOf());
     }
 
     @Override
     public <T extends AbstractExternalSource> CompiledExternalSource compile(T source) throws ValidationException {
-        return new CompiledTestSource((FileSource)source);
+        return new CompiledFileSource((FileSource)source);
     }
-    
-    static class CompiledTestSource implements CompiledExternalSource {
-        
+
+    static class CompiledFileSource implements CompiledExternalSource {
+
         private final FileSource source;
 
         /**
@@ -149,58 +238,321 @@ public class FileSource extends AbstractExternalSource {
          * threads
          */
         private volatile boolean running;
-        private final long SLIEEP_TIME = 1L;
-        
-        public CompiledTestSource(FileSource source) {
+
+        private final String[] names;
+        private final FieldParser[] parsers;
+        private final char delimiter;
+        private final char quote;
+        private final boolean quoted;
+
+        /**
+         * Attribute index by column index, -1 for skipped columns. Set once
+         * the header is known, read only while chunks are parsed.
+         */
+        private int[] attributeOfColumn;
+
+        /**
+         * Decode buffer of every parsing thread, grown to the largest chunk.
+         */
+        private final ThreadLocal<CharBuffer> chars = new ThreadLocal<>();
+
+        public CompiledFileSource(FileSource source) {
             this.source = source;
+            List<Attribute> attributes = source.getOutput().getEventType().getAttributes();
+            this.names = new String[attributes.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = attributes.get(i).getName();
+            }
+            this.parsers = FieldParsers.forAttributes(attributes);
+
+            String delim = source.getDelimiter();
+            if (delim == null || delim.isEmpty()) {
+                this.delimiter = ',';
+            } else if ("\\t".equals(delim) || "tab".equalsIgnoreCase(delim)) {
+                this.delimiter = '\t';
+            } else {
+                this.delimiter = delim.charAt(0);
+            }
+            String q = source.getQuote();
+            this.quoted = q != null && !q.isEmpty();
+            this.quote = quoted ? q.charAt(0) : 0;
         }
-        
+
+        /**
+         * The main thread cuts the file into chunks ending at a line end,
+         * a pool maps and parses them and the main thread writes the parsed
+         * chunks in file order. At most twice the number of threads chunks
+         * are in flight, so memory stays bounded for any file size.
+         */
         @Override
-        @SuppressWarnings("SleepWhileInLoop")
-        public Integer startProcessingEvents(Transport runtime) {             
-            
-            Thread thread = Thread.currentThread();
+        public Integer startProcessingEvents(Transport runtime) throws ProcessingException {
             runtime.start();
             running = true;
             Integer status = GraphVocabulary.COMPLETE;
-            
-            EventType eventType = source.getOutput().getEventType();
-            List<Attribute> attributes = eventType.getAttributes();
-            int numberEventsCreated = 0;
-            
-            while (!thread.isInterrupted() && running && numberEventsCreated < source.getNumberOfEvents()) {
-                Event e = createEvent(attributes, numberEventsCreated++);
-                
-                runtime.writeEvents(e.getData(), source.getClass().getCanonicalName(), source.getId());
-                
-                try {
-                    Thread.sleep(SLIEEP_TIME);
-                } catch (InterruptedException ex) {
-                    status = GraphVocabulary.CANCEL;
-                    LOG.log(Level.SEVERE, ex.getMessage());
+            int limit = source.getNumberOfEvents() == null ? 0 : source.getNumberOfEvents();
+            int chunkSize = source.getChunkSize() == null ? 8 * 1024 * 1024 : source.getChunkSize();
+            int threads = source.getThreads() == null || source.getThreads() <= 0
+                    ? Runtime.getRuntime().availableProcessors() : source.getThreads();
+            String outClassName = source.getClass().getCanonicalName();
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try (FileChannel channel = FileChannel.open(Paths.get(source.getFilePath()), StandardOpenOption.READ)) {
+                long size = channel.size();
+                long position = 0;
+                String[] header = null;
+                if (Boolean.TRUE.equals(source.getHeader())) {
+                    long end = lineEnd(channel, 0, size);
+                    header = split(channel, 0, end);
+                    position = end;
+                }
+                attributeOfColumn = mapColumns(header);
+
+                Deque<Future<List<Map<String, Object>>>> inFlight = new ArrayDeque<>();
+                long count = 0;
+                while (running && (position < size || !inFlight.isEmpty())) {
+                    while (position < size && inFlight.size() < threads * 2) {
+                        long start = position;
+                        long end = lineEnd(channel, Math.min(size, start + chunkSize) - 1, size);
+                        inFlight.add(pool.submit(() -> parseChunk(channel, start, end)));
+                        position = end;
+                    }
+                    for (Map<String, Object> event : inFlight.poll().get()) {
+                        if (!running || (limit > 0 && count >= limit)) {
+                            running = false;
+                            break;
+                        }
+                        runtime.writeEvents(event, outClassName, source.getId());
+                        count++;
+                    }
                 }
+                LOG.log(Level.INFO, "File events written: {0}", count);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                status = GraphVocabulary.CANCEL;
+            } catch (IOException | ExecutionException | IllegalArgumentException ex) {
+                LOG.log(Level.SEVERE, "Cannot read {0}: {1}", new Object[]{source.getFilePath(), ex.getMessage()});
+                status = GraphVocabulary.CANCEL;
+            } finally {
+                running = false;
+                pool.shutdownNow();
             }
             return status;
         }
-        
-        private Event createEvent(List<Attribute> attributes, int eventNumber) {
-            Map<String, Object> attributeData = Maps.newHashMap();
-            
-            attributes.forEach((attribute) -> {
-                attributeData.put(attribute.getName(), attribute.createSampleData(eventNumber));
-            });
-            
-            return new Event(attributeData);
+
+        /**
+         * Position after the first line end at or after from, or size.
+         */
+        private static long lineEnd(FileChannel channel, long from, long size) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            long position = Math.max(from, 0);
+            while (position < size) {
+                buffer.clear();
+                int n = channel.read(buffer, position);
+                if (n <= 0) {
+                    break;
+                }
+                for (int i = 0; i < n; i++) {
+                    if (buffer.get(i) == '\n') {
+                        return position + i + 1;
+                    }
+                }
+                position += n;
+            }
+            return size;
+        }
+
+        private List<Map<String, Object>> parseChunk(FileChannel channel, long start, long end) throws IOException {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            CharBuffer buffer = decode(mapped, (int) (end - start));
+            char[] text = buffer.array();
+            int length = buffer.position();
+
+            List<Map<String, Object>> events = new ArrayList<>();
+            int lineStart = 0;
+            while (lineStart < length && running) {
+                int lineEnd = lineStart;
+                while (lineEnd < length && text[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                int next = lineEnd + 1;
+                if (lineEnd > lineStart && text[lineEnd - 1] == '\r') {
+                    lineEnd--;
+                }
+                if (lineEnd > lineStart) {
+                    events.add(parseLine(text, lineStart, lineEnd));
+                }
+                lineStart = next;
+            }
+            return events;
+        }
+
+        /**
+         * Decodes the chunk into the thread's reused buffer. Chunks end at a
+         * line end, so no multi-byte char is split.
+         */
+        private CharBuffer decode(ByteBuffer bytes, int capacity) {
+            CharBuffer buffer = chars.get();
+            if (buffer == null || buffer.capacity() < capacity) {
+                buffer = CharBuffer.allocate(capacity);
+                chars.set(buffer);
+            }
+            buffer.clear();
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            decoder.decode(bytes, buffer, true);
+            decoder.flush(buffer);
+            return buffer;
         }
-        
+
+        /**
+         * Splits the line and parses only the columns mapped to attributes.
+         * Scanning stops after the last mapped column. Empty and unparsable
+         * fields are left out.
+         */
+        private Map<String, Object> parseLine(char[] text, int start, int end) {
+            Map<String, Object> values = Maps.newHashMapWithExpectedSize(names.length);
+            int last = attributeOfColumn.length - 1;
+            int i = start;
+            for (int column = 0; column <= last; column++) {
+                int fieldStart = i;
+                int fieldEnd;
+                boolean escaped = false;
+                if (quoted && i < end && text[i] == quote) {
+                    int j = i + 1;
+                    while (j < end) {
+                        if (text[j] == quote) {
+                            if (j + 1 < end && text[j + 1] == quote) {
+                                escaped = true;
+                                j += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        j++;
+                    }
+                    fieldStart = i + 1;
+                    fieldEnd = j;
+                    i = Math.min(j + 1, end);
+                    while (i < end && text[i] != delimiter) {
+                        i++;
+                    }
+                } else {
+                    while (i < end && text[i] != delimiter) {
+                        i++;
+                    }
+                    fieldEnd = i;
+                }
+                int attribute = attributeOfColumn[column];
+                if (attribute >= 0 && fieldEnd > fieldStart) {
+                    try {
+                        if (escaped) {
+                            char[] field = unescape(text, fieldStart, fieldEnd);
+                            values.put(names[attribute], parsers[attribute].parse(field, 0, field.length));
+                        } else {
+                            values.put(names[attribute], parsers[attribute].parse(text, fieldStart, fieldEnd));
+                        }
+                    } catch (IllegalArgumentException e) {
+                        LOG.log(Level.FINE, "Bad {0} value: {1}", new Object[]{names[attribute], e.getMessage()});
+                    }
+                }
+                if (i >= end) {
+                    break;
+                }
+                i++;
+            }
+            return values;
+        }
+
+        private char[] unescape(char[] text, int start, int end) {
+            char[] field = new char[end - start];
+            int n = 0;
+            for (int i = start; i < end; i++) {
+                field[n++] = text[i];
+                if (text[i] == quote && i + 1 < end && text[i + 1] == quote) {
+                    i++;
+                }
+            }
+            return Arrays.copyOf(field, n);
+        }
+
+        private String[] split(FileChannel channel, long start, long end) throws IOException {
+            ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+            channel.read(bytes, start);
+            bytes.flip();
+            String line = StandardCharsets.UTF_8.decode(bytes).toString().trim();
+            String[] fields = line.split(Pattern.quote(String.valueOf(delimiter)), -1);
+            for (int i = 0; i < fields.length; i++) {
+                String field = fields[i].trim();
+                if (quoted && field.length() >= 2 && field.charAt(0) == quote && field.charAt(field.length() - 1) == quote) {
+                    field = field.substring(1, field.length() - 1);
+                }
+                fields[i] = field;
+            }
+            return fields;
+        }
+
+        /**
+         * Column of every attribute: from the Columns parameter, else by
+         * header name, else by position.
+         */
+        private int[] mapColumns(String[] header) {
+            int[] columnOfAttribute = new int[names.length];
+            String columns = source.getColumns();
+            String[] tokens = columns == null || columns.trim().isEmpty() ? null : columns.split(",");
+            if (tokens != null && tokens.length != names.length) {
+                throw new IllegalArgumentException(String.format("%d columns given for %d attributes",
+                        tokens.length, names.length));
+            }
+            for (int a = 0; a < names.length; a++) {
+                if (tokens == null) {
+                    columnOfAttribute[a] = header == null ? a : indexOf(header, names[a]);
+                } else {
+                    String token = tokens[a].trim();
+                    try {
+                        columnOfAttribute[a] = Integer.parseInt(token);
+                    } catch (NumberFormatException ex) {
+                        if (header == null) {
+                            throw new IllegalArgumentException("Column names need a header: " + token);
+                        }
+                        columnOfAttribute[a] = indexOf(header, token);
+                    }
+                }
+                if (columnOfAttribute[a] < 0) {
+                    LOG.log(Level.WARNING, "No column for attribute {0}", names[a]);
+                }
+            }
+            int max = -1;
+            for (int column : columnOfAttribute) {
+                max = Math.max(max, column);
+            }
+            int[] attributes = new int[max + 1];
+            Arrays.fill(attributes, -1);
+            for (int a = 0; a < columnOfAttribute.length; a++) {
+                if (columnOfAttribute[a] >= 0) {
+                    attributes[columnOfAttribute[a]] = a;
+                }
+            }
+            return attributes;
+        }
+
+        private static int indexOf(String[] header, String name) {
+            for (int i = 0; i < header.length; i++) {
+                if (header[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
         @Override
         public void stopProcessingEvents() {
             running = false;
         }
-        
+
         @Override
         public void startProcessingEvents(ProcessingRuntime runtime) throws ProcessingException {
-            
+
         }
     }
 }
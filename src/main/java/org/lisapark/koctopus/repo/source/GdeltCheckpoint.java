@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.source;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Progress of {@link GdeltZipSource} over a sequence of archives: the
+ * manifest of fully ingested archives and, for the archive in progress, the
+ * number of lines written from every entry.
+ *
+ * Stored as text lines "done TAB archive", "current TAB archive" and
+ * "entry TAB name TAB lines", where lines = -1 marks a finished entry. The
+ * file is rewritten through a temporary file and an atomic move. Without a
+ * file the checkpoint is kept in memory only.
+ *
+ * @author alexmy
+ */
+class GdeltCheckpoint {
+
+    static final Logger LOG = Logger.getLogger(GdeltCheckpoint.class.getName());
+
+    private static final long ENTRY_DONE = -1;
+
+    private final Path file;
+    private final Set<String> done = new LinkedHashSet<>();
+    private final Map<String, Long> entries = new HashMap<>();
+    private String current;
+
+    GdeltCheckpoint(Path file) {
+        this.file = file;
+    }
+
+    void load() throws IOException {
+        if (file == null || !Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length == 2 && "done".equals(fields[0])) {
+                    done.add(fields[1]);
+                } else if (fields.length == 2 && "current".equals(fields[0])) {
+                    current = fields[1];
+                } else if (fields.length == 3 && "entry".equals(fields[0])) {
+                    try {
+                        entries.put(fields[1], Long.parseLong(fields[2]));
+                    } catch (NumberFormatException ex) {
+                        LOG.log(Level.WARNING, "Bad checkpoint line: {0}", line);
+                    }
+                }
+            }
+        }
+    }
+
+    synchronized void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (String archive : done) {
+                writer.write("done\t" + archive);
+                writer.newLine();
+            }
+            if (current != null) {
+                writer.write("current\t" + current);
+                writer.newLine();
+                for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                    writer.write("entry\t" + entry.getKey() + "\t" + entry.getValue());
+                    writer.newLine();
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    boolean isDone(String archive) {
+        return done.contains(archive);
+    }
+
+    /**
+     * Starts or resumes the archive. Entry progress is kept only if the
+     * checkpoint was taken in the same archive.
+     */
+    synchronized void begin(String archive) {
+        if (!archive.equals(current)) {
+            current = archive;
+            entries.clear();
+        }
+    }
+
+    synchronized void complete(String archive) {
+        done.add(archive);
+        current = null;
+        entries.clear();
+    }
+
+    /**
+     * Lines of the entry already written, 0 for a new entry.
+     */
+    synchronized long linesDone(String entry) {
+        Long lines = entries.get(entry);
+        return lines == null || lines == ENTRY_DONE ? 0 : lines;
+    }
+
+    synchronized boolean isEntryDone(String entry) {
+        Long lines = entries.get(entry);
+        return lines != null && lines == ENTRY_DONE;
+    }
+
+    synchronized void setLinesDone(String entry, long lines) {
+        entries.put(entry, lines);
+    }
+
+    synchronized void entryDone(String entry) {
+        entries.put(entry, ENTRY_DONE);
+    }
+}
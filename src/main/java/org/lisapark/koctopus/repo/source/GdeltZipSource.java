@@ -19,33 +19,49 @@ package org.lisapark.koctopus.repo.source;
 import com.fasterxml.uuid.Generators;
 import static com.google.common.base.Preconditions.checkState;
 import com.google.common.collect.Maps;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import org.lisapark.koctopus.core.Output;
 import org.lisapark.koctopus.core.Persistable;
 import org.lisapark.koctopus.core.ValidationException;
 import org.lisapark.koctopus.core.event.Attribute;
 import org.lisapark.koctopus.core.event.Event;
-import org.lisapark.koctopus.core.event.EventType;
+import org.lisapark.koctopus.core.parameter.Constraints;
 import org.lisapark.koctopus.core.parameter.Parameter;
 import org.lisapark.koctopus.core.runtime.ProcessingRuntime;
 
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import org.lisapark.koctopus.core.source.external.CompiledExternalSource;
 import org.lisapark.koctopus.core.source.external.AbstractExternalSource;
-import org.lisapark.koctopus.repo.util.Booleans;
+import org.lisapark.koctopus.repo.util.DelimitedLineReader;
+import org.lisapark.koctopus.repo.util.FieldParsers;
+import org.lisapark.koctopus.repo.util.FieldParsers.FieldParser;
 import org.lisapark.koctopus.core.ProcessingException;
 import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
 
 /**
  * @author alexmy (alexmy@lisa-park.com)
@@ -61,6 +77,10 @@ public class GdeltZipSource extends AbstractExternalSource {
     private static final int ZIP_FILE_DIR_PARAMETER_ID = 1;
     private static final int FILE_NAME_PARAMETER_ID = 2;
     private static final int READ_LIMIT_PARAMETER_ID = 3;
+    private static final int THREADS_PARAMETER_ID = 4;
+    private static final int BATCH_SIZE_PARAMETER_ID = 5;
+    private static final int CHECKPOINT_FILE_PARAMETER_ID = 6;
+    private static final int CHECKPOINT_INTERVAL_PARAMETER_ID = 7;
 
     private static void initAttributeList(GdeltZipSource gdeltZipSource) throws ValidationException {
 
@@ -124,6 +144,10 @@ public class GdeltZipSource extends AbstractExternalSource {
         gdeltZipSource.getOutput().addAttribute(Attribute.newAttribute(String.class, "SOURCEURL"));
     }
 
+    public GdeltZipSource() {
+        super(Generators.timeBasedGenerator().generate());
+    }
+
     public GdeltZipSource(UUID id, String name, String description) {
         super(id, name, description);
     }
@@ -148,6 +172,22 @@ public class GdeltZipSource extends AbstractExternalSource {
         return getParameter(ZIP_FILE_DIR_PARAMETER_ID).getValueAsString();
     }
 
+    public Integer getThreads() {
+        return getParameter(THREADS_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getBatchSize() {
+        return getParameter(BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getCheckpointFile() {
+        return getParameter(CHECKPOINT_FILE_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getCheckpointInterval() {
+        return getParameter(CHECKPOINT_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+
     @Override
     public GdeltZipSource copyOf() {
         return new GdeltZipSource(this);
@@ -161,12 +201,19 @@ public class GdeltZipSource extends AbstractExternalSource {
 
     @Override
     public GdeltZipSource newInstance(Gnode gnode) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        GdeltZipSource gdeltZipSource = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildSource(gdeltZipSource, gnode);
+
+        return gdeltZipSource;
     }
 
     public static GdeltZipSource newTemplate() {
         UUID sourceId = Generators.timeBasedGenerator().generate();
+        return newTemplate(sourceId);
+    }
 
+    public static GdeltZipSource newTemplate(UUID sourceId) {
         GdeltZipSource gdeltZipSource = new GdeltZipSource(sourceId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
         gdeltZipSource.setOutput(Output.outputWithId(1).setName("Output"));
 
@@ -177,13 +224,36 @@ public class GdeltZipSource extends AbstractExternalSource {
 
         gdeltZipSource.addParameter(
                 Parameter.stringParameterWithIdAndName(FILE_NAME_PARAMETER_ID, "File Name").
-                description("Zip File Name.").
+                description("Zip file name or glob, e.g. *.export.CSV.zip. Matching archives are read in name order.").
                 defaultValue("20140306.export.CSV.zip"));
 
         gdeltZipSource.addParameter(
                 Parameter.stringParameterWithIdAndName(ZIP_FILE_DIR_PARAMETER_ID, "Zip Dir").
                 description("Zip directory on the server.").
                 defaultValue("/home/alexmy/GDELT/"));
+
+        gdeltZipSource.addParameter(
+                Parameter.integerParameterWithIdAndName(THREADS_PARAMETER_ID, "Threads").
+                description("Number of zip entries decompressed and parsed in parallel. 0 - all cores.").
+                defaultValue(0));
+
+        gdeltZipSource.addParameter(
+                Parameter.integerParameterWithIdAndName(BATCH_SIZE_PARAMETER_ID, "Batch size").
+                description("Number of parsed lines handed to the writer at once.").
+                defaultValue(500).
+                constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Batch size should be greater than 0.")));
+
+        gdeltZipSource.addParameter(
+                Parameter.stringParameterWithIdAndName(CHECKPOINT_FILE_PARAMETER_ID, "Checkpoint file").
+                description("File keeping ingested archives and the position in the current one, relative to Zip Dir. "
+                        + "Empty - no checkpoints, every run starts over.").
+                defaultValue(""));
+
+        gdeltZipSource.addParameter(
+                Parameter.integerParameterWithIdAndName(CHECKPOINT_INTERVAL_PARAMETER_ID, "Checkpoint interval").
+                description("Number of written lines between checkpoints.").
+                defaultValue(100000).
+                constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Checkpoint interval should be greater than 0.")));
         try {
             initAttributeList(gdeltZipSource);
         } catch (ValidationException ex) {
@@ -203,6 +273,23 @@ public class GdeltZipSource extends AbstractExternalSource {
         return new CompiledGdeltSource((GdeltZipSource) source);
     }
 
+    /**
+     * Parsed lines of one entry, firstLine is the line number of the first
+     * event. A batch with null events marks the end of the entry.
+     */
+    private static class Batch {
+
+        final String entry;
+        final long firstLine;
+        final List<Map<String, Object>> events;
+
+        Batch(String entry, long firstLine, List<Map<String, Object>> events) {
+            this.entry = entry;
+            this.firstLine = firstLine;
+            this.events = events;
+        }
+    }
+
     static class CompiledGdeltSource implements CompiledExternalSource {
         private final GdeltZipSource source;
         /**
@@ -210,9 +297,34 @@ public class GdeltZipSource extends AbstractExternalSource {
          * threads
          */
         private volatile boolean running;
+        // the read limit ended the run, not a failure or a stop
+        private volatile boolean limitReached;
+        /**
+         * Events written in this run, only touched by the writing thread.
+         */
+        private long count;
+
+        /**
+         * Attribute names and parsers in column order, prepared once from
+         * the output event type.
+         */
+        private final String[] names;
+        private final FieldParser[] parsers;
 
         public CompiledGdeltSource(GdeltZipSource source) {
             this.source = source;
+            List<Attribute> attributes = source.getOutput().getEventType().getAttributes();
+            this.names = new String[attributes.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = attributes.get(i).getName();
+            }
+            this.parsers = FieldParsers.forAttributes(attributes);
+        }
+
+        private String getZipPath() {
+            String zipDir = source.getZipDir();
+            String fileName = source.getFileName();
+            return zipDir.endsWith("/") ? zipDir + fileName : zipDir + "/" + fileName;
         }
 
         @Override
@@ -221,42 +333,21 @@ public class GdeltZipSource extends AbstractExternalSource {
                 checkState(!running, "Source is already processing events. Cannot call processEvents again");
                 running = true;
             }
-            EventType eventType = source.getOutput().getEventType();
             Integer readLimit = source.getReadLimit();
-            String fileName = source.getFileName();
-            String zipDir = source.getZipDir();
-            Map<String, Object> attributeData = Maps.newHashMap();
             int count = 0;
-            String line;
-            try {
-                ZipFile zipFile = new ZipFile(zipDir.endsWith("/") ? zipDir + fileName : zipDir + "/" + fileName);
+            try (ZipFile zipFile = new ZipFile(getZipPath())) {
                 final Enumeration<? extends ZipEntry> entries = zipFile.entries();
                 while (running && entries.hasMoreElements()) {
                     final ZipEntry zipEntry = entries.nextElement();
                     if (!zipEntry.isDirectory()) {
-                        InputStream input = zipFile.getInputStream(zipEntry);
-                        try {
-                            BufferedReader br = new BufferedReader(new InputStreamReader(input, "UTF-8"));
-                            if (readLimit > 0) {
-                                while ((line = br.readLine()) != null && count < readLimit) {
-                                    Event newEvent = createEventFromLine(line, eventType);
-                                    runtime.sendEventFromSource(newEvent, source);
-                                    count++;
-                                }
-                            } else {
-                                while ((line = br.readLine()) != null) {
-                                    Event newEvent = createEventFromLine(line, eventType);
-                                    runtime.sendEventFromSource(newEvent, source);
-                                }
+                        try (DelimitedLineReader reader = openEntry(zipFile, zipEntry)) {
+                            while (running && (readLimit <= 0 || count < readLimit) && reader.next()) {
+                                Event newEvent = new Event(createEventFromLine(reader));
+                                runtime.sendEventFromSource(newEvent, source);
+                                count++;
                             }
-                        } catch (IllegalArgumentException iae) {
-                            LOG.log(Level.SEVERE, iae.getMessage());
-                        } catch (IOException e) {                            
+                        } catch (IOException e) {
                             LOG.log(Level.SEVERE, "Unhandled exception: {0}", e.getMessage());
-                        } finally {
-                            if (input != null) {
-                                input.close();
-                            }
                         }
                     }
                 }
@@ -265,63 +356,272 @@ public class GdeltZipSource extends AbstractExternalSource {
             }
         }
 
+        /**
+         * Archives matching the file name are ingested one after another in
+         * name order. Archives listed in the checkpoint as done are skipped,
+         * the unfinished one resumes after the last written line of every
+         * entry. Delivery is at least once: lines written after the last
+         * checkpoint are sent again after a crash. An archive left incomplete,
+         * by a stop or a failed entry, ends the run with CANCEL; reaching the
+         * read limit ends it with COMPLETE.
+         */
         @Override
-        public void stopProcessingEvents() {
-            running = false;
-        }
-
-        private synchronized Event createEventFromLine(String line, EventType eventType) {
-            String[] fields = line.split("\\t");
-            Map<String, Object> attributeValues = Maps.newHashMap();
-            int index = 0;
-            List<Attribute> attributes = eventType.getAttributes();
-            for (Attribute attribute : attributes) {
-                Class type = attribute.getType();
-                String attributeName = attribute.getName();
-                String field = fields[index];
-                if (field.isEmpty()) {
-                    attributeValues.put(attributeName, null);
-                } else {
+        public Integer startProcessingEvents(Transport runtime) throws ProcessingException {
+            runtime.start();
+            running = true;
+            limitReached = false;
+            count = 0;
+            Integer status = GraphVocabulary.COMPLETE;
+            GdeltCheckpoint checkpoint = new GdeltCheckpoint(getCheckpointPath());
+            try {
+                checkpoint.load();
+                for (Path archive : listArchives()) {
+                    if (!running) {
+                        break;
+                    }
+                    String name = archive.getFileName().toString();
+                    if (checkpoint.isDone(name)) {
+                        LOG.log(Level.INFO, "Skipping ingested archive {0}", name);
+                        continue;
+                    }
+                    checkpoint.begin(name);
                     try {
-                        if (type == String.class) {
-                            String value = field;
-                            attributeValues.put(attributeName, value);
-                        } else if (type == Integer.class) {
-                            int value = Integer.valueOf(field);
-                            attributeValues.put(attributeName, value);
-                        } else if (type == Short.class) {
-                            short value = Short.valueOf(field);
-                            attributeValues.put(attributeName, value);
-                        } else if (type == Long.class) {
-                            long value = Long.valueOf(field);
-                            attributeValues.put(attributeName, value);
-                        } else if (type == Double.class) {
-                            double value = Double.valueOf(field);
-                            attributeValues.put(attributeName, value);
-                        } else if (type == Float.class) {
-                            float value = Float.valueOf(field);
-                            attributeValues.put(attributeName, value);
-                        } else if (type == Boolean.class) {
-                            attributeValues.put(attributeName, Booleans.parseBoolean(field));
+                        if (ingestArchive(archive, checkpoint, runtime)) {
+                            checkpoint.complete(name);
+                        } else if (limitReached) {
+                            // the line progress stays in the checkpoint
+                            LOG.log(Level.INFO, "Read limit reached in archive {0}", name);
+                            break;
                         } else {
-                            throw new IllegalArgumentException(String.format("Unknown attribute type %s", type));
+                            // keep its line progress for the restart, the next
+                            // archive would reset it
+                            LOG.log(Level.WARNING, "Archive {0} not completed, stopping", name);
+                            status = GraphVocabulary.CANCEL;
+                            break;
+                        }
+                    } finally {
+                        checkpoint.save();
+                    }
+                }
+                LOG.log(Level.INFO, "GDELT events written: {0}", count);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                status = GraphVocabulary.CANCEL;
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, "Unhandled exception: {0}", ex.getMessage());
+                status = GraphVocabulary.CANCEL;
+            } finally {
+                running = false;
+            }
+            return status;
+        }
+
+        /**
+         * Entries are decompressed and parsed by a pool of workers, one entry
+         * per task. Workers hand batches of parsed lines to this thread,
+         * which is the only one writing to the transport and advancing the
+         * checkpoint. Lines of one entry keep their order, entries are
+         * interleaved.
+         *
+         * @return true if every entry of the archive has been written
+         */
+        private boolean ingestArchive(Path archive, GdeltCheckpoint checkpoint, Transport runtime)
+                throws IOException, InterruptedException {
+            Integer readLimit = source.getReadLimit();
+            int batchSize = source.getBatchSize() == null ? 500 : source.getBatchSize();
+            long interval = source.getCheckpointInterval() == null ? 100000 : source.getCheckpointInterval();
+            String outClassName = source.getClass().getCanonicalName();
+
+            try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+                List<ZipEntry> entries = new ArrayList<>();
+                Enumeration<? extends ZipEntry> e = zipFile.entries();
+                while (e.hasMoreElements()) {
+                    ZipEntry zipEntry = e.nextElement();
+                    if (!zipEntry.isDirectory() && !checkpoint.isEntryDone(zipEntry.getName())) {
+                        entries.add(zipEntry);
+                    }
+                }
+                if (entries.isEmpty()) {
+                    return true;
+                }
+                int threads = source.getThreads() == null || source.getThreads() <= 0
+                        ? Runtime.getRuntime().availableProcessors() : source.getThreads();
+                threads = Math.min(threads, entries.size());
+
+                BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(threads * 4);
+                AtomicInteger remaining = new AtomicInteger(entries.size());
+                ExecutorService pool = Executors.newFixedThreadPool(threads);
+                try {
+                    for (ZipEntry zipEntry : entries) {
+                        long skip = checkpoint.linesDone(zipEntry.getName());
+                        pool.submit(() -> {
+                            try {
+                                parseEntry(zipFile, zipEntry, skip, batchSize, batches);
+                            } finally {
+                                remaining.decrementAndGet();
+                            }
+                        });
+                    }
+
+                    long sinceCheckpoint = 0;
+                    while (running) {
+                        Batch batch = batches.poll(100, TimeUnit.MILLISECONDS);
+                        if (batch == null) {
+                            if (remaining.get() == 0 && batches.isEmpty()) {
+                                break;
+                            }
+                            continue;
+                        }
+                        if (batch.events == null) {
+                            checkpoint.entryDone(batch.entry);
+                            continue;
+                        }
+                        int written = 0;
+                        for (Map<String, Object> event : batch.events) {
+                            if (readLimit > 0 && count >= readLimit) {
+                                limitReached = true;
+                                running = false;
+                                break;
+                            }
+                            runtime.writeEvents(event, outClassName, source.getId());
+                            count++;
+                            written++;
                         }
-                    } catch (IllegalArgumentException e) {
-                        LOG.log(Level.SEVERE, "IllegalArgumentException: {0}", e.getMessage());
-                        attributeValues.put(attributeName, null);
+                        if (written > 0) {
+                            checkpoint.setLinesDone(batch.entry, batch.firstLine + written - 1);
+                            sinceCheckpoint += written;
+                        }
+                        if (sinceCheckpoint >= interval) {
+                            checkpoint.save();
+                            sinceCheckpoint = 0;
+                        }
+                    }
+                } finally {
+                    pool.shutdownNow();
+                }
+                for (ZipEntry zipEntry : entries) {
+                    if (!checkpoint.isEntryDone(zipEntry.getName())) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+
+        /**
+         * Parses the entry, skipping the first lines already written by an
+         * earlier run. A batch without events marks the end of the entry.
+         */
+        private void parseEntry(ZipFile zipFile, ZipEntry zipEntry, long skip, int batchSize,
+                BlockingQueue<Batch> batches) {
+            String name = zipEntry.getName();
+            try (DelimitedLineReader reader = openEntry(zipFile, zipEntry)) {
+                List<Map<String, Object>> events = new ArrayList<>(batchSize);
+                long firstLine = 0;
+                while (running && reader.next()) {
+                    if (reader.lineNumber() <= skip) {
+                        continue;
+                    }
+                    if (events.isEmpty()) {
+                        firstLine = reader.lineNumber();
+                    }
+                    events.add(createEventFromLine(reader));
+                    if (events.size() == batchSize) {
+                        batches.put(new Batch(name, firstLine, events));
+                        events = new ArrayList<>(batchSize);
+                    }
+                }
+                if (running) {
+                    if (!events.isEmpty()) {
+                        batches.put(new Batch(name, firstLine, events));
+                    }
+                    batches.put(new Batch(name, 0, null));
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, "Cannot read {0}: {1}", new Object[]{name, ex.getMessage()});
+            }
+        }
+
+        /**
+         * Archives in name order; GDELT names start with the date, so this
+         * is also the time order.
+         */
+        private List<Path> listArchives() throws IOException {
+            Path dir = Paths.get(source.getZipDir());
+            String fileName = source.getFileName();
+            if (fileName == null || fileName.trim().isEmpty()) {
+                fileName = "*.zip";
+            }
+            List<Path> archives = new ArrayList<>();
+            if (!isGlob(fileName)) {
+                archives.add(dir.resolve(fileName));
+                return archives;
+            }
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, fileName)) {
+                for (Path path : stream) {
+                    if (Files.isRegularFile(path)) {
+                        archives.add(path);
                     }
                 }
-                index++;
-                if (index >= fields.length) {
-                    break;
+            }
+            Collections.sort(archives);
+            return archives;
+        }
+
+        private static boolean isGlob(String fileName) {
+            for (int i = 0; i < fileName.length(); i++) {
+                switch (fileName.charAt(i)) {
+                    case '*':
+                    case '?':
+                    case '[':
+                    case '{':
+                        return true;
+                    default:
                 }
             }
-            return new Event(attributeValues);
+            return false;
+        }
+
+        private Path getCheckpointPath() {
+            String file = source.getCheckpointFile();
+            if (file == null || file.trim().isEmpty()) {
+                return null;
+            }
+            return Paths.get(source.getZipDir()).resolve(file.trim());
+        }
+
+        private DelimitedLineReader openEntry(ZipFile zipFile, ZipEntry zipEntry) throws IOException {
+            InputStream input = zipFile.getInputStream(zipEntry);
+            return new DelimitedLineReader(new InputStreamReader(input, StandardCharsets.UTF_8), '\t');
         }
 
         @Override
-        public Object startProcessingEvents(Transport runtime) throws ProcessingException {
-            return null;
+        public void stopProcessingEvents() {
+            running = false;
+        }
+
+        /**
+         * Converts the current line of the reader to attribute values. Empty
+         * and unparsable fields are left out.
+         */
+        private Map<String, Object> createEventFromLine(DelimitedLineReader reader) {
+            Map<String, Object> attributeValues = Maps.newHashMapWithExpectedSize(names.length);
+            char[] buffer = reader.buffer();
+            int fields = Math.min(names.length, reader.fieldCount());
+            for (int index = 0; index < fields; index++) {
+                if (reader.isEmpty(index)) {
+                    continue;
+                }
+                try {
+                    attributeValues.put(names[index], parsers[index].parse(buffer, reader.start(index), reader.end(index)));
+                } catch (IllegalArgumentException e) {
+                    LOG.log(Level.FINE, "Bad {0} value in line {1}: {2}",
+                            new Object[]{names[index], reader.lineNumber(), e.getMessage()});
+                }
+            }
+            return attributeValues;
         }
     }
 }
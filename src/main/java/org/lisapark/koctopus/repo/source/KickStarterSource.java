@@ -18,32 +18,54 @@ package org.lisapark.koctopus.repo.source;
 
 import com.fasterxml.uuid.Generators;
 import com.google.common.collect.Maps;
-import java.io.IOException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.protocol.HTTP;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.lisapark.koctopus.core.Output;
 import org.lisapark.koctopus.core.Persistable;
 import org.lisapark.koctopus.core.ProcessingException;
 import org.lisapark.koctopus.core.ValidationException;
+import org.lisapark.koctopus.core.event.Attribute;
 import org.lisapark.koctopus.core.event.Event;
 import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.parameter.Constraints;
 import org.lisapark.koctopus.core.parameter.Parameter;
 import org.lisapark.koctopus.core.runtime.ProcessingRuntime;
 import org.lisapark.koctopus.core.source.external.CompiledExternalSource;
 import org.lisapark.koctopus.core.source.external.AbstractExternalSource;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
+import org.lisapark.koctopus.repo.util.HttpClientPool;
+import org.lisapark.koctopus.repo.util.JsonAttributes;
 
 /**
+ * Triggers models on an Octopus server, one request per model parameter
+ * set, and emits an event per response with the HTTP status, the elapsed
+ * time and the response fields that match output attributes.
  *
  * @author alex (alexmy@lisa-park.com)
  */
@@ -61,6 +83,15 @@ public class KickStarterSource extends AbstractExternalSource {
     private static final int MODEL_NAME_FIELD_PARAMETER_ID  = 4;
     private static final int PREFIX_NAME_FIELD_PARAMETER_ID = 5;
     private static final int PREFIX_VALUE_PARAMETER_ID      = 6;
+    private static final int TIMEOUT_PARAMETER_ID           = 7;
+    private static final int CONCURRENCY_PARAMETER_ID       = 8;
+
+    static final String STATUS_ATTRIBUTE  = "status";
+    static final String ELAPSED_ATTRIBUTE = "elapsed";
+
+    public KickStarterSource() {
+        super(Generators.timeBasedGenerator().generate());
+    }
 
     public KickStarterSource(UUID id, String name, String description) {
         super(id, name, description);
@@ -98,6 +129,14 @@ public class KickStarterSource extends AbstractExternalSource {
         return getParameter(PREFIX_VALUE_PARAMETER_ID).getValueAsString();
     }
 
+    public Integer getTimeout() {
+        return getParameter(TIMEOUT_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getConcurrency() {
+        return getParameter(CONCURRENCY_PARAMETER_ID).getValueAsInteger();
+    }
+
     @Override
     public KickStarterSource copyOf() {
         return new KickStarterSource(this);
@@ -111,12 +150,19 @@ public class KickStarterSource extends AbstractExternalSource {
 
     @Override
     public KickStarterSource newInstance(Gnode gnode) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        KickStarterSource modelSource = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildSource(modelSource, gnode);
+
+        return modelSource;
     }
 
     public static KickStarterSource newTemplate() {
         UUID sourceId = Generators.timeBasedGenerator().generate();
+        return newTemplate(sourceId);
+    }
 
+    public static KickStarterSource newTemplate(UUID sourceId) {
         KickStarterSource modelSource = new KickStarterSource(sourceId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
         modelSource.setOutput(Output.outputWithId(1).setName("Output data"));
 
@@ -131,7 +177,8 @@ public class KickStarterSource extends AbstractExternalSource {
                 .required(true));
 
         modelSource.addParameter(Parameter.stringParameterWithIdAndName(MODEL_PARAM_LIST_PARAMETER_ID, "ModelParamJson")
-                .description("Model param Json: {paramName1:paramValue1,paramName2:paramValue2, . . . .}")
+                .description("Model param Json: {paramName1:paramValue1,paramName2:paramValue2, . . . .}"
+                        + " or an array of such objects to trigger the model once per object.")
                 .defaultValue("")
                 .required(true));
 
@@ -150,6 +197,23 @@ public class KickStarterSource extends AbstractExternalSource {
 //                .defaultValue("param")
 //                .required(true));
 
+        modelSource.addParameter(Parameter.integerParameterWithIdAndName(TIMEOUT_PARAMETER_ID, "Timeout")
+                .description("Milliseconds a trigger may take, from the connection to the end of the response.")
+                .defaultValue(30000)
+                .constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Timeout should be greater than 0.")));
+
+        modelSource.addParameter(Parameter.integerParameterWithIdAndName(CONCURRENCY_PARAMETER_ID, "Concurrency")
+                .description("Triggers in flight at the same time.")
+                .defaultValue(8)
+                .constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Concurrency should be greater than 0.")));
+
+        try {
+            modelSource.getOutput().addAttribute(Attribute.newAttribute(Integer.class, STATUS_ATTRIBUTE));
+            modelSource.getOutput().addAttribute(Attribute.newAttribute(Long.class, ELAPSED_ATTRIBUTE));
+        } catch (ValidationException ex) {
+            LOG.log(Level.SEVERE, ex.getMessage());
+        }
+
         return modelSource;
     }
 
@@ -163,12 +227,32 @@ public class KickStarterSource extends AbstractExternalSource {
         return new CompiledModelSource((KickStarterSource) source);
     }
 
-    class CompiledModelSource implements CompiledExternalSource {
+    /**
+     * Parameter sets of the triggers: the elements of a JSON array, or the
+     * whole parameter as a single set.
+     */
+    static List<String> paramSets(String paramJson) {
+        List<String> sets = new ArrayList<>();
+        String text = paramJson == null ? "" : paramJson.trim();
+        if (text.startsWith("[")) {
+            try {
+                JsonElement json = new JsonParser().parse(text);
+                for (JsonElement element : json.getAsJsonArray()) {
+                    sets.add(element.isJsonPrimitive() ? element.getAsString() : element.toString());
+                }
+                return sets;
+            } catch (JsonParseException | IllegalStateException ex) {
+                LOG.log(Level.WARNING, "Model params are not a JSON array, sent as they are: {0}", ex.getMessage());
+            }
+        }
+        sets.add(text);
+        return sets;
+    }
+
+    static class CompiledModelSource implements CompiledExternalSource {
 
-        protected final Logger logger = Logger.getLogger(CompiledModelSource.class.getName());
         protected final KickStarterSource source;
         protected volatile boolean running;
-        protected Thread thread;
 
         public CompiledModelSource(KickStarterSource source) {
             this.source = source;
@@ -176,45 +260,107 @@ public class KickStarterSource extends AbstractExternalSource {
 
         @Override
         public void startProcessingEvents(ProcessingRuntime runtime) {
-            
-             try {
-                 
-                JSONObject jsonObject = new JSONObject();
-                jsonObject.put(source.getModelNameField(), source.getModelName());
-                jsonObject.put(source.getParamNameField(), source.getModelParamJson());
-
-                HttpClient client = new DefaultHttpClient();
-                HttpPost httpPost = new HttpPost(source.getServerUrl());
-                
-                httpPost.setHeader("id", source.getName());
-                httpPost.setHeader("name", source.getName());
-                
-                httpPost.setHeader("Content-Type", "application/json");
-                StringEntity entity = new StringEntity(jsonObject.toString(), HTTP.UTF_8);
-                httpPost.setEntity(entity);
-
-                HttpResponse httpResponse = client.execute(httpPost);
+            running = true;
+            trigger(event -> runtime.sendEventFromSource(new Event(event), source));
+        }
 
-                Map attributeData = Maps.newHashMap();
+        @Override
+        public void stopProcessingEvents() {
+            this.running = false;
+        }
 
-                attributeData.put(this.source.getModelNameField(), source.getServerUrl());
-                attributeData.put("httpResponse", httpResponse);
+        @Override
+        public Integer startProcessingEvents(Transport runtime) throws ProcessingException {
+            runtime.start();
+            running = true;
+            String outClassName = source.getClass().getCanonicalName();
+            return trigger(event -> runtime.writeEvents(event, outClassName, source.getId()));
+        }
 
-                runtime.sendEventFromSource(new Event(attributeData), this.source);
+        /**
+         * Sends the triggers on the shared client, at most concurrency at a
+         * time, and passes the events to the emitter on this thread as the
+         * responses complete.
+         */
+        private Integer trigger(Consumer<Map<String, Object>> emitter) {
+            List<String> sets = paramSets(source.getModelParamJson());
+            int timeout = source.getTimeout() == null ? 30000 : source.getTimeout();
+            int concurrency = source.getConcurrency() == null ? 8 : source.getConcurrency();
+            List<Attribute> attributes = source.getOutput().getEventType().getAttributes();
+            if (sets.isEmpty()) {
+                LOG.log(Level.INFO, "No parameter sets for {0}, nothing to trigger", source.getModelName());
+                return GraphVocabulary.COMPLETE;
+            }
 
-            } catch (IOException | IllegalStateException | JSONException ex) {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, sets.size())),
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("kickstarter-%d").build());
+            BlockingQueue<Map<String, Object>> events = new LinkedBlockingQueue<>();
+            Integer status = GraphVocabulary.COMPLETE;
+            try {
+                for (String params : sets) {
+                    long started = System.nanoTime();
+                    HttpClientPool.executeAsync(request(params), handler(attributes), timeout, pool)
+                            .handle((event, ex) -> {
+                                if (ex != null) {
+                                    LOG.log(Level.SEVERE, "Trigger of {0} failed: {1}",
+                                            new Object[]{source.getModelName(), ex.getMessage()});
+                                    event = Maps.newHashMap();
+                                    event.put(STATUS_ATTRIBUTE, -1);
+                                }
+                                event.put(source.getModelNameField(), source.getModelName());
+                                event.put(ELAPSED_ATTRIBUTE, (System.nanoTime() - started) / 1_000_000L);
+                                return events.add(event);
+                            });
+                }
+                for (int i = 0; i < sets.size() && running; i++) {
+                    emitter.accept(events.take());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                status = GraphVocabulary.CANCEL;
+            } catch (JSONException ex) {
                 LOG.log(Level.SEVERE, ex.getMessage());
+                status = GraphVocabulary.CANCEL;
+            } finally {
+                pool.shutdownNow();
             }
+            return status;
         }
 
-        @Override
-        public void stopProcessingEvents() {
-            this.running = false;
+        private HttpPost request(String params) throws JSONException {
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put(source.getModelNameField(), source.getModelName());
+            jsonObject.put(source.getParamNameField(), params);
+
+            HttpPost httpPost = new HttpPost(source.getServerUrl());
+            httpPost.setHeader("id", source.getName());
+            httpPost.setHeader("name", source.getName());
+            httpPost.setEntity(new StringEntity(jsonObject.toString(), ContentType.APPLICATION_JSON));
+            return httpPost;
         }
 
-        @Override
-        public Object startProcessingEvents(Transport runtime) throws ProcessingException {
-            return null;
+        /**
+         * Streams a successful JSON response into the attributes. A body
+         * that is not JSON leaves only the status; the client releases the
+         * connection after the handler.
+         */
+        private static ResponseHandler<Map<String, Object>> handler(List<Attribute> attributes) {
+            return response -> {
+                int code = response.getStatusLine().getStatusCode();
+                Map<String, Object> event = Maps.newHashMap();
+                HttpEntity entity = response.getEntity();
+                if (entity != null && code >= 200 && code < 300) {
+                    Charset charset = ContentType.getOrDefault(entity).getCharset();
+                    // a body cut off by the deadline fails the trigger, it is
+                    // not reported as a success with part of the fields
+                    try (Reader reader = new InputStreamReader(entity.getContent(),
+                            charset == null ? StandardCharsets.UTF_8 : charset)) {
+                        event.putAll(JsonAttributes.read(reader, attributes));
+                    }
+                }
+                event.put(STATUS_ATTRIBUTE, code);
+                return event;
+            };
         }
     }
 }
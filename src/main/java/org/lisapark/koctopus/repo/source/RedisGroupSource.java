@@ -0,0 +1,565 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.source;
+
+import com.fasterxml.uuid.Generators;
+import io.lettuce.core.Consumer;
+import io.lettuce.core.Limit;
+import io.lettuce.core.Range;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XReadArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.core.Output;
+import org.lisapark.koctopus.core.Persistable;
+import org.lisapark.koctopus.core.ProcessingException;
+import org.lisapark.koctopus.core.ValidationException;
+import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.parameter.Constraints;
+import org.lisapark.koctopus.core.parameter.Parameter;
+import org.lisapark.koctopus.core.runtime.ProcessingRuntime;
+import org.lisapark.koctopus.core.source.external.AbstractExternalSource;
+import org.lisapark.koctopus.core.source.external.CompiledExternalSource;
+import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
+import org.lisapark.koctopus.repo.util.ControlStream;
+
+/**
+ * Reads external Redis streams through a consumer group. Several consumers
+ * share the group, within this source and across workers running the same
+ * group, so every entry is delivered to one of them. Entries are
+ * acknowledged after they have been forwarded, pending entries of consumers
+ * that stopped are claimed after the claim idle time.
+ *
+ * @author alexmy
+ */
+@Persistable
+public class RedisGroupSource extends AbstractExternalSource {
+
+    static final Logger LOG = Logger.getLogger(RedisGroupSource.class.getName());
+
+    private static final String DEFAULT_NAME = "Redis stream group";
+    private static final String DEFAULT_DESCRIPTION = "Read external Redis streams through a consumer group.";
+
+    private static final int REDIS_URL_PARAMETER_ID = 1;
+    private static final int STREAMS_PARAMETER_ID = 2;
+    private static final int GROUP_PARAMETER_ID = 3;
+    private static final int CONSUMER_PARAMETER_ID = 4;
+    private static final int CONSUMERS_PARAMETER_ID = 5;
+    private static final int START_ID_PARAMETER_ID = 6;
+    private static final int BATCH_SIZE_PARAMETER_ID = 7;
+    private static final int BLOCK_PARAMETER_ID = 8;
+    private static final int CLAIM_IDLE_PARAMETER_ID = 9;
+    private static final int STREAM_ATTRIBUTE_PARAMETER_ID = 10;
+    private static final int NUMBER_OF_EVENTS_PARAMETER_ID = 11;
+    private static final int CONTROL_PARAMETER_ID = 12;
+
+    public RedisGroupSource() {
+        super(Generators.timeBasedGenerator().generate());
+    }
+
+    public RedisGroupSource(UUID id, String name, String description) {
+        super(id, name, description);
+    }
+
+    private RedisGroupSource(UUID id, RedisGroupSource copyFromSource) {
+        super(id, copyFromSource);
+    }
+
+    public RedisGroupSource(RedisGroupSource copyFromSource) {
+        super(copyFromSource);
+    }
+
+    public String getRedisUrl() {
+        return getParameter(REDIS_URL_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getStreams() {
+        return getParameter(STREAMS_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getGroup() {
+        return getParameter(GROUP_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getConsumer() {
+        return getParameter(CONSUMER_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getConsumers() {
+        return getParameter(CONSUMERS_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getStartId() {
+        return getParameter(START_ID_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getBatchSize() {
+        return getParameter(BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getBlock() {
+        return getParameter(BLOCK_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getClaimIdle() {
+        return getParameter(CLAIM_IDLE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getStreamAttribute() {
+        return getParameter(STREAM_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getNumberOfEvents() {
+        return getParameter(NUMBER_OF_EVENTS_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getControl() {
+        return getParameter(CONTROL_PARAMETER_ID).getValueAsString();
+    }
+
+    @Override
+    public RedisGroupSource copyOf() {
+        return new RedisGroupSource(this);
+    }
+
+    @Override
+    public RedisGroupSource newInstance() {
+        UUID sourceId = Generators.timeBasedGenerator().generate();
+        return new RedisGroupSource(sourceId, this);
+    }
+
+    @Override
+    public RedisGroupSource newInstance(Gnode gnode) {
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        RedisGroupSource groupSource = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildSource(groupSource, gnode);
+
+        return groupSource;
+    }
+
+    public static RedisGroupSource newTemplate() {
+        UUID sourceId = Generators.timeBasedGenerator().generate();
+        return newTemplate(sourceId);
+    }
+
+    public static RedisGroupSource newTemplate(UUID sourceId) {
+        RedisGroupSource groupSource = new RedisGroupSource(sourceId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
+        groupSource.setOutput(Output.outputWithId(1).setName("Output"));
+        groupSource.addParameter(
+                Parameter.stringParameterWithIdAndName(REDIS_URL_PARAMETER_ID, "Redis URL").
+                        description("Redis holding the external streams.").
+                        defaultValue("redis://localhost"));
+        groupSource.addParameter(
+                Parameter.stringParameterWithIdAndName(STREAMS_PARAMETER_ID, "Streams").
+                        description("Comma separated keys of existing streams.").
+                        required(true));
+        groupSource.addParameter(
+                Parameter.stringParameterWithIdAndName(GROUP_PARAMETER_ID, "Group").
+                        description("Consumer group, created on every stream where it is missing.").
+                        defaultValue("koctopus"));
+        groupSource.addParameter(
+                Parameter.stringParameterWithIdAndName(CONSUMER_PARAMETER_ID, "Consumer").
+                        description("Consumer name prefix, unique per worker. A restarted worker with the same name "
+                                + "reads its own pending entries first. Empty - pid@host.").
+                        defaultValue(""));
+        groupSource.addParameter(
+                Parameter.integerParameterWithIdAndName(CONSUMERS_PARAMETER_ID, "Consumers").
+                        description("Consumers of this worker, each with its own connection.").
+                        defaultValue(2).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Consumers should be greater than 0.")));
+        groupSource.addParameter(
+                Parameter.stringParameterWithIdAndName(START_ID_PARAMETER_ID, "Start id").
+                        description("Where a new group starts: $ - new entries only, 0 - the whole stream.").
+                        defaultValue("$"));
+        groupSource.addParameter(
+                Parameter.integerParameterWithIdAndName(BATCH_SIZE_PARAMETER_ID, "Batch size").
+                        description("Entries read by a consumer at once.").
+                        defaultValue(100).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Batch size should be greater than 0.")));
+        groupSource.addParameter(
+                Parameter.integerParameterWithIdAndName(BLOCK_PARAMETER_ID, "Block").
+                        description("Milliseconds a read waits for new entries.").
+                        defaultValue(1000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Block should be greater than 0.")));
+        groupSource.addParameter(
+                Parameter.integerParameterWithIdAndName(CLAIM_IDLE_PARAMETER_ID, "Claim idle").
+                        description("Milliseconds an entry stays pending with another consumer before it is claimed.").
+                        defaultValue(60000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1000, "Claim idle should be at least 1000.")));
+        groupSource.addParameter(
+                Parameter.stringParameterWithIdAndName(STREAM_ATTRIBUTE_PARAMETER_ID, "Stream attribute").
+                        description("Attribute that receives the stream key of an entry, empty - none.").
+                        defaultValue(""));
+        groupSource.addParameter(
+                Parameter.integerParameterWithIdAndName(NUMBER_OF_EVENTS_PARAMETER_ID, "Number of Events").
+                        description("Entries to forward before stopping, 0 - until stopped.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Number of events cannot be negative.")));
+        groupSource.addParameter(
+                Parameter.stringParameterWithIdAndName(CONTROL_PARAMETER_ID, "Control").
+                        description("Control stream to watch, empty - none. Stop forwards the batch in hand; "
+                                + "drain forwards and acknowledges every entry already read.").
+                        defaultValue(""));
+
+        return groupSource;
+    }
+
+    @Override
+    public CompiledExternalSource compile() throws ValidationException {
+        return new CompiledGroupSource(copyOf());
+    }
+
+    @Override
+    public <T extends AbstractExternalSource> CompiledExternalSource compile(T source) throws ValidationException {
+        return new CompiledGroupSource((RedisGroupSource) source);
+    }
+
+    static class CompiledGroupSource implements CompiledExternalSource {
+
+        private static final long MIN_BACKOFF = 100;
+        private static final long MAX_BACKOFF = 30000;
+        private static final int MAX_FAILURES = 10;
+
+        private final RedisGroupSource source;
+
+        private volatile boolean running;
+        private volatile boolean reading;
+        private volatile boolean paused;
+
+        public CompiledGroupSource(RedisGroupSource source) {
+            this.source = source;
+        }
+
+        /**
+         * Consumers read entries and hand them to this thread, the only one
+         * writing to the transport. Entries are acknowledged once written,
+         * so an entry is lost only if it was never forwarded; entries read
+         * but not written when the source stops stay pending and are read
+         * again by the same consumer name or claimed by another consumer.
+         * A drain command stops the consumers and lets this thread forward
+         * what they have read, so nothing is left pending. Consumers that
+         * gave up on Redis errors end the source with CANCEL.
+         */
+        @Override
+        public Integer startProcessingEvents(Transport runtime) {
+            runtime.start();
+            running = true;
+            reading = true;
+            paused = false;
+
+            Integer status = GraphVocabulary.COMPLETE;
+            String[] streams = source.getStreams().split(",");
+            for (int i = 0; i < streams.length; i++) {
+                streams[i] = streams[i].trim();
+            }
+            String group = source.getGroup();
+            String prefix = source.getConsumer() == null || source.getConsumer().trim().isEmpty()
+                    ? ManagementFactory.getRuntimeMXBean().getName() : source.getConsumer().trim();
+            int consumers = source.getConsumers() == null ? 2 : source.getConsumers();
+            long limit = source.getNumberOfEvents() == null ? 0 : source.getNumberOfEvents();
+            String streamAttribute = source.getStreamAttribute();
+            boolean withStream = streamAttribute != null && !streamAttribute.trim().isEmpty();
+            String outClassName = source.getClass().getCanonicalName();
+
+            RedisClient client = RedisClient.create(source.getRedisUrl());
+            BlockingQueue<List<StreamMessage<String, String>>> batches = new ArrayBlockingQueue<>(consumers * 2);
+            AtomicInteger remaining = new AtomicInteger(consumers);
+            AtomicInteger failed = new AtomicInteger();
+            ExecutorService pool = Executors.newFixedThreadPool(consumers);
+            ControlStream control = ControlStream.open(runtime, source.getControl(), source.getId());
+            long count = 0;
+            try (StatefulRedisConnection<String, String> connection = client.connect()) {
+                RedisCommands<String, String> commands = connection.sync();
+                for (String stream : streams) {
+                    createGroup(commands, stream, group);
+                }
+                for (int c = 0; c < consumers; c++) {
+                    String name = prefix + "-" + c;
+                    pool.submit(() -> {
+                        try {
+                            if (!consume(client, streams, group, name, batches)) {
+                                failed.incrementAndGet();
+                            }
+                        } finally {
+                            remaining.decrementAndGet();
+                        }
+                    });
+                }
+                while (running) {
+                    ControlStream.State state = control.check();
+                    if (state == ControlStream.State.STOPPING) {
+                        status = GraphVocabulary.CANCEL;
+                        break;
+                    }
+                    if (state == ControlStream.State.DRAINING) {
+                        reading = false;
+                    }
+                    paused = state == ControlStream.State.PAUSED;
+                    List<StreamMessage<String, String>> batch = batches.poll(100, TimeUnit.MILLISECONDS);
+                    if (batch == null) {
+                        if (remaining.get() == 0 && batches.isEmpty()) {
+                            if (failed.get() > 0) {
+                                LOG.log(Level.SEVERE, "{0} of {1} consumers failed", new Object[]{failed.get(), consumers});
+                                status = GraphVocabulary.CANCEL;
+                            }
+                            break;
+                        }
+                        continue;
+                    }
+                    Map<String, List<String>> written = new HashMap<>();
+                    for (StreamMessage<String, String> msg : batch) {
+                        if (limit > 0 && count >= limit) {
+                            break;
+                        }
+                        Map<String, String> body = msg.getBody();
+                        if (body == null) {
+                            // deleted from the stream while pending, only acknowledged
+                            written.computeIfAbsent(msg.getStream(), k -> new ArrayList<>()).add(msg.getId());
+                            continue;
+                        }
+                        if (withStream) {
+                            body = new LinkedHashMap<>(body);
+                            body.put(streamAttribute, msg.getStream());
+                        }
+                        runtime.writeEvents(body, outClassName, source.getId());
+                        written.computeIfAbsent(msg.getStream(), k -> new ArrayList<>()).add(msg.getId());
+                        count++;
+                    }
+                    for (Map.Entry<String, List<String>> acked : written.entrySet()) {
+                        commands.xack(acked.getKey(), group, acked.getValue().toArray(new String[0]));
+                    }
+                    if (limit > 0 && count >= limit) {
+                        running = false;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                status = GraphVocabulary.CANCEL;
+            } catch (RuntimeException ex) {
+                LOG.log(Level.SEVERE, "Group read failed: {0}", ex.getMessage());
+                status = GraphVocabulary.CANCEL;
+            } finally {
+                running = false;
+                reading = false;
+                pool.shutdown();
+                try {
+                    // consumers return after their current blocking read
+                    pool.awaitTermination(source.getBlock() == null ? 1000 : source.getBlock() + 5000L, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                pool.shutdownNow();
+                client.shutdown();
+            }
+            LOG.log(Level.INFO, "Forwarded {0} entries", count);
+            return status;
+        }
+
+        private void createGroup(RedisCommands<String, String> commands, String stream, String group) {
+            try {
+                commands.xgroupCreate(XReadArgs.StreamOffset.from(stream, source.getStartId()), group);
+            } catch (RedisCommandExecutionException ex) {
+                // BUSYGROUP - the group exists already
+                if (ex.getMessage() == null || !ex.getMessage().startsWith("BUSYGROUP")) {
+                    throw ex;
+                }
+            }
+        }
+
+        /**
+         * Reads as one consumer of the group until reading stops. A Redis
+         * error reconnects after a backoff of 100 ms doubling up to 30 s,
+         * restarting from the consumer's pending entries; the consumer gives
+         * up after 10 failures in a row.
+         *
+         * @return false if the consumer gave up because of errors
+         */
+        private boolean consume(RedisClient client, String[] streams, String group, String name,
+                BlockingQueue<List<StreamMessage<String, String>>> batches) {
+            AtomicInteger failures = new AtomicInteger();
+            long backoff = MIN_BACKOFF;
+            while (reading) {
+                try {
+                    read(client, streams, group, name, batches, failures);
+                    return true;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return true;
+                } catch (RuntimeException ex) {
+                    if (failures.incrementAndGet() >= MAX_FAILURES) {
+                        LOG.log(Level.SEVERE, "Consumer {0} failed {1} times, giving up: {2}",
+                                new Object[]{name, MAX_FAILURES, ex.getMessage()});
+                        return false;
+                    }
+                    if (failures.get() == 1) {
+                        backoff = MIN_BACKOFF;
+                    }
+                    LOG.log(Level.WARNING, "Consumer {0} failed, reconnecting in {1} ms: {2}",
+                            new Object[]{name, backoff, ex.getMessage()});
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return true;
+                }
+                backoff = Math.min(MAX_BACKOFF, backoff * 2);
+            }
+            return true;
+        }
+
+        /**
+         * One pass of a consumer: its own pending entries first, then new
+         * entries, with a claim of stale entries of other consumers every
+         * half claim idle time. XCLAIM resets the idle time, so of several
+         * consumers claiming the same entry only the first gets it.
+         */
+        private void read(RedisClient client, String[] streams, String group, String name,
+                BlockingQueue<List<StreamMessage<String, String>>> batches, AtomicInteger failures) throws InterruptedException {
+            int batchSize = source.getBatchSize() == null ? 100 : source.getBatchSize();
+            long block = source.getBlock() == null ? 1000 : source.getBlock();
+            long claimIdle = source.getClaimIdle() == null ? 60000 : source.getClaimIdle();
+            Consumer<String> consumer = Consumer.from(group, name);
+
+            try (StatefulRedisConnection<String, String> connection = client.connect()) {
+                RedisCommands<String, String> commands = connection.sync();
+
+                XReadArgs.StreamOffset<String>[] pending = offsets(streams, true);
+                while (reading) {
+                    if (paused) {
+                        Thread.sleep(100);
+                        continue;
+                    }
+                    List<StreamMessage<String, String>> list = commands.xreadgroup(consumer, XReadArgs.Builder.count(batchSize), pending);
+                    failures.set(0);
+                    if (list.isEmpty()) {
+                        break;
+                    }
+                    batches.put(list);
+                    // history reads do not move forward on their own, the
+                    // entries stay pending until the writer acknowledges them
+                    for (int i = 0; i < pending.length; i++) {
+                        String last = last(list, streams[i]);
+                        if (last != null) {
+                            pending[i] = XReadArgs.StreamOffset.from(streams[i], last);
+                        }
+                    }
+                }
+
+                XReadArgs.StreamOffset<String>[] fresh = offsets(streams, false);
+                long nextClaim = System.currentTimeMillis() + claimIdle / 2;
+                while (reading) {
+                    if (paused) {
+                        Thread.sleep(100);
+                        continue;
+                    }
+                    List<StreamMessage<String, String>> list = commands.xreadgroup(consumer,
+                            XReadArgs.Builder.count(batchSize).block(block), fresh);
+                    failures.set(0);
+                    if (!list.isEmpty()) {
+                        batches.put(list);
+                    }
+                    if (System.currentTimeMillis() >= nextClaim) {
+                        for (String stream : streams) {
+                            List<StreamMessage<String, String>> claimed = claim(commands, stream, consumer, name, claimIdle, batchSize);
+                            if (!claimed.isEmpty()) {
+                                LOG.log(Level.INFO, "{0} claimed {1} entries of {2}", new Object[]{name, claimed.size(), stream});
+                                batches.put(claimed);
+                            }
+                        }
+                        nextClaim = System.currentTimeMillis() + claimIdle / 2;
+                    }
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static XReadArgs.StreamOffset<String>[] offsets(String[] streams, boolean pending) {
+            XReadArgs.StreamOffset<String>[] offsets = new XReadArgs.StreamOffset[streams.length];
+            for (int i = 0; i < streams.length; i++) {
+                offsets[i] = pending ? XReadArgs.StreamOffset.from(streams[i], "0")
+                        : XReadArgs.StreamOffset.lastConsumed(streams[i]);
+            }
+            return offsets;
+        }
+
+        private static String last(List<StreamMessage<String, String>> list, String stream) {
+            for (int i = list.size() - 1; i >= 0; i--) {
+                if (stream.equals(list.get(i).getStream())) {
+                    return list.get(i).getId();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Claims entries of other consumers idle for at least claim idle.
+         * XPENDING rows are [id, consumer, idle, deliveries].
+         */
+        private List<StreamMessage<String, String>> claim(RedisCommands<String, String> commands, String stream,
+                Consumer<String> consumer, String name, long claimIdle, int batchSize) {
+            List<Object> rows = commands.xpending(stream, source.getGroup(), Range.create("-", "+"), Limit.from(batchSize));
+            List<String> ids = new ArrayList<>();
+            for (Object row : rows) {
+                if (!(row instanceof List) || ((List) row).size() < 3) {
+                    continue;
+                }
+                List fields = (List) row;
+                Object idle = fields.get(2);
+                if (!name.equals(String.valueOf(fields.get(1)))
+                        && idle instanceof Number && ((Number) idle).longValue() >= claimIdle) {
+                    ids.add(String.valueOf(fields.get(0)));
+                }
+            }
+            if (ids.isEmpty()) {
+                return new ArrayList<>();
+            }
+            return commands.xclaim(stream, consumer, claimIdle, ids.toArray(new String[0]));
+        }
+
+        @Override
+        public void stopProcessingEvents() {
+            running = false;
+            reading = false;
+        }
+
+        @Override
+        public void startProcessingEvents(ProcessingRuntime runtime) throws ProcessingException {
+
+        }
+    }
+}
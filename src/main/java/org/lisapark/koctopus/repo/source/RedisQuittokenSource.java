@@ -38,7 +38,10 @@ import org.lisapark.koctopus.core.transport.Transport;
 /**
  *
  * @author alex (alexmy@lisa-park.com)
+ * @deprecated runs on the legacy runtime only; use {@link ControlCommandSource}
+ * and the Control parameter of the nodes to stop.
  */
+@Deprecated
 @Persistable
 public class RedisQuittokenSource extends AbstractExternalSource {
 
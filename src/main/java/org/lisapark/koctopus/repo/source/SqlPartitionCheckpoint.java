@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.source;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Key ranges read in parallel by {@link SqlQuerySource} and the progress of
+ * every range.
+ *
+ * A partition covers keys in (lo, hi], or the rows whose key is NULL. Its
+ * watermark is the highest key whose rows have all been written, so a
+ * retried partition restarts after the watermark; the NULL partition has no
+ * order and restarts from the beginning. The file starts with the partitions
+ * setting and the query it was written for, followed by one
+ * "lo TAB hi TAB watermark TAB done" line per partition, and is rewritten
+ * through a temporary file and an atomic move. A checkpoint written for
+ * other settings is ignored. Without a file the progress is kept in memory
+ * only.
+ *
+ * @author alexmy
+ */
+class SqlPartitionCheckpoint {
+
+    static final Logger LOG = Logger.getLogger(SqlPartitionCheckpoint.class.getName());
+
+    static class Partition {
+
+        final long lo;
+        final long hi;
+        final boolean nulls;
+        volatile long watermark;
+        volatile boolean done;
+
+        Partition(long lo, long hi) {
+            this(lo, hi, false);
+        }
+
+        private Partition(long lo, long hi, boolean nulls) {
+            this.lo = lo;
+            this.hi = hi;
+            this.nulls = nulls;
+            this.watermark = lo;
+        }
+
+        /**
+         * @return partition of the rows whose key is NULL
+         */
+        static Partition nulls() {
+            return new Partition(0, 0, true);
+        }
+
+        @Override
+        public String toString() {
+            return nulls ? "IS NULL" : "(" + lo + ", " + hi + "]";
+        }
+    }
+
+    private static final String PARTITIONS = "# partitions";
+    private static final String QUERY = "# query";
+    private static final String NULLS = "null";
+
+    private final Path file;
+    private final String partitions;
+    private final String query;
+
+    /**
+     * @param file checkpoint file, null to keep the progress in memory
+     * @param partitions partition ranges or count the checkpoint is for
+     * @param query query the checkpoint is for
+     */
+    SqlPartitionCheckpoint(Path file, String partitions, String query) {
+        this.file = file;
+        this.partitions = partitions;
+        this.query = query;
+    }
+
+    /**
+     * @return saved partitions, empty if there is no checkpoint or it was
+     * written for other partitions or another query
+     * @throws IOException
+     */
+    List<Partition> load() throws IOException {
+        List<Partition> partitions = new ArrayList<>();
+        if (file == null || !Files.exists(file)) {
+            return partitions;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!header(PARTITIONS, this.partitions).equals(reader.readLine())
+                    || !header(QUERY, this.query).equals(reader.readLine())) {
+                LOG.log(Level.WARNING, "Checkpoint {0} was written for other partitions or another query, starting over", file);
+                return partitions;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length < 4) {
+                    continue;
+                }
+                try {
+                    Partition partition = NULLS.equals(fields[0])
+                            ? Partition.nulls()
+                            : new Partition(Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+                    partition.watermark = Long.parseLong(fields[2]);
+                    partition.done = "1".equals(fields[3]);
+                    partitions.add(partition);
+                } catch (NumberFormatException ex) {
+                    LOG.log(Level.WARNING, "Bad checkpoint line: {0}", line);
+                }
+            }
+        }
+        return partitions;
+    }
+
+    synchronized void save(List<Partition> partitions) throws IOException {
+        if (file == null) {
+            return;
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(header(PARTITIONS, this.partitions));
+            writer.newLine();
+            writer.write(header(QUERY, this.query));
+            writer.newLine();
+            for (Partition partition : partitions) {
+                String bounds = partition.nulls ? NULLS + "\t" + NULLS : partition.lo + "\t" + partition.hi;
+                writer.write(bounds + "\t" + partition.watermark + "\t" + (partition.done ? "1" : "0"));
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String header(String name, String value) {
+        return name + "\t" + DocManifest.escape(value == null ? "" : value);
+    }
+
+    /**
+     * Splits [min, max] into count ranges of nearly equal width.
+     */
+    static List<Partition> split(long min, long max, int count) {
+        List<Partition> partitions = new ArrayList<>();
+        long span = max - min + 1;
+        count = (int) Math.max(1, Math.min(count, span));
+        long step = span / count;
+        long rest = span % count;
+        long lo = min - 1;
+        for (int i = 0; i < count; i++) {
+            long hi = lo + step + (i < rest ? 1 : 0);
+            partitions.add(new Partition(lo, hi));
+            lo = hi;
+        }
+        return partitions;
+    }
+
+    /**
+     * Parses inclusive ranges "from:to,from:to".
+     */
+    static List<Partition> parse(String ranges) {
+        List<Partition> partitions = new ArrayList<>();
+        for (String range : ranges.split(",")) {
+            String[] bounds = range.trim().split(":");
+            if (bounds.length != 2) {
+                throw new IllegalArgumentException("Bad partition range: " + range);
+            }
+            long from = Long.parseLong(bounds[0].trim());
+            long to = Long.parseLong(bounds[1].trim());
+            if (to < from) {
+                throw new IllegalArgumentException("Empty partition range: " + range);
+            }
+            partitions.add(new Partition(from - 1, to));
+        }
+        return partitions;
+    }
+}
@@ -21,7 +21,6 @@ package org.lisapark.koctopus.repo.source;
  * @author Alex Mylnikov (alexmy@lisa-park.com)
  */
 import com.fasterxml.uuid.Generators;
-import com.google.common.collect.Maps;
 import org.lisapark.koctopus.core.Output;
 import org.lisapark.koctopus.core.Persistable;
 import org.lisapark.koctopus.core.ProcessingException;
@@ -32,9 +31,9 @@ import org.lisapark.koctopus.core.event.EventType;
 import org.lisapark.koctopus.core.parameter.Constraints;
 import org.lisapark.koctopus.core.parameter.Parameter;
 import org.lisapark.koctopus.core.runtime.ProcessingRuntime;
-import org.lisapark.koctopus.repo.util.Booleans;
 import org.lisapark.koctopus.repo.util.Connections;
 import org.lisapark.koctopus.repo.util.ResultSets;
+import org.lisapark.koctopus.repo.util.JsonRowWriter;
 import org.lisapark.koctopus.repo.util.Statements;
 
 import java.sql.Connection;
@@ -42,35 +41,45 @@ import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Map;
+import java.util.Collections;
 import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.lisapark.koctopus.core.source.external.CompiledExternalSource;
 import org.lisapark.koctopus.core.source.external.AbstractExternalSource;
 import static com.google.common.base.Preconditions.checkState;
 import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
 import org.lisapark.koctopus.core.transport.Transport;
 
 /**
  * This class is an {@link AbstractExternalSource} that is used to access relational databases. It can be configured with
  * a JDBC Url for the database, username, password, Driver fully qualified class name, and a query to execute.
  * 
- * Currently, the source uses the {@link org.lisapark.octopus.core.Output#getEventType()} to get the names of the
- * columns and types of the columns, but it will probably be changed in the future to support a mapper that takes
- * a {@link ResultSet} and produces an {@link Event}.
+ * Every row is serialized to a JSON object keyed by column label and emitted as the single String attribute
+ * {@value #JSON_ATTRIBUTE}.
  *
  * @author dave sinclair(david.sinclair@lisa-park.com)
  */
 @Persistable
 public class SqlQuery2JsonSource extends AbstractExternalSource {
+
+    static final Logger LOG = Logger.getLogger(SqlQuery2JsonSource.class.getName());
+
     private static final String DEFAULT_NAME = "Sql Query";
     private static final String DEFAULT_DESCRIPTION = "Database query source for events";
 
+    public static final String JSON_ATTRIBUTE = "json";
+
     private static final int URL_PARAMETER_ID = 1;
     private static final int USER_NAME_PARAMETER_ID = 2;
     private static final int PASSWORD_PARAMETER_ID = 3;
     private static final int DRIVER_PARAMETER_ID = 4;
     private static final int QUERY_PARAMETER_ID = 5;
+    private static final int FETCH_SIZE_PARAMETER_ID = 6;
+    private static final int BATCH_SIZE_PARAMETER_ID = 7;
 
     private SqlQuery2JsonSource(UUID sourceId, String name, String description) {
         super(sourceId, name, description);
@@ -129,6 +138,14 @@ public class SqlQuery2JsonSource extends AbstractExternalSource {
         return getParameter(QUERY_PARAMETER_ID).getValueAsString();
     }
 
+    public Integer getFetchSize() {
+        return getParameter(FETCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getBatchSize() {
+        return getParameter(BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
     public EventType getEventType() {
         return getOutput().getEventType();
     }
@@ -141,7 +158,11 @@ public class SqlQuery2JsonSource extends AbstractExternalSource {
 
     @Override
     public SqlQuery2JsonSource newInstance(Gnode gnode) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        SqlQuery2JsonSource jdbc = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildSource(jdbc, gnode);
+
+        return jdbc;
     }
 
     @Override
@@ -151,6 +172,10 @@ public class SqlQuery2JsonSource extends AbstractExternalSource {
 
     public static SqlQuery2JsonSource newTemplate() {
         UUID sourceId = Generators.timeBasedGenerator().generate();
+        return newTemplate(sourceId);
+    }
+
+    public static SqlQuery2JsonSource newTemplate(UUID sourceId) {
         SqlQuery2JsonSource jdbc = new SqlQuery2JsonSource(sourceId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
 
         jdbc.addParameter(Parameter.stringParameterWithIdAndName(URL_PARAMETER_ID, "URL").required(true));
@@ -159,8 +184,21 @@ public class SqlQuery2JsonSource extends AbstractExternalSource {
         jdbc.addParameter(Parameter.stringParameterWithIdAndName(DRIVER_PARAMETER_ID, "Driver Class").required(true).
                 constraint(Constraints.classConstraintWithMessage("%s is not a valid Driver Class")));
         jdbc.addParameter(Parameter.stringParameterWithIdAndName(QUERY_PARAMETER_ID, "Query").required(true));
+        jdbc.addParameter(Parameter.integerParameterWithIdAndName(FETCH_SIZE_PARAMETER_ID, "Fetch size").
+                description("Rows fetched from the database per round trip, 0 - driver default.").
+                defaultValue(1000).
+                constraint(Constraints.integerConstraintWithMinimumAndMessage(0, "Fetch size cannot be negative.")));
+        jdbc.addParameter(Parameter.integerParameterWithIdAndName(BATCH_SIZE_PARAMETER_ID, "Batch size").
+                description("Rows handed from the fetch thread to the writer at once.").
+                defaultValue(500).
+                constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Batch size should be greater than 0.")));
 
         jdbc.setOutput(Output.outputWithId(1).setName("Output"));
+        try {
+            jdbc.getOutput().addAttribute(Attribute.newAttribute(String.class, JSON_ATTRIBUTE));
+        } catch (ValidationException ex) {
+            LOG.log(Level.SEVERE, ex.getMessage());
+        }
 
         return jdbc;
     }
@@ -198,7 +236,7 @@ public class SqlQuery2JsonSource extends AbstractExternalSource {
             Statement statement = null;
             ResultSet rs = null;
             try {
-                statement = connection.createStatement();
+                statement = Statements.createStreamingStatement(connection, fetchSize());
 
                 rs = statement.executeQuery(source.getQuery());
                 processResultSet(rs, runtime);
@@ -214,10 +252,10 @@ public class SqlQuery2JsonSource extends AbstractExternalSource {
 
         void processResultSet(ResultSet rs, ProcessingRuntime runtime) throws SQLException {
             Thread thread = Thread.currentThread();
-            EventType eventType = source.getEventType();
+            JsonRowWriter json = JsonRowWriter.compile(rs.getMetaData());
 
             while (!thread.isInterrupted() && running && rs.next()) {
-                Event newEvent = createEventFromResultSet(rs, eventType);
+                Event newEvent = new Event(Collections.singletonMap(JSON_ATTRIBUTE, json.read(rs)));
 
                 runtime.sendEventFromSource(newEvent, source);
             }
@@ -252,51 +290,52 @@ public class SqlQuery2JsonSource extends AbstractExternalSource {
             return connection;
         }
 
-        Event createEventFromResultSet(ResultSet rs, EventType eventType) throws SQLException {
-            Map<String, Object> attributeValues = Maps.newHashMap();
-
-            for (Attribute attribute : eventType.getAttributes()) {
-                Class type = attribute.getType();
-                String attributeName = attribute.getName();
-
-                if (type == String.class) {
-                    String value = rs.getString(attributeName);
-                    attributeValues.put(attributeName, value);
-
-                } else if (type == Integer.class) {
-                    int value = rs.getInt(attributeName);
-                    attributeValues.put(attributeName, value);
-
-                } else if (type == Short.class) {
-                    short value = rs.getShort(attributeName);
-                    attributeValues.put(attributeName, value);
-
-                } else if (type == Long.class) {
-                    long value = rs.getLong(attributeName);
-                    attributeValues.put(attributeName, value);
-
-                } else if (type == Double.class) {
-                    double value = rs.getDouble(attributeName);
-                    attributeValues.put(attributeName, value);
-
-                } else if (type == Float.class) {
-                    float value = rs.getFloat(attributeName);
-                    attributeValues.put(attributeName, value);
+        private int fetchSize() {
+            return source.getFetchSize() == null ? 1000 : source.getFetchSize();
+        }
 
-                } else if (type == Boolean.class) {
-                    String value = rs.getString(attributeName);
-                    attributeValues.put(attributeName, Booleans.parseBoolean(value));
-                } else {
-                    throw new IllegalArgumentException(String.format("Unknown attribute type %s", type));
-                }
+        /**
+         * Streams the query result through a forward only cursor. Rows are
+         * serialized on a fetch thread straight from the result set by a
+         * JSON writer compiled once from the metadata, and written in
+         * batches on this thread.
+         */
+        @Override
+        public Integer startProcessingEvents(Transport runtime) throws ProcessingException {
+            synchronized (this) {
+                checkState(!running, "Source is already processing events. Cannot call processEvents again");
+                running = true;
             }
+            runtime.start();
+            Integer status = GraphVocabulary.COMPLETE;
+            int batchSize = source.getBatchSize() == null ? 500 : source.getBatchSize();
+            String outClassName = source.getClass().getCanonicalName();
 
-            return new Event(attributeValues);
-        }
+            Connection connection = getConnection(source.getDriverClass(), source.getUrl(), source.getUsername(), source.getPassword());
+            Statement statement = null;
+            ResultSet rs = null;
+            try {
+                statement = Statements.createStreamingStatement(connection, fetchSize());
+                rs = statement.executeQuery(source.getQuery());
+                JsonRowWriter json = JsonRowWriter.compile(rs.getMetaData());
 
-        @Override
-        public Object startProcessingEvents(Transport runtime) throws ProcessingException {
-            return null;
+                long count = ResultSets.stream(rs, json, batchSize, () -> running, batch -> {
+                    batch.forEach(row -> runtime.writeEvents(Collections.singletonMap(JSON_ATTRIBUTE, row),
+                            outClassName, source.getId()));
+                });
+                LOG.log(Level.INFO, "Rows written: {0}", count);
+            } catch (SQLException e) {
+                throw new ProcessingException("Problem processing result set from database. Please check your settings.", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                status = GraphVocabulary.CANCEL;
+            } finally {
+                running = false;
+                ResultSets.closeQuietly(rs);
+                Statements.closeQuietly(statement);
+                Connections.closeQuietly(connection);
+            }
+            return status;
         }
     }
 }
@@ -17,34 +17,49 @@
 package org.lisapark.koctopus.repo.source;
 
 import com.fasterxml.uuid.Generators;
-import com.google.common.collect.Maps;
 import org.lisapark.koctopus.core.Output;
 import org.lisapark.koctopus.core.Persistable;
 import org.lisapark.koctopus.core.ProcessingException;
 import org.lisapark.koctopus.core.ValidationException;
-import org.lisapark.koctopus.core.event.Attribute;
 import org.lisapark.koctopus.core.event.Event;
 import org.lisapark.koctopus.core.event.EventType;
 import org.lisapark.koctopus.core.parameter.Constraints;
 import org.lisapark.koctopus.core.parameter.Parameter;
 import org.lisapark.koctopus.core.runtime.ProcessingRuntime;
-import org.lisapark.koctopus.repo.util.Booleans;
 import org.lisapark.koctopus.repo.util.Connections;
 import org.lisapark.koctopus.repo.util.ResultSets;
+import org.lisapark.koctopus.repo.util.RowMapper;
 import org.lisapark.koctopus.repo.util.Statements;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.lisapark.koctopus.core.source.external.CompiledExternalSource;
 import org.lisapark.koctopus.core.source.external.AbstractExternalSource;
 import static com.google.common.base.Preconditions.checkState;
 import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
+import org.lisapark.koctopus.repo.source.SqlPartitionCheckpoint.Partition;
 import org.lisapark.koctopus.core.transport.Transport;
 
 /**
@@ -59,6 +74,9 @@ import org.lisapark.koctopus.core.transport.Transport;
  */
 @Persistable
 public class SqlQuerySource extends AbstractExternalSource {
+
+    static final Logger LOG = Logger.getLogger(SqlQuerySource.class.getName());
+
     private static final String DEFAULT_NAME = "Database Source";
     private static final String DEFAULT_DESCRIPTION = "Access to Database using SQL query.";
     private static final int URL_PARAMETER_ID = 1;
@@ -66,6 +84,13 @@ public class SqlQuerySource extends AbstractExternalSource {
     private static final int PASSWORD_PARAMETER_ID = 3;
     private static final int DRIVER_PARAMETER_ID = 4;
     private static final int QUERY_PARAMETER_ID = 5;
+    private static final int FETCH_SIZE_PARAMETER_ID = 6;
+    private static final int BATCH_SIZE_PARAMETER_ID = 7;
+    private static final int PARTITION_COLUMN_PARAMETER_ID = 8;
+    private static final int PARTITIONS_PARAMETER_ID = 9;
+    private static final int PARTITION_RANGES_PARAMETER_ID = 10;
+    private static final int CHECKPOINT_FILE_PARAMETER_ID = 11;
+    private static final int RETRIES_PARAMETER_ID = 12;
 
     private SqlQuerySource(UUID sourceId, String name, String description) {
         super(sourceId, name, description);
@@ -124,6 +149,34 @@ public class SqlQuerySource extends AbstractExternalSource {
         return getParameter(QUERY_PARAMETER_ID).getValueAsString();
     }
 
+    public Integer getFetchSize() {
+        return getParameter(FETCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getBatchSize() {
+        return getParameter(BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getPartitionColumn() {
+        return getParameter(PARTITION_COLUMN_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getPartitions() {
+        return getParameter(PARTITIONS_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getPartitionRanges() {
+        return getParameter(PARTITION_RANGES_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getCheckpointFile() {
+        return getParameter(CHECKPOINT_FILE_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getRetries() {
+        return getParameter(RETRIES_PARAMETER_ID).getValueAsInteger();
+    }
+
     public EventType getEventType() {
         return getOutput().getEventType();
     }
@@ -136,7 +189,11 @@ public class SqlQuerySource extends AbstractExternalSource {
 
     @Override
     public SqlQuerySource newInstance(Gnode gnode) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        SqlQuerySource jdbc = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildSource(jdbc, gnode);
+
+        return jdbc;
     }
 
     @Override
@@ -146,6 +203,10 @@ public class SqlQuerySource extends AbstractExternalSource {
 
     public static SqlQuerySource newTemplate() {
         UUID sourceId = Generators.timeBasedGenerator().generate();
+        return newTemplate(sourceId);
+    }
+
+    public static SqlQuerySource newTemplate(UUID sourceId) {
         SqlQuerySource jdbc = new SqlQuerySource(sourceId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
         jdbc.addParameter(Parameter.stringParameterWithIdAndName(URL_PARAMETER_ID, "URL").required(true));
         jdbc.addParameter(Parameter.stringParameterWithIdAndName(USER_NAME_PARAMETER_ID, "User name"));
@@ -153,6 +214,34 @@ public class SqlQuerySource extends AbstractExternalSource {
         jdbc.addParameter(Parameter.stringParameterWithIdAndName(DRIVER_PARAMETER_ID, "Driver class name:").required(true).
                 constraint(Constraints.classConstraintWithMessage("%s is not a valid Driver Class")));
         jdbc.addParameter(Parameter.stringParameterWithIdAndName(QUERY_PARAMETER_ID, "SQL query:").required(true));
+        jdbc.addParameter(Parameter.integerParameterWithIdAndName(FETCH_SIZE_PARAMETER_ID, "Fetch size").
+                description("Rows fetched from the database per round trip, 0 - driver default.").
+                defaultValue(1000).
+                constraint(Constraints.integerConstraintWithMinimumAndMessage(0, "Fetch size cannot be negative.")));
+        jdbc.addParameter(Parameter.integerParameterWithIdAndName(BATCH_SIZE_PARAMETER_ID, "Batch size").
+                description("Rows handed from the fetch thread to the writer at once.").
+                defaultValue(500).
+                constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Batch size should be greater than 0.")));
+        jdbc.addParameter(Parameter.stringParameterWithIdAndName(PARTITION_COLUMN_PARAMETER_ID, "Partition column").
+                description("Integer column of the query result used to split it into key ranges read in parallel. "
+                        + "Empty - a single query.").
+                defaultValue(""));
+        jdbc.addParameter(Parameter.integerParameterWithIdAndName(PARTITIONS_PARAMETER_ID, "Partitions").
+                description("Number of equal key ranges between the minimum and maximum of the partition column, "
+                        + "each read over its own connection.").
+                defaultValue(4).
+                constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Partitions should be greater than 0.")));
+        jdbc.addParameter(Parameter.stringParameterWithIdAndName(PARTITION_RANGES_PARAMETER_ID, "Partition ranges").
+                description("Explicit inclusive key ranges \"from:to,from:to\" used instead of equal ranges.").
+                defaultValue(""));
+        jdbc.addParameter(Parameter.stringParameterWithIdAndName(CHECKPOINT_FILE_PARAMETER_ID, "Checkpoint file").
+                description("File keeping the progress of every partition, so a rerun reads only unfinished ones. "
+                        + "Empty - no checkpoints.").
+                defaultValue(""));
+        jdbc.addParameter(Parameter.integerParameterWithIdAndName(RETRIES_PARAMETER_ID, "Retries").
+                description("Times a failed partition is retried from its last written key.").
+                defaultValue(2).
+                constraint(Constraints.integerConstraintWithMinimumAndMessage(0, "Retries cannot be negative.")));
         jdbc.setOutput(Output.outputWithId(1).setName("Output data:"));
         return jdbc;
     }
@@ -169,7 +258,29 @@ public class SqlQuerySource extends AbstractExternalSource {
         return new CompiledSqlQuerySource((SqlQuerySource) source);
     }
 
+    /**
+     * Rows of one partition. After they are written, all rows with keys up
+     * to the watermark have been written.
+     */
+    private static class PartitionBatch {
+
+        final Partition partition;
+        final long watermark;
+        final boolean last;
+        final List<Map<String, Object>> rows;
+
+        PartitionBatch(Partition partition, long watermark, boolean last, List<Map<String, Object>> rows) {
+            this.partition = partition;
+            this.watermark = watermark;
+            this.last = last;
+            this.rows = rows;
+        }
+    }
+
     private static class CompiledSqlQuerySource implements CompiledExternalSource {
+
+        private static final long CHECKPOINT_INTERVAL = 10000L;
+
         private final SqlQuerySource source;
 
         private volatile boolean running;
@@ -190,7 +301,7 @@ public class SqlQuerySource extends AbstractExternalSource {
             Statement statement = null;
             ResultSet rs = null;
             try {
-                statement = connection.createStatement();
+                statement = Statements.createStreamingStatement(connection, fetchSize());
 
                 rs = statement.executeQuery(source.getQuery());
                 processResultSet(rs, runtime);
@@ -206,10 +317,10 @@ public class SqlQuerySource extends AbstractExternalSource {
 
         void processResultSet(ResultSet rs, ProcessingRuntime runtime) throws SQLException {
             Thread thread = Thread.currentThread();
-            EventType eventType = source.getEventType();
+            RowMapper mapper = RowMapper.compile(source.getEventType().getAttributes(), rs.getMetaData());
 
             while (!thread.isInterrupted() && running && rs.next()) {
-                Event newEvent = createEventFromResultSet(rs, eventType);
+                Event newEvent = new Event(mapper.map(rs));
 
                 runtime.sendEventFromSource(newEvent, source);
             }
@@ -244,51 +355,257 @@ public class SqlQuerySource extends AbstractExternalSource {
             return connection;
         }
 
-        Event createEventFromResultSet(ResultSet rs, EventType eventType) throws SQLException {
-            Map<String, Object> attributeValues = Maps.newHashMap();
+        private int fetchSize() {
+            return source.getFetchSize() == null ? 1000 : source.getFetchSize();
+        }
 
-            for (Attribute attribute : eventType.getAttributes()) {
-                Class type = attribute.getType();
-                String attributeName = attribute.getName();
+        /**
+         * Streams the query result through a forward only cursor. Rows are
+         * mapped on a fetch thread with a row mapper compiled once from the
+         * result set metadata and written in batches on this thread.
+         */
+        @Override
+        public Integer startProcessingEvents(Transport runtime) throws ProcessingException {
+            synchronized (this) {
+                checkState(!running, "Source is already processing events. Cannot call processEvents again");
+                running = true;
+            }
+            runtime.start();
+            String column = source.getPartitionColumn();
+            if (column != null && !column.trim().isEmpty()) {
+                return startPartitioned(runtime, column.trim());
+            }
+            Integer status = GraphVocabulary.COMPLETE;
+            int batchSize = source.getBatchSize() == null ? 500 : source.getBatchSize();
+            String outClassName = source.getClass().getCanonicalName();
 
-                if (type == String.class) {
-                    String value = rs.getString(attributeName);
-                    attributeValues.put(attributeName, value);
+            Connection connection = getConnection(source.getDriverClass(), source.getUrl(), source.getUsername(), source.getPassword());
+            Statement statement = null;
+            ResultSet rs = null;
+            try {
+                statement = Statements.createStreamingStatement(connection, fetchSize());
+                rs = statement.executeQuery(source.getQuery());
+                RowMapper mapper = RowMapper.compile(source.getEventType().getAttributes(), rs.getMetaData());
 
-                } else if (type == Integer.class) {
-                    int value = rs.getInt(attributeName);
-                    attributeValues.put(attributeName, value);
+                long count = ResultSets.stream(rs, mapper::map, batchSize, () -> running, batch -> {
+                    batch.forEach(event -> runtime.writeEvents(event, outClassName, source.getId()));
+                });
+                LOG.log(Level.INFO, "Rows written: {0}", count);
+            } catch (SQLException e) {
+                throw new ProcessingException("Problem processing result set from database. Please check your settings.", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                status = GraphVocabulary.CANCEL;
+            } finally {
+                running = false;
+                ResultSets.closeQuietly(rs);
+                Statements.closeQuietly(statement);
+                Connections.closeQuietly(connection);
+            }
+            return status;
+        }
 
-                } else if (type == Short.class) {
-                    short value = rs.getShort(attributeName);
-                    attributeValues.put(attributeName, value);
+        /**
+         * Reads the key ranges of the partition column in parallel, each over
+         * its own connection, and merges their rows into the output stream
+         * on this thread. Rows of one partition keep their key order. A
+         * failed partition is retried alone from its watermark; the
+         * checkpoint lets a rerun skip finished partitions. Rows with a NULL
+         * key are read by a partition of their own. Delivery is at least
+         * once.
+         */
+        private Integer startPartitioned(Transport runtime, String column) throws ProcessingException {
+            Integer status = GraphVocabulary.COMPLETE;
+            int batchSize = source.getBatchSize() == null ? 500 : source.getBatchSize();
+            String outClassName = source.getClass().getCanonicalName();
+            String ranges = source.getPartitionRanges();
+            String layout = ranges != null && !ranges.trim().isEmpty() ? ranges.trim() : String.valueOf(source.getPartitions());
+            SqlPartitionCheckpoint checkpoint = new SqlPartitionCheckpoint(getCheckpointPath(), layout, source.getQuery());
+            String sql = "SELECT * FROM (" + source.getQuery() + ") q WHERE " + column + " > ? AND "
+                    + column + " <= ? ORDER BY " + column;
+            String nullSql = "SELECT * FROM (" + source.getQuery() + ") q WHERE " + column + " IS NULL";
+
+            ExecutorService pool = null;
+            try {
+                List<Partition> partitions = checkpoint.load();
+                if (partitions.isEmpty()) {
+                    partitions = plan(column);
+                }
+                List<Partition> pending = new ArrayList<>();
+                partitions.stream().filter(partition -> !partition.done).forEach(pending::add);
+                if (pending.isEmpty()) {
+                    LOG.log(Level.INFO, "All partitions are done");
+                    return status;
+                }
 
-                } else if (type == Long.class) {
-                    long value = rs.getLong(attributeName);
-                    attributeValues.put(attributeName, value);
+                BlockingQueue<PartitionBatch> batches = new ArrayBlockingQueue<>(pending.size() * 4);
+                AtomicInteger remaining = new AtomicInteger(pending.size());
+                pool = Executors.newFixedThreadPool(pending.size());
+                for (Partition partition : pending) {
+                    pool.submit(() -> {
+                        try {
+                            readPartition(partition, partition.nulls ? nullSql : sql, column, batchSize, batches);
+                        } finally {
+                            remaining.decrementAndGet();
+                        }
+                    });
+                }
 
-                } else if (type == Double.class) {
-                    double value = rs.getDouble(attributeName);
-                    attributeValues.put(attributeName, value);
+                long count = 0;
+                long saved = System.currentTimeMillis();
+                while (running) {
+                    PartitionBatch batch = batches.poll(100, TimeUnit.MILLISECONDS);
+                    if (batch == null) {
+                        if (remaining.get() == 0 && batches.isEmpty()) {
+                            break;
+                        }
+                        continue;
+                    }
+                    batch.rows.forEach(event -> runtime.writeEvents(event, outClassName, source.getId()));
+                    count += batch.rows.size();
+                    Partition partition = batch.partition;
+                    // a retry may re-read rows already queued by the failed attempt
+                    partition.watermark = Math.max(partition.watermark, batch.watermark);
+                    if (batch.last) {
+                        partition.done = true;
+                    }
+                    if (System.currentTimeMillis() - saved > CHECKPOINT_INTERVAL) {
+                        checkpoint.save(partitions);
+                        saved = System.currentTimeMillis();
+                    }
+                }
+                checkpoint.save(partitions);
+                LOG.log(Level.INFO, "Rows written: {0}", count);
+
+                for (Partition partition : partitions) {
+                    if (!partition.done) {
+                        LOG.log(Level.WARNING, "Partition {0} is not finished, last written key {1}",
+                                new Object[]{partition, partition.watermark});
+                        status = GraphVocabulary.CANCEL;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                status = GraphVocabulary.CANCEL;
+            } catch (IOException | SQLException | IllegalArgumentException e) {
+                throw new ProcessingException("Problem reading partitions from database. Please check your settings.", e);
+            } finally {
+                running = false;
+                if (pool != null) {
+                    pool.shutdownNow();
+                }
+            }
+            return status;
+        }
 
-                } else if (type == Float.class) {
-                    float value = rs.getFloat(attributeName);
-                    attributeValues.put(attributeName, value);
+        private void readPartition(Partition partition, String sql, String column, int batchSize,
+                BlockingQueue<PartitionBatch> batches) {
+            int retries = source.getRetries() == null ? 2 : source.getRetries();
+            for (int attempt = 0; running; attempt++) {
+                try {
+                    readRange(partition, sql, column, batchSize, batches);
+                    return;
+                } catch (SQLException | ProcessingException e) {
+                    if (attempt >= retries) {
+                        LOG.log(Level.SEVERE, "Partition {0} failed: {1}", new Object[]{partition, e.getMessage()});
+                        return;
+                    }
+                    LOG.log(Level.WARNING, "Partition {0} failed, retrying after key {1}: {2}",
+                            new Object[]{partition, partition.watermark, e.getMessage()});
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
 
-                } else if (type == Boolean.class) {
-                    String value = rs.getString(attributeName);
-                    attributeValues.put(attributeName, Booleans.parseBoolean(value));
-                } else {
-                    throw new IllegalArgumentException(String.format("Unknown attribute type %s", type));
+        /**
+         * Reads the keys after the partition watermark in key order. The
+         * watermark of a batch only moves past a key once a greater key is
+         * read, so rows sharing a key are never split by a resume. The NULL
+         * partition has no key to resume from and is read from the start.
+         */
+        private void readRange(Partition partition, String sql, String column, int batchSize,
+                BlockingQueue<PartitionBatch> batches) throws SQLException, ProcessingException, InterruptedException {
+            Connection connection = getConnection(source.getDriverClass(), source.getUrl(), source.getUsername(), source.getPassword());
+            PreparedStatement statement = null;
+            ResultSet rs = null;
+            try {
+                statement = Statements.prepareStreamingStatement(connection, sql, fetchSize());
+                if (!partition.nulls) {
+                    statement.setLong(1, partition.watermark);
+                    statement.setLong(2, partition.hi);
                 }
+                rs = statement.executeQuery();
+                RowMapper mapper = RowMapper.compile(source.getEventType().getAttributes(), rs.getMetaData());
+                int keyColumn = rs.findColumn(column);
+
+                long complete = partition.watermark;
+                long current = complete;
+                boolean started = false;
+                List<Map<String, Object>> rows = new ArrayList<>(batchSize);
+                while (running && rs.next()) {
+                    long key = rs.getLong(keyColumn);
+                    if (started && key != current) {
+                        complete = current;
+                    }
+                    current = key;
+                    started = true;
+                    rows.add(mapper.map(rs));
+                    if (rows.size() == batchSize) {
+                        batches.put(new PartitionBatch(partition, complete, false, rows));
+                        rows = new ArrayList<>(batchSize);
+                    }
+                }
+                if (running) {
+                    batches.put(new PartitionBatch(partition, partition.hi, true, rows));
+                } else if (!rows.isEmpty()) {
+                    batches.put(new PartitionBatch(partition, complete, false, rows));
+                }
+            } finally {
+                ResultSets.closeQuietly(rs);
+                Statements.closeQuietly(statement);
+                Connections.closeQuietly(connection);
             }
+        }
 
-            return new Event(attributeValues);
+        /**
+         * Explicit ranges, or equal ranges between the minimum and maximum
+         * key of the query result, and the partition of NULL keys.
+         */
+        private List<Partition> plan(String column) throws SQLException, ProcessingException {
+            String ranges = source.getPartitionRanges();
+            if (ranges != null && !ranges.trim().isEmpty()) {
+                List<Partition> partitions = SqlPartitionCheckpoint.parse(ranges);
+                partitions.add(Partition.nulls());
+                return partitions;
+            }
+            int count = source.getPartitions() == null ? 1 : source.getPartitions();
+            Connection connection = getConnection(source.getDriverClass(), source.getUrl(), source.getUsername(), source.getPassword());
+            Statement statement = null;
+            ResultSet rs = null;
+            try {
+                statement = connection.createStatement();
+                rs = statement.executeQuery("SELECT MIN(" + column + "), MAX(" + column + ") FROM (" + source.getQuery() + ") q");
+                List<Partition> partitions = new ArrayList<>();
+                if (rs.next()) {
+                    long min = rs.getLong(1);
+                    if (!rs.wasNull()) {
+                        partitions.addAll(SqlPartitionCheckpoint.split(min, rs.getLong(2), count));
+                    }
+                }
+                partitions.add(Partition.nulls());
+                return partitions;
+            } finally {
+                ResultSets.closeQuietly(rs);
+                Statements.closeQuietly(statement);
+                Connections.closeQuietly(connection);
+            }
         }
 
-        @Override
-        public Object startProcessingEvents(Transport runtime) throws ProcessingException {
-            return null;
+        private Path getCheckpointPath() {
+            String file = source.getCheckpointFile();
+            return file == null || file.trim().isEmpty() ? null : Paths.get(file.trim());
         }
     }
 }
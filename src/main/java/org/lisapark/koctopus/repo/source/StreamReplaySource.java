@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.source;
+
+import com.fasterxml.uuid.Generators;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.core.Output;
+import org.lisapark.koctopus.core.Persistable;
+import org.lisapark.koctopus.core.ProcessingException;
+import org.lisapark.koctopus.core.ValidationException;
+import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.parameter.Constraints;
+import org.lisapark.koctopus.core.parameter.Parameter;
+import org.lisapark.koctopus.core.runtime.ProcessingRuntime;
+import org.lisapark.koctopus.core.source.external.AbstractExternalSource;
+import org.lisapark.koctopus.core.source.external.CompiledExternalSource;
+import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
+import org.lisapark.koctopus.repo.util.ControlStream;
+import org.lisapark.koctopus.repo.util.StreamSegments;
+
+/**
+ * Replays a stream recorded by
+ * {@link org.lisapark.koctopus.repo.sink.StreamCaptureSink}. Entries keep
+ * the gaps between their original arrival times, taken from the millisecond
+ * part of the stream ids, divided by the speed.
+ *
+ * @author alexmy
+ */
+@Persistable
+public class StreamReplaySource extends AbstractExternalSource {
+
+    static final Logger LOG = Logger.getLogger(StreamReplaySource.class.getName());
+
+    private static final String DEFAULT_NAME = "Stream replay";
+    private static final String DEFAULT_DESCRIPTION = "Replay a captured stream at its original pace or faster.";
+
+    private static final int DIRECTORY_PARAMETER_ID = 1;
+    private static final int PREFIX_PARAMETER_ID = 2;
+    private static final int SPEED_PARAMETER_ID = 3;
+    private static final int MAX_GAP_PARAMETER_ID = 4;
+    private static final int ID_ATTRIBUTE_PARAMETER_ID = 5;
+    private static final int NUMBER_OF_EVENTS_PARAMETER_ID = 6;
+    private static final int CONTROL_PARAMETER_ID = 7;
+
+    public StreamReplaySource() {
+        super(Generators.timeBasedGenerator().generate());
+    }
+
+    public StreamReplaySource(UUID id, String name, String description) {
+        super(id, name, description);
+    }
+
+    private StreamReplaySource(UUID id, StreamReplaySource copyFromSource) {
+        super(id, copyFromSource);
+    }
+
+    public StreamReplaySource(StreamReplaySource copyFromSource) {
+        super(copyFromSource);
+    }
+
+    public String getDirectory() {
+        return getParameter(DIRECTORY_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getPrefix() {
+        return getParameter(PREFIX_PARAMETER_ID).getValueAsString();
+    }
+
+    public Double getSpeed() {
+        return (Double) getParameter(SPEED_PARAMETER_ID).getValue();
+    }
+
+    public Integer getMaxGap() {
+        return getParameter(MAX_GAP_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getIdAttribute() {
+        return getParameter(ID_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getNumberOfEvents() {
+        return getParameter(NUMBER_OF_EVENTS_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getControl() {
+        return getParameter(CONTROL_PARAMETER_ID).getValueAsString();
+    }
+
+    @Override
+    public StreamReplaySource copyOf() {
+        return new StreamReplaySource(this);
+    }
+
+    @Override
+    public StreamReplaySource newInstance() {
+        UUID sourceId = Generators.timeBasedGenerator().generate();
+        return new StreamReplaySource(sourceId, this);
+    }
+
+    @Override
+    public StreamReplaySource newInstance(Gnode gnode) {
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        StreamReplaySource replaySource = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildSource(replaySource, gnode);
+
+        return replaySource;
+    }
+
+    public static StreamReplaySource newTemplate() {
+        UUID sourceId = Generators.timeBasedGenerator().generate();
+        return newTemplate(sourceId);
+    }
+
+    public static StreamReplaySource newTemplate(UUID sourceId) {
+        StreamReplaySource replaySource = new StreamReplaySource(sourceId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
+        replaySource.setOutput(Output.outputWithId(1).setName("Output"));
+        replaySource.addParameter(
+                Parameter.stringParameterWithIdAndName(DIRECTORY_PARAMETER_ID, "Directory").
+                        description("Directory of the captured segment files.").
+                        required(true));
+        replaySource.addParameter(
+                Parameter.stringParameterWithIdAndName(PREFIX_PARAMETER_ID, "File prefix").
+                        description("Prefix of the captured segment files.").
+                        defaultValue("capture"));
+        replaySource.addParameter(
+                Parameter.doubleParameterWithIdAndName(SPEED_PARAMETER_ID, "Speed").
+                        description("1 - original pace, N - N times faster, 0 - as fast as possible.").
+                        defaultValue(1.0));
+        replaySource.addParameter(
+                Parameter.integerParameterWithIdAndName(MAX_GAP_PARAMETER_ID, "Max gap").
+                        description("Longest pause between two entries in original milliseconds, 0 - no limit.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0, "Max gap cannot be negative.")));
+        replaySource.addParameter(
+                Parameter.stringParameterWithIdAndName(ID_ATTRIBUTE_PARAMETER_ID, "Id attribute").
+                        description("Attribute that receives the original stream id, empty - none.").
+                        defaultValue(""));
+        replaySource.addParameter(
+                Parameter.integerParameterWithIdAndName(NUMBER_OF_EVENTS_PARAMETER_ID, "Number of Events").
+                        description("Entries to replay, 0 - all.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Number of events cannot be negative.")));
+        replaySource.addParameter(
+                Parameter.stringParameterWithIdAndName(CONTROL_PARAMETER_ID, "Control").
+                        description("Control stream to watch for stop, drain and pause, empty - none. "
+                                + "A controlled replay continues after the last entry it replayed.").
+                        defaultValue(""));
+
+        return replaySource;
+    }
+
+    @Override
+    public CompiledExternalSource compile() throws ValidationException {
+        return new CompiledReplaySource(copyOf());
+    }
+
+    @Override
+    public <T extends AbstractExternalSource> CompiledExternalSource compile(T source) throws ValidationException {
+        return new CompiledReplaySource((StreamReplaySource) source);
+    }
+
+    /**
+     * Millisecond part of a stream id "millis-sequence", -1 if the id has
+     * none.
+     */
+    static long timestampOf(String id) {
+        if (id == null) {
+            return -1;
+        }
+        int dash = id.indexOf('-');
+        try {
+            return Long.parseLong(dash < 0 ? id : id.substring(0, dash));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Compares stream ids "millis-sequence" numerically, ids that are not
+     * stream ids as strings.
+     */
+    static int compareIds(String a, String b) {
+        int dashA = a.indexOf('-');
+        int dashB = b.indexOf('-');
+        try {
+            int compare = Long.compare(timestampOf(a), timestampOf(b));
+            if (compare != 0) {
+                return compare;
+            }
+            return Long.compare(dashA < 0 ? 0 : Long.parseLong(a.substring(dashA + 1)),
+                    dashB < 0 ? 0 : Long.parseLong(b.substring(dashB + 1)));
+        } catch (NumberFormatException ex) {
+            return a.compareTo(b);
+        }
+    }
+
+    static class CompiledReplaySource implements CompiledExternalSource {
+
+        private final StreamReplaySource source;
+
+        private volatile boolean running;
+        private ControlStream control;
+
+        public CompiledReplaySource(StreamReplaySource source) {
+            this.source = source;
+        }
+
+        /**
+         * Every entry is due at start + (original offset) / speed, where the
+         * original offset is the sum of the gaps since the first entry, each
+         * capped at the max gap. Due times are absolute, so time spent
+         * writing does not accumulate as drift. Time spent paused by the
+         * control stream moves the start forward.
+         */
+        @Override
+        public Integer startProcessingEvents(Transport runtime) {
+            runtime.start();
+            running = true;
+
+            Integer status = GraphVocabulary.COMPLETE;
+            String outClassName = source.getClass().getCanonicalName();
+            double speed = source.getSpeed() == null ? 1.0 : source.getSpeed();
+            long maxGap = source.getMaxGap() == null ? 0 : source.getMaxGap();
+            long limit = source.getNumberOfEvents() == null ? 0 : source.getNumberOfEvents();
+            String idAttribute = source.getIdAttribute();
+            boolean withId = idAttribute != null && !idAttribute.trim().isEmpty();
+            control = ControlStream.open(runtime, source.getControl(), source.getId());
+            String resumeAfter = control.committed(source.getPrefix());
+            String last = resumeAfter;
+
+            long count = 0;
+            long started = System.nanoTime();
+            long previous = -1;
+            long offset = 0;
+            try (StreamSegments.Reader reader = new StreamSegments.Reader(Paths.get(source.getDirectory()), source.getPrefix())) {
+                while (running && (limit == 0 || count < limit) && reader.next()) {
+                    if (compareIds(reader.id(), resumeAfter) <= 0) {
+                        continue;
+                    }
+                    long held = System.nanoTime();
+                    ControlStream.State state = control.await();
+                    if (state == ControlStream.State.STOPPING) {
+                        status = GraphVocabulary.CANCEL;
+                        break;
+                    } else if (state == ControlStream.State.DRAINING) {
+                        // nothing is in flight, draining ends the replay here
+                        break;
+                    }
+                    started += System.nanoTime() - held;
+                    if (speed > 0) {
+                        long timestamp = timestampOf(reader.id());
+                        if (timestamp >= 0) {
+                            if (previous >= 0 && timestamp > previous) {
+                                long gap = timestamp - previous;
+                                offset += maxGap > 0 ? Math.min(gap, maxGap) : gap;
+                            }
+                            previous = timestamp;
+                        }
+                        if (!pause(started + (long) (offset * 1_000_000L / speed))) {
+                            status = GraphVocabulary.CANCEL;
+                            break;
+                        }
+                    }
+                    Map<String, String> body = reader.body();
+                    if (withId) {
+                        body.put(idAttribute, reader.id());
+                    }
+                    runtime.writeEvents(body, outClassName, source.getId());
+                    last = reader.id();
+                    count++;
+                }
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, "Replay failed after {0} entries: {1}", new Object[]{count, ex.getMessage()});
+                status = GraphVocabulary.CANCEL;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                status = GraphVocabulary.CANCEL;
+            }
+            control.commit(source.getPrefix(), last);
+            double seconds = Math.max(1e-9, (System.nanoTime() - started) / 1e9);
+            LOG.log(Level.INFO, "Replayed {0} entries in {1} s",
+                    new Object[]{count, String.format("%.3f", seconds)});
+            return status;
+        }
+
+        /**
+         * Parks until the due time.
+         *
+         * @return false if stopped or interrupted
+         */
+        private boolean pause(long due) {
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                if (!running || Thread.currentThread().isInterrupted()
+                        || control.check() == ControlStream.State.STOPPING) {
+                    return false;
+                }
+                // short slices keep a stop request responsive during long gaps
+                LockSupport.parkNanos(Math.min(wait, 100_000_000L));
+            }
+            return running;
+        }
+
+        @Override
+        public void stopProcessingEvents() {
+            running = false;
+        }
+
+        @Override
+        public void startProcessingEvents(ProcessingRuntime runtime) throws ProcessingException {
+
+        }
+    }
+}
@@ -18,6 +18,7 @@ package org.lisapark.koctopus.repo.source;
 
 import com.fasterxml.uuid.Generators;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.RateLimiter;
 import org.lisapark.koctopus.core.Output;
 import org.lisapark.koctopus.core.Persistable;
 import org.lisapark.koctopus.core.ValidationException;
@@ -28,9 +29,18 @@ import org.lisapark.koctopus.core.parameter.Constraints;
 import org.lisapark.koctopus.core.parameter.Parameter;
 import org.lisapark.koctopus.core.runtime.ProcessingRuntime;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.SplittableRandom;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.lisapark.koctopus.core.ProcessingException;
@@ -53,6 +63,15 @@ public class TestSourceRedis extends AbstractExternalSource {
     private static final String DEFAULT_DESCRIPTION = "Generate source data according to the provided attribute list.";
     
     private static final int NUMBER_OF_EVENTS_PARAMETER_ID = 1;
+    private static final int MODE_PARAMETER_ID = 2;
+    private static final int RATE_PARAMETER_ID = 3;
+    private static final int THREADS_PARAMETER_ID = 4;
+    private static final int SEED_PARAMETER_ID = 5;
+    private static final int DISTRIBUTIONS_PARAMETER_ID = 6;
+    private static final int BATCH_SIZE_PARAMETER_ID = 7;
+
+    private static final String MODE_SAMPLE = "sample";
+    private static final String MODE_LOAD = "load";
     
     private static void initAttributeList(TestSourceRedis testSource) throws ValidationException {
         testSource.getOutput().addAttribute(Attribute.newAttribute(Integer.class, "Att"));
@@ -77,6 +96,30 @@ public class TestSourceRedis extends AbstractExternalSource {
     public Integer getNumberOfEvents() {
         return getParameter(NUMBER_OF_EVENTS_PARAMETER_ID).getValueAsInteger();
     }
+
+    public String getMode() {
+        return getParameter(MODE_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getRate() {
+        return getParameter(RATE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getThreads() {
+        return getParameter(THREADS_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getSeed() {
+        return getParameter(SEED_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getDistributions() {
+        return getParameter(DISTRIBUTIONS_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getBatchSize() {
+        return getParameter(BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
     
     @Override
     public TestSourceRedis copyOf() {
@@ -112,6 +155,36 @@ public class TestSourceRedis extends AbstractExternalSource {
                         defaultValue(100).
                         constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
                                 "Number of events has to be greater than zero.")));
+        testSource.addParameter(
+                Parameter.stringParameterWithIdAndName(MODE_PARAMETER_ID, "Mode").
+                        description("sample - attribute sample data, one event per millisecond; "
+                                + "load - rate controlled generator for capacity tests.").
+                        defaultValue(MODE_SAMPLE));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(RATE_PARAMETER_ID, "Rate").
+                        description("Load mode target events per second, 0 - as fast as possible.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0, "Rate cannot be negative.")));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(THREADS_PARAMETER_ID, "Threads").
+                        description("Load mode producer threads.").
+                        defaultValue(1).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Threads should be greater than 0.")));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(SEED_PARAMETER_ID, "Seed").
+                        description("Load mode seed. Values of an event depend only on the seed and the event number.").
+                        defaultValue(42));
+        testSource.addParameter(
+                Parameter.stringParameterWithIdAndName(DISTRIBUTIONS_PARAMETER_ID, "Distributions").
+                        description("Load mode values per attribute: \"name:dist(args);...\" with dist one of "
+                                + "sequence, constant(v), uniform(min,max), normal(mean,sd), exponential(mean), "
+                                + "bernoulli(p), choice(a|b|c). Others - uniform(0,100), strings choice of 10 values.").
+                        defaultValue(""));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(BATCH_SIZE_PARAMETER_ID, "Batch size").
+                        description("Load mode events handed from a producer to the writer at once.").
+                        defaultValue(1000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Batch size should be greater than 0.")));
         try {
             initAttributeList(testSource);
         } catch (ValidationException ex) {
@@ -131,6 +204,168 @@ public class TestSourceRedis extends AbstractExternalSource {
         return new CompiledTestSource((TestSourceRedis)source);
     }
     
+    /**
+     * Value of one attribute for an event, drawn from the event's random
+     * generator.
+     */
+    interface ValueGenerator {
+
+        Object next(SplittableRandom random, long eventNumber);
+    }
+
+    /**
+     * Builds the generator of every attribute from the distributions spec,
+     * once per run.
+     */
+    static ValueGenerator[] generators(List<Attribute> attributes, String spec) {
+        Map<String, String> dists = Maps.newHashMap();
+        if (spec != null) {
+            for (String item : spec.split(";")) {
+                int colon = item.indexOf(':');
+                if (colon > 0) {
+                    dists.put(item.substring(0, colon).trim(), item.substring(colon + 1).trim());
+                } else if (!item.trim().isEmpty()) {
+                    throw new IllegalArgumentException("Bad distribution: " + item);
+                }
+            }
+        }
+        ValueGenerator[] generators = new ValueGenerator[attributes.size()];
+        for (int i = 0; i < generators.length; i++) {
+            Attribute attribute = attributes.get(i);
+            String dist = dists.get(attribute.getName());
+            if (dist == null) {
+                dist = attribute.getType() == String.class ? "choice(v0|v1|v2|v3|v4|v5|v6|v7|v8|v9)"
+                        : attribute.getType() == Boolean.class ? "bernoulli(0.5)" : "uniform(0,100)";
+            }
+            generators[i] = generator(attribute.getType(), dist);
+        }
+        return generators;
+    }
+
+    private static ValueGenerator generator(Class type, String dist) {
+        int open = dist.indexOf('(');
+        String name = (open < 0 ? dist : dist.substring(0, open)).trim().toLowerCase();
+        String[] args = new String[0];
+        if (open >= 0) {
+            int close = dist.lastIndexOf(')');
+            if (close < open) {
+                throw new IllegalArgumentException("Bad distribution: " + dist);
+            }
+            String inner = dist.substring(open + 1, close);
+            args = inner.split(name.equals("choice") ? "\\|" : ",");
+        }
+        switch (name) {
+            case "sequence":
+                return (random, n) -> convert(type, n);
+            case "constant": {
+                Object value = parse(type, arg(args, 0, dist));
+                return (random, n) -> value;
+            }
+            case "uniform": {
+                double min = Double.parseDouble(arg(args, 0, dist));
+                double max = Double.parseDouble(arg(args, 1, dist));
+                if (isIntegral(type)) {
+                    long lo = (long) Math.ceil(min);
+                    long bound = (long) Math.floor(max) + 1;
+                    return (random, n) -> convert(type, random.nextLong(lo, bound));
+                }
+                return (random, n) -> convert(type, random.nextDouble(min, max));
+            }
+            case "normal": {
+                double mean = Double.parseDouble(arg(args, 0, dist));
+                double sd = Double.parseDouble(arg(args, 1, dist));
+                return (random, n) -> convert(type, mean + sd * gaussian(random));
+            }
+            case "exponential": {
+                double mean = Double.parseDouble(arg(args, 0, dist));
+                return (random, n) -> convert(type, -mean * Math.log(1.0 - random.nextDouble()));
+            }
+            case "bernoulli": {
+                double p = Double.parseDouble(arg(args, 0, dist));
+                return (random, n) -> type == Boolean.class ? random.nextDouble() < p
+                        : convert(type, random.nextDouble() < p ? 1 : 0);
+            }
+            case "choice": {
+                Object[] values = new Object[args.length];
+                for (int i = 0; i < args.length; i++) {
+                    values[i] = parse(type, args[i].trim());
+                }
+                return (random, n) -> values[random.nextInt(values.length)];
+            }
+            default:
+                throw new IllegalArgumentException("Unknown distribution: " + dist);
+        }
+    }
+
+    private static String arg(String[] args, int index, String dist) {
+        if (index >= args.length || args[index].trim().isEmpty()) {
+            throw new IllegalArgumentException("Missing argument " + (index + 1) + " in " + dist);
+        }
+        return args[index].trim();
+    }
+
+    private static boolean isIntegral(Class type) {
+        return type == Integer.class || type == Long.class || type == Short.class;
+    }
+
+    private static double gaussian(SplittableRandom random) {
+        // Box-Muller, one value per call keeps events independent
+        double u = 1.0 - random.nextDouble();
+        double v = random.nextDouble();
+        return Math.sqrt(-2.0 * Math.log(u)) * Math.cos(2.0 * Math.PI * v);
+    }
+
+    private static Object convert(Class type, double value) {
+        if (type == Integer.class) {
+            return (int) Math.round(value);
+        } else if (type == Long.class) {
+            return Math.round(value);
+        } else if (type == Short.class) {
+            return (short) Math.round(value);
+        } else if (type == Float.class) {
+            return (float) value;
+        } else if (type == Boolean.class) {
+            return value != 0;
+        } else if (type == String.class) {
+            return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+        }
+        return value;
+    }
+
+    private static Object convert(Class type, long value) {
+        if (type == Integer.class) {
+            return (int) value;
+        } else if (type == Long.class) {
+            return value;
+        } else if (type == Short.class) {
+            return (short) value;
+        } else if (type == Float.class) {
+            return (float) value;
+        } else if (type == Double.class) {
+            return (double) value;
+        } else if (type == Boolean.class) {
+            return value != 0;
+        }
+        return Long.toString(value);
+    }
+
+    private static Object parse(Class type, String value) {
+        if (type == Integer.class) {
+            return Integer.valueOf(value);
+        } else if (type == Long.class) {
+            return Long.valueOf(value);
+        } else if (type == Short.class) {
+            return Short.valueOf(value);
+        } else if (type == Double.class) {
+            return Double.valueOf(value);
+        } else if (type == Float.class) {
+            return Float.valueOf(value);
+        } else if (type == Boolean.class) {
+            return Boolean.valueOf(value);
+        }
+        return value;
+    }
+
     static class CompiledTestSource implements CompiledExternalSource {
         
         private final TestSourceRedis source;
@@ -152,6 +387,9 @@ public class TestSourceRedis extends AbstractExternalSource {
             Thread thread = Thread.currentThread();
             runtime.start();
             running = true;
+            if (MODE_LOAD.equalsIgnoreCase(source.getMode())) {
+                return generateLoad(runtime);
+            }
             Integer status = GraphVocabulary.COMPLETE;
             
             EventType eventType = source.getOutput().getEventType();
@@ -173,6 +411,113 @@ public class TestSourceRedis extends AbstractExternalSource {
             return status;
         }
         
+        /**
+         * Producers claim ranges of event numbers, generate the events and
+         * pass them in batches to this thread, the only one writing to the
+         * transport. The random generator of an event is seeded from the
+         * seed and the event number, so the generated data does not depend
+         * on the number of threads; only the interleaving of batches does.
+         * The rate is enforced by a shared token bucket, with batches
+         * shrunk to about 10 ms of events so the rate stays smooth.
+         */
+        private Integer generateLoad(Transport runtime) {
+            Integer status = GraphVocabulary.COMPLETE;
+            List<Attribute> attributes = source.getOutput().getEventType().getAttributes();
+            String[] names = new String[attributes.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = attributes.get(i).getName();
+            }
+            ValueGenerator[] generators;
+            try {
+                generators = generators(attributes, source.getDistributions());
+            } catch (IllegalArgumentException ex) {
+                LOG.log(Level.SEVERE, ex.getMessage());
+                return GraphVocabulary.CANCEL;
+            }
+            long total = source.getNumberOfEvents();
+            int threads = source.getThreads() == null ? 1 : source.getThreads();
+            long seed = source.getSeed() == null ? 42 : source.getSeed();
+            int rate = source.getRate() == null ? 0 : source.getRate();
+            int batchSize = source.getBatchSize() == null ? 1000 : source.getBatchSize();
+            if (rate > 0) {
+                batchSize = Math.max(1, Math.min(batchSize, rate / 100));
+            }
+            RateLimiter limiter = rate > 0 ? RateLimiter.create(rate) : null;
+            String outClassName = source.getClass().getCanonicalName();
+
+            BlockingQueue<List<Map<String, Object>>> batches = new ArrayBlockingQueue<>(threads * 4);
+            AtomicLong next = new AtomicLong();
+            AtomicInteger remaining = new AtomicInteger(threads);
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            int size = batchSize;
+            long started = System.nanoTime();
+            long count = 0;
+            try {
+                for (int t = 0; t < threads; t++) {
+                    pool.submit(() -> {
+                        try {
+                            produce(names, generators, seed, total, size, next, limiter, batches);
+                        } finally {
+                            remaining.decrementAndGet();
+                        }
+                    });
+                }
+                while (running) {
+                    List<Map<String, Object>> batch = batches.poll(100, TimeUnit.MILLISECONDS);
+                    if (batch == null) {
+                        if (remaining.get() == 0 && batches.isEmpty()) {
+                            break;
+                        }
+                        continue;
+                    }
+                    for (Map<String, Object> event : batch) {
+                        runtime.writeEvents(event, outClassName, source.getId());
+                    }
+                    count += batch.size();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                status = GraphVocabulary.CANCEL;
+            } finally {
+                running = false;
+                pool.shutdownNow();
+            }
+            double seconds = Math.max(1e-9, (System.nanoTime() - started) / 1e9);
+            LOG.log(Level.INFO, "Generated {0} events in {1} s, {2} events/s",
+                    new Object[]{count, String.format("%.3f", seconds), Math.round(count / seconds)});
+            return status;
+        }
+
+        private void produce(String[] names, ValueGenerator[] generators, long seed, long total, int batchSize,
+                AtomicLong next, RateLimiter limiter, BlockingQueue<List<Map<String, Object>>> batches) {
+            try {
+                while (running) {
+                    long first = next.getAndAdd(batchSize);
+                    if (first >= total) {
+                        return;
+                    }
+                    int n = (int) Math.min(batchSize, total - first);
+                    if (limiter != null) {
+                        limiter.acquire(n);
+                    }
+                    List<Map<String, Object>> batch = new ArrayList<>(n);
+                    for (long number = first; number < first + n; number++) {
+                        SplittableRandom random = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + number);
+                        Map<String, Object> event = Maps.newHashMapWithExpectedSize(names.length);
+                        for (int i = 0; i < names.length; i++) {
+                            event.put(names[i], generators[i].next(random, number));
+                        }
+                        batch.add(event);
+                    }
+                    batches.put(batch);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException ex) {
+                LOG.log(Level.SEVERE, "Producer failed: {0}", ex.getMessage());
+            }
+        }
+
         private Event createEvent(List<Attribute> attributes, int eventNumber) {
             Map<String, Object> attributeData = Maps.newHashMap();
             
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.util;
+
+import io.lettuce.core.StreamMessage;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.core.transport.Transport;
+
+/**
+ * Commands to the nodes of a model, sent through a control stream on the
+ * transport, and the input offsets committed by the nodes that watch it.
+ *
+ * A node watching a control stream checks it between pages:
+ * <ul>
+ * <li>stop - finish the page or batch in hand, commit and exit;</li>
+ * <li>drain - take no new work, finish everything already read, commit and
+ * exit; a sink drains its input to the current end;</li>
+ * <li>pause - hold before the next page until resume, drain or stop.</li>
+ * </ul>
+ * A command without a node applies to all nodes watching the stream. Only
+ * commands sent after the node started are seen, so a restarted node does
+ * not act on the command that stopped it.
+ *
+ * Nodes watching a control stream resume from their committed offsets,
+ * which turns a restart into a continuation instead of a replay.
+ *
+ * @author alexmy
+ */
+public class ControlStream {
+
+    static final Logger LOG = Logger.getLogger(ControlStream.class.getName());
+
+    public static final String CONTROL_CLASS = "org.lisapark.koctopus.control";
+    public static final String OFFSETS_CLASS = "org.lisapark.koctopus.offsets";
+
+    public static final String COMMAND = "command";
+    public static final String NODE = "node";
+
+    public enum Command {
+        STOP, DRAIN, PAUSE, RESUME
+    }
+
+    public enum State {
+        RUNNING, PAUSED, DRAINING, STOPPING
+    }
+
+    private static final long POLL_INTERVAL = 200;
+
+    private final Transport runtime;
+    private final UUID controlId;
+    private final UUID nodeId;
+
+    private String offset;
+    private long nextPoll;
+    private volatile State state = State.RUNNING;
+
+    private ControlStream(Transport runtime, UUID controlId, UUID nodeId) {
+        this.runtime = runtime;
+        this.controlId = controlId;
+        this.nodeId = nodeId;
+        // ids are assigned by the server clock, start after the last one
+        this.offset = controlId == null ? "0" : end();
+    }
+
+    /**
+     * Id of the last command in the control stream, "0" if it is empty.
+     */
+    private String end() {
+        String position = "0";
+        while (true) {
+            List<StreamMessage<String, String>> list = runtime.readEvents(CONTROL_CLASS, controlId, position);
+            if (list.isEmpty()) {
+                return position;
+            }
+            position = list.get(list.size() - 1).getId();
+        }
+    }
+
+    /**
+     * @param runtime
+     * @param control name of the control stream, usually the model name;
+     * empty for a node that is not controlled
+     * @param nodeId
+     * @return
+     */
+    public static ControlStream open(Transport runtime, String control, UUID nodeId) {
+        boolean none = control == null || control.trim().isEmpty();
+        return new ControlStream(runtime, none ? null : controlId(control.trim()), nodeId);
+    }
+
+    public static UUID controlId(String control) {
+        return UUID.nameUUIDFromBytes(("control:" + control).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param runtime
+     * @param control
+     * @param command
+     * @param node id of the node the command is for, null for all
+     */
+    public static void send(Transport runtime, String control, Command command, String node) {
+        Map<String, String> message = new HashMap<>();
+        message.put(COMMAND, command.name().toLowerCase());
+        if (node != null && !node.trim().isEmpty()) {
+            message.put(NODE, node.trim());
+        }
+        runtime.writeEvents(message, CONTROL_CLASS, controlId(control));
+    }
+
+    public boolean isControlled() {
+        return controlId != null;
+    }
+
+    /**
+     * Applies the commands sent since the last check, reading the stream
+     * at most every 200 ms.
+     *
+     * @return
+     */
+    public State check() {
+        if (controlId == null || System.currentTimeMillis() < nextPoll) {
+            return state;
+        }
+        nextPoll = System.currentTimeMillis() + POLL_INTERVAL;
+        List<StreamMessage<String, String>> list = runtime.readEvents(CONTROL_CLASS, controlId, offset);
+        for (StreamMessage<String, String> msg : list) {
+            if (msg == null) {
+                continue;
+            }
+            offset = msg.getId();
+            String node = msg.getBody().get(NODE);
+            if (node == null || node.equals(nodeId.toString())) {
+                apply(msg.getBody().get(COMMAND));
+            }
+        }
+        return state;
+    }
+
+    private void apply(String command) {
+        Command parsed;
+        try {
+            parsed = Command.valueOf(String.valueOf(command).trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            LOG.log(Level.WARNING, "Unknown control command: {0}", command);
+            return;
+        }
+        State before = state;
+        switch (parsed) {
+            case STOP:
+                state = State.STOPPING;
+                break;
+            case DRAIN:
+                if (state != State.STOPPING) {
+                    state = State.DRAINING;
+                }
+                break;
+            case PAUSE:
+                if (state == State.RUNNING) {
+                    state = State.PAUSED;
+                }
+                break;
+            case RESUME:
+                if (state == State.PAUSED) {
+                    state = State.RUNNING;
+                }
+                break;
+        }
+        if (state != before) {
+            LOG.log(Level.INFO, "Node {0}: {1} -> {2}", new Object[]{nodeId, before, state});
+        }
+    }
+
+    /**
+     * Like {@link #check()}, but holds while paused.
+     *
+     * @return the state once it is not paused
+     * @throws InterruptedException
+     */
+    public State await() throws InterruptedException {
+        State current = check();
+        while (current == State.PAUSED) {
+            Thread.sleep(POLL_INTERVAL);
+            current = check();
+        }
+        return current;
+    }
+
+    /**
+     * Last offset of the input committed by this node, "0" if there is
+     * none or the node is not controlled.
+     *
+     * @param input
+     * @return
+     */
+    public String committed(String input) {
+        String committed = "0";
+        if (controlId == null) {
+            return committed;
+        }
+        String position = "0";
+        while (true) {
+            List<StreamMessage<String, String>> list = runtime.readEvents(OFFSETS_CLASS, nodeId, position);
+            if (list.isEmpty()) {
+                break;
+            }
+            for (StreamMessage<String, String> msg : list) {
+                if (msg != null && msg.getBody().get(input) != null) {
+                    committed = msg.getBody().get(input);
+                }
+            }
+            position = list.get(list.size() - 1).getId();
+        }
+        return committed;
+    }
+
+    /**
+     * Records the offset of the last entry of the input this node has
+     * completely processed.
+     *
+     * @param input
+     * @param offset
+     */
+    public void commit(String input, String offset) {
+        if (controlId == null) {
+            return;
+        }
+        Map<String, String> message = new HashMap<>();
+        message.put(input, offset);
+        runtime.writeEvents(message, OFFSETS_CLASS, nodeId);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Line reader that splits every line on a single delimiter char without
+ * regular expressions or per-field strings. Fields are exposed as [start, end)
+ * ranges over the internal char buffer, valid until the next call of
+ * {@link #next()}. Both "\n" and "\r\n" line ends are accepted.
+ *
+ * @author alexmy
+ */
+public class DelimitedLineReader implements Closeable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final Reader reader;
+    private final char delimiter;
+
+    private char[] buffer;
+    private int position;
+    private int limit;
+    private int scan;
+    private boolean eof;
+
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int fieldCount;
+    private long lineNumber;
+
+    public DelimitedLineReader(Reader reader, char delimiter) {
+        this(reader, delimiter, DEFAULT_BUFFER_SIZE);
+    }
+
+    public DelimitedLineReader(Reader reader, char delimiter, int bufferSize) {
+        this.reader = reader;
+        this.delimiter = delimiter;
+        this.buffer = new char[Math.max(bufferSize, 16)];
+    }
+
+    /**
+     * Moves to the next line and splits it into fields.
+     *
+     * @return false at the end of input
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            for (int i = scan; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    split(position, i);
+                    position = i + 1;
+                    scan = position;
+                    return true;
+                }
+            }
+            scan = limit;
+            if (eof) {
+                if (position < limit) {
+                    split(position, limit);
+                    position = limit;
+                    return true;
+                }
+                return false;
+            }
+            fill();
+        }
+    }
+
+    private void fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            scan -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            // the line is longer than the buffer
+            char[] grown = new char[buffer.length * 2];
+            System.arraycopy(buffer, 0, grown, 0, limit);
+            buffer = grown;
+        }
+        int n = reader.read(buffer, limit, buffer.length - limit);
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+    }
+
+    private void split(int lineStart, int lineEnd) {
+        if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') {
+            lineEnd--;
+        }
+        fieldCount = 0;
+        int fieldStart = lineStart;
+        for (int i = lineStart; i < lineEnd; i++) {
+            if (buffer[i] == delimiter) {
+                addField(fieldStart, i);
+                fieldStart = i + 1;
+            }
+        }
+        addField(fieldStart, lineEnd);
+        lineNumber++;
+    }
+
+    private void addField(int start, int end) {
+        if (fieldCount == starts.length) {
+            int[] newStarts = new int[starts.length * 2];
+            int[] newEnds = new int[ends.length * 2];
+            System.arraycopy(starts, 0, newStarts, 0, fieldCount);
+            System.arraycopy(ends, 0, newEnds, 0, fieldCount);
+            starts = newStarts;
+            ends = newEnds;
+        }
+        starts[fieldCount] = start;
+        ends[fieldCount] = end;
+        fieldCount++;
+    }
+
+    public char[] buffer() {
+        return buffer;
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    public int start(int field) {
+        return starts[field];
+    }
+
+    public int end(int field) {
+        return ends[field];
+    }
+
+    public boolean isEmpty(int field) {
+        return starts[field] == ends[field];
+    }
+
+    public String field(int field) {
+        return new String(buffer, starts[field], ends[field] - starts[field]);
+    }
+
+    /**
+     * Number of lines read so far, the current line is lineNumber().
+     *
+     * @return
+     */
+    public long lineNumber() {
+        return lineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
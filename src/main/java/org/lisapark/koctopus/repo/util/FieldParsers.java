@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.util;
+
+import java.util.List;
+import org.lisapark.koctopus.core.event.Attribute;
+
+/**
+ * Field parsers selected once per attribute type, so parsing a field is a
+ * single virtual call instead of a chain of type checks. Parsers read the
+ * field straight from a char range, integral types without creating a
+ * String.
+ *
+ * @author alexmy
+ */
+public abstract class FieldParsers {
+
+    public interface FieldParser {
+
+        /**
+         * @param buffer
+         * @param start first char of the field
+         * @param end char after the field
+         * @return parsed value
+         * @throws IllegalArgumentException if the field cannot be parsed
+         */
+        Object parse(char[] buffer, int start, int end);
+    }
+
+    private static final FieldParser STRING = (buffer, start, end) -> new String(buffer, start, end - start);
+    private static final FieldParser INTEGER = (buffer, start, end) -> {
+        long value = parseLong(buffer, start, end);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Integer out of range: " + new String(buffer, start, end - start));
+        }
+        return (int) value;
+    };
+    private static final FieldParser SHORT = (buffer, start, end) -> Short.valueOf(new String(buffer, start, end - start).trim());
+    private static final FieldParser LONG = (buffer, start, end) -> parseLong(buffer, start, end);
+    private static final FieldParser DOUBLE = (buffer, start, end) -> Double.valueOf(new String(buffer, start, end - start));
+    private static final FieldParser FLOAT = (buffer, start, end) -> Float.valueOf(new String(buffer, start, end - start));
+    private static final FieldParser BOOLEAN = (buffer, start, end) -> Booleans.parseBoolean(new String(buffer, start, end - start));
+
+    public static FieldParser forType(Class type) {
+        if (type == String.class) {
+            return STRING;
+        } else if (type == Integer.class) {
+            return INTEGER;
+        } else if (type == Short.class) {
+            return SHORT;
+        } else if (type == Long.class) {
+            return LONG;
+        } else if (type == Double.class) {
+            return DOUBLE;
+        } else if (type == Float.class) {
+            return FLOAT;
+        } else if (type == Boolean.class) {
+            return BOOLEAN;
+        }
+        throw new IllegalArgumentException(String.format("Unknown attribute type %s", type));
+    }
+
+    public static FieldParser[] forAttributes(List<Attribute> attributes) {
+        FieldParser[] parsers = new FieldParser[attributes.size()];
+        for (int i = 0; i < parsers.length; i++) {
+            parsers[i] = forType(attributes.get(i).getType());
+        }
+        return parsers;
+    }
+
+    /**
+     * Parses an optionally signed decimal integer from the char range.
+     * Surrounding spaces are ignored.
+     *
+     * @param buffer
+     * @param start
+     * @param end
+     * @return
+     */
+    public static long parseLong(char[] buffer, int start, int end) {
+        while (start < end && buffer[start] == ' ') {
+            start++;
+        }
+        while (end > start && buffer[end - 1] == ' ') {
+            end--;
+        }
+        if (start == end) {
+            throw new NumberFormatException("Empty number");
+        }
+        boolean negative = false;
+        int i = start;
+        if (buffer[i] == '-' || buffer[i] == '+') {
+            negative = buffer[i] == '-';
+            i++;
+            if (i == end) {
+                throw new NumberFormatException("Bad number: " + new String(buffer, start, end - start));
+            }
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Bad number: " + new String(buffer, start, end - start));
+            }
+            // accumulate negatively, so Long.MIN_VALUE fits
+            if (value < (Long.MIN_VALUE + digit) / 10) {
+                throw new NumberFormatException("Number out of range: " + new String(buffer, start, end - start));
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative && value == Long.MIN_VALUE) {
+            throw new NumberFormatException("Number out of range: " + new String(buffer, start, end - start));
+        }
+        return negative ? value : -value;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * One pooled HTTP client shared by all nodes of the JVM, so connections to
+ * the same server are kept alive and reused across requests and runs.
+ *
+ * Every request gets a deadline: connect, pool lease and read timeouts
+ * bound the single steps, a timer aborts the request when the whole
+ * exchange takes longer.
+ *
+ * @author alexmy
+ */
+public abstract class HttpClientPool {
+
+    private static final int MAX_TOTAL = 200;
+    private static final int MAX_PER_ROUTE = 50;
+    private static final long IDLE_SECONDS = 30;
+
+    private static volatile CloseableHttpClient client;
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("http-deadline-%d").build());
+
+    public static CloseableHttpClient client() {
+        CloseableHttpClient result = client;
+        if (result == null) {
+            synchronized (HttpClientPool.class) {
+                result = client;
+                if (result == null) {
+                    PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+                    cm.setMaxTotal(MAX_TOTAL);
+                    cm.setDefaultMaxPerRoute(MAX_PER_ROUTE);
+                    result = HttpClients.custom()
+                            .setConnectionManager(cm)
+                            .evictExpiredConnections()
+                            .evictIdleConnections(IDLE_SECONDS, TimeUnit.SECONDS)
+                            .build();
+                    client = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    public static RequestConfig config(int timeoutMillis) {
+        return RequestConfig.custom()
+                .setConnectTimeout(timeoutMillis)
+                .setConnectionRequestTimeout(timeoutMillis)
+                .setSocketTimeout(timeoutMillis)
+                .build();
+    }
+
+    /**
+     * Executes the request on the shared client. The handler reads the
+     * response, which is released to the pool afterwards.
+     *
+     * @param <T>
+     * @param request
+     * @param handler
+     * @param timeoutMillis deadline of the whole exchange
+     * @return
+     * @throws IOException also when the request was aborted at the deadline,
+     * then a {@link DeadlineExceededException}
+     */
+    public static <T> T execute(HttpRequestBase request, ResponseHandler<? extends T> handler, int timeoutMillis) throws IOException {
+        request.setConfig(config(timeoutMillis));
+        AtomicBoolean aborted = new AtomicBoolean();
+        ScheduledFuture<?> deadline = TIMER.schedule(() -> {
+            aborted.set(true);
+            request.abort();
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+            return client().execute(request, handler);
+        } catch (IOException ex) {
+            if (aborted.get()) {
+                throw new DeadlineExceededException(timeoutMillis, ex);
+            }
+            throw ex;
+        } finally {
+            deadline.cancel(false);
+        }
+    }
+
+    /**
+     * {@link #execute} on the executor.
+     */
+    public static <T> CompletableFuture<T> executeAsync(HttpRequestBase request, ResponseHandler<? extends T> handler,
+            int timeoutMillis, Executor executor) {
+        return executeAsync(request, handler, timeoutMillis, executor, null);
+    }
+
+    /**
+     * {@link #execute} on the executor.
+     *
+     * @param onStart called on the executor thread when the request and its
+     * deadline start, after any wait in the executor queue; may be null
+     */
+    public static <T> CompletableFuture<T> executeAsync(HttpRequestBase request, ResponseHandler<? extends T> handler,
+            int timeoutMillis, Executor executor, Runnable onStart) {
+        return CompletableFuture.supplyAsync(() -> {
+            if (onStart != null) {
+                onStart.run();
+            }
+            try {
+                return execute(request, handler, timeoutMillis);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }, executor);
+    }
+
+    /**
+     * Returns true if the failure is a timeout: the deadline abort or a
+     * connect, lease or read timeout, possibly wrapped.
+     *
+     * @param ex
+     * @return
+     */
+    public static boolean isTimeout(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedIOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The request was aborted because the whole exchange took longer than
+     * its deadline.
+     */
+    public static class DeadlineExceededException extends InterruptedIOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public DeadlineExceededException(int timeoutMillis, IOException cause) {
+            super("Request aborted at the " + timeoutMillis + " ms deadline");
+            initCause(cause);
+        }
+    }
+}
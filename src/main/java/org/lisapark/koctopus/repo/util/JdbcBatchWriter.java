@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.util;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Inserts rows into a table through one prepared statement, in JDBC
+ * batches committed as one transaction each. A batch is flushed when it
+ * holds the batch size rows or its first row is older than the flush
+ * interval.
+ *
+ * The connection belongs to the caller; the writer switches it to manual
+ * commit and closes only its statement.
+ *
+ * @author alexmy
+ */
+public class JdbcBatchWriter implements AutoCloseable {
+
+    private final Connection connection;
+    private final List<String> columns;
+    private final Integer[] types;
+    private final PreparedStatement statement;
+    private final int batchSize;
+    private final long flushInterval;
+
+    private int pending;
+    private long deadline;
+    private long written;
+
+    /**
+     * @param connection
+     * @param table table name, optionally with the schema "schema.table"
+     * @param columns
+     * @param batchSize
+     * @param flushInterval milliseconds, 0 - flush by size only
+     * @throws SQLException
+     */
+    public JdbcBatchWriter(Connection connection, String table, List<String> columns, int batchSize, long flushInterval)
+            throws SQLException {
+        this.connection = connection;
+        this.columns = columns;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushInterval = flushInterval;
+        this.types = columnTypes(connection, table, columns);
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            sql.append(i == 0 ? "" : ", ").append(columns.get(i));
+            values.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(") VALUES (").append(values).append(")");
+
+        connection.setAutoCommit(false);
+        this.statement = connection.prepareStatement(sql.toString());
+    }
+
+    /**
+     * Column types as declared in the table, null where the driver does
+     * not report them. String values are converted by the driver to the
+     * declared type.
+     */
+    private static Integer[] columnTypes(Connection connection, String table, List<String> columns) throws SQLException {
+        String schema = null;
+        String name = table;
+        int dot = table.lastIndexOf('.');
+        if (dot >= 0) {
+            schema = table.substring(0, dot);
+            name = table.substring(dot + 1);
+        }
+        Map<String, Integer> declared = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        DatabaseMetaData meta = connection.getMetaData();
+        // identifiers are stored upper or lower case depending on the database
+        for (String candidate : new String[]{name, name.toUpperCase(), name.toLowerCase()}) {
+            try (ResultSet rs = meta.getColumns(null, schema, candidate, null)) {
+                while (rs.next()) {
+                    declared.put(rs.getString("COLUMN_NAME"), rs.getInt("DATA_TYPE"));
+                }
+            }
+            if (!declared.isEmpty()) {
+                break;
+            }
+        }
+        Integer[] types = new Integer[columns.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = declared.get(columns.get(i));
+        }
+        return types;
+    }
+
+    /**
+     * Adds a row, flushing if the batch is due.
+     *
+     * @param row values by column name, missing columns are null
+     * @return true if the row was flushed with its batch
+     * @throws SQLException from the flush, the batch is rolled back
+     */
+    public boolean add(Map<String, ?> row) throws SQLException {
+        for (int i = 0; i < columns.size(); i++) {
+            set(i, row.get(columns.get(i)));
+        }
+        statement.addBatch();
+        if (pending++ == 0) {
+            deadline = System.currentTimeMillis() + flushInterval;
+        }
+        if (isDue()) {
+            flush();
+            return true;
+        }
+        return false;
+    }
+
+    private void set(int i, Object value) throws SQLException {
+        Integer type = types[i];
+        if (value == null || (type != null && "".equals(value) && !isText(type))) {
+            statement.setNull(i + 1, type == null ? Types.VARCHAR : type);
+        } else if (type == null || !(value instanceof String)) {
+            statement.setObject(i + 1, value);
+        } else {
+            statement.setObject(i + 1, value, type);
+        }
+    }
+
+    private static boolean isText(int type) {
+        switch (type) {
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGNVARCHAR:
+            case Types.CLOB:
+            case Types.NCLOB:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if there are rows and the batch is full or old enough
+     */
+    public boolean isDue() {
+        return pending > 0 && (pending >= batchSize
+                || (flushInterval > 0 && System.currentTimeMillis() >= deadline));
+    }
+
+    /**
+     * Executes and commits the pending rows.
+     *
+     * @return rows written
+     * @throws SQLException after rolling the batch back
+     */
+    public int flush() throws SQLException {
+        if (pending == 0) {
+            return 0;
+        }
+        int rows = pending;
+        try {
+            statement.executeBatch();
+            connection.commit();
+        } catch (SQLException ex) {
+            try {
+                connection.rollback();
+            } catch (SQLException rollback) {
+                ex.addSuppressed(rollback);
+            }
+            throw ex;
+        } finally {
+            statement.clearBatch();
+            pending = 0;
+        }
+        written += rows;
+        return rows;
+    }
+
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * @return rows committed so far
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * Closes the statement, pending rows are dropped.
+     */
+    @Override
+    public void close() throws SQLException {
+        statement.close();
+    }
+}
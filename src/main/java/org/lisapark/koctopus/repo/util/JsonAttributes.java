@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.util;
+
+import com.google.common.collect.Maps;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.lisapark.koctopus.core.event.Attribute;
+
+/**
+ * Reads the top level fields of a JSON object into attribute values while
+ * the JSON is streamed. Fields without an attribute are skipped without
+ * being built, nested values of String attributes are kept as JSON text.
+ *
+ * @author alexmy
+ */
+public abstract class JsonAttributes {
+
+    /**
+     * @param in JSON text, not closed
+     * @param attributes
+     * @return values of the attributes found in the object, values that do
+     * not convert to the attribute type are left out
+     * @throws IOException also for malformed JSON
+     */
+    public static Map<String, Object> read(Reader in, List<Attribute> attributes) throws IOException {
+        Map<String, Class> types = new HashMap<>();
+        for (Attribute attribute : attributes) {
+            types.put(attribute.getName(), attribute.getType());
+        }
+        Map<String, Object> values = Maps.newHashMapWithExpectedSize(types.size());
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return values;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            Class type = types.get(name);
+            if (type == null) {
+                reader.skipValue();
+            } else if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                values.put(name, null);
+            } else {
+                try {
+                    values.put(name, value(reader, type));
+                } catch (NumberFormatException | IllegalStateException ex) {
+                    reader.skipValue();
+                }
+            }
+        }
+        reader.endObject();
+        return values;
+    }
+
+    private static Object value(JsonReader reader, Class type) throws IOException {
+        if (type == Integer.class) {
+            return reader.nextInt();
+        } else if (type == Long.class) {
+            return reader.nextLong();
+        } else if (type == Short.class) {
+            return (short) reader.nextInt();
+        } else if (type == Double.class) {
+            return reader.nextDouble();
+        } else if (type == Float.class) {
+            return (float) reader.nextDouble();
+        } else if (type == Boolean.class) {
+            return reader.peek() == JsonToken.BOOLEAN ? reader.nextBoolean() : Booleans.parseBoolean(reader.nextString());
+        }
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+            case BEGIN_ARRAY:
+                return new JsonParser().parse(reader).toString();
+            case BOOLEAN:
+                return Boolean.toString(reader.nextBoolean());
+            default:
+                return reader.nextString();
+        }
+    }
+}
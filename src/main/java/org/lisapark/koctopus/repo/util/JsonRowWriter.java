@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.util;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Serializes result set rows to JSON objects keyed by column label. The
+ * writer of every column is chosen once from the metadata and reads the
+ * column with a primitive getter, so a row goes straight to JSON without a
+ * map or boxed values. One JSON writer and buffer are reused for all rows,
+ * so an instance must only be used by one thread.
+ *
+ * @author alexmy
+ */
+public class JsonRowWriter implements ResultSets.RowReader<String> {
+
+    interface ColumnWriter {
+
+        void write(ResultSet rs, int column, JsonWriter out) throws SQLException, IOException;
+    }
+
+    private static final ColumnWriter LONG = (rs, column, out) -> {
+        long value = rs.getLong(column);
+        if (rs.wasNull()) {
+            out.nullValue();
+        } else {
+            out.value(value);
+        }
+    };
+    private static final ColumnWriter DOUBLE = (rs, column, out) -> {
+        double value = rs.getDouble(column);
+        if (rs.wasNull() || Double.isNaN(value) || Double.isInfinite(value)) {
+            out.nullValue();
+        } else {
+            out.value(value);
+        }
+    };
+    private static final ColumnWriter DECIMAL = (rs, column, out) -> {
+        BigDecimal value = rs.getBigDecimal(column);
+        if (value == null) {
+            out.nullValue();
+        } else {
+            out.value(value);
+        }
+    };
+    private static final ColumnWriter BOOLEAN = (rs, column, out) -> {
+        boolean value = rs.getBoolean(column);
+        if (rs.wasNull()) {
+            out.nullValue();
+        } else {
+            out.value(value);
+        }
+    };
+    private static final ColumnWriter STRING = (rs, column, out) -> out.value(rs.getString(column));
+
+    private final String[] names;
+    private final ColumnWriter[] writers;
+    private final StringWriter buffer = new StringWriter(256);
+    private final JsonWriter json;
+
+    private JsonRowWriter(String[] names, ColumnWriter[] writers) {
+        this.names = names;
+        this.writers = writers;
+        this.json = new JsonWriter(buffer);
+        // lenient, so the writer accepts one top level object per row
+        this.json.setLenient(true);
+        this.json.setSerializeNulls(true);
+    }
+
+    public static JsonRowWriter compile(ResultSetMetaData metaData) throws SQLException {
+        int count = metaData.getColumnCount();
+        String[] names = new String[count];
+        ColumnWriter[] writers = new ColumnWriter[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = metaData.getColumnLabel(i + 1);
+            writers[i] = forSqlType(metaData.getColumnType(i + 1));
+        }
+        return new JsonRowWriter(names, writers);
+    }
+
+    static ColumnWriter forSqlType(int type) {
+        switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return LONG;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return DOUBLE;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return DECIMAL;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return BOOLEAN;
+            default:
+                return STRING;
+        }
+    }
+
+    /**
+     * The current row as a JSON object.
+     *
+     * @param rs
+     * @return
+     * @throws SQLException
+     */
+    @Override
+    public String read(ResultSet rs) throws SQLException {
+        buffer.getBuffer().setLength(0);
+        try {
+            json.beginObject();
+            for (int i = 0; i < names.length; i++) {
+                json.name(names[i]);
+                writers[i].write(rs, i + 1, json);
+            }
+            json.endObject();
+            json.flush();
+        } catch (IOException ex) {
+            // StringWriter does not throw
+            throw new UncheckedIOException(ex);
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.lisapark.koctopus.core.ValidationException;
+import org.lisapark.koctopus.core.event.Attribute;
+import org.lisapark.koctopus.core.processor.AbstractProcessor;
+import org.lisapark.koctopus.core.processor.ProcessorOutput;
+import org.lisapark.koctopus.core.transport.TransportReference;
+
+/**
+ * Declares the attributes a processor writes to its output stream, so that
+ * downstream nodes see every attribute of the events, not only the one the
+ * output was created with.
+ *
+ * @author alexmy
+ */
+public abstract class ProcessorOutputs {
+
+    /**
+     * Attributes of the processor input, as the upstream node declared them,
+     * with their class names; String where the class is unknown. Empty while
+     * the input is not connected.
+     *
+     * @param processor
+     * @param inputName
+     * @return attribute class names by attribute name, in declaration order
+     */
+    public static Map<String, String> inputAttributes(AbstractProcessor<?> processor, String inputName) {
+        Map<String, String> types = new LinkedHashMap<>();
+        TransportReference reference = processor.getReferences().get(inputName);
+        if (reference != null && reference.getAttributes() != null) {
+            reference.getAttributes().forEach((name, attribute) -> types.put(name,
+                    attribute.getClassName() == null ? String.class.getName() : attribute.getClassName()));
+        }
+        return types;
+    }
+
+    /**
+     * Replaces the processor output with one declaring the attributes. Does
+     * nothing if there are none.
+     *
+     * @param processor
+     * @param outputId
+     * @param description
+     * @param types attribute class names by attribute name, in order
+     * @throws ValidationException
+     */
+    public static void declare(AbstractProcessor<?> processor, int outputId, String description, Map<String, String> types)
+            throws ValidationException {
+        if (types.isEmpty()) {
+            return;
+        }
+        Iterator<Map.Entry<String, String>> it = types.entrySet().iterator();
+        Map.Entry<String, String> first = it.next();
+        ProcessorOutput.Builder builder;
+        if (Double.class.getName().equals(first.getValue())) {
+            builder = ProcessorOutput.doubleOutputWithId(outputId);
+        } else if (Boolean.class.getName().equals(first.getValue())) {
+            builder = ProcessorOutput.booleanOutputWithId(outputId);
+        } else {
+            builder = ProcessorOutput.stringOutputWithId(outputId);
+        }
+        processor.setOutput(builder.name("Output").description(description).attributeName(first.getKey()));
+        while (it.hasNext()) {
+            Map.Entry<String, String> entry = it.next();
+            processor.getOutput().addAttribute(Attribute.newAttributeByClassName(entry.getValue(), entry.getKey()));
+        }
+    }
+
+    /**
+     * Adds the attributes the processor output does not declare yet, for
+     * processors that write a fixed set of attributes next to the output
+     * attribute.
+     *
+     * @param processor
+     * @param types attribute class names by attribute name, in order
+     * @throws ValidationException
+     */
+    public static void addMissing(AbstractProcessor<?> processor, Map<String, String> types) throws ValidationException {
+        for (Map.Entry<String, String> entry : types.entrySet()) {
+            if (processor.getOutput().getAttributeByName(entry.getKey()) == null) {
+                processor.getOutput().addAttribute(Attribute.newAttributeByClassName(entry.getValue(), entry.getKey()));
+            }
+        }
+    }
+}
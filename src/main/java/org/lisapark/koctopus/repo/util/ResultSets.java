@@ -21,6 +21,16 @@ import org.slf4j.LoggerFactory;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 /**
  * @author dave sinclair(david.sinclair@lisa-park.com)
@@ -28,6 +38,18 @@ import java.sql.SQLException;
 public class ResultSets {
     private static final Logger LOG = LoggerFactory.getLogger(Connections.class);
 
+    private static final long STOP_TIMEOUT = 5000;
+
+    /**
+     * Converts the current row of a result set.
+     *
+     * @param <T>
+     */
+    public interface RowReader<T> {
+
+        T read(ResultSet rs) throws SQLException;
+    }
+
     public static void closeQuietly(ResultSet resultSet) {
         if (resultSet != null) {
             try {
@@ -37,4 +59,113 @@ public class ResultSets {
             }
         }
     }
+
+    /**
+     * Reads the rest of the result set on a fetch thread and hands converted
+     * rows in batches to the writer on the calling thread, so database round
+     * trips overlap with writing. Stops early when running turns false.
+     *
+     * @param <T>
+     * @param rs
+     * @param reader
+     * @param batchSize
+     * @param running
+     * @param writer
+     * @return number of rows written
+     * @throws SQLException
+     * @throws InterruptedException
+     */
+    public static <T> long stream(ResultSet rs, RowReader<T> reader, int batchSize, BooleanSupplier running,
+            Consumer<List<T>> writer) throws SQLException, InterruptedException {
+        BlockingQueue<List<T>> batches = new ArrayBlockingQueue<>(4);
+        List<T> end = new ArrayList<>(0);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean closed = new AtomicBoolean();
+
+        Thread fetcher = new Thread(() -> {
+            boolean interrupted = false;
+            try {
+                List<T> batch = new ArrayList<>(batchSize);
+                while (running.getAsBoolean() && rs.next()) {
+                    batch.add(reader.read(rs));
+                    if (batch.size() == batchSize) {
+                        batches.put(batch);
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    batches.put(batch);
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (Throwable e) {
+                failure.set(e);
+            } finally {
+                // the consumer waits for the end marker, unless it has left
+                boolean posted = false;
+                while (!posted && !closed.get()) {
+                    try {
+                        posted = batches.offer(end, 100, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "result-set-fetch");
+        fetcher.setDaemon(true);
+        fetcher.start();
+
+        long count = 0;
+        try {
+            List<T> batch;
+            while ((batch = batches.take()) != end) {
+                writer.accept(batch);
+                count += batch.size();
+            }
+        } finally {
+            closed.set(true);
+            batches.clear();
+            stop(fetcher, rs);
+        }
+        Throwable e = failure.get();
+        if (e instanceof SQLException) {
+            throw (SQLException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            throw new SQLException(e);
+        }
+        return count;
+    }
+
+    /**
+     * Interrupts the fetch thread and waits for it a bounded time; a fetch
+     * blocked in the driver is canceled through the statement.
+     */
+    private static void stop(Thread fetcher, ResultSet rs) throws InterruptedException {
+        if (!fetcher.isAlive()) {
+            return;
+        }
+        fetcher.interrupt();
+        fetcher.join(STOP_TIMEOUT);
+        if (fetcher.isAlive()) {
+            try {
+                Statement statement = rs.getStatement();
+                if (statement != null) {
+                    statement.cancel();
+                }
+            } catch (SQLException e) {
+                LOG.warn("Problem canceling statement", e);
+            }
+            fetcher.join(STOP_TIMEOUT);
+        }
+        if (fetcher.isAlive()) {
+            LOG.warn("Result set fetch thread did not stop in {} ms", 2 * STOP_TIMEOUT);
+        }
+    }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.util;
+
+import com.google.common.collect.Maps;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.lisapark.koctopus.core.event.Attribute;
+
+/**
+ * Maps result set rows to attribute values. Column indexes and typed
+ * accessors are resolved once from the result set metadata, so a row is
+ * read by index without name lookups or type checks.
+ *
+ * @author alexmy
+ */
+public class RowMapper {
+
+    public interface ColumnReader {
+
+        Object read(ResultSet rs, int column) throws SQLException;
+    }
+
+    private static final ColumnReader STRING = (rs, column) -> rs.getString(column);
+    private static final ColumnReader INTEGER = (rs, column) -> rs.getInt(column);
+    private static final ColumnReader SHORT = (rs, column) -> rs.getShort(column);
+    private static final ColumnReader LONG = (rs, column) -> rs.getLong(column);
+    private static final ColumnReader DOUBLE = (rs, column) -> rs.getDouble(column);
+    private static final ColumnReader FLOAT = (rs, column) -> rs.getFloat(column);
+    private static final ColumnReader BOOLEAN = (rs, column) -> Booleans.parseBoolean(rs.getString(column));
+
+    private final String[] names;
+    private final int[] columns;
+    private final ColumnReader[] readers;
+
+    private RowMapper(String[] names, int[] columns, ColumnReader[] readers) {
+        this.names = names;
+        this.columns = columns;
+        this.readers = readers;
+    }
+
+    /**
+     * Resolves every attribute to the column with the same label, ignoring
+     * case like {@link ResultSet#findColumn(String)}.
+     *
+     * @param attributes
+     * @param metaData
+     * @return
+     * @throws SQLException if an attribute has no column
+     */
+    public static RowMapper compile(List<Attribute> attributes, ResultSetMetaData metaData) throws SQLException {
+        Map<String, Integer> labels = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int column = metaData.getColumnCount(); column > 0; column--) {
+            // the first column wins for duplicated labels
+            labels.put(metaData.getColumnLabel(column), column);
+        }
+        String[] names = new String[attributes.size()];
+        int[] columns = new int[names.length];
+        ColumnReader[] readers = new ColumnReader[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Attribute attribute = attributes.get(i);
+            Integer column = labels.get(attribute.getName());
+            if (column == null) {
+                throw new SQLException("No column for attribute " + attribute.getName());
+            }
+            names[i] = attribute.getName();
+            columns[i] = column;
+            readers[i] = forType(attribute.getType());
+        }
+        return new RowMapper(names, columns, readers);
+    }
+
+    public static ColumnReader forType(Class type) {
+        if (type == String.class) {
+            return STRING;
+        } else if (type == Integer.class) {
+            return INTEGER;
+        } else if (type == Short.class) {
+            return SHORT;
+        } else if (type == Long.class) {
+            return LONG;
+        } else if (type == Double.class) {
+            return DOUBLE;
+        } else if (type == Float.class) {
+            return FLOAT;
+        } else if (type == Boolean.class) {
+            return BOOLEAN;
+        }
+        throw new IllegalArgumentException(String.format("Unknown attribute type %s", type));
+    }
+
+    /**
+     * Attribute values of the current row.
+     *
+     * @param rs
+     * @return
+     * @throws SQLException
+     */
+    public Map<String, Object> map(ResultSet rs) throws SQLException {
+        Map<String, Object> attributeValues = Maps.newHashMapWithExpectedSize(names.length);
+        for (int i = 0; i < names.length; i++) {
+            attributeValues.put(names[i], readers[i].read(rs, columns[i]));
+        }
+        return attributeValues;
+    }
+
+    public String[] getNames() {
+        return names.clone();
+    }
+}
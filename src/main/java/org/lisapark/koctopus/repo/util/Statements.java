@@ -19,6 +19,9 @@ package org.lisapark.koctopus.repo.util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 
@@ -38,4 +41,42 @@ public abstract class Statements {
             }
         }
     }
+
+    /**
+     * Forward only, read only statement that fetches rows in pages of
+     * fetchSize instead of buffering the whole result. Auto commit is turned
+     * off, since some drivers (PostgreSQL) only use a cursor inside a
+     * transaction.
+     *
+     * @param connection
+     * @param fetchSize rows per round trip, 0 - driver default
+     * @return
+     * @throws SQLException
+     */
+    public static Statement createStreamingStatement(Connection connection, int fetchSize) throws SQLException {
+        if (fetchSize > 0 && connection.getAutoCommit()) {
+            connection.setAutoCommit(false);
+        }
+        Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        statement.setFetchSize(fetchSize);
+        return statement;
+    }
+
+    /**
+     * Prepared variant of {@link #createStreamingStatement(Connection, int)}.
+     *
+     * @param connection
+     * @param sql
+     * @param fetchSize rows per round trip, 0 - driver default
+     * @return
+     * @throws SQLException
+     */
+    public static PreparedStatement prepareStreamingStatement(Connection connection, String sql, int fetchSize) throws SQLException {
+        if (fetchSize > 0 && connection.getAutoCommit()) {
+            connection.setAutoCommit(false);
+        }
+        PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        statement.setFetchSize(fetchSize);
+        return statement;
+    }
 }
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.repo.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Captured stream entries stored in numbered segment files
+ * "prefix-000001.seg", gzipped segments end with ".seg.gz".
+ *
+ * A segment starts with a 4 byte magic followed by records: the entry id,
+ * the number of fields and the field names and values. Strings are written
+ * as a varint length and UTF-8 bytes, counts as varints.
+ *
+ * @author alexmy
+ */
+public abstract class StreamSegments {
+
+    private static final int MAGIC = 0x4F435347;
+    private static final String SUFFIX = ".seg";
+    private static final String GZIP_SUFFIX = ".seg.gz";
+
+    /**
+     * Segments of the prefix in the directory, in order.
+     *
+     * @param dir
+     * @param prefix
+     * @return
+     * @throws IOException
+     */
+    public static List<Path> segments(Path dir, String prefix) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, prefix + "-*" + SUFFIX + "*")) {
+            for (Path path : stream) {
+                if (index(path, prefix) >= 0) {
+                    segments.add(path);
+                }
+            }
+        }
+        Collections.sort(segments, (a, b) -> Long.compare(index(a, prefix), index(b, prefix)));
+        return segments;
+    }
+
+    private static long index(Path path, String prefix) {
+        String name = path.getFileName().toString();
+        int end = name.endsWith(GZIP_SUFFIX) ? name.length() - GZIP_SUFFIX.length()
+                : name.endsWith(SUFFIX) ? name.length() - SUFFIX.length() : -1;
+        if (end <= prefix.length() + 1) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length() + 1, end));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Appends entries to new segments, rolling over when a segment reaches
+     * the segment size. Existing segments of the prefix are kept, numbering
+     * continues after the last one.
+     */
+    public static class Writer implements Closeable {
+
+        private final Path dir;
+        private final String prefix;
+        private final long segmentSize;
+        private final boolean compress;
+
+        private long nextIndex;
+        private OutputStream out;
+        private long written;
+        private byte[] scratch = new byte[256];
+
+        public Writer(Path dir, String prefix, long segmentSize, boolean compress) throws IOException {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.segmentSize = segmentSize;
+            this.compress = compress;
+            Files.createDirectories(dir);
+            List<Path> existing = segments(dir, prefix);
+            this.nextIndex = existing.isEmpty() ? 1 : index(existing.get(existing.size() - 1), prefix) + 1;
+        }
+
+        public void append(String id, Map<String, String> body) throws IOException {
+            if (out == null || written >= segmentSize) {
+                roll();
+            }
+            writeString(id);
+            writeVarint(body.size());
+            for (Map.Entry<String, String> field : body.entrySet()) {
+                writeString(field.getKey());
+                writeString(field.getValue());
+            }
+        }
+
+        private void roll() throws IOException {
+            close();
+            Path path = dir.resolve(String.format("%s-%06d%s", prefix, nextIndex++, compress ? GZIP_SUFFIX : SUFFIX));
+            OutputStream file = Files.newOutputStream(path);
+            out = new BufferedOutputStream(compress ? new GZIPOutputStream(file, 64 * 1024) : file, 64 * 1024);
+            written = 0;
+            out.write(MAGIC >>> 24);
+            out.write(MAGIC >>> 16);
+            out.write(MAGIC >>> 8);
+            out.write(MAGIC);
+            written += 4;
+        }
+
+        private void writeVarint(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+                written++;
+            }
+            out.write(value);
+            written++;
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                value = "";
+            }
+            // ASCII fast path, no encoder and no array per string
+            int length = value.length();
+            boolean ascii = true;
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80) {
+                    ascii = false;
+                    break;
+                }
+                scratch[i] = (byte) c;
+            }
+            if (ascii) {
+                writeVarint(length);
+                out.write(scratch, 0, length);
+                written += length;
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarint(bytes.length);
+                out.write(bytes);
+                written += bytes.length;
+            }
+        }
+
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+    }
+
+    /**
+     * Reads the entries of all segments of a prefix in order.
+     */
+    public static class Reader implements Closeable {
+
+        private final List<Path> segments;
+        private int segment;
+        private InputStream in;
+        private byte[] scratch = new byte[256];
+
+        private String id;
+        private Map<String, String> body;
+
+        public Reader(Path dir, String prefix) throws IOException {
+            this.segments = segments(dir, prefix);
+        }
+
+        /**
+         * Moves to the next entry.
+         *
+         * @return false after the last entry of the last segment
+         * @throws IOException
+         */
+        public boolean next() throws IOException {
+            while (true) {
+                if (in == null) {
+                    if (segment >= segments.size()) {
+                        return false;
+                    }
+                    open(segments.get(segment++));
+                }
+                int first = in.read();
+                if (first < 0) {
+                    in.close();
+                    in = null;
+                    continue;
+                }
+                id = readString(readVarint(first));
+                int fields = readVarint(read());
+                Map<String, String> values = new LinkedHashMap<>(fields * 2);
+                for (int i = 0; i < fields; i++) {
+                    String name = readString(readVarint(read()));
+                    values.put(name, readString(readVarint(read())));
+                }
+                body = values;
+                return true;
+            }
+        }
+
+        private void open(Path path) throws IOException {
+            InputStream file = Files.newInputStream(path);
+            in = new BufferedInputStream(path.getFileName().toString().endsWith(GZIP_SUFFIX)
+                    ? new GZIPInputStream(file, 64 * 1024) : file, 64 * 1024);
+            int magic = (read() << 24) | (read() << 16) | (read() << 8) | read();
+            if (magic != MAGIC) {
+                in.close();
+                in = null;
+                throw new IOException("Not a stream segment: " + path);
+            }
+        }
+
+        private int read() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated segment " + segments.get(segment - 1));
+            }
+            return b;
+        }
+
+        private int readVarint(int first) throws IOException {
+            int value = first & 0x7F;
+            int shift = 7;
+            int b = first;
+            while ((b & 0x80) != 0) {
+                b = read();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            }
+            return value;
+        }
+
+        private String readString(int length) throws IOException {
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            int n = 0;
+            while (n < length) {
+                int r = in.read(scratch, n, length - n);
+                if (r < 0) {
+                    throw new EOFException("Truncated segment " + segments.get(segment - 1));
+                }
+                n += r;
+            }
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        public String id() {
+            return id;
+        }
+
+        public Map<String, String> body() {
+            return body;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+}